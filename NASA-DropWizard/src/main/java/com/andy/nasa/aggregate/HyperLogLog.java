@@ -0,0 +1,141 @@
+package com.andy.nasa.aggregate;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * This class is a hyper log log sketch, it estimates how many different values it has
+ * been given from a fixed number of small registers however many values there are.
+ * Sketches of the same precision merge by keeping the highest of each register,
+ * which gives the sketch of every value either of them was given
+ */
+public class HyperLogLog {
+
+    // hash spreading the values over the registers
+    private static final HashFunction HASH = Hashing.murmur3_128();
+
+    // the number of bits of the hash choosing the register
+    private final int precision;
+
+    // the most leading zeros seen by each register, plus one
+    private final byte[] registers;
+
+    /**
+     * Creates an empty sketch
+     * @param precision the sketch has 2 ^ precision registers, its standard error is 1.04 / sqrt(2 ^ precision)
+     */
+    public HyperLogLog(int precision) {
+        if (precision < 4 || precision > 18) {
+            throw new IllegalArgumentException("precision must be between 4 and 18 but was " + precision);
+        }
+        this.precision = precision;
+        this.registers = new byte[1 << precision];
+    }
+
+    /**
+     * Reads a sketch written by {@link #toBytes}
+     * @param bytes the precision followed by the registers
+     * @return HyperLogLog the sketch
+     */
+    public static HyperLogLog fromBytes(byte[] bytes) {
+        HyperLogLog hyperLogLog = new HyperLogLog(bytes[0]);
+        if (bytes.length != hyperLogLog.registers.length + 1) {
+            throw new IllegalArgumentException("expected " + (hyperLogLog.registers.length + 1) + " bytes but was " + bytes.length);
+        }
+        System.arraycopy(bytes, 1, hyperLogLog.registers, 0, hyperLogLog.registers.length);
+        return hyperLogLog;
+    }
+
+    /**
+     * Adds a value to the sketch
+     * @param value the value
+     */
+    public void add(String value) {
+        long hash = HASH.hashString(value, StandardCharsets.UTF_8).asLong();
+        // the first bits choose the register and the rest count leading zeros,
+        // the extra bit stops the count running past the end of the hash
+        int index = (int) (hash >>> (64 - precision));
+        byte rank = (byte) (Long.numberOfLeadingZeros((hash << precision) | (1L << (precision - 1))) + 1);
+        if (rank > registers[index]) {
+            registers[index] = rank;
+        }
+    }
+
+    /**
+     * Adds every value of another sketch to this one
+     * @param other a sketch of the same precision
+     */
+    public void merge(HyperLogLog other) {
+        if (other.precision != precision) {
+            throw new IllegalArgumentException("cannot merge precision " + other.precision + " into " + precision);
+        }
+        for (int i = 0; i < registers.length; i++) {
+            if (other.registers[i] > registers[i]) {
+                registers[i] = other.registers[i];
+            }
+        }
+    }
+
+    /**
+     * Estimates how many different values the sketch has been given
+     * @return long the estimate
+     */
+    public long estimate() {
+        int m = registers.length;
+        double sum = 0;
+        int zeros = 0;
+        for (byte register : registers) {
+            sum += 1.0 / (1L << register);
+            if (register == 0) {
+                zeros++;
+            }
+        }
+        double alpha = 0.7213 / (1 + 1.079 / m);
+        double estimate = alpha * m * m / sum;
+        // small counts are far more accurate from the number of empty registers
+        if (estimate <= 2.5 * m && zeros > 0) {
+            estimate = m * Math.log((double) m / zeros);
+        }
+        return Math.round(estimate);
+    }
+
+    /**
+     * gets the standard error of the estimate relative to the real count
+     * @return double the standard error
+     */
+    public double getStandardError() {
+        return 1.04 / Math.sqrt(registers.length);
+    }
+
+    /**
+     * Writes the sketch so it can be kept and read back with {@link #fromBytes}
+     * @return byte[] the precision followed by the registers
+     */
+    public byte[] toBytes() {
+        byte[] bytes = new byte[registers.length + 1];
+        bytes[0] = (byte) precision;
+        System.arraycopy(registers, 0, bytes, 1, registers.length);
+        return bytes;
+    }
+
+    /**
+     * Copies the sketch
+     * @return HyperLogLog a sketch with the same registers
+     */
+    public HyperLogLog copy() {
+        return fromBytes(toBytes());
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return other instanceof HyperLogLog && Arrays.equals(((HyperLogLog) other).toBytes(), toBytes());
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(registers);
+    }
+}
@@ -0,0 +1,344 @@
+package com.andy.nasa.aggregate;
+
+import com.andy.nasa.columnar.ColumnStore;
+import com.andy.nasa.elasticsearch.EntryScroll;
+import com.andy.nasa.elasticsearch.WireFormat;
+import com.andy.nasa.event.DatabaseHandler;
+import com.andy.nasa.event.FlushListener;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import model.DBEntry;
+import org.HdrHistogram.Histogram;
+import org.elasticsearch.client.RestClient;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.BiConsumer;
+
+import static com.zackehh.jackson.Jive.newObjectNode;
+
+/**
+ * This class keeps the answers to the aggregation API's up to date in memory as entries
+ * are written, so they can be answered without asking elastic search. After a restart
+ * the aggregates are not ready until {@link #rebuild} has read back what is already indexed,
+ * from the index or from the columns kept on disk.
+ * Rankings of users and extensions are kept as one running space saving sketch each, so they
+ * stay the same size however many users there are and are read without merging anything.
+ * They only answer for every time, a range is always asked of the backend. Nothing is kept
+ * for each user other than in the sketches, so the requests of one user are asked of it too.
+ * Payload sizes are kept as histograms overall, by extension and by month for their percentiles
+ */
+public class MaterializedAggregates implements FlushListener {
+
+    // number of entries
+    private long requests;
+
+    // number of entries with a 4xx or 5xx response code
+    private long errors;
+
+    // sum of the payload sizes
+    private long payloadSum;
+
+    // requests and errors of each month, keyed by the start of the month in epoch millis
+    private final TreeMap<Long, long[]> months = new TreeMap<>();
+
+    // the most items each ranking sketch counts
+    private final int sketchCapacity;
+
+    // sketch of the users making the most requests
+    private SpaceSaving userRequestSketch;
+
+    // sketch of the users requesting the most bytes
+    private SpaceSaving userByteSketch;
+
+    // sketch of the most requested file extensions
+    private SpaceSaving extensionSketch;
+
+    // requests of each http method
+    private final Map<String, Long> methods = new HashMap<>();
+
+    // significant digits of the payload histograms, values are kept to within 1%
+    private static final int HISTOGRAM_DIGITS = 2;
+
+    // histogram of every payload size
+    private final Histogram payloads = new Histogram(HISTOGRAM_DIGITS);
+
+    // histograms of the payload sizes of each file extension
+    private final Map<String, Histogram> extensionPayloads = new HashMap<>();
+
+    // histograms of the payload sizes of each month, keyed by the start of the month in epoch millis
+    private final Map<Long, Histogram> monthPayloads = new HashMap<>();
+
+    // whether the aggregates hold everything that is indexed
+    private volatile boolean ready = false;
+
+    /**
+     * Creates empty aggregates whose ranking sketches count up to 1000 items
+     */
+    public MaterializedAggregates() {
+        this(1000);
+    }
+
+    /**
+     * Creates empty aggregates
+     * @param sketchCapacity the most items each ranking sketch counts, rankings are
+     *                       exact while there are fewer items than this
+     */
+    public MaterializedAggregates(int sketchCapacity) {
+        this.sketchCapacity = sketchCapacity;
+        this.userRequestSketch = new SpaceSaving(sketchCapacity);
+        this.userByteSketch = new SpaceSaving(sketchCapacity);
+        this.extensionSketch = new SpaceSaving(sketchCapacity);
+    }
+
+    /**
+     * Adds the entries of a flush to the aggregates
+     * @param entries the entries newly written
+     */
+    @Override
+    public synchronized void flushed(List<DBEntry> entries) {
+        for (DBEntry entry : entries) {
+            add(entry);
+        }
+    }
+
+    /**
+     * This method adds one entry to the aggregates
+     * @param entry the entry
+     */
+    private void add(DBEntry entry) {
+        boolean error = entry.responseCode() >= 400 && entry.responseCode() <= 599;
+        requests++;
+        payloadSum += entry.payloadSize();
+        if (error) {
+            errors++;
+        }
+        long payloadSize = Math.max(0, entry.payloadSize());
+        payloads.recordValue(payloadSize);
+        if (entry.fileExtension() != null) {
+            extensionPayloads.computeIfAbsent(entry.fileExtension(), key -> new Histogram(HISTOGRAM_DIGITS)).recordValue(payloadSize);
+        }
+        if (entry.datetime() != null) {
+            long[] month = months.computeIfAbsent(monthOf(entry.datetime()), key -> new long[2]);
+            monthPayloads.computeIfAbsent(monthOf(entry.datetime()), key -> new Histogram(HISTOGRAM_DIGITS)).recordValue(payloadSize);
+            month[0]++;
+            if (error) {
+                month[1]++;
+            }
+        }
+        if (entry.username() != null) {
+            userRequestSketch.add(entry.username(), 1);
+            userByteSketch.add(entry.username(), entry.payloadSize());
+        }
+        if (entry.fileExtension() != null) {
+            extensionSketch.add(entry.fileExtension(), 1);
+        }
+        methods.merge(entry.restfulAPI(), 1L, Long::sum);
+    }
+
+    /**
+     * Reads back everything already in the index, which is how the aggregates are made
+     * ready after a restart. Entries flushed while this runs are added by the flush listener,
+     * anything flushed before it started is read from the index
+     * @param restClient rest client for ES
+     * @param databaseHandler the handler writing entries, which must already have these aggregates as a listener
+     * @param wireFormat the format to read the index in
+     * @throws Exception IO exception talking to ES
+     */
+    public void rebuild(RestClient restClient, DatabaseHandler databaseHandler, WireFormat wireFormat) throws Exception {
+        // nothing can be flushed between the refresh and the start of the scroll,
+        // so every entry is either in the scroll or given to the listener, never both
+        EntryScroll entryScroll = databaseHandler.betweenFlushes(() -> {
+            clear();
+            return EntryScroll.open(restClient, wireFormat);
+        });
+        entryScroll.forEach(entry -> {
+            synchronized (this) {
+                add(entry);
+            }
+        });
+        ready = true;
+    }
+
+    /**
+     * Reads back every entry kept in the columns rather than the index, which is much quicker
+     * once the columns have been read back from their segments. Entries flushed while this runs
+     * are added by the flush listener, anything flushed before it started is read from the columns
+     * @param columnStore the columns, which must already have every entry in the index
+     * @param databaseHandler the handler writing entries, which must already have these aggregates
+     *                        and the columns as listeners
+     * @throws Exception if the columns could not be read
+     */
+    public void rebuild(ColumnStore columnStore, DatabaseHandler databaseHandler) throws Exception {
+        // the columns are taken between flushes for the same reason as the scroll
+        Iterable<DBEntry> entries = databaseHandler.betweenFlushes(() -> {
+            clear();
+            return columnStore.entries();
+        });
+        for (DBEntry entry : entries) {
+            synchronized (this) {
+                add(entry);
+            }
+        }
+        ready = true;
+    }
+
+    /**
+     * gets whether the aggregates hold everything that is indexed
+     * @return ready
+     */
+    public boolean isReady() {
+        return ready;
+    }
+
+    /**
+     * Answers the average payload size API
+     * @return Double the average payload size, 0 when there are no requests like the avg aggregation of ES
+     */
+    public synchronized Double averagePayloadSize() {
+        return requests == 0 ? 0.0 : (double) payloadSum / requests;
+    }
+
+    /**
+     * Answers the error rate API
+     * @return Double the percentage of requests that failed, 0 when there are no requests
+     */
+    public synchronized Double errorRate() {
+        return requests == 0 ? 0.0 : ((double) errors / requests) * 100;
+    }
+
+    /**
+     * Answers the error rate per month API, every month between the first
+     * and the last is in the result like the date histogram of ES
+     * @return ObjectNode the start of each month and the percentage of its requests that failed
+     */
+    public synchronized ObjectNode errorRatePerMonth() {
+        ObjectNode result = newObjectNode();
+        forEachMonth((key, month) -> result.put(key, month[0] == 0 ? 0.0 : ((double) month[1] / month[0]) * 100));
+        return result;
+    }
+
+    /**
+     * Answers the requests per month API
+     * @return ObjectNode the start of each month and its number of requests
+     */
+    public synchronized ObjectNode requestsPerMonth() {
+        ObjectNode result = newObjectNode();
+        forEachMonth((key, month) -> result.put(key, (int) month[0]));
+        return result;
+    }
+
+    /**
+     * Answers the top users API's from the sketches
+     * @param size how many users wanted
+     * @return List<Counter> the users making the most requests, highest first
+     */
+    public synchronized List<SpaceSaving.Counter> topUsers(int size) {
+        return userRequestSketch.top(size);
+    }
+
+    /**
+     * Answers the users that requested the most data API from the sketches
+     * @return List<Counter> the five users with the most bytes, highest first
+     */
+    public synchronized List<SpaceSaving.Counter> usersMostData() {
+        return userByteSketch.top(5);
+    }
+
+    /**
+     * Answers the popular extensions API from the sketches
+     * @return List<Counter> the five most requested extensions, highest first
+     */
+    public synchronized List<SpaceSaving.Counter> popularExtensions() {
+        return extensionSketch.top(5);
+    }
+
+    /**
+     * Answers the api calls API
+     * @return ObjectNode the three most used http methods and their requests
+     */
+    public synchronized ObjectNode apiCalls() {
+        return top(methods, 3);
+    }
+
+    /**
+     * Answers the payload size distribution API, for one extension, one month or everything
+     * @param extension only the payloads of this extension, null for any
+     * @param month only the payloads of the month this time is in, null for any
+     * @return Histogram a copy of the histogram of the payload sizes
+     */
+    public synchronized Histogram payloadSizes(String extension, DateTime month) {
+        Histogram histogram = payloads;
+        if (extension != null) {
+            histogram = extensionPayloads.get(extension);
+        } else if (month != null) {
+            histogram = monthPayloads.get(monthOf(month));
+        }
+        return histogram == null ? new Histogram(HISTOGRAM_DIGITS) : histogram.copy();
+    }
+
+    /**
+     * This method empties the aggregates and marks them not ready
+     */
+    private synchronized void clear() {
+        ready = false;
+        requests = 0;
+        errors = 0;
+        payloadSum = 0;
+        months.clear();
+        payloads.reset();
+        extensionPayloads.clear();
+        monthPayloads.clear();
+        userRequestSketch = new SpaceSaving(sketchCapacity);
+        userByteSketch = new SpaceSaving(sketchCapacity);
+        extensionSketch = new SpaceSaving(sketchCapacity);
+        methods.clear();
+    }
+
+    /**
+     * This method visits every month from the first to the last, with
+     * months that have no requests in between given as zeros
+     * @param visitor given the start of each month as text and its requests and errors
+     */
+    private void forEachMonth(BiConsumer<String, long[]> visitor) {
+        if (months.isEmpty()) {
+            return;
+        }
+        DateTime month = new DateTime(months.firstKey(), DateTimeZone.UTC);
+        while (month.getMillis() <= months.lastKey()) {
+            visitor.accept(String.valueOf(month.getMillis()), months.getOrDefault(month.getMillis(), new long[2]));
+            month = month.plusMonths(1);
+        }
+    }
+
+    /**
+     * This method finds the keys with the highest counts, ordered like the
+     * terms aggregation of ES with the highest first and ties by key
+     * @param counts the count of each key
+     * @param size how many keys wanted
+     * @return ObjectNode the keys and their counts
+     */
+    private static ObjectNode top(Map<String, Long> counts, int size) {
+        ObjectNode result = newObjectNode();
+        counts.entrySet()
+                .stream()
+                .sorted(Map.Entry.<String, Long>comparingByValue(Comparator.reverseOrder())
+                        .thenComparing(Map.Entry.comparingByKey()))
+                .limit(size)
+                .forEach(entry -> result.put(entry.getKey(), entry.getValue().intValue()));
+        return result;
+    }
+
+    /**
+     * This method finds the start of the month a time is in
+     * @param datetime the time
+     * @return long the start of its month in epoch millis
+     */
+    private static long monthOf(DateTime datetime) {
+        return datetime.withZone(DateTimeZone.UTC).withDayOfMonth(1).withTimeAtStartOfDay().getMillis();
+    }
+}
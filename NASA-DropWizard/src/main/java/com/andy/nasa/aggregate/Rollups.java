@@ -0,0 +1,383 @@
+package com.andy.nasa.aggregate;
+
+import com.andy.nasa.elasticsearch.EntryScroll;
+import com.andy.nasa.elasticsearch.WireFormat;
+import com.andy.nasa.event.DatabaseHandler;
+import com.andy.nasa.event.FlushListener;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import model.DBEntry;
+import org.apache.http.nio.entity.NByteArrayEntity;
+import org.elasticsearch.client.Response;
+import org.elasticsearch.client.ResponseException;
+import org.elasticsearch.client.RestClient;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.zackehh.jackson.Jive.newJsonEntry;
+import static com.zackehh.jackson.Jive.newObjectNode;
+
+/**
+ * This class keeps a rollup index beside the entries, with one document for each hour holding
+ * its requests by status class and the sum of its payloads, and one for each extension requested
+ * in the hour. Any range of whole hours is answered by summing a few documents an hour rather than
+ * every entry, so a year costs about the same as a day. The rollups are added to after every flush
+ * with a bulk update of each document it changes, a painless script adding the counts of the flush
+ * to the document or creating it when it is new, so each addition is made by ES in one step.
+ * When a write fails the rollups no longer match the index, so they stop being ready and are built
+ * again on the next start. Entries without a time are not in any hour, so the rollups only answer
+ * ranges of time
+ */
+public class Rollups implements FlushListener {
+
+    // the index of the rollups
+    public static final String INDEX = "/nasa-rollup/";
+
+    // type of the documents of each hour
+    public static final String HOUR_TYPE = "hour";
+
+    // type of the documents of each extension in each hour
+    public static final String EXTENSION_TYPE = "extension";
+
+    // how long each rollup covers
+    public static final long GRANULARITY_MILLIS = 60 * 60 * 1000;
+
+    // type and id of the document written once the rollups hold everything indexed
+    private static final String BUILT = INDEX + "meta/built";
+
+    // how many rollups are written in each request
+    private static final int BATCH_SIZE = 1000;
+
+    // adds the counts given to those of a rollup, the same script every time so it is only compiled once
+    private static final String ADD_SCRIPT = "for (count in params.counts.entrySet()) {"
+            + " ctx._source[count.getKey()] += count.getValue(); }";
+
+    // how many times an update is tried again when a document changed while it was being updated
+    private static final int RETRY_ON_CONFLICT = 3;
+
+    // ES rest client
+    private final RestClient restClient;
+
+    // format the rollups are written in
+    private final WireFormat wireFormat;
+
+    // object mapper for the wire format
+    private final ObjectMapper objectMapper;
+
+    // whether the index is known to exist with its mappings
+    private boolean created = false;
+
+    // whether the rollups hold everything that is indexed
+    private volatile boolean ready = false;
+
+    // whether a write failed since the rollups were last built
+    private volatile boolean failed = false;
+
+    /**
+     * Creates the rollups, which are not ready until {@link #open} or {@link #rebuild}
+     * @param restClient rest client for ES
+     * @param wireFormat the format to write the rollups in
+     */
+    public Rollups(RestClient restClient, WireFormat wireFormat) {
+        this.restClient = restClient;
+        this.wireFormat = wireFormat;
+        this.objectMapper = wireFormat.getObjectMapper();
+    }
+
+    /**
+     * Checks whether the rollups were fully built before a restart, every flush since has added to them
+     * @return boolean true when the rollups are ready
+     * @throws IOException talking to ES
+     */
+    public boolean open() throws IOException {
+        try {
+            restClient.performRequest("GET", BUILT, Collections.emptyMap());
+            ready = true;
+        } catch (ResponseException e) {
+            if (e.getResponse().getStatusLine().getStatusCode() != 404) {
+                throw e;
+            }
+        }
+        return ready;
+    }
+
+    /**
+     * Adds the entries of a flush to the rollups of their hours, when they could not all be
+     * added the rollups stop being ready so ranges are answered from the entries instead
+     * @param entries the entries newly written
+     */
+    @Override
+    public void flushed(List<DBEntry> entries) {
+        Map<String, ObjectNode> rollups = new LinkedHashMap<>();
+        entries.forEach(entry -> add(rollups, entry));
+        try {
+            write(rollups);
+        } catch (IOException e) {
+            e.printStackTrace();
+            failed();
+        }
+    }
+
+    /**
+     * Builds the rollups again from everything already in the index. Entries flushed
+     * while this runs are added by the flush listener, anything flushed before it started
+     * is read from the index, and both add to the same documents
+     * @param databaseHandler the handler writing entries, which must already have these rollups as a listener
+     * @throws Exception IO exception talking to ES
+     */
+    public void rebuild(DatabaseHandler databaseHandler) throws Exception {
+        EntryScroll entryScroll = databaseHandler.betweenFlushes(() -> {
+            synchronized (this) {
+                ready = false;
+                failed = false;
+                delete();
+                create();
+            }
+            return EntryScroll.open(restClient, wireFormat);
+        });
+        // the rollups are small enough to sum in memory before they are written
+        Map<String, ObjectNode> rollups = new LinkedHashMap<>();
+        entryScroll.forEach(entry -> add(rollups, entry));
+        write(rollups);
+        if (failed) {
+            throw new IOException("The rollups of a flush were not written while they were rebuilt");
+        }
+        // refreshed so searches see every rollup as soon as they are ready, the refresh
+        // of a single document only reaches its own shard so the whole index is refreshed
+        restClient.performRequest("POST", INDEX + "_refresh", Collections.emptyMap());
+        restClient.performRequest(
+                "PUT",
+                BUILT,
+                Collections.singletonMap("refresh", "true"),
+                new NByteArrayEntity(
+                        objectMapper.writeValueAsBytes(newObjectNode(newJsonEntry("built", System.currentTimeMillis()))),
+                        wireFormat.getContentType()
+                )
+        );
+        // a flush may have failed while the marker was written
+        ready = !failed;
+    }
+
+    /**
+     * gets whether the rollups hold everything that is indexed
+     * @return ready
+     */
+    public boolean isReady() {
+        return ready;
+    }
+
+    /**
+     * This method adds one entry to the rollups of its hour
+     * @param rollups the rollups being summed, by type and id
+     * @param entry the entry
+     */
+    private static void add(Map<String, ObjectNode> rollups, DBEntry entry) {
+        if (entry.datetime() == null) {
+            return;
+        }
+        long hour = entry.datetime().getMillis() - Math.floorMod(entry.datetime().getMillis(), GRANULARITY_MILLIS);
+        ObjectNode hourRollup = rollups.computeIfAbsent(HOUR_TYPE + "/" + hour, key -> newObjectNode(
+                newJsonEntry("hour", hour),
+                newJsonEntry("requests", 0),
+                newJsonEntry("status1xx", 0),
+                newJsonEntry("status2xx", 0),
+                newJsonEntry("status3xx", 0),
+                newJsonEntry("status4xx", 0),
+                newJsonEntry("status5xx", 0),
+                newJsonEntry("payloadSum", 0)
+        ));
+        increment(hourRollup, "requests", 1);
+        increment(hourRollup, "payloadSum", entry.payloadSize());
+        int statusClass = entry.responseCode() / 100;
+        if (statusClass >= 1 && statusClass <= 5) {
+            increment(hourRollup, "status" + statusClass + "xx", 1);
+        }
+        if (entry.fileExtension() != null) {
+            ObjectNode extensionRollup = rollups.computeIfAbsent(
+                    EXTENSION_TYPE + "/" + hour + ":" + entry.fileExtension(),
+                    key -> newObjectNode(
+                            newJsonEntry("hour", hour),
+                            newJsonEntry("extension", entry.fileExtension()),
+                            newJsonEntry("requests", 0),
+                            newJsonEntry("payloadSum", 0)
+                    )
+            );
+            increment(extensionRollup, "requests", 1);
+            increment(extensionRollup, "payloadSum", entry.payloadSize());
+        }
+    }
+
+    /**
+     * This method adds to a count of a rollup
+     * @param rollup the rollup
+     * @param field the count
+     * @param amount how much to add
+     */
+    private static void increment(ObjectNode rollup, String field, long amount) {
+        rollup.put(field, rollup.path(field).asLong() + amount);
+    }
+
+    /**
+     * This method marks the rollups as no longer matching the index, and removes the marker
+     * that they were built so they are built again on the next start
+     */
+    private void failed() {
+        failed = true;
+        ready = false;
+        try {
+            restClient.performRequest("DELETE", BUILT, Collections.emptyMap());
+        } catch (IOException e) {
+            // a 404 is the marker already being gone
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * This method adds rollups to those already in the index, a batch at a time, each with a
+     * scripted update that adds its counts or creates it when it is not there yet
+     * @param rollups the rollups to add, by type and id
+     * @throws IOException talking to ES or when any of them were not written
+     */
+    private synchronized void write(Map<String, ObjectNode> rollups) throws IOException {
+        if (rollups.isEmpty()) {
+            return;
+        }
+        create();
+        List<String> keys = new ArrayList<>(rollups.keySet());
+        for (int start = 0; start < keys.size(); start += BATCH_SIZE) {
+            List<String> batch = keys.subList(start, Math.min(keys.size(), start + BATCH_SIZE));
+            ByteArrayOutputStream bulkDoc = new ByteArrayOutputStream();
+            for (String key : batch) {
+                ObjectNode rollup = rollups.get(key);
+                // every number in a rollup other than its hour is a count
+                ObjectNode counts = newObjectNode();
+                Iterator<Map.Entry<String, JsonNode>> fields = rollup.fields();
+                while (fields.hasNext()) {
+                    Map.Entry<String, JsonNode> field = fields.next();
+                    if (field.getValue().isNumber() && !field.getKey().equals("hour")) {
+                        counts.set(field.getKey(), field.getValue());
+                    }
+                }
+                String[] typeAndId = key.split("/", 2);
+                byte[] updateLine = objectMapper.writeValueAsBytes(newObjectNode(
+                        newJsonEntry("update", newObjectNode(
+                                newJsonEntry("_type", typeAndId[0]),
+                                newJsonEntry("_id", typeAndId[1]),
+                                newJsonEntry("_retry_on_conflict", RETRY_ON_CONFLICT)
+                        ))
+                ));
+                byte[] scriptLine = objectMapper.writeValueAsBytes(newObjectNode(
+                        newJsonEntry("script", newObjectNode(
+                                newJsonEntry("lang", "painless"),
+                                newJsonEntry("inline", ADD_SCRIPT),
+                                newJsonEntry("params", newObjectNode(newJsonEntry("counts", counts)))
+                        )),
+                        newJsonEntry("upsert", rollup)
+                ));
+                bulkDoc.write(updateLine, 0, updateLine.length);
+                bulkDoc.write(wireFormat.getBulkSeparator());
+                bulkDoc.write(scriptLine, 0, scriptLine.length);
+                bulkDoc.write(wireFormat.getBulkSeparator());
+            }
+            Map<String, String> params = new HashMap<>();
+            params.put("format", wireFormat.getFormatName());
+            params.put("filter_path", "errors");
+            JsonNode response = readTree(restClient.performRequest(
+                    "POST",
+                    INDEX + "_bulk",
+                    params,
+                    new NByteArrayEntity(bulkDoc.toByteArray(), wireFormat.getContentType())
+            ));
+            if (response.path("errors").asBoolean()) {
+                throw new IOException("Some rollups were not written");
+            }
+        }
+    }
+
+    /**
+     * This method creates the index with the mappings of the rollups, unless it already exists
+     * @throws IOException talking to ES
+     */
+    private void create() throws IOException {
+        if (created) {
+            return;
+        }
+        ObjectNode count = newObjectNode(newJsonEntry("type", "long"));
+        ObjectNode hour = newObjectNode(newJsonEntry("type", "date"));
+        JsonNode settings = newObjectNode(
+                newJsonEntry("mappings", newObjectNode(
+                        newJsonEntry(HOUR_TYPE, newObjectNode(
+                                newJsonEntry("properties", newObjectNode(
+                                        newJsonEntry("hour", hour),
+                                        newJsonEntry("requests", count),
+                                        newJsonEntry("status1xx", count),
+                                        newJsonEntry("status2xx", count),
+                                        newJsonEntry("status3xx", count),
+                                        newJsonEntry("status4xx", count),
+                                        newJsonEntry("status5xx", count),
+                                        newJsonEntry("payloadSum", count)
+                                ))
+                        )),
+                        newJsonEntry(EXTENSION_TYPE, newObjectNode(
+                                newJsonEntry("properties", newObjectNode(
+                                        newJsonEntry("hour", hour),
+                                        newJsonEntry("extension", newObjectNode(newJsonEntry("type", "keyword"))),
+                                        newJsonEntry("requests", count),
+                                        newJsonEntry("payloadSum", count)
+                                ))
+                        ))
+                ))
+        );
+        try {
+            restClient.performRequest(
+                    "PUT",
+                    INDEX,
+                    Collections.emptyMap(),
+                    new NByteArrayEntity(objectMapper.writeValueAsBytes(settings), wireFormat.getContentType())
+            );
+        } catch (ResponseException e) {
+            // a 400 is the index already existing
+            if (e.getResponse().getStatusLine().getStatusCode() != 400) {
+                throw e;
+            }
+        }
+        created = true;
+    }
+
+    /**
+     * This method deletes the index, so it is created again by the next write
+     * @throws IOException talking to ES
+     */
+    private void delete() throws IOException {
+        try {
+            restClient.performRequest("DELETE", INDEX, Collections.emptyMap());
+        } catch (ResponseException e) {
+            if (e.getResponse().getStatusLine().getStatusCode() != 404) {
+                throw e;
+            }
+        }
+        created = false;
+    }
+
+    /**
+     * This method reads the whole body of a response
+     * @param response the response
+     * @return JsonNode the body
+     * @throws IOException reading the body
+     */
+    private JsonNode readTree(Response response) throws IOException {
+        try (InputStream in = response.getEntity().getContent()) {
+            return objectMapper.readTree(in);
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package com.andy.nasa.aggregate;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+
+/**
+ * This class is a space saving sketch of the items seen most often, it keeps counts for
+ * at most a fixed number of items however many there are. When it is full a new item takes
+ * the place of the item with the lowest count and starts from that count, which is recorded
+ * as its possible error, so every count is an overestimate by at most its error.
+ * Sketches of the same capacity can be merged, e.g. the sketches of several days
+ */
+public class SpaceSaving {
+
+    // ranks counters with the highest count first, ties by item like the terms aggregation of ES
+    private static final Comparator<Counter> RANKING = Comparator
+            .comparingLong(Counter::getCount).reversed()
+            .thenComparing(Counter::getItem);
+
+    // the most items counted
+    private final int capacity;
+
+    // the counter of each item
+    private final Map<String, Counter> counters = new HashMap<>();
+
+    // the counters ordered by count, the last is the one replaced when full
+    private final TreeSet<Counter> ranked = new TreeSet<>(RANKING);
+
+    /**
+     * Creates an empty sketch
+     * @param capacity the most items counted
+     */
+    public SpaceSaving(int capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * Counts an item
+     * @param item the item
+     * @param weight how much to count it by, 1 for an occurrence or e.g. the bytes of a request
+     */
+    public void add(String item, long weight) {
+        Counter counter = counters.get(item);
+        if (counter == null) {
+            if (counters.size() < capacity) {
+                counter = new Counter(item, 0, 0);
+            } else {
+                // the new item may have been seen as often as the one it replaces
+                Counter lowest = ranked.pollLast();
+                counters.remove(lowest.item);
+                counter = new Counter(item, lowest.count, lowest.count);
+            }
+            counters.put(item, counter);
+        } else {
+            ranked.remove(counter);
+        }
+        counter.count += weight;
+        ranked.add(counter);
+    }
+
+    /**
+     * Merges this sketch with another, an item missing from a full sketch may have been
+     * counted up to that sketch's lowest count, so that is added to both its count and error
+     * @param other the sketch merged with this one
+     * @return SpaceSaving a new sketch of both
+     */
+    public SpaceSaving merge(SpaceSaving other) {
+        long missing = lowest();
+        long otherMissing = other.lowest();
+        Set<String> items = new HashSet<>(counters.keySet());
+        items.addAll(other.counters.keySet());
+
+        List<Counter> merged = new ArrayList<>(items.size());
+        for (String item : items) {
+            Counter counter = counters.get(item);
+            Counter otherCounter = other.counters.get(item);
+            merged.add(new Counter(
+                    item,
+                    (counter == null ? missing : counter.count) + (otherCounter == null ? otherMissing : otherCounter.count),
+                    (counter == null ? missing : counter.error) + (otherCounter == null ? otherMissing : otherCounter.error)
+            ));
+        }
+        merged.sort(RANKING);
+
+        SpaceSaving sketch = new SpaceSaving(capacity);
+        for (Counter counter : merged.subList(0, Math.min(capacity, merged.size()))) {
+            sketch.counters.put(counter.item, counter);
+            sketch.ranked.add(counter);
+        }
+        return sketch;
+    }
+
+    /**
+     * Gets the items with the highest counts
+     * @param size how many items wanted
+     * @return List<Counter> copies of the counters, highest first
+     */
+    public List<Counter> top(int size) {
+        return ranked
+                .stream()
+                .limit(size)
+                .map(counter -> new Counter(counter.item, counter.count, counter.error))
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * This method finds the most an item that is not counted could have been seen
+     * @return long the lowest count when the sketch is full, otherwise 0
+     */
+    private long lowest() {
+        return counters.size() < capacity ? 0 : ranked.last().count;
+    }
+
+    /**
+     * The count of one item in the sketch
+     */
+    public static class Counter {
+
+        // the item counted
+        private final String item;
+
+        // how often the item was seen, at most error more than really
+        private long count;
+
+        // how much the count may be over
+        private long error;
+
+        /**
+         * Creates a counter
+         * @param item the item counted
+         * @param count how often the item was seen
+         * @param error how much the count may be over
+         */
+        Counter(String item, long count, long error) {
+            this.item = item;
+            this.count = count;
+            this.error = error;
+        }
+
+        /**
+         * gets the item counted
+         * @return item
+         */
+        public String getItem() {
+            return item;
+        }
+
+        /**
+         * gets how often the item was seen, an overestimate by at most the error
+         * @return count
+         */
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * gets how much the count may be over
+         * @return error
+         */
+        public long getError() {
+            return error;
+        }
+    }
+}
@@ -0,0 +1,245 @@
+package com.andy.nasa.aggregate;
+
+import com.andy.nasa.elasticsearch.EntryScroll;
+import com.andy.nasa.elasticsearch.WireFormat;
+import com.andy.nasa.event.DatabaseHandler;
+import com.andy.nasa.event.FlushListener;
+import model.DBEntry;
+import org.elasticsearch.client.RestClient;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * This class keeps a hyper log log sketch of the clients of each day as entries are written,
+ * so the unique clients of any range of days is found by merging a few sketches rather than
+ * a cardinality aggregation over the whole index. The sketches are written to disk after
+ * every flush and read back on start up with how many entries they were given, and are only
+ * used again once that matches the count of the index, so they are only rebuilt from the index
+ * the first time or when something was indexed while they were not kept up
+ */
+public class UniqueClients implements FlushListener {
+
+    // 2 ^ 14 registers, 16KB a day with a standard error under 1%
+    private static final int PRECISION = 14;
+
+    // suffix of the file of each day's sketch
+    private static final String SUFFIX = ".hll";
+
+    // name of the file of how many entries the sketches were given
+    private static final String ENTRIES_FILE = "entries";
+
+    // the directory the sketches are kept in, null to keep them only in memory
+    private final Path directory;
+
+    // sketch of each day's clients, by the start of the day in epoch millis
+    private final TreeMap<Long, HyperLogLog> days = new TreeMap<>();
+
+    // days changed since the sketches were last written
+    private final Set<Long> changed = new HashSet<>();
+
+    // how many entries the sketches were given, -1 when it is not known
+    private long entries;
+
+    // whether the sketches hold every client that is indexed
+    private volatile boolean ready;
+
+    /**
+     * Creates sketches that are only kept in memory, so they are never ready until rebuilt
+     */
+    public UniqueClients() {
+        this.directory = null;
+        this.entries = 0;
+        this.ready = false;
+    }
+
+    /**
+     * Creates the sketches, reading back any kept in the directory. They are not ready
+     * until they are checked against the index with {@link #verify}
+     * @param directory the directory the sketches are kept in
+     * @throws IOException reading the directory
+     */
+    public UniqueClients(Path directory) throws IOException {
+        this.directory = Files.createDirectories(directory);
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                days.put(
+                        Long.parseLong(name.substring(0, name.length() - SUFFIX.length())),
+                        HyperLogLog.fromBytes(Files.readAllBytes(file))
+                );
+            }
+        }
+        Path entriesFile = directory.resolve(ENTRIES_FILE);
+        if (Files.exists(entriesFile)) {
+            this.entries = Long.parseLong(new String(Files.readAllBytes(entriesFile), StandardCharsets.UTF_8).trim());
+        } else {
+            // sketches kept without a count cannot be checked, so they are rebuilt
+            this.entries = days.isEmpty() ? 0 : -1;
+        }
+        // anything indexed while the app was down, like by the MapReduce import, is not in them
+        this.ready = false;
+    }
+
+    /**
+     * Adds the clients of the entries of a flush and writes the days they changed
+     * @param entries the entries newly written
+     */
+    @Override
+    public synchronized void flushed(List<DBEntry> entries) {
+        entries.forEach(this::add);
+        this.entries += entries.size();
+        try {
+            save();
+        } catch (IOException e) {
+            // the days stay changed so they are written again after the next flush
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Checks the sketches read back from disk were given every entry in the index, marking
+     * them ready when they were. The index is counted between flushes so every entry
+     * flushed is in both
+     * @param restClient rest client for ES
+     * @param databaseHandler the handler writing entries, which must already have these sketches as a listener
+     * @param wireFormat the format to read the count in
+     * @return boolean whether the sketches are ready
+     * @throws Exception IO exception talking to ES
+     */
+    public boolean verify(RestClient restClient, DatabaseHandler databaseHandler, WireFormat wireFormat) throws Exception {
+        return databaseHandler.betweenFlushes(() -> {
+            long indexed = EntryScroll.count(restClient, wireFormat);
+            synchronized (this) {
+                ready = indexed == entries;
+            }
+            return ready;
+        });
+    }
+
+    /**
+     * Reads every client back from the index, for when the sketches on disk are missing or
+     * behind it. The index is counted between flushes before it is read, so every entry
+     * counted is read and every one flushed after it is given to the listener. A sketch
+     * given the same client twice is unchanged, so entries seen both ways, or already in
+     * the sketches, are safely added again
+     * @param restClient rest client for ES
+     * @param databaseHandler the handler writing entries, which must already have these sketches as a listener
+     * @param wireFormat the format to read the index in
+     * @throws Exception IO exception talking to ES or writing the sketches
+     */
+    public void rebuild(RestClient restClient, DatabaseHandler databaseHandler, WireFormat wireFormat) throws Exception {
+        databaseHandler.betweenFlushes(() -> {
+            long indexed = EntryScroll.count(restClient, wireFormat);
+            synchronized (this) {
+                entries = indexed;
+            }
+            return indexed;
+        });
+        EntryScroll.open(restClient, wireFormat).forEach(entry -> {
+            synchronized (this) {
+                add(entry);
+            }
+        });
+        synchronized (this) {
+            save();
+        }
+        ready = true;
+    }
+
+    /**
+     * gets whether the sketches hold every client that is indexed
+     * @return ready
+     */
+    public boolean isReady() {
+        return ready;
+    }
+
+    /**
+     * Estimates the unique clients between two times, to the day, entries without a time
+     * are only counted when there are no bounds
+     * @param from the earliest time, null for no bound
+     * @param to the latest time, null for no bound
+     * @return long the estimated number of unique clients
+     */
+    public synchronized long estimate(DateTime from, DateTime to) {
+        Map<Long, HyperLogLog> range = days;
+        if (from != null || to != null) {
+            range = days.subMap(
+                    from == null ? Long.MIN_VALUE + 1 : dayOf(from), true,
+                    to == null ? Long.MAX_VALUE : dayOf(to), true
+            );
+        }
+        HyperLogLog merged = new HyperLogLog(PRECISION);
+        range.values().forEach(merged::merge);
+        return merged.estimate();
+    }
+
+    /**
+     * gets the standard error of the estimates relative to the real count
+     * @return double the standard error
+     */
+    public double getStandardError() {
+        return new HyperLogLog(PRECISION).getStandardError();
+    }
+
+    /**
+     * This method adds the client of one entry to the sketch of its day
+     * @param entry the entry
+     */
+    private void add(DBEntry entry) {
+        // entries without a time are kept together in a day before any other
+        long day = entry.datetime() == null ? Long.MIN_VALUE : dayOf(entry.datetime());
+        days.computeIfAbsent(day, key -> new HyperLogLog(PRECISION)).add(entry.client());
+        changed.add(day);
+    }
+
+    /**
+     * This method writes the sketches of the days that changed and then how many entries
+     * they were given, so the count is never ahead of the sketches on disk
+     * @throws IOException writing the files
+     */
+    private void save() throws IOException {
+        if (directory != null) {
+            for (Long day : changed) {
+                write(day + SUFFIX, days.get(day).toBytes());
+            }
+            write(ENTRIES_FILE, Long.toString(entries).getBytes(StandardCharsets.UTF_8));
+        }
+        changed.clear();
+    }
+
+    /**
+     * This method writes a file to a new file that then replaces the old one,
+     * so a crash never leaves half of it
+     * @param name the name of the file in the directory
+     * @param bytes what is written
+     * @throws IOException writing the file
+     */
+    private void write(String name, byte[] bytes) throws IOException {
+        Path file = directory.resolve(name);
+        Path temp = directory.resolve(name + ".tmp");
+        Files.write(temp, bytes);
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * This method finds the start of the day a time is in
+     * @param datetime the time
+     * @return long the start of its day in epoch millis
+     */
+    private static long dayOf(DateTime datetime) {
+        return datetime.withZone(DateTimeZone.UTC).withTimeAtStartOfDay().getMillis();
+    }
+}
@@ -1,10 +1,27 @@
 package com.andy.nasa.app;
 
+import com.andy.nasa.aggregate.MaterializedAggregates;
+import com.andy.nasa.aggregate.Rollups;
+import com.andy.nasa.aggregate.UniqueClients;
+import com.andy.nasa.cache.ResultCache;
+import com.andy.nasa.cache.SingleFlight;
+import com.andy.nasa.columnar.ColumnStore;
 import com.andy.nasa.event.DatabaseHandler;
+import com.andy.nasa.load.LoadTestCommand;
 import com.andy.nasa.configuration.NasaConfig;
+import com.andy.nasa.configuration.configs.PressureConfig;
+import com.andy.nasa.configuration.configs.ResilienceConfig;
+import com.andy.nasa.elasticsearch.CircuitBreaker;
 import com.andy.nasa.elasticsearch.ESHealthCheck;
+import com.andy.nasa.elasticsearch.HedgedRequests;
+import com.andy.nasa.resource.ColumnarBackend;
+import com.andy.nasa.resource.ElasticSearchBackend;
 import com.andy.nasa.resource.NasaResource;
+import com.andy.nasa.resource.QueryBackend;
+import com.andy.nasa.service.IngestionPressure;
+import com.andy.nasa.service.PressureHealthCheck;
 import com.andy.nasa.service.ServiceRabbitIngestion;
+import com.codahale.metrics.Gauge;
 import com.rabbitmq.client.Connection;
 import com.rabbitmq.client.ConnectionFactory;
 import io.dropwizard.Application;
@@ -14,6 +31,16 @@ import io.swagger.jaxrs.config.BeanConfig;
 import io.swagger.jaxrs.listing.ApiListingResource;
 import org.apache.http.HttpHost;
 import org.elasticsearch.client.RestClient;
+import parser.EntryParser;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
 /**
  * This class sets and ads resources aka apis to drop wizard in addition to creating the drop wizard application
@@ -26,8 +53,15 @@ public class NasaApplication extends Application<NasaConfig>{
         new NasaApplication().run(args);
     }
 
+    /**
+     * This method adds the commands of the application next to server and check
+     * @param bootstrap drop wizard bootstrap of the application
+     */
     @Override
-    public void initialize(Bootstrap<NasaConfig> bootstrap) { }
+    public void initialize(Bootstrap<NasaConfig> bootstrap) {
+        // Calls the API's of a running server at a fixed rate and reports their latency
+        bootstrap.addCommand(new LoadTestCommand());
+    }
 
     /**
      * This method is from dropwizard application class and is used to set up
@@ -38,24 +72,172 @@ public class NasaApplication extends Application<NasaConfig>{
      */
     @Override
     public void run(NasaConfig nasaConfig, Environment environment) throws Exception {
+        // Every node of the cluster, the rest client sends each request to the next one
+        List<HttpHost> hosts = new ArrayList<>();
+        hosts.add(new HttpHost(
+                nasaConfig.getElasticSearchConfig().getHost(),
+                nasaConfig.getElasticSearchConfig().getPort(),
+                "http"
+        ));
+        nasaConfig.getElasticSearchConfig().getOtherHosts()
+                .stream()
+                .map(HttpHost::create)
+                .forEach(hosts::add);
         RestClient restClient = RestClient
-                .builder(
-                    new HttpHost(
-                            nasaConfig.getElasticSearchConfig().getHost(),
-                            nasaConfig.getElasticSearchConfig().getPort(),
-                            "http"
-                    )
-                )
+                .builder(hosts.toArray(new HttpHost[0]))
                 .build();
-        // This is setting up the health check for Elasticsearch
-        ESHealthCheck esHealthCheck = new ESHealthCheck(restClient);
+
+        // Searches slow to answer are sent again to another node, and stopped while ES is failing
+        ResilienceConfig resilienceConfig = nasaConfig.getResilienceConfig();
+        CircuitBreaker circuitBreaker = new CircuitBreaker(resilienceConfig.getFailureThreshold(), resilienceConfig.getOpenMillis());
+        ScheduledExecutorService requestScheduler = environment.lifecycle().scheduledExecutorService("requests").threads(1).build();
+        // each node has its own client for the searches, so a duplicate goes to a different node than the request
+        List<RestClient> nodes = hosts
+                .stream()
+                .map(host -> RestClient.builder(host).build())
+                .collect(Collectors.toList());
+        HedgedRequests hedgedRequests = new HedgedRequests(nodes, circuitBreaker, resilienceConfig, requestScheduler);
+        environment.metrics().register("es.hedge-delay-millis", (Gauge<Long>) hedgedRequests::getHedgeDelayMillis);
+        environment.metrics().register("es.hedged", (Gauge<Long>) hedgedRequests::getHedged);
+        environment.metrics().register("es.hedge-wins", (Gauge<Long>) hedgedRequests::getHedgeWins);
+        environment.metrics().register("es.rejected", (Gauge<Long>) hedgedRequests::getRejected);
+        environment.metrics().register("es.circuit-breaker.state", (Gauge<String>) () -> circuitBreaker.getState().name());
+        environment.metrics().register("es.circuit-breaker.opened", (Gauge<Long>) circuitBreaker::getOpened);
+
+        // This is setting up the health check for Elasticsearch, run on a schedule
+        // as well so a red cluster opens the circuit breaker without anyone asking
+        ESHealthCheck esHealthCheck = new ESHealthCheck(restClient, circuitBreaker);
         environment.healthChecks().register("es health check", esHealthCheck);
+        requestScheduler.scheduleWithFixedDelay(
+                esHealthCheck::execute,
+                resilienceConfig.getHealthCheckSeconds(),
+                resilienceConfig.getHealthCheckSeconds(),
+                TimeUnit.SECONDS
+        );
 
         // This instantiates the class that deals with data base insertion
-        DatabaseHandler databaseHandler = new DatabaseHandler(restClient);
+        DatabaseHandler databaseHandler = new DatabaseHandler(
+                restClient,
+                nasaConfig.getElasticSearchConfig().getFormat(),
+                environment.metrics()
+        );
+        // The rate entries are parsed and rejected at, shown on the admin port with the rest
+        environment.metrics().register("parser", EntryParser.getMetrics());
+
+        // Every entry kept as columns in memory and in segments on disk, for the columnar backend only,
+        // read back from the access logs, or from ES the first time and whenever ES holds entries they do not
+        ExecutorService rebuildExecutor = environment.lifecycle().executorService("rebuild").maxThreads(1).build();
+        ColumnStore columnStore = nasaConfig.getBackendConfig().isColumnar()
+                ? new ColumnStore(Paths.get(nasaConfig.getStorageConfig().getDirectory(), "columns"))
+                : null;
+        if (columnStore != null) {
+            databaseHandler.addFlushListener(columnStore);
+            List<Path> logFiles = nasaConfig.getBackendConfig().getLogFiles()
+                    .stream()
+                    .map(Paths::get)
+                    .collect(Collectors.toList());
+            rebuildExecutor.execute(() -> {
+                try {
+                    if (!logFiles.isEmpty()) {
+                        if (!columnStore.isReady()) {
+                            columnStore.load(logFiles);
+                        }
+                    } else if (!columnStore.isReady()
+                            || !columnStore.verify(restClient, databaseHandler, nasaConfig.getElasticSearchConfig().getFormat())) {
+                        columnStore.rebuild(restClient, databaseHandler, nasaConfig.getElasticSearchConfig().getFormat());
+                    }
+                } catch (Exception e) {
+                    // the columnar backend answers service unavailable when the columns could not be filled
+                    e.printStackTrace();
+                }
+            });
+        }
 
-        // Passing the rest client for the API's to use
-        final NasaResource nasaResource = new NasaResource(restClient, databaseHandler);
+        // Aggregates kept in memory as entries are written, read back in the background from
+        // the columns once they are filled, or from ES without columns or if they could not be filled,
+        // and used by the API's from then on
+        MaterializedAggregates aggregates = new MaterializedAggregates();
+        databaseHandler.addFlushListener(aggregates);
+        rebuildExecutor.execute(() -> {
+            try {
+                if (columnStore != null && columnStore.isReady()) {
+                    aggregates.rebuild(columnStore, databaseHandler);
+                } else {
+                    aggregates.rebuild(restClient, databaseHandler, nasaConfig.getElasticSearchConfig().getFormat());
+                }
+            } catch (Exception e) {
+                // the API's keep using ES when the aggregates could not be rebuilt
+                e.printStackTrace();
+            }
+        });
+
+        // Sketches of each day's clients, kept on disk and only read back from ES when they are behind it
+        UniqueClients uniqueClients = new UniqueClients(Paths.get(nasaConfig.getStorageConfig().getDirectory(), "clients"));
+        databaseHandler.addFlushListener(uniqueClients);
+        rebuildExecutor.execute(() -> {
+            try {
+                if (!uniqueClients.verify(restClient, databaseHandler, nasaConfig.getElasticSearchConfig().getFormat())) {
+                    uniqueClients.rebuild(restClient, databaseHandler, nasaConfig.getElasticSearchConfig().getFormat());
+                }
+            } catch (Exception e) {
+                // the unique clients API keeps using ES when the sketches could not be checked or rebuilt
+                e.printStackTrace();
+            }
+        });
+
+        // The queries the aggregates and sketches cannot answer go to the configured backend
+        QueryBackend backend;
+        if (columnStore != null) {
+            // Answered by scanning the columns
+            backend = new ColumnarBackend(columnStore);
+        } else {
+            // Rollups of each hour kept in their own index, only read back from the entries the first time or after a write to them failed
+            Rollups rollups = new Rollups(restClient, nasaConfig.getElasticSearchConfig().getFormat());
+            databaseHandler.addFlushListener(rollups);
+            if (!rollups.open()) {
+                rebuildExecutor.execute(() -> {
+                    try {
+                        rollups.rebuild(databaseHandler);
+                    } catch (Exception e) {
+                        // ranges keep being answered from the entries when the rollups could not be rebuilt
+                        e.printStackTrace();
+                    }
+                });
+            }
+            backend = new ElasticSearchBackend(
+                    hedgedRequests,
+                    nasaConfig.getElasticSearchConfig().getFormat(),
+                    rollups,
+                    environment.metrics()
+            );
+        }
+
+        // Identical queries running at the same time share one request to ES
+        SingleFlight singleFlight = new SingleFlight();
+        environment.metrics().register("queries.executed", (Gauge<Long>) singleFlight::getExecuted);
+        environment.metrics().register("queries.coalesced", (Gauge<Long>) singleFlight::getCoalesced);
+        environment.metrics().register("queries.in-flight", (Gauge<Integer>) singleFlight::getInFlight);
+
+        // Query results are cached until the next flush to ES or until they expire, and
+        // answered with for a while longer as stale results when the backend fails
+        ResultCache resultCache = new ResultCache(
+                nasaConfig.getCacheConfig().getMaximumSize(),
+                nasaConfig.getCacheConfig().getTtlSeconds(),
+                nasaConfig.getCacheConfig().getStaleSeconds(),
+                databaseHandler::getGeneration,
+                singleFlight
+        );
+
+        // Passing the backend for the API's to use
+        final NasaResource nasaResource = new NasaResource(
+                backend,
+                databaseHandler,
+                resultCache,
+                aggregates,
+                uniqueClients,
+                nasaConfig.getTimeoutConfig(),
+                environment.metrics()
+        );
 
         // Set up connection to rabbit
         ConnectionFactory factory = new ConnectionFactory();
@@ -66,9 +248,37 @@ public class NasaApplication extends Application<NasaConfig>{
         Connection connection = factory.newConnection();
 
         // create a consumer / subscriber for rabbit
-        ServiceRabbitIngestion serviceRabbitIngestion = new ServiceRabbitIngestion(databaseHandler, connection);
+        PressureConfig pressureConfig = nasaConfig.getPressureConfig();
+        ServiceRabbitIngestion serviceRabbitIngestion = new ServiceRabbitIngestion(
+                databaseHandler,
+                connection,
+                environment.metrics(),
+                pressureConfig
+        );
         environment.lifecycle().manage(serviceRabbitIngestion);
 
+        // Ingestion slows down and pauses as ES, the bulk buffer or the flushes come under
+        // pressure, and speeds up again once it drops, each signal has its own health check
+        IngestionPressure ingestionPressure = new IngestionPressure(
+                restClient,
+                databaseHandler,
+                serviceRabbitIngestion,
+                pressureConfig,
+                environment.metrics()
+        );
+        environment.lifecycle().scheduledExecutorService("pressure").threads(1).build().scheduleWithFixedDelay(
+                ingestionPressure::poll,
+                pressureConfig.getPollSeconds(),
+                pressureConfig.getPollSeconds(),
+                TimeUnit.SECONDS
+        );
+        for (IngestionPressure.Signal signal : IngestionPressure.Signal.values()) {
+            environment.healthChecks().register(
+                    "pressure " + signal.name().toLowerCase().replace('_', ' '),
+                    new PressureHealthCheck(ingestionPressure, signal)
+            );
+        }
+
         // Setting up Swagger
         environment.jersey().register(new ApiListingResource());
         environment.jersey().register(nasaResource);
@@ -0,0 +1,131 @@
+package com.andy.nasa.cache;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * This class caches the results of queries keyed by the endpoint, its parameters
+ * and the ingest generation, so a result is only reused until more data is written
+ * misses for the same key at the same time share one query through single flight.
+ * The last result of each endpoint and its parameters is also kept whatever the generation,
+ * as a stale result to answer with when the query fails
+ */
+public class ResultCache {
+
+    // the cached results, bounded by size and time since written
+    private final Cache<List<Object>, Object> cache;
+
+    // the last result of each endpoint and its parameters, kept for longer than the cached results
+    private final Cache<List<Object>, Object> stale;
+
+    // the current ingest generation, changes after every successful flush
+    private final LongSupplier generation;
+
+    // shares queries for the same key that miss the cache at the same time
+    private final SingleFlight singleFlight;
+
+    /**
+     * Creates the cache
+     * @param maximumSize the most results held at once
+     * @param ttlSeconds how long a result is held after being cached
+     * @param generation supplies the current ingest generation
+     * @param singleFlight shares identical queries that are running at the same time
+     */
+    public ResultCache(long maximumSize, long ttlSeconds, LongSupplier generation, SingleFlight singleFlight) {
+        this(maximumSize, ttlSeconds, 0, generation, singleFlight);
+    }
+
+    /**
+     * Creates the cache
+     * @param maximumSize the most results held at once
+     * @param ttlSeconds how long a result is held after being cached
+     * @param staleSeconds how long a result can still be answered with once it is stale, 0 for never
+     * @param generation supplies the current ingest generation
+     * @param singleFlight shares identical queries that are running at the same time
+     */
+    public ResultCache(long maximumSize, long ttlSeconds, long staleSeconds, LongSupplier generation, SingleFlight singleFlight) {
+        this.cache = CacheBuilder
+                .newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterWrite(ttlSeconds, TimeUnit.SECONDS)
+                .recordStats()
+                .build();
+        this.stale = CacheBuilder
+                .newBuilder()
+                .maximumSize(staleSeconds > 0 ? maximumSize : 0)
+                .expireAfterWrite(staleSeconds, TimeUnit.SECONDS)
+                .build();
+        this.generation = generation;
+        this.singleFlight = singleFlight;
+    }
+
+    /**
+     * Returns the cached result for the endpoint and parameters in the current generation,
+     * otherwise starts the loader, or joins it if it is already running for the same key,
+     * and caches its result once it completes successfully
+     * @param endpoint name of the endpoint being answered
+     * @param loader starts the query when nothing is cached
+     * @param params parameters that change the result of the endpoint
+     * @param <T> type of the result
+     * @return CompletableFuture<T> the cached or loading result
+     */
+    @SuppressWarnings("unchecked")
+    public <T> CompletableFuture<T> get(String endpoint, Supplier<CompletableFuture<T>> loader, Object... params) {
+        List<Object> key = key(endpoint, params);
+        T cached = (T) cache.getIfPresent(key);
+        if (cached != null) {
+            return CompletableFuture.completedFuture(cached);
+        }
+        // only the caller that starts the query caches its result
+        return singleFlight.execute(key, () -> loader.get().whenComplete((result, error) -> {
+            // failures are not cached so the next call tries again
+            if (error == null && result != null) {
+                cache.put(key, result);
+                // the stale result is filed without the generation
+                stale.put(new ArrayList<>(key.subList(1, key.size())), result);
+            }
+        }));
+    }
+
+    /**
+     * Returns the last result of the endpoint and parameters, from this generation or an older one
+     * @param endpoint name of the endpoint being answered
+     * @param params parameters that change the result of the endpoint
+     * @return Object the stale result, null if there is none
+     */
+    public Object getStale(String endpoint, Object... params) {
+        List<Object> key = key(endpoint, params);
+        return stale.getIfPresent(key.subList(1, key.size()));
+    }
+
+    /**
+     * Drops everything cached, stale results too
+     */
+    public void invalidateAll() {
+        cache.invalidateAll();
+        stale.invalidateAll();
+    }
+
+    /**
+     * Builds the key for a result, the generation is taken before the query
+     * is run so a result can never be filed under a newer generation
+     * @param endpoint name of the endpoint
+     * @param params parameters of the endpoint
+     * @return List<Object> the key
+     */
+    private List<Object> key(String endpoint, Object... params) {
+        List<Object> key = new ArrayList<>(params.length + 2);
+        key.add(generation.getAsLong());
+        key.add(endpoint);
+        Collections.addAll(key, params);
+        return key;
+    }
+}
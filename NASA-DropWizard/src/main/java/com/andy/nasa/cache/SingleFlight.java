@@ -0,0 +1,81 @@
+package com.andy.nasa.cache;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * This class makes identical requests that are running at the same time share one request,
+ * the first caller for a key sends it and everyone else asking for that key while it
+ * is still running is handed the same future
+ */
+public class SingleFlight {
+
+    // the requests still running, by key
+    private final ConcurrentMap<Object, CompletableFuture<?>> inFlight = new ConcurrentHashMap<>();
+
+    // how many requests were actually sent
+    private final AtomicLong executed = new AtomicLong(0);
+
+    // how many callers were given a request that was already running
+    private final AtomicLong coalesced = new AtomicLong(0);
+
+    /**
+     * Joins the running request for the key, or starts it if there is none
+     * @param key identifies identical requests, e.g. the endpoint and its parameters
+     * @param request starts the request
+     * @param <T> type of the result
+     * @return CompletableFuture<T> the shared result
+     */
+    @SuppressWarnings("unchecked")
+    public <T> CompletableFuture<T> execute(Object key, Supplier<CompletableFuture<T>> request) {
+        CompletableFuture<T> flight = new CompletableFuture<>();
+        CompletableFuture<T> running = (CompletableFuture<T>) inFlight.putIfAbsent(key, flight);
+        if (running != null) {
+            coalesced.incrementAndGet();
+            return running;
+        }
+        executed.incrementAndGet();
+        try {
+            request.get().whenComplete((result, error) -> {
+                // removed before completing so later callers start a new request
+                inFlight.remove(key, flight);
+                if (error == null) {
+                    flight.complete(result);
+                } else {
+                    flight.completeExceptionally(error);
+                }
+            });
+        } catch (RuntimeException e) {
+            inFlight.remove(key, flight);
+            flight.completeExceptionally(e);
+        }
+        return flight;
+    }
+
+    /**
+     * gets how many requests were sent
+     * @return executed
+     */
+    public long getExecuted() {
+        return executed.get();
+    }
+
+    /**
+     * gets how many callers shared a request that was already running
+     * @return coalesced
+     */
+    public long getCoalesced() {
+        return coalesced.get();
+    }
+
+    /**
+     * gets how many requests are running right now
+     * @return the number in flight
+     */
+    public int getInFlight() {
+        return inFlight.size();
+    }
+}
@@ -0,0 +1,217 @@
+package com.andy.nasa.columnar;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.roaringbitmap.FastAggregation;
+import org.roaringbitmap.IntIterator;
+import org.roaringbitmap.RoaringBitmap;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * This class indexes the rows of the columns by the values they hold, one compressed bitmap of
+ * row numbers for each term of a column, each response code and each month, added to as rows are
+ * appended. Counting the rows that match several filters is then the cardinality of the bitmaps
+ * of each filter and'ed together, only the rows of months that are partly in a range are checked
+ * against their time
+ */
+final class BitmapIndex {
+
+    // the columns of strings that are indexed
+    private final List<ColumnStore.Column> columns;
+
+    // the rows of each term by code, for each indexed column
+    private final Map<ColumnStore.Column, List<RoaringBitmap>> terms = new EnumMap<>(ColumnStore.Column.class);
+
+    // the rows of each response code
+    private final TreeMap<Integer, RoaringBitmap> statuses = new TreeMap<>();
+
+    // the rows of each month, by the start of the month in UTC
+    private final TreeMap<Long, RoaringBitmap> months = new TreeMap<>();
+
+    // the month the last row with a time was in, rows mostly arrive in time order
+    private long monthStart = 0;
+    private long monthEnd = 0;
+    private RoaringBitmap month = null;
+
+    // bitmaps are read by any number of counts at once but only written by one append at a time
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     * Creates an empty index
+     * @param columns the columns of strings to index
+     */
+    BitmapIndex(List<ColumnStore.Column> columns) {
+        this.columns = columns;
+        for (ColumnStore.Column column : columns) {
+            terms.put(column, new ArrayList<>());
+        }
+    }
+
+    /**
+     * gets whether a column of strings is indexed
+     * @param column the column
+     * @return true when its terms have bitmaps
+     */
+    boolean isIndexed(ColumnStore.Column column) {
+        return terms.containsKey(column);
+    }
+
+    /**
+     * Adds rows to the index, which must come straight after the rows already in it
+     * @param from the first row added
+     * @param to the row after the last added
+     * @param epochs the times, {@code noTime} for none
+     * @param noTime the time of rows that have none
+     * @param statusColumn the response codes
+     * @param codes the codes of each column of strings
+     */
+    void add(int from, int to, long[] epochs, long noTime, int[] statusColumn, int[][] codes) {
+        lock.writeLock().lock();
+        try {
+            for (ColumnStore.Column column : columns) {
+                List<RoaringBitmap> bitmaps = terms.get(column);
+                int[] columnCodes = codes[column.ordinal()];
+                for (int row = from; row < to; row++) {
+                    int code = columnCodes[row];
+                    if (code < 0) {
+                        continue;
+                    }
+                    while (bitmaps.size() <= code) {
+                        bitmaps.add(new RoaringBitmap());
+                    }
+                    bitmaps.get(code).add(row);
+                }
+            }
+            RoaringBitmap status = null;
+            int lastStatus = 0;
+            for (int row = from; row < to; row++) {
+                if (status == null || statusColumn[row] != lastStatus) {
+                    lastStatus = statusColumn[row];
+                    status = statuses.computeIfAbsent(lastStatus, key -> new RoaringBitmap());
+                }
+                status.add(row);
+                long epoch = epochs[row];
+                if (epoch == noTime) {
+                    continue;
+                }
+                if (month == null || epoch < monthStart || epoch >= monthEnd) {
+                    DateTime first = new DateTime(epoch, DateTimeZone.UTC).withDayOfMonth(1).withTimeAtStartOfDay();
+                    monthStart = first.getMillis();
+                    monthEnd = first.plusMonths(1).getMillis();
+                    month = months.computeIfAbsent(monthStart, key -> new RoaringBitmap());
+                }
+                month.add(row);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Counts the rows matching every filter
+     * @param codes the code each indexed column must have, columns not in the map can have any
+     * @param minStatus the smallest response code
+     * @param maxStatus the largest response code
+     * @param lo the earliest time, {@code noTime} for no bounds at all
+     * @param hi the latest time
+     * @param noTime the time of rows that have none, which are only counted without bounds
+     * @param epochs the times of the rows
+     * @param rows only rows before this are counted
+     * @return long the number of rows
+     */
+    long count(Map<ColumnStore.Column, Integer> codes, int minStatus, int maxStatus,
+               long lo, long hi, long noTime, long[] epochs, int rows) {
+        if (rows == 0 || minStatus > maxStatus) {
+            return 0;
+        }
+        lock.readLock().lock();
+        try {
+            List<RoaringBitmap> filters = new ArrayList<>();
+            for (Map.Entry<ColumnStore.Column, Integer> code : codes.entrySet()) {
+                List<RoaringBitmap> bitmaps = terms.get(code.getKey());
+                if (code.getValue() < 0 || code.getValue() >= bitmaps.size()) {
+                    return 0;
+                }
+                filters.add(bitmaps.get(code.getValue()));
+            }
+            if (!statuses.isEmpty() && (minStatus > statuses.firstKey() || maxStatus < statuses.lastKey())) {
+                filters.add(FastAggregation.or(statuses.subMap(minStatus, true, maxStatus, true).values().iterator()));
+            }
+            RoaringBitmap matching = and(filters);
+            if (lo == noTime) {
+                return matching == null ? rows : matching.rankLong(rows - 1);
+            }
+            // months wholly in the range are counted from their bitmaps, the others row by row
+            List<RoaringBitmap> whole = new ArrayList<>();
+            List<RoaringBitmap> partial = new ArrayList<>();
+            Long first = months.floorKey(lo);
+            NavigableMap<Long, RoaringBitmap> overlapping = months.subMap(first == null ? lo : first, true, hi, true);
+            for (Map.Entry<Long, RoaringBitmap> entry : overlapping.entrySet()) {
+                long end = new DateTime(entry.getKey(), DateTimeZone.UTC).plusMonths(1).getMillis() - 1;
+                (entry.getKey() >= lo && end <= hi ? whole : partial).add(entry.getValue());
+            }
+            long count = 0;
+            if (!whole.isEmpty()) {
+                RoaringBitmap wholeRows = FastAggregation.or(whole.iterator());
+                count += (matching == null ? wholeRows : RoaringBitmap.and(matching, wholeRows)).rankLong(rows - 1);
+            }
+            if (!partial.isEmpty()) {
+                RoaringBitmap partialRows = FastAggregation.or(partial.iterator());
+                IntIterator candidates = (matching == null ? partialRows : RoaringBitmap.and(matching, partialRows)).getIntIterator();
+                while (candidates.hasNext()) {
+                    int row = candidates.next();
+                    if (row >= rows) {
+                        break;
+                    }
+                    if (epochs[row] >= lo && epochs[row] <= hi) {
+                        count++;
+                    }
+                }
+            }
+            return count;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Empties the index
+     */
+    void clear() {
+        lock.writeLock().lock();
+        try {
+            terms.values().forEach(List::clear);
+            statuses.clear();
+            months.clear();
+            month = null;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * This method ands bitmaps together, smallest first so each and is as cheap as it can be
+     * @param bitmaps the bitmaps
+     * @return RoaringBitmap the rows in every bitmap, null when there are no bitmaps to filter by
+     */
+    private static RoaringBitmap and(List<RoaringBitmap> bitmaps) {
+        if (bitmaps.isEmpty()) {
+            return null;
+        }
+        bitmaps.sort((left, right) -> Long.compare(left.getLongCardinality(), right.getLongCardinality()));
+        RoaringBitmap result = bitmaps.get(0);
+        for (int i = 1; i < bitmaps.size(); i++) {
+            result = RoaringBitmap.and(result, bitmaps.get(i));
+        }
+        // a single filter is the bitmap of the index itself, which is only read
+        return result;
+    }
+}
@@ -0,0 +1,837 @@
+package com.andy.nasa.columnar;
+
+import com.andy.nasa.elasticsearch.EntryScroll;
+import com.andy.nasa.elasticsearch.WireFormat;
+import com.andy.nasa.event.DatabaseHandler;
+import com.andy.nasa.event.FlushListener;
+import model.DBEntry;
+import model.ImmutableDBEntry;
+import org.elasticsearch.client.RestClient;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import parser.EntryParser;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.BinaryOperator;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * This class keeps every entry in memory as primitive columns, one array per field with the
+ * strings coded by a {@link Dictionary}, and answers queries by scanning them. Each scan is split
+ * into chunks of rows scanned in parallel across the cores, each into its own partial result,
+ * and the partial results are merged. Entries are only ever appended, a query scans the
+ * snapshot of the columns taken when it started so it never waits on ingestion. Given a
+ * directory the columns are also kept on disk as {@link Segment}s written as entries are
+ * appended, and read back from them on a restart. The users, extensions, methods, response
+ * codes and months of the rows are also indexed by a {@link BitmapIndex} so requests matching
+ * filters are counted without a scan
+ */
+public class ColumnStore implements FlushListener {
+
+    /**
+     * The columns of strings, each coded by its own dictionary
+     */
+    public enum Column {
+        // the username, none for anonymous requests
+        USER,
+        // the client host
+        CLIENT,
+        // the file extension of the resource, none when it has none
+        EXTENSION,
+        // the http method
+        METHOD,
+        // the resource requested
+        RESOURCE
+    }
+
+    // the time of entries that have none, before any range
+    private static final long NO_TIME = Long.MIN_VALUE;
+
+    // the rows each parallel task scans
+    private static final int CHUNK_ROWS = 1 << 16;
+
+    // the rows of a segment before it is written whole and a new one is started, until
+    // then each append only adds its own rows to the log of the segment
+    private static final int SEGMENT_ROWS = 1 << 15;
+
+    // the directory segments are kept in, null to only keep the columns in memory
+    private final Path directory;
+
+    // the first row of the segment being filled, every row before it is in a full segment
+    private int segmentStart = 0;
+
+    // the number of terms of each column coded before the segment being filled
+    private final int[] segmentTerms = new int[Column.values().length];
+
+    // the rows in the log of the segment being filled, every row before it is on disk
+    private int loggedRows = 0;
+
+    // the number of terms of each column coded by the rows on disk
+    private final int[] loggedTerms = new int[Column.values().length];
+
+    // the bytes of the log of the segment being filled, up to the end of its last block
+    private long logBytes = 0;
+
+    // the time of each entry in epoch millis
+    private long[] epochs = new long[1024];
+
+    // the response code of each entry
+    private int[] statuses = new int[1024];
+
+    // the payload size of each entry
+    private int[] sizes = new int[1024];
+
+    // the codes of each column of strings, -1 for none
+    private final int[][] codes = new int[Column.values().length][1024];
+
+    // the dictionary of each column of strings
+    private final Dictionary[] dictionaries = new Dictionary[Column.values().length];
+
+    // the rows of each user, extension, method, response code and month
+    private final BitmapIndex index = new BitmapIndex(Arrays.asList(Column.USER, Column.EXTENSION, Column.METHOD));
+
+    // the columns as of the last append, what queries scan
+    private volatile Snapshot snapshot;
+
+    // whether the columns hold everything that is indexed
+    private volatile boolean ready = false;
+
+    /**
+     * Creates an empty store that is only kept in memory, so it is never ready until filled
+     */
+    public ColumnStore() {
+        this.directory = null;
+        for (int column = 0; column < dictionaries.length; column++) {
+            dictionaries[column] = new Dictionary();
+        }
+        snapshot = new Snapshot(0, epochs, statuses, sizes, codes, dictionaries);
+    }
+
+    /**
+     * Creates a store kept in a directory, reading back the segments already there
+     * @param directory the directory the segments are kept in
+     * @throws IOException reading the directory or a segment
+     */
+    public ColumnStore(Path directory) throws IOException {
+        this.directory = Files.createDirectories(directory);
+        for (int column = 0; column < dictionaries.length; column++) {
+            dictionaries[column] = new Dictionary();
+        }
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> segments = Files.newDirectoryStream(directory, "*" + Segment.SUFFIX)) {
+            segments.forEach(files::add);
+        }
+        // the names are the padded first rows, so they sort in row order
+        Collections.sort(files);
+        int rows = 0;
+        for (Path file : files) {
+            Segment segment = Segment.open(file);
+            if (segment.getFirstRow() != rows) {
+                throw new IOException(file + " does not start at row " + rows);
+            }
+            grow(rows + segment.getRows());
+            segment.copyTo(epochs, statuses, sizes, codes);
+            for (int column = 0; column < dictionaries.length; column++) {
+                for (String term : segment.getTerms()[column]) {
+                    dictionaries[column].code(term);
+                }
+            }
+            rows += segment.getRows();
+        }
+        // every segment file is full, the rows after them are in the log of the one being filled
+        segmentStart = rows;
+        for (int column = 0; column < dictionaries.length; column++) {
+            segmentTerms[column] = dictionaries[column].getSize();
+        }
+        try (DirectoryStream<Path> logs = Files.newDirectoryStream(directory, "*" + Segment.LOG_SUFFIX)) {
+            for (Path file : logs) {
+                Segment log = Segment.openLog(file);
+                if (log.getFirstRow() < segmentStart) {
+                    // left by a restart between writing its segment and deleting it
+                    Files.delete(file);
+                    continue;
+                }
+                if (log.getFirstRow() != segmentStart) {
+                    throw new IOException(file + " does not start at row " + segmentStart);
+                }
+                grow(rows + log.getRows());
+                log.copyTo(epochs, statuses, sizes, codes);
+                for (int column = 0; column < dictionaries.length; column++) {
+                    for (String term : log.getTerms()[column]) {
+                        dictionaries[column].code(term);
+                    }
+                }
+                rows += log.getRows();
+                logBytes = log.getLength();
+            }
+        }
+        loggedRows = rows;
+        for (int column = 0; column < dictionaries.length; column++) {
+            loggedTerms[column] = dictionaries[column].getSize();
+        }
+        index.add(0, rows, epochs, NO_TIME, statuses, codes);
+        snapshot = new Snapshot(rows, epochs, statuses, sizes, codes, dictionaries);
+        // segments on disk were kept up to date by every flush before the restart,
+        // though anything indexed by other processes is only found by verifying them
+        this.ready = rows > 0;
+    }
+
+    /**
+     * Adds the entries of a flush to the columns
+     * @param entries the entries newly written
+     */
+    @Override
+    public void flushed(List<DBEntry> entries) {
+        append(entries);
+    }
+
+    /**
+     * Reads back everything already in the index, for when there were no segments on disk.
+     * Entries flushed while this runs are added by the flush listener,
+     * anything flushed before it started is read from the index
+     * @param restClient rest client for ES
+     * @param databaseHandler the handler writing entries, which must already have this store as a listener
+     * @param wireFormat the format to read the index in
+     * @throws Exception IO exception talking to ES
+     */
+    public void rebuild(RestClient restClient, DatabaseHandler databaseHandler, WireFormat wireFormat) throws Exception {
+        EntryScroll entryScroll = databaseHandler.betweenFlushes(() -> {
+            clear();
+            return EntryScroll.open(restClient, wireFormat);
+        });
+        List<DBEntry> batch = new ArrayList<>();
+        entryScroll.forEach(entry -> {
+            batch.add(entry);
+            if (batch.size() == CHUNK_ROWS) {
+                append(batch);
+                batch.clear();
+            }
+        });
+        append(batch);
+        ready = true;
+    }
+
+    /**
+     * Checks the columns read back from the segments still hold every entry in the index,
+     * marking them not ready when they do not so they are read back from the index again.
+     * Entries can be indexed by other processes, like the MapReduce import, which never reach
+     * the columns. The index is counted between flushes so every entry flushed is in both
+     * @param restClient rest client for ES
+     * @param databaseHandler the handler writing entries, which must already have this store as a listener
+     * @param wireFormat the format to read the count in
+     * @return boolean whether the columns are still ready
+     * @throws Exception IO exception talking to ES
+     */
+    public boolean verify(RestClient restClient, DatabaseHandler databaseHandler, WireFormat wireFormat) throws Exception {
+        long indexed = databaseHandler.betweenFlushes(() -> EntryScroll.count(restClient, wireFormat));
+        if (indexed != snapshot.rows) {
+            ready = false;
+        }
+        return ready;
+    }
+
+    /**
+     * Reads entries straight from access log files, for looking at logs without elastic search
+     * @param logFiles the log files, each line parsed like an ingested line
+     * @throws IOException reading a file
+     */
+    public void load(List<Path> logFiles) throws IOException {
+        clear();
+        for (Path logFile : logFiles) {
+            try (BufferedReader reader = Files.newBufferedReader(logFile, StandardCharsets.UTF_8)) {
+                List<DBEntry> batch = new ArrayList<>();
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    batch.addAll(EntryParser.parse(line));
+                    if (batch.size() >= CHUNK_ROWS) {
+                        append(batch);
+                        batch.clear();
+                    }
+                }
+                append(batch);
+            }
+        }
+        ready = true;
+    }
+
+    /**
+     * gets whether the columns hold every entry
+     * @return ready
+     */
+    public boolean isReady() {
+        return ready;
+    }
+
+    /**
+     * Gets the entries of the columns as they are now, without the ids they were indexed with,
+     * each one made from the columns as it is reached
+     * @return Iterable<DBEntry> the entries in the order they were appended
+     */
+    public Iterable<DBEntry> entries() {
+        Snapshot columns = snapshot;
+        return () -> IntStream.range(0, columns.rows).mapToObj(columns::entry).iterator();
+    }
+
+    /**
+     * gets the number of entries in the columns
+     * @return rows
+     */
+    public int getRows() {
+        return snapshot.rows;
+    }
+
+    /**
+     * Sums the requests, the errors and the payload sizes
+     * @param from the earliest time, null for no bound
+     * @param to the latest time, null for no bound
+     * @return long[] the requests, the requests with a 4xx or 5xx and the sum of the payload sizes
+     */
+    public long[] totals(Long from, Long to) {
+        Snapshot columns = snapshot;
+        long lo = lower(from, to);
+        long hi = upper(from, to);
+        return scan(columns, () -> new long[3], (totals, start, end) -> {
+            long[] epochs = columns.epochs;
+            int[] statuses = columns.statuses;
+            int[] sizes = columns.sizes;
+            long requests = 0;
+            long errors = 0;
+            long payloadSum = 0;
+            for (int row = start; row < end; row++) {
+                long epoch = epochs[row];
+                if (epoch < lo || epoch > hi) {
+                    continue;
+                }
+                requests++;
+                int status = statuses[row];
+                if (status >= 400 && status <= 599) {
+                    errors++;
+                }
+                payloadSum += sizes[row];
+            }
+            totals[0] += requests;
+            totals[1] += errors;
+            totals[2] += payloadSum;
+        }, ColumnStore::add);
+    }
+
+    /**
+     * Sums the requests and the errors of each month
+     * @param from the earliest time, null for no bound
+     * @param to the latest time, null for no bound
+     * @return TreeMap<Long, long[]> the start of each month in UTC with its requests and requests with a 4xx or 5xx,
+     *                               only the months with requests
+     */
+    public TreeMap<Long, long[]> months(Long from, Long to) {
+        Snapshot columns = snapshot;
+        long lo = Math.max(lower(from, to), NO_TIME + 1);
+        long hi = upper(from, to);
+        return scan(columns, TreeMap<Long, long[]>::new, (months, start, end) -> {
+            long[] epochs = columns.epochs;
+            int[] statuses = columns.statuses;
+            // entries mostly arrive in time order, so the month only changes now and then
+            long monthStart = 0;
+            long monthEnd = 0;
+            long[] month = null;
+            for (int row = start; row < end; row++) {
+                long epoch = epochs[row];
+                if (epoch < lo || epoch > hi) {
+                    continue;
+                }
+                if (month == null || epoch < monthStart || epoch >= monthEnd) {
+                    DateTime first = new DateTime(epoch, DateTimeZone.UTC).withDayOfMonth(1).withTimeAtStartOfDay();
+                    monthStart = first.getMillis();
+                    monthEnd = first.plusMonths(1).getMillis();
+                    month = months.computeIfAbsent(monthStart, key -> new long[2]);
+                }
+                month[0]++;
+                int status = statuses[row];
+                if (status >= 400 && status <= 599) {
+                    month[1]++;
+                }
+            }
+        }, (left, right) -> {
+            right.forEach((month, counts) -> left.merge(month, counts, ColumnStore::add));
+            return left;
+        });
+    }
+
+    /**
+     * Ranks every term of a column by its requests or by its bytes, highest first and ties by
+     * term like the terms aggregation of ES, terms with no requests in the range are left out
+     * @param column the column ranked
+     * @param bytes true to rank by the sum of the payload sizes, false by the requests
+     * @param from the earliest time, null for no bound
+     * @param to the latest time, null for no bound
+     * @return List<Map.Entry<String, Long>> each term and its requests or bytes
+     */
+    public List<Map.Entry<String, Long>> ranking(Column column, boolean bytes, Long from, Long to) {
+        Snapshot columns = snapshot;
+        long lo = lower(from, to);
+        long hi = upper(from, to);
+        int terms = columns.termCounts[column.ordinal()];
+        long[] values = scan(columns, () -> new long[terms], (totals, start, end) -> {
+            long[] epochs = columns.epochs;
+            int[] sizes = columns.sizes;
+            int[] termCodes = columns.codes[column.ordinal()];
+            for (int row = start; row < end; row++) {
+                long epoch = epochs[row];
+                int code = termCodes[row];
+                if (epoch < lo || epoch > hi || code < 0) {
+                    continue;
+                }
+                totals[code] += bytes ? sizes[row] : 1;
+            }
+        }, ColumnStore::add);
+        // bytes can rank a term with only empty payloads, it still had requests
+        BitSet seen = bytes ? seen(columns, column, lo, hi) : null;
+        List<Map.Entry<String, Long>> ranking = new ArrayList<>();
+        String[] names = columns.terms[column.ordinal()];
+        for (int code = 0; code < terms; code++) {
+            if (bytes ? seen.get(code) : values[code] > 0) {
+                ranking.add(new AbstractMap.SimpleImmutableEntry<>(names[code], values[code]));
+            }
+        }
+        ranking.sort(Map.Entry.<String, Long>comparingByValue(Comparator.reverseOrder())
+                .thenComparing(Map.Entry.comparingByKey()));
+        return ranking;
+    }
+
+    /**
+     * Counts the requests with one term in a column, from the bitmap index when the column is indexed
+     * @param column the column
+     * @param term the term
+     * @param from the earliest time, null for no bound
+     * @param to the latest time, null for no bound
+     * @return long the requests
+     */
+    public long count(Column column, String term, Long from, Long to) {
+        if (index.isIndexed(column)) {
+            return count(Collections.singletonMap(column, term), Integer.MIN_VALUE, Integer.MAX_VALUE, from, to);
+        }
+        Snapshot columns = snapshot;
+        int code = find(column, term);
+        if (code < 0) {
+            return 0;
+        }
+        long lo = lower(from, to);
+        long hi = upper(from, to);
+        return scan(columns, () -> new long[1], (count, start, end) -> {
+            long[] epochs = columns.epochs;
+            int[] termCodes = columns.codes[column.ordinal()];
+            long matches = 0;
+            for (int row = start; row < end; row++) {
+                long epoch = epochs[row];
+                if (termCodes[row] == code && epoch >= lo && epoch <= hi) {
+                    matches++;
+                }
+            }
+            count[0] += matches;
+        }, ColumnStore::add)[0];
+    }
+
+    /**
+     * Counts the requests matching every filter given from the bitmap index, the bitmaps of
+     * the filters are and'ed together and only the rows of months partly in the range are scanned
+     * @param terms the term each column must have, any column not given can have any term
+     * @param minStatus the smallest response code counted
+     * @param maxStatus the largest response code counted
+     * @param from the earliest time, null for no bound
+     * @param to the latest time, null for no bound
+     * @return long the requests
+     * @throws IllegalArgumentException if a column of the terms is not indexed
+     */
+    public long count(Map<Column, String> terms, int minStatus, int maxStatus, Long from, Long to) {
+        Snapshot columns = snapshot;
+        Map<Column, Integer> codes = new EnumMap<>(Column.class);
+        for (Map.Entry<Column, String> term : terms.entrySet()) {
+            if (!index.isIndexed(term.getKey())) {
+                throw new IllegalArgumentException(term.getKey() + " is not indexed");
+            }
+            codes.put(term.getKey(), find(term.getKey(), term.getValue()));
+        }
+        return index.count(codes, minStatus, maxStatus, lower(from, to), upper(from, to), NO_TIME, columns.epochs, columns.rows);
+    }
+
+    /**
+     * Counts the different terms of a column
+     * @param column the column
+     * @param from the earliest time, null for no bound
+     * @param to the latest time, null for no bound
+     * @return int the number of terms with requests in the range
+     */
+    public int distinct(Column column, Long from, Long to) {
+        Snapshot columns = snapshot;
+        return seen(columns, column, lower(from, to), upper(from, to)).cardinality();
+    }
+
+    /**
+     * Gets the payload sizes, sorted so percentiles can be read straight off them
+     * @param column only the requests with a term in this column, null for every request
+     * @param term the term, ignored when there is no column
+     * @param from the earliest time, null for no bound
+     * @param to the latest time, null for no bound
+     * @return int[] the payload sizes smallest first
+     */
+    public int[] payloadSizes(Column column, String term, Long from, Long to) {
+        Snapshot columns = snapshot;
+        int code = column == null ? -1 : find(column, term);
+        if (column != null && code < 0) {
+            return new int[0];
+        }
+        long lo = lower(from, to);
+        long hi = upper(from, to);
+        // each chunk copies out its own sizes, they are joined into one array once all are done
+        List<int[]> chunks = IntStream
+                .range(0, chunkCount(columns))
+                .parallel()
+                .mapToObj(chunk -> {
+                    long[] epochs = columns.epochs;
+                    int[] sizes = columns.sizes;
+                    int[] termCodes = column == null ? null : columns.codes[column.ordinal()];
+                    int start = chunk * CHUNK_ROWS;
+                    int end = Math.min(columns.rows, start + CHUNK_ROWS);
+                    int[] chunkSizes = new int[end - start];
+                    int count = 0;
+                    for (int row = start; row < end; row++) {
+                        long epoch = epochs[row];
+                        if (epoch >= lo && epoch <= hi && (termCodes == null || termCodes[row] == code)) {
+                            chunkSizes[count++] = sizes[row];
+                        }
+                    }
+                    return Arrays.copyOf(chunkSizes, count);
+                })
+                .collect(Collectors.toList());
+        int total = 0;
+        for (int[] chunk : chunks) {
+            total += chunk.length;
+        }
+        int[] payloads = new int[total];
+        int offset = 0;
+        for (int[] chunk : chunks) {
+            System.arraycopy(chunk, 0, payloads, offset, chunk.length);
+            offset += chunk.length;
+        }
+        Arrays.parallelSort(payloads);
+        return payloads;
+    }
+
+    /**
+     * This method marks which terms of a column have requests in a range
+     * @param columns the snapshot scanned
+     * @param column the column
+     * @param lo the earliest time
+     * @param hi the latest time
+     * @return BitSet the codes of the terms with requests
+     */
+    private BitSet seen(Snapshot columns, Column column, long lo, long hi) {
+        return scan(columns, BitSet::new, (seen, start, end) -> {
+            long[] epochs = columns.epochs;
+            int[] termCodes = columns.codes[column.ordinal()];
+            for (int row = start; row < end; row++) {
+                long epoch = epochs[row];
+                int code = termCodes[row];
+                if (code >= 0 && epoch >= lo && epoch <= hi) {
+                    seen.set(code);
+                }
+            }
+        }, (left, right) -> {
+            left.or(right);
+            return left;
+        });
+    }
+
+    /**
+     * This method scans the rows of a snapshot a chunk at a time in parallel
+     * @param columns the snapshot scanned
+     * @param identity creates an empty partial result for each chunk
+     * @param chunkScan scans the rows of one chunk into its partial result
+     * @param merge merges two partial results
+     * @param <A> type of the result
+     * @return A the merged result
+     */
+    private static <A> A scan(Snapshot columns, Supplier<A> identity, ChunkScan<A> chunkScan, BinaryOperator<A> merge) {
+        return IntStream
+                .range(0, chunkCount(columns))
+                .parallel()
+                .mapToObj(chunk -> {
+                    A partial = identity.get();
+                    int start = chunk * CHUNK_ROWS;
+                    chunkScan.scan(partial, start, Math.min(columns.rows, start + CHUNK_ROWS));
+                    return partial;
+                })
+                .reduce(merge)
+                .orElseGet(identity);
+    }
+
+    /**
+     * This method gives the number of chunks the rows of a snapshot are scanned in
+     * @param columns the snapshot
+     * @return int the number of chunks
+     */
+    private static int chunkCount(Snapshot columns) {
+        return (columns.rows + CHUNK_ROWS - 1) / CHUNK_ROWS;
+    }
+
+    /**
+     * This method adds one array of counts into another
+     * @param left the counts added to
+     * @param right the counts added
+     * @return long[] the left counts
+     */
+    private static long[] add(long[] left, long[] right) {
+        for (int i = 0; i < left.length; i++) {
+            left[i] += right[i];
+        }
+        return left;
+    }
+
+    /**
+     * This method gives the earliest time of a range as a bound every row can be compared to,
+     * entries without a time are only in a range with no bounds
+     * @param from the earliest time, null for no bound
+     * @param to the latest time, null for no bound
+     * @return long the earliest time
+     */
+    private static long lower(Long from, Long to) {
+        if (from == null && to == null) {
+            return NO_TIME;
+        }
+        return from == null ? NO_TIME + 1 : from;
+    }
+
+    /**
+     * This method gives the latest time of a range as a bound every row can be compared to
+     * @param from the earliest time, null for no bound
+     * @param to the latest time, null for no bound
+     * @return long the latest time
+     */
+    private static long upper(Long from, Long to) {
+        return to == null ? Long.MAX_VALUE : to;
+    }
+
+    /**
+     * This method finds the code of a term
+     * @param column the column of the term
+     * @param term the term
+     * @return int the code, -1 if it has never been seen
+     */
+    private synchronized int find(Column column, String term) {
+        return dictionaries[column.ordinal()].find(term);
+    }
+
+    /**
+     * This method appends entries to the columns and then publishes them to queries
+     * @param entries the entries
+     */
+    private synchronized void append(List<DBEntry> entries) {
+        if (entries.isEmpty()) {
+            return;
+        }
+        int rows = snapshot.rows;
+        grow(rows + entries.size());
+        for (DBEntry entry : entries) {
+            epochs[rows] = entry.datetime() == null ? NO_TIME : entry.datetime().getMillis();
+            statuses[rows] = entry.responseCode();
+            sizes[rows] = entry.payloadSize();
+            codes[Column.USER.ordinal()][rows] = dictionaries[Column.USER.ordinal()].code(entry.username());
+            codes[Column.CLIENT.ordinal()][rows] = dictionaries[Column.CLIENT.ordinal()].code(entry.client());
+            codes[Column.EXTENSION.ordinal()][rows] = dictionaries[Column.EXTENSION.ordinal()].code(entry.fileExtension());
+            codes[Column.METHOD.ordinal()][rows] = dictionaries[Column.METHOD.ordinal()].code(entry.restfulAPI());
+            codes[Column.RESOURCE.ordinal()][rows] = dictionaries[Column.RESOURCE.ordinal()].code(entry.resourceAccessed());
+            rows++;
+        }
+        index.add(snapshot.rows, rows, epochs, NO_TIME, statuses, codes);
+        if (directory != null) {
+            write(rows);
+        }
+        snapshot = new Snapshot(rows, epochs, statuses, sizes, codes, dictionaries);
+    }
+
+    /**
+     * This method appends the rows added since the last append to the log of the segment being
+     * filled, and once the segment is full writes it whole, forcing it to disk, and starts a new
+     * one. Rows that could not be written stay in the columns and are written with the next append
+     * @param rows the number of rows in the columns
+     */
+    private void write(int rows) {
+        int[] terms = new int[dictionaries.length];
+        String[][] names = new String[dictionaries.length][];
+        for (int column = 0; column < dictionaries.length; column++) {
+            terms[column] = dictionaries[column].getSize();
+            names[column] = dictionaries[column].getTerms();
+        }
+        try {
+            if (rows - segmentStart >= SEGMENT_ROWS) {
+                Segment.write(directory, segmentStart, rows - segmentStart,
+                        epochs, statuses, sizes, codes, names, segmentTerms, terms);
+                Files.deleteIfExists(directory.resolve(Segment.name(segmentStart) + Segment.LOG_SUFFIX));
+                segmentStart = rows;
+                System.arraycopy(terms, 0, segmentTerms, 0, terms.length);
+                logBytes = 0;
+            } else {
+                logBytes = Segment.append(directory, segmentStart, logBytes, loggedRows, rows,
+                        epochs, statuses, sizes, codes, names, loggedTerms, terms);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+        loggedRows = rows;
+        System.arraycopy(terms, 0, loggedTerms, 0, terms.length);
+    }
+
+    /**
+     * This method grows the columns to hold a number of rows, by copying so the arrays
+     * of older snapshots never change
+     * @param needed the number of rows
+     */
+    private void grow(int needed) {
+        if (needed > epochs.length) {
+            int capacity = Math.max(needed, epochs.length * 2);
+            epochs = Arrays.copyOf(epochs, capacity);
+            statuses = Arrays.copyOf(statuses, capacity);
+            sizes = Arrays.copyOf(sizes, capacity);
+            for (int column = 0; column < codes.length; column++) {
+                codes[column] = Arrays.copyOf(codes[column], capacity);
+            }
+        }
+    }
+
+    /**
+     * This method empties the columns, deleting their segments, and marks them not ready
+     * @throws IOException deleting a segment
+     */
+    private synchronized void clear() throws IOException {
+        ready = false;
+        for (Dictionary dictionary : dictionaries) {
+            dictionary.clear();
+        }
+        // new arrays so the rows of older snapshots are never written again
+        epochs = new long[1024];
+        statuses = new int[1024];
+        sizes = new int[1024];
+        for (int column = 0; column < codes.length; column++) {
+            codes[column] = new int[1024];
+        }
+        segmentStart = 0;
+        Arrays.fill(segmentTerms, 0);
+        loggedRows = 0;
+        Arrays.fill(loggedTerms, 0);
+        logBytes = 0;
+        index.clear();
+        if (directory != null) {
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+                for (Path file : files) {
+                    Files.delete(file);
+                }
+            }
+        }
+        snapshot = new Snapshot(0, epochs, statuses, sizes, codes, dictionaries);
+    }
+
+    /**
+     * Scans the rows of one chunk into a partial result
+     * @param <A> type of the partial result
+     */
+    private interface ChunkScan<A> {
+
+        /**
+         * Scans rows into a partial result
+         * @param partial the partial result of the chunk
+         * @param start the first row
+         * @param end the row after the last
+         */
+        void scan(A partial, int start, int end);
+    }
+
+    /**
+     * The columns as they were after an append, the arrays are shared with the store
+     * but only rows before the count are read and those are never written again
+     */
+    private static final class Snapshot {
+
+        // the number of rows
+        private final int rows;
+
+        // the columns of the rows
+        private final long[] epochs;
+        private final int[] statuses;
+        private final int[] sizes;
+        private final int[][] codes;
+
+        // the terms of each column by code, and how many of them there are
+        private final String[][] terms;
+        private final int[] termCounts;
+
+        /**
+         * Takes a snapshot of the columns
+         * @param rows the number of rows
+         * @param epochs the times
+         * @param statuses the response codes
+         * @param sizes the payload sizes
+         * @param codes the codes of each column of strings
+         * @param dictionaries the dictionary of each column of strings
+         */
+        private Snapshot(int rows, long[] epochs, int[] statuses, int[] sizes, int[][] codes, Dictionary[] dictionaries) {
+            this.rows = rows;
+            this.epochs = epochs;
+            this.statuses = statuses;
+            this.sizes = sizes;
+            this.codes = codes.clone();
+            this.terms = new String[dictionaries.length][];
+            this.termCounts = new int[dictionaries.length];
+            for (int column = 0; column < dictionaries.length; column++) {
+                terms[column] = dictionaries[column].getTerms();
+                termCounts[column] = dictionaries[column].getSize();
+            }
+        }
+
+        /**
+         * Makes the entry of a row from its columns
+         * @param row the row
+         * @return DBEntry the entry, without the id it was indexed with
+         */
+        private DBEntry entry(int row) {
+            return ImmutableDBEntry.of(
+                    null,
+                    statuses[row],
+                    term(Column.METHOD, row),
+                    sizes[row],
+                    term(Column.RESOURCE, row),
+                    term(Column.USER, row),
+                    epochs[row] == NO_TIME ? null : new DateTime(epochs[row], DateTimeZone.UTC),
+                    term(Column.EXTENSION, row),
+                    term(Column.CLIENT, row)
+            );
+        }
+
+        /**
+         * Gets the term of a row in a column of strings
+         * @param column the column
+         * @param row the row
+         * @return String the term, null for none
+         */
+        private String term(Column column, int row) {
+            int code = codes[column.ordinal()][row];
+            return code < 0 ? null : terms[column.ordinal()][code];
+        }
+    }
+}
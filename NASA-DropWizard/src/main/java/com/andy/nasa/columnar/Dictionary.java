@@ -0,0 +1,78 @@
+package com.andy.nasa.columnar;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * This class codes the terms of a column as small numbers, in the order they are first seen,
+ * so the column is an array of ints and a scan compares ints rather than strings. It is only
+ * written under the lock of the store, readers look codes up in the terms of a snapshot
+ */
+final class Dictionary {
+
+    // the code of each term
+    private final Map<String, Integer> codes = new HashMap<>();
+
+    // the term of each code, grown by copying so the terms of an older snapshot never change
+    private String[] terms = new String[16];
+
+    // the number of terms coded
+    private int size = 0;
+
+    /**
+     * Gets the code of a term, coding it the first time it is seen
+     * @param term the term, null for none
+     * @return int the code, -1 for none
+     */
+    int code(String term) {
+        if (term == null) {
+            return -1;
+        }
+        Integer code = codes.get(term);
+        if (code == null) {
+            if (size == terms.length) {
+                terms = Arrays.copyOf(terms, size * 2);
+            }
+            code = size;
+            terms[size++] = term;
+            codes.put(term, code);
+        }
+        return code;
+    }
+
+    /**
+     * Finds the code of a term without coding it
+     * @param term the term
+     * @return int the code, -1 if the term has never been seen
+     */
+    int find(String term) {
+        Integer code = term == null ? null : codes.get(term);
+        return code == null ? -1 : code;
+    }
+
+    /**
+     * gets the terms by code, only the first {@link #getSize} of which are coded
+     * @return terms
+     */
+    String[] getTerms() {
+        return terms;
+    }
+
+    /**
+     * gets the number of terms coded
+     * @return size
+     */
+    int getSize() {
+        return size;
+    }
+
+    /**
+     * This method forgets every term
+     */
+    void clear() {
+        codes.clear();
+        terms = new String[16];
+        size = 0;
+    }
+}
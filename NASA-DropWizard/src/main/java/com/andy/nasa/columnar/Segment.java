@@ -0,0 +1,363 @@
+package com.andy.nasa.columnar;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * This class is a run of rows of the columns kept on disk, the columns one after another as
+ * fixed width values in one file and the terms first coded by those rows in a dictionary file
+ * beside it. A segment file is only written once it is full and is never changed after, the
+ * dictionary is moved into place before it so a segment never codes a term its dictionary does
+ * not have. The rows of the segment still being filled are appended to a log beside the segments
+ * instead, as blocks holding the rows and terms of each append, so an append only writes what it
+ * adds. Segments and logs are read back plainly, each column copied out of the file in bulk
+ */
+final class Segment {
+
+    // the suffix of the column files, each named by the row it starts at
+    static final String SUFFIX = ".seg";
+
+    // the suffix of the dictionary files
+    static final String DICTIONARY_SUFFIX = ".dict";
+
+    // the suffix of the log of the segment being filled
+    static final String LOG_SUFFIX = ".log";
+
+    // marks the start of a column file
+    private static final int MAGIC = 0x4e415341;
+
+    // the layout of the column file, changed whenever it changes
+    private static final int VERSION = 1;
+
+    // the magic, version, first row and rows
+    private static final int HEADER_BYTES = 16;
+
+    // the length and checksum before each block of a log
+    private static final int BLOCK_HEADER_BYTES = 8;
+
+    // the row of the columns the segment starts at
+    private final int firstRow;
+
+    // the number of rows in the segment
+    private final int rows;
+
+    // the times of the rows
+    private final long[] epochs;
+
+    // the int columns of the rows, in the order they are kept in the file
+    private final int[][] columns;
+
+    // the terms first coded by the segment, in code order, for each column of strings
+    private final String[][] terms;
+
+    // the bytes of the file read back, up to the end of the last whole block of a log
+    private final long length;
+
+    /**
+     * Creates a segment read back from disk
+     * @param firstRow the row it starts at
+     * @param rows the number of rows
+     * @param epochs the times of the rows
+     * @param columns the int columns of the rows
+     * @param terms the terms first coded by the segment
+     * @param length the bytes of the file read back
+     */
+    private Segment(int firstRow, int rows, long[] epochs, int[][] columns, String[][] terms, long length) {
+        this.firstRow = firstRow;
+        this.rows = rows;
+        this.epochs = epochs;
+        this.columns = columns;
+        this.terms = terms;
+        this.length = length;
+    }
+
+    /**
+     * Writes rows of the columns as a full segment, replacing any segment starting at the same row
+     * @param directory the directory segments are kept in
+     * @param firstRow the first row written
+     * @param rows the number of rows written
+     * @param epochs the times
+     * @param statuses the response codes
+     * @param sizes the payload sizes
+     * @param codes the codes of each column of strings
+     * @param terms the terms of each column of strings by code
+     * @param fromTerms the first code of each column coded by these rows
+     * @param toTerms the code after the last of each column coded by these rows
+     * @throws IOException writing the files
+     */
+    static void write(Path directory, int firstRow, int rows,
+                      long[] epochs, int[] statuses, int[] sizes, int[][] codes,
+                      String[][] terms, int[] fromTerms, int[] toTerms) throws IOException {
+        Path dictionary = directory.resolve(name(firstRow) + DICTIONARY_SUFFIX);
+        Path dictionaryTemp = directory.resolve(name(firstRow) + DICTIONARY_SUFFIX + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(dictionaryTemp)))) {
+            for (int column = 0; column < terms.length; column++) {
+                out.writeInt(toTerms[column] - fromTerms[column]);
+                for (int code = fromTerms[column]; code < toTerms[column]; code++) {
+                    out.writeUTF(terms[column][code]);
+                }
+            }
+        }
+        Files.move(dictionaryTemp, dictionary, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_BYTES + rows * (Long.BYTES + Integer.BYTES * (2 + codes.length)));
+        buffer.putInt(MAGIC).putInt(VERSION).putInt(firstRow).putInt(rows);
+        // each column is put in bulk through a view of the buffer
+        buffer.asLongBuffer().put(epochs, firstRow, rows);
+        buffer.position(buffer.position() + rows * Long.BYTES);
+        for (int[] column : columns(statuses, sizes, codes)) {
+            buffer.asIntBuffer().put(column, firstRow, rows);
+            buffer.position(buffer.position() + rows * Integer.BYTES);
+        }
+        buffer.flip();
+        Path segment = directory.resolve(name(firstRow) + SUFFIX);
+        Path segmentTemp = directory.resolve(name(firstRow) + SUFFIX + ".tmp");
+        try (FileChannel channel = FileChannel.open(segmentTemp,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(false);
+        }
+        Files.move(segmentTemp, segment, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Appends rows of the columns to the log of the segment being filled, as one block. Anything
+     * after the end of the last block appended, left by an append that failed, is cut off first.
+     * The log is not forced to disk, a block lost in a crash is read again from ES
+     * @param directory the directory segments are kept in
+     * @param firstRow the row the segment being filled starts at
+     * @param length the bytes of the log up to the end of the last block appended
+     * @param fromRow the first row appended
+     * @param toRow the row after the last appended
+     * @param epochs the times
+     * @param statuses the response codes
+     * @param sizes the payload sizes
+     * @param codes the codes of each column of strings
+     * @param terms the terms of each column of strings by code
+     * @param fromTerms the first code of each column coded by these rows
+     * @param toTerms the code after the last of each column coded by these rows
+     * @return long the bytes of the log up to the end of the block appended
+     * @throws IOException writing the log
+     */
+    static long append(Path directory, int firstRow, long length, int fromRow, int toRow,
+                       long[] epochs, int[] statuses, int[] sizes, int[][] codes,
+                       String[][] terms, int[] fromTerms, int[] toTerms) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(toRow - fromRow);
+            for (int column = 0; column < terms.length; column++) {
+                out.writeInt(toTerms[column] - fromTerms[column]);
+                for (int code = fromTerms[column]; code < toTerms[column]; code++) {
+                    out.writeUTF(terms[column][code]);
+                }
+            }
+            for (int row = fromRow; row < toRow; row++) {
+                out.writeLong(epochs[row]);
+            }
+            for (int[] column : columns(statuses, sizes, codes)) {
+                for (int row = fromRow; row < toRow; row++) {
+                    out.writeInt(column[row]);
+                }
+            }
+        }
+        CRC32 checksum = new CRC32();
+        checksum.update(bytes.toByteArray());
+        ByteBuffer buffer = ByteBuffer.allocate(BLOCK_HEADER_BYTES + bytes.size());
+        buffer.putInt(bytes.size()).putInt((int) checksum.getValue()).put(bytes.toByteArray());
+        buffer.flip();
+        try (FileChannel channel = FileChannel.open(directory.resolve(name(firstRow) + LOG_SUFFIX),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            channel.truncate(length);
+            channel.position(length);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            return channel.position();
+        }
+    }
+
+    /**
+     * Opens a full segment by reading its column file and its dictionary
+     * @param file the column file
+     * @return Segment the segment
+     * @throws IOException reading the files, or if they are not a segment
+     */
+    static Segment open(Path file) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file));
+        if (buffer.capacity() < HEADER_BYTES || buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+            throw new IOException(file + " is not a segment");
+        }
+        int firstRow = buffer.getInt();
+        int rows = buffer.getInt();
+        if (buffer.remaining() != rows * (Long.BYTES + Integer.BYTES * (2 + ColumnStore.Column.values().length))) {
+            throw new IOException(file + " does not hold " + rows + " rows");
+        }
+        // each column is read in bulk through a view of the buffer
+        long[] epochs = new long[rows];
+        buffer.asLongBuffer().get(epochs);
+        buffer.position(buffer.position() + rows * Long.BYTES);
+        int[][] columns = new int[2 + ColumnStore.Column.values().length][rows];
+        for (int[] column : columns) {
+            buffer.asIntBuffer().get(column);
+            buffer.position(buffer.position() + rows * Integer.BYTES);
+        }
+        String[][] terms = new String[ColumnStore.Column.values().length][];
+        Path dictionary = file.resolveSibling(name(firstRow) + DICTIONARY_SUFFIX);
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(dictionary)))) {
+            for (int column = 0; column < terms.length; column++) {
+                terms[column] = new String[in.readInt()];
+                for (int code = 0; code < terms[column].length; code++) {
+                    terms[column][code] = in.readUTF();
+                }
+            }
+        }
+        return new Segment(firstRow, rows, epochs, columns, terms, buffer.capacity());
+    }
+
+    /**
+     * Opens the log of the segment being filled by reading its blocks in order, stopping at
+     * the first block that was not written whole, which the next append cuts off
+     * @param file the log file
+     * @return Segment the rows and terms of the whole blocks
+     * @throws IOException reading the file
+     */
+    static Segment openLog(Path file) throws IOException {
+        String fileName = file.getFileName().toString();
+        int firstRow = Integer.parseInt(fileName.substring(0, fileName.length() - LOG_SUFFIX.length()));
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file));
+        int rows = 0;
+        long[] epochs = new long[0];
+        int[][] columns = new int[2 + ColumnStore.Column.values().length][0];
+        List<List<String>> terms = new ArrayList<>();
+        for (int column = 0; column < ColumnStore.Column.values().length; column++) {
+            terms.add(new ArrayList<>());
+        }
+        CRC32 checksum = new CRC32();
+        while (buffer.remaining() >= BLOCK_HEADER_BYTES) {
+            int blockBytes = buffer.getInt();
+            int expected = buffer.getInt();
+            if (blockBytes < 0 || blockBytes > buffer.remaining()) {
+                buffer.position(buffer.position() - BLOCK_HEADER_BYTES);
+                break;
+            }
+            checksum.reset();
+            checksum.update(buffer.array(), buffer.position(), blockBytes);
+            if ((int) checksum.getValue() != expected) {
+                buffer.position(buffer.position() - BLOCK_HEADER_BYTES);
+                break;
+            }
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(buffer.array(), buffer.position(), blockBytes));
+            int blockRows = in.readInt();
+            for (List<String> columnTerms : terms) {
+                for (int term = in.readInt(); term > 0; term--) {
+                    columnTerms.add(in.readUTF());
+                }
+            }
+            epochs = Arrays.copyOf(epochs, rows + blockRows);
+            for (int row = rows; row < rows + blockRows; row++) {
+                epochs[row] = in.readLong();
+            }
+            for (int column = 0; column < columns.length; column++) {
+                columns[column] = Arrays.copyOf(columns[column], rows + blockRows);
+                for (int row = rows; row < rows + blockRows; row++) {
+                    columns[column][row] = in.readInt();
+                }
+            }
+            rows += blockRows;
+            buffer.position(buffer.position() + blockBytes);
+        }
+        String[][] termArrays = new String[terms.size()][];
+        for (int column = 0; column < termArrays.length; column++) {
+            termArrays[column] = terms.get(column).toArray(new String[0]);
+        }
+        return new Segment(firstRow, rows, epochs, columns, termArrays, buffer.position());
+    }
+
+    /**
+     * gets the row of the columns the segment starts at
+     * @return firstRow
+     */
+    int getFirstRow() {
+        return firstRow;
+    }
+
+    /**
+     * gets the number of rows in the segment
+     * @return rows
+     */
+    int getRows() {
+        return rows;
+    }
+
+    /**
+     * gets the terms first coded by the segment for each column of strings, in code order
+     * @return terms
+     */
+    String[][] getTerms() {
+        return terms;
+    }
+
+    /**
+     * gets the bytes of the file read back, for a log the end of its last whole block
+     * @return length
+     */
+    long getLength() {
+        return length;
+    }
+
+    /**
+     * Copies the rows of the segment into the columns, at the row the segment starts at
+     * @param epochs the times
+     * @param statuses the response codes
+     * @param sizes the payload sizes
+     * @param codes the codes of each column of strings
+     */
+    void copyTo(long[] epochs, int[] statuses, int[] sizes, int[][] codes) {
+        System.arraycopy(this.epochs, 0, epochs, firstRow, rows);
+        int[][] into = columns(statuses, sizes, codes);
+        for (int column = 0; column < into.length; column++) {
+            System.arraycopy(columns[column], 0, into[column], firstRow, rows);
+        }
+    }
+
+    /**
+     * This method names the files of a segment by the row it starts at, padded so they sort in row order
+     * @param firstRow the row the segment starts at
+     * @return String the name without its suffix
+     */
+    static String name(int firstRow) {
+        return String.format("%010d", firstRow);
+    }
+
+    /**
+     * This method lists the int columns in the order they are kept in the file
+     * @param statuses the response codes
+     * @param sizes the payload sizes
+     * @param codes the codes of each column of strings
+     * @return int[][] the columns
+     */
+    private static int[][] columns(int[] statuses, int[] sizes, int[][] codes) {
+        int[][] columns = new int[2 + codes.length][];
+        columns[0] = statuses;
+        columns[1] = sizes;
+        System.arraycopy(codes, 0, columns, 2, codes.length);
+        return columns;
+    }
+}
@@ -1,7 +1,13 @@
 package com.andy.nasa.configuration;
 
+import com.andy.nasa.configuration.configs.BackendConfig;
+import com.andy.nasa.configuration.configs.CacheConfig;
 import com.andy.nasa.configuration.configs.ElasticSearchConfig;
+import com.andy.nasa.configuration.configs.PressureConfig;
 import com.andy.nasa.configuration.configs.RabbitConfig;
+import com.andy.nasa.configuration.configs.ResilienceConfig;
+import com.andy.nasa.configuration.configs.StorageConfig;
+import com.andy.nasa.configuration.configs.TimeoutConfig;
 import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import io.dropwizard.Configuration;
@@ -14,15 +20,33 @@ public class NasaConfig extends Configuration{
 
     private final ElasticSearchConfig elasticSearchConfig;
     private final RabbitConfig rabbitConfig;
+    private final CacheConfig cacheConfig;
+    private final TimeoutConfig timeoutConfig;
+    private final StorageConfig storageConfig;
+    private final BackendConfig backendConfig;
+    private final ResilienceConfig resilienceConfig;
+    private final PressureConfig pressureConfig;
 
     /**
      * This is the constructor for Service configuration
      */
     @JsonCreator
     private NasaConfig(@JsonProperty("elasticsearch") ElasticSearchConfig elasticSearchConfig,
-                       @JsonProperty("rabbit") RabbitConfig rabbitConfig) {
+                       @JsonProperty("rabbit") RabbitConfig rabbitConfig,
+                       @JsonProperty("cache") CacheConfig cacheConfig,
+                       @JsonProperty("timeouts") TimeoutConfig timeoutConfig,
+                       @JsonProperty("storage") StorageConfig storageConfig,
+                       @JsonProperty("backend") BackendConfig backendConfig,
+                       @JsonProperty("resilience") ResilienceConfig resilienceConfig,
+                       @JsonProperty("pressure") PressureConfig pressureConfig) {
         this.elasticSearchConfig = elasticSearchConfig;
         this.rabbitConfig = rabbitConfig;
+        this.cacheConfig = cacheConfig;
+        this.timeoutConfig = timeoutConfig;
+        this.storageConfig = storageConfig;
+        this.backendConfig = backendConfig;
+        this.resilienceConfig = resilienceConfig == null ? ResilienceConfig.defaults() : resilienceConfig;
+        this.pressureConfig = pressureConfig == null ? PressureConfig.defaults() : pressureConfig;
     }
 
     /**
@@ -40,4 +64,40 @@ public class NasaConfig extends Configuration{
      */
     public RabbitConfig getRabbitConfig() { return rabbitConfig; }
 
+    /**
+     * Returns the config for the query result cache
+     * @return cacheConfig
+     */
+    public CacheConfig getCacheConfig() { return cacheConfig; }
+
+    /**
+     * Returns the timeouts for the API's waiting on elastic search
+     * @return timeoutConfig
+     */
+    public TimeoutConfig getTimeoutConfig() { return timeoutConfig; }
+
+    /**
+     * Returns where the application keeps its own data
+     * @return storageConfig
+     */
+    public StorageConfig getStorageConfig() { return storageConfig; }
+
+    /**
+     * Returns which backend answers the queries of the API's
+     * @return backendConfig
+     */
+    public BackendConfig getBackendConfig() { return backendConfig; }
+
+    /**
+     * Returns how requests to elastic search are kept from waiting on a slow or failing node
+     * @return resilienceConfig
+     */
+    public ResilienceConfig getResilienceConfig() { return resilienceConfig; }
+
+    /**
+     * Returns how much pressure ingestion may put on elastic search before it slows down
+     * @return pressureConfig
+     */
+    public PressureConfig getPressureConfig() { return pressureConfig; }
+
 }
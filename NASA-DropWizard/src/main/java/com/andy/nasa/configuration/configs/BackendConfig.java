@@ -0,0 +1,48 @@
+package com.andy.nasa.configuration.configs;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * This class holds which backend answers the queries of the API's, elastic search
+ * or the columns kept in memory, and what the columns are loaded from
+ */
+public class BackendConfig {
+
+    private final String type;
+    private final List<String> logFiles;
+
+    @JsonCreator
+    private BackendConfig(@JsonProperty("type") String type,
+                          @JsonProperty("logFiles") List<String> logFiles) {
+        this.type = type == null ? "elasticsearch" : type;
+        this.logFiles = logFiles == null ? Collections.emptyList() : logFiles;
+    }
+
+    /**
+     * gets the backend, elasticsearch or columnar
+     * @return type
+     */
+    public String getType() {
+        return type;
+    }
+
+    /**
+     * gets whether the queries are answered from the columns kept in memory
+     * @return true for the columnar backend
+     */
+    public boolean isColumnar() {
+        return type.equals("columnar");
+    }
+
+    /**
+     * gets the access logs the columns are first loaded from, empty to load them from elastic search
+     * @return logFiles
+     */
+    public List<String> getLogFiles() {
+        return logFiles;
+    }
+}
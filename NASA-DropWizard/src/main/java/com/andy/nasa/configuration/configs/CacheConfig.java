@@ -0,0 +1,48 @@
+package com.andy.nasa.configuration.configs;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/**
+ * This class holds the configuration for the cache of query results
+ * that sits in front of elastic search
+ */
+public class CacheConfig {
+
+    private final long maximumSize;
+    private final long ttlSeconds;
+    private final long staleSeconds;
+
+    @JsonCreator
+    private CacheConfig(@JsonProperty("maximumSize") long maximumSize,
+                        @JsonProperty("ttlSeconds") long ttlSeconds,
+                        @JsonProperty("staleSeconds") long staleSeconds) {
+        this.maximumSize = maximumSize;
+        this.ttlSeconds = ttlSeconds;
+        this.staleSeconds = staleSeconds;
+    }
+
+    /**
+     * gets the most results the cache will hold
+     * @return maximumSize
+     */
+    public long getMaximumSize() {
+        return maximumSize;
+    }
+
+    /**
+     * gets how long a result is kept after it was cached
+     * @return ttlSeconds
+     */
+    public long getTtlSeconds() {
+        return ttlSeconds;
+    }
+
+    /**
+     * gets how long a result can still be answered with when the backend is failing, 0 for never
+     * @return staleSeconds
+     */
+    public long getStaleSeconds() {
+        return staleSeconds;
+    }
+}
@@ -1,8 +1,12 @@
 package com.andy.nasa.configuration.configs;
 
+import com.andy.nasa.elasticsearch.WireFormat;
 import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.annotation.JsonProperty;
 
+import java.util.Collections;
+import java.util.List;
+
 /**
  * This class is the builder for elastic search configuration with all the configuration defined
  * Created by awaldman on 4/19/17.
@@ -12,13 +16,19 @@ public class ElasticSearchConfig {
 
     private final String host;
     private final Integer port;
+    private final WireFormat format;
+    private final List<String> otherHosts;
 
     @JsonCreator
     private ElasticSearchConfig(
             @JsonProperty("host") String host,
-            @JsonProperty("port") Integer port ) {
+            @JsonProperty("port") Integer port,
+            @JsonProperty("format") WireFormat format,
+            @JsonProperty("otherHosts") List<String> otherHosts ) {
         this.host = host;
         this.port = port;
+        this.format = format == null ? WireFormat.JSON : format;
+        this.otherHosts = otherHosts == null ? Collections.emptyList() : otherHosts;
     }
 
     /**
@@ -36,4 +46,20 @@ public class ElasticSearchConfig {
     public Integer getPort() {
         return port;
     }
+
+    /**
+     * gets the format used on the wire for bulk writes and query responses
+     * @return format, json if none was configured
+     */
+    public WireFormat getFormat() {
+        return format;
+    }
+
+    /**
+     * gets the other nodes of the cluster as host:port, slow requests are sent again to the next node
+     * @return otherHosts, empty if there is only the one node
+     */
+    public List<String> getOtherHosts() {
+        return otherHosts;
+    }
 }
@@ -0,0 +1,122 @@
+package com.andy.nasa.configuration.configs;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/**
+ * This class holds how much pressure ingestion may put on elastic search and on itself before it
+ * slows down, each signal's limit and how many messages rabbit may hand over at once
+ */
+public class PressureConfig {
+
+    private final long pollSeconds;
+    private final long maxBulkQueue;
+    private final long maxBulkRejections;
+    private final long maxBufferedDocuments;
+    private final long maxFlushMillis;
+    private final long maxQueueDepth;
+    private final double slowRatio;
+    private final int prefetch;
+    private final int slowPrefetch;
+
+    @JsonCreator
+    private PressureConfig(@JsonProperty("pollSeconds") Long pollSeconds,
+                           @JsonProperty("maxBulkQueue") Long maxBulkQueue,
+                           @JsonProperty("maxBulkRejections") Long maxBulkRejections,
+                           @JsonProperty("maxBufferedDocuments") Long maxBufferedDocuments,
+                           @JsonProperty("maxFlushMillis") Long maxFlushMillis,
+                           @JsonProperty("maxQueueDepth") Long maxQueueDepth,
+                           @JsonProperty("slowRatio") Double slowRatio,
+                           @JsonProperty("prefetch") Integer prefetch,
+                           @JsonProperty("slowPrefetch") Integer slowPrefetch) {
+        this.pollSeconds = pollSeconds == null ? 5 : pollSeconds;
+        this.maxBulkQueue = maxBulkQueue == null ? 150 : maxBulkQueue;
+        this.maxBulkRejections = maxBulkRejections == null ? 1 : maxBulkRejections;
+        this.maxBufferedDocuments = maxBufferedDocuments == null ? 10000 : maxBufferedDocuments;
+        this.maxFlushMillis = maxFlushMillis == null ? 5000 : maxFlushMillis;
+        this.maxQueueDepth = maxQueueDepth == null ? 100000 : maxQueueDepth;
+        this.slowRatio = slowRatio == null ? 0.5 : slowRatio;
+        this.prefetch = prefetch == null ? 100 : prefetch;
+        this.slowPrefetch = slowPrefetch == null ? 10 : slowPrefetch;
+    }
+
+    /**
+     * Creates a pressure config with the defaults for everything
+     * @return PressureConfig
+     */
+    public static PressureConfig defaults() {
+        return new PressureConfig(null, null, null, null, null, null, null, null, null);
+    }
+
+    /**
+     * gets how often the pressure is read
+     * @return pollSeconds
+     */
+    public long getPollSeconds() {
+        return pollSeconds;
+    }
+
+    /**
+     * gets the most bulk requests waiting in the queue of any elastic search node
+     * @return maxBulkQueue
+     */
+    public long getMaxBulkQueue() {
+        return maxBulkQueue;
+    }
+
+    /**
+     * gets the most bulk requests elastic search may reject between two reads of the pressure
+     * @return maxBulkRejections
+     */
+    public long getMaxBulkRejections() {
+        return maxBulkRejections;
+    }
+
+    /**
+     * gets the most entries waiting in the bulk buffer
+     * @return maxBufferedDocuments
+     */
+    public long getMaxBufferedDocuments() {
+        return maxBufferedDocuments;
+    }
+
+    /**
+     * gets the longest a bulk request may take
+     * @return maxFlushMillis
+     */
+    public long getMaxFlushMillis() {
+        return maxFlushMillis;
+    }
+
+    /**
+     * gets the most messages waiting in the rabbit queue before ingestion is reported as behind
+     * @return maxQueueDepth
+     */
+    public long getMaxQueueDepth() {
+        return maxQueueDepth;
+    }
+
+    /**
+     * gets the share of a limit at which ingestion slows down, at the limit itself it pauses
+     * @return slowRatio
+     */
+    public double getSlowRatio() {
+        return slowRatio;
+    }
+
+    /**
+     * gets how many messages rabbit hands over before any are acknowledged
+     * @return prefetch
+     */
+    public int getPrefetch() {
+        return prefetch;
+    }
+
+    /**
+     * gets how many messages rabbit hands over before any are acknowledged while slowed down
+     * @return slowPrefetch
+     */
+    public int getSlowPrefetch() {
+        return slowPrefetch;
+    }
+}
@@ -0,0 +1,91 @@
+package com.andy.nasa.configuration.configs;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/**
+ * This class holds how requests to elastic search are kept from waiting on a slow or failing
+ * node, when a duplicate of a slow request is sent to another node, how long a request may take
+ * and when the circuit breaker stops sending requests at all
+ */
+public class ResilienceConfig {
+
+    private final double hedgePercentile;
+    private final long minHedgeDelayMillis;
+    private final long requestTimeoutMillis;
+    private final int failureThreshold;
+    private final long openMillis;
+    private final long healthCheckSeconds;
+
+    @JsonCreator
+    private ResilienceConfig(@JsonProperty("hedgePercentile") Double hedgePercentile,
+                             @JsonProperty("minHedgeDelayMillis") Long minHedgeDelayMillis,
+                             @JsonProperty("requestTimeoutMillis") Long requestTimeoutMillis,
+                             @JsonProperty("failureThreshold") Integer failureThreshold,
+                             @JsonProperty("openMillis") Long openMillis,
+                             @JsonProperty("healthCheckSeconds") Long healthCheckSeconds) {
+        this.hedgePercentile = hedgePercentile == null ? 95.0 : hedgePercentile;
+        this.minHedgeDelayMillis = minHedgeDelayMillis == null ? 10 : minHedgeDelayMillis;
+        this.requestTimeoutMillis = requestTimeoutMillis == null ? 10000 : requestTimeoutMillis;
+        this.failureThreshold = failureThreshold == null ? 5 : failureThreshold;
+        this.openMillis = openMillis == null ? 10000 : openMillis;
+        this.healthCheckSeconds = healthCheckSeconds == null ? 10 : healthCheckSeconds;
+    }
+
+    /**
+     * Creates a resilience config with the defaults for everything
+     * @return ResilienceConfig
+     */
+    public static ResilienceConfig defaults() {
+        return new ResilienceConfig(null, null, null, null, null, null);
+    }
+
+    /**
+     * gets the percentile of recent latencies after which a duplicate of a request is sent,
+     * 100 or more never sends duplicates
+     * @return hedgePercentile
+     */
+    public double getHedgePercentile() {
+        return hedgePercentile;
+    }
+
+    /**
+     * gets the least time waited before a duplicate is sent, however fast requests have been
+     * @return minHedgeDelayMillis
+     */
+    public long getMinHedgeDelayMillis() {
+        return minHedgeDelayMillis;
+    }
+
+    /**
+     * gets how long a request to one node is waited on before it counts as failed
+     * @return requestTimeoutMillis
+     */
+    public long getRequestTimeoutMillis() {
+        return requestTimeoutMillis;
+    }
+
+    /**
+     * gets how many requests in a row have to fail before the circuit breaker opens
+     * @return failureThreshold
+     */
+    public int getFailureThreshold() {
+        return failureThreshold;
+    }
+
+    /**
+     * gets how long the circuit breaker stays open before letting one request try again
+     * @return openMillis
+     */
+    public long getOpenMillis() {
+        return openMillis;
+    }
+
+    /**
+     * gets how often the health of the cluster is checked, a red cluster opens the circuit breaker
+     * @return healthCheckSeconds
+     */
+    public long getHealthCheckSeconds() {
+        return healthCheckSeconds;
+    }
+}
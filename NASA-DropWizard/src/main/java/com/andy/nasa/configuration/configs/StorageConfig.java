@@ -0,0 +1,26 @@
+package com.andy.nasa.configuration.configs;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/**
+ * This class holds the configuration for the data the application
+ * keeps on its own disk alongside elastic search
+ */
+public class StorageConfig {
+
+    private final String directory;
+
+    @JsonCreator
+    private StorageConfig(@JsonProperty("directory") String directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * gets the directory the data is kept in
+     * @return directory
+     */
+    public String getDirectory() {
+        return directory;
+    }
+}
@@ -0,0 +1,58 @@
+package com.andy.nasa.configuration.configs;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * This class holds how long each API may wait on elastic search
+ * before the request is answered with service unavailable
+ */
+public class TimeoutConfig {
+
+    private final long defaultMillis;
+    private final Map<String, Long> endpoints;
+
+    @JsonCreator
+    private TimeoutConfig(@JsonProperty("defaultMillis") long defaultMillis,
+                          @JsonProperty("endpoints") Map<String, Long> endpoints) {
+        this.defaultMillis = defaultMillis;
+        this.endpoints = endpoints == null ? Collections.emptyMap() : endpoints;
+    }
+
+    /**
+     * Creates a timeout config that uses the same timeout for every endpoint
+     * @param defaultMillis the timeout in milliseconds
+     * @return TimeoutConfig
+     */
+    public static TimeoutConfig of(long defaultMillis) {
+        return new TimeoutConfig(defaultMillis, null);
+    }
+
+    /**
+     * gets the timeout used by endpoints without their own
+     * @return defaultMillis
+     */
+    public long getDefaultMillis() {
+        return defaultMillis;
+    }
+
+    /**
+     * gets the timeouts set for individual endpoints
+     * @return endpoints
+     */
+    public Map<String, Long> getEndpoints() {
+        return endpoints;
+    }
+
+    /**
+     * gets the timeout for an endpoint, falling back to the default
+     * @param endpoint the endpoint name, e.g. top-n-users
+     * @return the timeout in milliseconds
+     */
+    public long getTimeoutMillis(String endpoint) {
+        return endpoints.getOrDefault(endpoint, defaultMillis);
+    }
+}
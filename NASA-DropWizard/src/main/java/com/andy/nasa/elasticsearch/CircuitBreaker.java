@@ -0,0 +1,134 @@
+package com.andy.nasa.elasticsearch;
+
+import java.util.function.LongSupplier;
+
+/**
+ * This class stops requests being sent to elastic search while it is failing, so the API's
+ * fail fast or answer from stale results instead of every request waiting out its timeout.
+ * The breaker is closed while requests succeed and opens after enough fail in a row, or when
+ * the health check finds the cluster red. Once it has been open long enough it is half open,
+ * one request is let through to try again and closes it if it succeeds or opens it again if not
+ */
+public class CircuitBreaker {
+
+    /**
+     * The states of the breaker
+     */
+    public enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    // how many requests in a row have to fail before the breaker opens
+    private final int failureThreshold;
+
+    // how long the breaker stays open before a request tries again
+    private final long openMillis;
+
+    // the current time in milliseconds
+    private final LongSupplier clock;
+
+    // the state and the failures in a row, only changed while holding the breaker
+    private State state = State.CLOSED;
+    private int failures = 0;
+    private long openedAt = 0;
+
+    // how many times the breaker has opened
+    private long opened = 0;
+
+    /**
+     * Creates a closed breaker
+     * @param failureThreshold how many requests in a row have to fail before it opens
+     * @param openMillis how long it stays open before a request tries again
+     */
+    public CircuitBreaker(int failureThreshold, long openMillis) {
+        this(failureThreshold, openMillis, System::currentTimeMillis);
+    }
+
+    /**
+     * Creates a closed breaker
+     * @param failureThreshold how many requests in a row have to fail before it opens
+     * @param openMillis how long it stays open before a request tries again
+     * @param clock supplies the current time in milliseconds
+     */
+    public CircuitBreaker(int failureThreshold, long openMillis, LongSupplier clock) {
+        this.failureThreshold = failureThreshold;
+        this.openMillis = openMillis;
+        this.clock = clock;
+    }
+
+    /**
+     * Asks whether a request may be sent, once the breaker has been open long enough
+     * the first caller to ask is let through to try again and the rest are not
+     * @return true if the request may be sent
+     */
+    public synchronized boolean allowRequest() {
+        switch (state) {
+            case CLOSED:
+                return true;
+            case OPEN:
+                if (clock.getAsLong() - openedAt >= openMillis) {
+                    state = State.HALF_OPEN;
+                    return true;
+                }
+                return false;
+            default:
+                // the request trying again has not answered yet
+                return false;
+        }
+    }
+
+    /**
+     * Records a request that succeeded, which closes the breaker
+     */
+    public synchronized void onSuccess() {
+        failures = 0;
+        state = State.CLOSED;
+    }
+
+    /**
+     * Records a request that failed, opening the breaker when enough have failed in a row
+     * or when it was the request trying again
+     */
+    public synchronized void onFailure() {
+        failures++;
+        if (state == State.HALF_OPEN || (state == State.CLOSED && failures >= failureThreshold)) {
+            open();
+        }
+    }
+
+    /**
+     * Opens the breaker whatever state it is in, such as when the cluster is known to be unhealthy
+     */
+    public synchronized void trip() {
+        open();
+    }
+
+    /**
+     * gets the state of the breaker
+     * @return state
+     */
+    public synchronized State getState() {
+        return state;
+    }
+
+    /**
+     * gets how many times the breaker has opened
+     * @return opened
+     */
+    public synchronized long getOpened() {
+        return opened;
+    }
+
+    /**
+     * This method opens the breaker from now
+     */
+    private void open() {
+        if (state != State.OPEN) {
+            opened++;
+        }
+        state = State.OPEN;
+        openedAt = clock.getAsLong();
+    }
+}
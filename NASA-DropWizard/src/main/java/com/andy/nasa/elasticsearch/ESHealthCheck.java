@@ -8,8 +8,11 @@ import org.apache.http.util.EntityUtils;
 import org.elasticsearch.client.Response;
 import org.elasticsearch.client.RestClient;
 
+import java.io.IOException;
+
 /**
- * Create health check for elastic search
+ * Create health check for elastic search, a red cluster or one that cannot be reached
+ * opens the circuit breaker so requests stop being sent to it
  * Created by awaldman on 4/19/17.
  */
 public class ESHealthCheck extends HealthCheck {
@@ -20,14 +23,19 @@ public class ESHealthCheck extends HealthCheck {
     // json mapper object
     private final ObjectMapper objectMapper = new ObjectMapper();
 
+    // stops requests being sent to ES while it is unhealthy
+    private final CircuitBreaker circuitBreaker;
+
     /**
      * Constructed for the health class getting the restclient needed
      * to be used for getting response from elastic search on connection between
      * application and elastic search
      * @param restClient for connecting to ES
+     * @param circuitBreaker opened when the cluster is red or cannot be reached
      */
-    public ESHealthCheck(RestClient restClient) {
+    public ESHealthCheck(RestClient restClient, CircuitBreaker circuitBreaker) {
         this.restClient = restClient;
+        this.circuitBreaker = circuitBreaker;
     }
 
     /**
@@ -40,17 +48,27 @@ public class ESHealthCheck extends HealthCheck {
     protected Result check() throws Exception {
 
         //perform the request to ES for health check
-        final Response response = restClient.performRequest(
-                "GET",
-                "_cluster/health"
-        );
+        final Response response;
+        try {
+            response = restClient.performRequest(
+                    "GET",
+                    "_cluster/health"
+            );
+        } catch (IOException e) {
+            circuitBreaker.trip();
+            throw e;
+        }
 
         String body = EntityUtils.toString(response.getEntity());
         JsonNode jsonNode = objectMapper.readTree(body);
         String status = jsonNode.path("status").asText();
 
-        if (StringUtils.equalsAny(status, "red", "yellow")) {
-            return Result.unhealthy("Last status: %s", status);
+        // a yellow cluster still answers every search, only a red one is missing data
+        if (status.equals("red")) {
+            circuitBreaker.trip();
+        }
+        if (StringUtils.equalsAny(status, "red", "yellow") || circuitBreaker.getState() != CircuitBreaker.State.CLOSED) {
+            return Result.unhealthy("Last status: %s, circuit breaker: %s", status, circuitBreaker.getState());
         } else {
             return Result.healthy("Last status: %s", status);
         }
@@ -0,0 +1,194 @@
+package com.andy.nasa.elasticsearch;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import model.DBEntry;
+import model.ImmutableDBEntry;
+import org.apache.http.nio.entity.NByteArrayEntity;
+import org.elasticsearch.client.Response;
+import org.elasticsearch.client.ResponseException;
+import org.elasticsearch.client.RestClient;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import static com.zackehh.jackson.Jive.newArrayNode;
+import static com.zackehh.jackson.Jive.newJsonEntry;
+import static com.zackehh.jackson.Jive.newObjectNode;
+
+/**
+ * This class reads back every entry in the index with a scroll, which is how
+ * anything kept in memory alongside the index is rebuilt after a restart.
+ * The scroll sees the index as it was when it was opened
+ */
+public class EntryScroll {
+
+    // ES rest client
+    private final RestClient restClient;
+
+    // format the index is read in
+    private final WireFormat wireFormat;
+
+    // object mapper for the wire format
+    private final ObjectMapper objectMapper;
+
+    // the page of the scroll not yet read, null when there is no index
+    private JsonNode page;
+
+    /**
+     * Creates the scroll from its first page
+     * @param restClient rest client for ES
+     * @param wireFormat the format the index is read in
+     * @param page the first page
+     */
+    private EntryScroll(RestClient restClient, WireFormat wireFormat, JsonNode page) {
+        this.restClient = restClient;
+        this.wireFormat = wireFormat;
+        this.objectMapper = wireFormat.getObjectMapper();
+        this.page = page;
+    }
+
+    /**
+     * Refreshes the index so everything written to it is seen and opens a scroll over it
+     * @param restClient rest client for ES
+     * @param wireFormat the format to read the index in
+     * @return EntryScroll the scroll
+     * @throws IOException talking to ES
+     */
+    public static EntryScroll open(RestClient restClient, WireFormat wireFormat) throws IOException {
+        if (!refresh(restClient)) {
+            return new EntryScroll(restClient, wireFormat, null);
+        }
+        Map<String, String> params = new HashMap<>();
+        params.put("format", wireFormat.getFormatName());
+        params.put("scroll", "1m");
+        ObjectMapper objectMapper = wireFormat.getObjectMapper();
+        return new EntryScroll(restClient, wireFormat, readTree(objectMapper, restClient.performRequest(
+                "GET",
+                "/nasa/log/_search",
+                params,
+                new NByteArrayEntity(
+                        objectMapper.writeValueAsBytes(newObjectNode(newJsonEntry("size", 1000))),
+                        wireFormat.getContentType()
+                )
+        )));
+    }
+
+    /**
+     * Refreshes the index and counts the entries in it, so what is kept outside of ES can be
+     * checked against it, including what was indexed by anything other than this process
+     * @param restClient rest client for ES
+     * @param wireFormat the format to read the count in
+     * @return long the number of entries in the index
+     * @throws IOException talking to ES
+     */
+    public static long count(RestClient restClient, WireFormat wireFormat) throws IOException {
+        if (!refresh(restClient)) {
+            return 0;
+        }
+        return readTree(wireFormat.getObjectMapper(), restClient.performRequest(
+                "GET",
+                "/nasa/log/_count",
+                Collections.singletonMap("format", wireFormat.getFormatName())
+        )).path("count").asLong();
+    }
+
+    /**
+     * This method refreshes the index so everything written to it is seen
+     * @param restClient rest client for ES
+     * @return boolean false when there is no index, which means nothing has been written yet
+     * @throws IOException talking to ES
+     */
+    private static boolean refresh(RestClient restClient) throws IOException {
+        try {
+            restClient.performRequest("POST", "/nasa/_refresh", Collections.emptyMap());
+            return true;
+        } catch (ResponseException e) {
+            if (e.getResponse().getStatusLine().getStatusCode() == 404) {
+                return false;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Reads every entry of the scroll, a page at a time, then lets ES close the scroll
+     * @param consumer given each entry
+     * @throws IOException talking to ES
+     */
+    public void forEach(Consumer<DBEntry> consumer) throws IOException {
+        while (page != null && page.path("hits").path("hits").size() > 0) {
+            for (JsonNode hit : page.path("hits").path("hits")) {
+                consumer.accept(entryOf(hit.path("_source")));
+            }
+            byte[] scroll = objectMapper.writeValueAsBytes(newObjectNode(
+                    newJsonEntry("scroll", "1m"),
+                    newJsonEntry("scroll_id", page.path("_scroll_id").asText())
+            ));
+            page = readTree(objectMapper, restClient.performRequest(
+                    "POST",
+                    "/_search/scroll",
+                    Collections.singletonMap("format", wireFormat.getFormatName()),
+                    new NByteArrayEntity(scroll, wireFormat.getContentType())
+            ));
+        }
+        if (page != null) {
+            // the scroll is done with so ES can let go of it now rather than when it times out
+            restClient.performRequest(
+                    "DELETE",
+                    "/_search/scroll",
+                    Collections.emptyMap(),
+                    new NByteArrayEntity(
+                            objectMapper.writeValueAsBytes(newObjectNode(
+                                    newJsonEntry("scroll_id", newArrayNode(page.path("_scroll_id")))
+                            )),
+                            wireFormat.getContentType()
+                    )
+            );
+            page = null;
+        }
+    }
+
+    /**
+     * This method reads an entry back from the source of its document
+     * @param source the source of the document
+     * @return DBEntry the entry
+     */
+    private static DBEntry entryOf(JsonNode source) {
+        JsonNode datetime = source.path("datetime");
+        return ImmutableDBEntry
+                .builder()
+                .entryID(source.path("entryID").textValue())
+                .responseCode(source.path("responseCode").asInt())
+                .restfulAPI(source.path("restfulAPI").asText())
+                .payloadSize(source.path("payloadSize").asInt())
+                .resourceAccessed(source.path("resourceAccessed").asText())
+                .username(source.path("username").textValue())
+                // dates are written as epoch millis but may have been indexed as text by others
+                .datetime(datetime.isNumber()
+                        ? new DateTime(datetime.asLong(), DateTimeZone.UTC)
+                        : datetime.isTextual() ? new DateTime(datetime.asText(), DateTimeZone.UTC) : null)
+                .fileExtension(source.path("fileExtension").textValue())
+                .client(source.path("client").asText())
+                .build();
+    }
+
+    /**
+     * This method reads the body of a response
+     * @param objectMapper mapper for the format of the response
+     * @param response the response
+     * @return JsonNode the body
+     * @throws IOException if the body cannot be read
+     */
+    private static JsonNode readTree(ObjectMapper objectMapper, Response response) throws IOException {
+        try (InputStream in = response.getEntity().getContent()) {
+            return objectMapper.readTree(in);
+        }
+    }
+}
@@ -0,0 +1,307 @@
+package com.andy.nasa.elasticsearch;
+
+import com.andy.nasa.configuration.configs.ResilienceConfig;
+import org.HdrHistogram.Histogram;
+import org.apache.http.entity.ContentType;
+import org.apache.http.nio.entity.NByteArrayEntity;
+import org.elasticsearch.client.Response;
+import org.elasticsearch.client.ResponseException;
+import org.elasticsearch.client.ResponseListener;
+import org.elasticsearch.client.RestClient;
+
+import javax.ws.rs.ServiceUnavailableException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class sends read requests to elastic search so one slow or failing node cannot hold them up.
+ * Each node has its own rest client and requests take turns between them. A request that has not
+ * answered once it has taken longer than a percentile of recent requests is sent again to the node
+ * after the one it was sent to, and whichever answers first is used.
+ * A request to one node that takes longer than the request timeout counts as failed, and requests
+ * failing in a row open the circuit breaker, while it is open requests fail straight away
+ */
+public class HedgedRequests {
+
+    // how many latencies the hedge delay is read from before they are forgotten
+    static final int WINDOW_SAMPLES = 1000;
+
+    // the hedge delay is read again after this many latencies, no duplicates are sent until it has been read
+    static final int MIN_SAMPLES = 20;
+
+    // a rest client for each node, a duplicate is sent to the node after the one the request was sent to
+    private final List<RestClient> nodes;
+
+    // the node the next request is sent to, counted up by every request
+    private final AtomicInteger nextNode = new AtomicInteger();
+
+    // stops requests being sent while elastic search is failing
+    private final CircuitBreaker circuitBreaker;
+
+    // the percentile of recent latencies after which a duplicate is sent
+    private final double hedgePercentile;
+
+    // the least time waited before a duplicate is sent
+    private final long minHedgeDelayMillis;
+
+    // how long a request to one node is waited on
+    private final long requestTimeoutMillis;
+
+    // sends the duplicates and times out the requests
+    private final ScheduledExecutorService scheduler;
+
+    // the latencies of recent requests in milliseconds, only used while holding it
+    private final Histogram latencies = new Histogram(3);
+
+    // how long to wait before sending a duplicate, negative until enough requests have answered
+    private volatile long hedgeDelayMillis = -1;
+
+    // how many duplicates were sent, how many of them answered first and how many requests the breaker failed
+    private final AtomicLong hedged = new AtomicLong();
+    private final AtomicLong hedgeWins = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    /**
+     * Creates the requests with the default resilience config
+     * @param restClient instance of ES rest client
+     */
+    public HedgedRequests(RestClient restClient) {
+        this(
+                restClient,
+                new CircuitBreaker(ResilienceConfig.defaults().getFailureThreshold(), ResilienceConfig.defaults().getOpenMillis()),
+                ResilienceConfig.defaults(),
+                Executors.newSingleThreadScheduledExecutor(runnable -> {
+                    Thread thread = new Thread(runnable, "hedged-requests");
+                    thread.setDaemon(true);
+                    return thread;
+                })
+        );
+    }
+
+    /**
+     * Creates the requests sent through one rest client, which picks the node of each request and its duplicate
+     * @param restClient instance of ES rest client
+     * @param circuitBreaker stops requests being sent while elastic search is failing
+     * @param resilienceConfig when duplicates are sent and how long a request may take
+     * @param scheduler sends the duplicates and times out the requests
+     */
+    public HedgedRequests(RestClient restClient,
+                          CircuitBreaker circuitBreaker,
+                          ResilienceConfig resilienceConfig,
+                          ScheduledExecutorService scheduler) {
+        this(Collections.singletonList(restClient), circuitBreaker, resilienceConfig, scheduler);
+    }
+
+    /**
+     * Creates the requests
+     * @param nodes a rest client for each node of the cluster, so a duplicate is never sent to the node that is slow
+     * @param circuitBreaker stops requests being sent while elastic search is failing
+     * @param resilienceConfig when duplicates are sent and how long a request may take
+     * @param scheduler sends the duplicates and times out the requests
+     */
+    public HedgedRequests(List<RestClient> nodes,
+                          CircuitBreaker circuitBreaker,
+                          ResilienceConfig resilienceConfig,
+                          ScheduledExecutorService scheduler) {
+        this.nodes = nodes;
+        this.circuitBreaker = circuitBreaker;
+        this.hedgePercentile = resilienceConfig.getHedgePercentile();
+        this.minHedgeDelayMillis = resilienceConfig.getMinHedgeDelayMillis();
+        this.requestTimeoutMillis = resilienceConfig.getRequestTimeoutMillis();
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Sends a read request without waiting for it, only requests that can safely be sent
+     * more than once may be sent this way
+     * @param method the method of the request
+     * @param path the path of the request
+     * @param params the parameters of the request
+     * @param body the body of the request
+     * @param contentType the content type of the body
+     * @return Response the first response to arrive, failed with service unavailable while the breaker is open
+     */
+    public CompletableFuture<Response> performRequest(String method,
+                                                      String path,
+                                                      Map<String, String> params,
+                                                      byte[] body,
+                                                      ContentType contentType) {
+        CompletableFuture<Response> result = new CompletableFuture<>();
+        if (!circuitBreaker.allowRequest()) {
+            rejected.incrementAndGet();
+            result.completeExceptionally(new ServiceUnavailableException("Elasticsearch is failing, requests to it are stopped for now"));
+            return result;
+        }
+        // the request and its duplicate that have not answered yet
+        AtomicInteger outstanding = new AtomicInteger(1);
+        int node = Math.floorMod(nextNode.getAndIncrement(), nodes.size());
+        attempt(result, outstanding, false, nodes.get(node), method, path, params, body, contentType);
+        long delay = hedgeDelayMillis;
+        if (delay >= 0 && delay < requestTimeoutMillis) {
+            scheduler.schedule(() -> {
+                // no duplicates are sent while the breaker is trying elastic search again
+                if (!result.isDone() && circuitBreaker.getState() == CircuitBreaker.State.CLOSED) {
+                    outstanding.incrementAndGet();
+                    hedged.incrementAndGet();
+                    attempt(result, outstanding, true, nodes.get((node + 1) % nodes.size()), method, path, params, body, contentType);
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+        return result;
+    }
+
+    /**
+     * gets the breaker stopping requests while elastic search is failing
+     * @return circuitBreaker
+     */
+    public CircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+
+    /**
+     * gets how long a request waits before a duplicate is sent, negative while no duplicates are sent
+     * @return hedgeDelayMillis
+     */
+    public long getHedgeDelayMillis() {
+        return hedgeDelayMillis;
+    }
+
+    /**
+     * gets how many duplicates have been sent
+     * @return hedged
+     */
+    public long getHedged() {
+        return hedged.get();
+    }
+
+    /**
+     * gets how many duplicates answered before the request they duplicated
+     * @return hedgeWins
+     */
+    public long getHedgeWins() {
+        return hedgeWins.get();
+    }
+
+    /**
+     * gets how many requests failed straight away because the breaker was open
+     * @return rejected
+     */
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    /**
+     * This method sends the request once, each time with its own entity since
+     * an entity is read as it is sent and cannot be sent twice at the same time
+     * @param result completed by the first response
+     * @param outstanding the requests for the result that have not answered, the last to fail fails the result
+     * @param hedge whether this is the duplicate
+     * @param restClient the rest client of the node it is sent to
+     * @param method the method of the request
+     * @param path the path of the request
+     * @param params the parameters of the request
+     * @param body the body of the request
+     * @param contentType the content type of the body
+     */
+    private void attempt(CompletableFuture<Response> result,
+                         AtomicInteger outstanding,
+                         boolean hedge,
+                         RestClient restClient,
+                         String method,
+                         String path,
+                         Map<String, String> params,
+                         byte[] body,
+                         ContentType contentType) {
+        long start = System.nanoTime();
+        // whichever of the response and the timeout comes first is the only one counted
+        AtomicBoolean answered = new AtomicBoolean();
+        ScheduledFuture<?> timeout = scheduler.schedule(() -> {
+            if (answered.compareAndSet(false, true)) {
+                record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+                failed(result, outstanding, new TimeoutException(
+                        "Elasticsearch did not answer " + path + " within " + requestTimeoutMillis + "ms"));
+            }
+        }, requestTimeoutMillis, TimeUnit.MILLISECONDS);
+        restClient.performRequestAsync(
+                method,
+                path,
+                params,
+                new NByteArrayEntity(body, contentType),
+                new ResponseListener() {
+                    @Override
+                    public void onSuccess(Response response) {
+                        timeout.cancel(false);
+                        if (answered.compareAndSet(false, true)) {
+                            record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+                            circuitBreaker.onSuccess();
+                            if (result.complete(response) && hedge) {
+                                hedgeWins.incrementAndGet();
+                            }
+                        }
+                    }
+
+                    @Override
+                    public void onFailure(Exception exception) {
+                        timeout.cancel(false);
+                        if (!answered.compareAndSet(false, true)) {
+                            return;
+                        }
+                        record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+                        if (exception instanceof ResponseException
+                                && ((ResponseException) exception).getResponse().getStatusLine().getStatusCode() < 500) {
+                            // the node answered, the request itself is wrong and would be wrong on any node
+                            circuitBreaker.onSuccess();
+                            result.completeExceptionally(exception);
+                        } else {
+                            failed(result, outstanding, exception);
+                        }
+                    }
+                }
+        );
+    }
+
+    /**
+     * This method counts a request to one node that failed, the result only
+     * fails once the request and its duplicate have both failed
+     * @param result the result of the request
+     * @param outstanding the requests for the result that have not answered
+     * @param exception why it failed
+     */
+    private void failed(CompletableFuture<Response> result, AtomicInteger outstanding, Exception exception) {
+        circuitBreaker.onFailure();
+        if (outstanding.decrementAndGet() == 0) {
+            result.completeExceptionally(exception);
+        }
+    }
+
+    /**
+     * This method records how long a request took and reads the hedge delay from the recent latencies,
+     * requests that failed or timed out are recorded too so slow nodes are not left out of the delay
+     * @param millis how long the request took
+     */
+    private void record(long millis) {
+        if (hedgePercentile >= 100) {
+            return;
+        }
+        synchronized (latencies) {
+            latencies.recordValue(millis);
+            long count = latencies.getTotalCount();
+            if (count % MIN_SAMPLES == 0) {
+                hedgeDelayMillis = Math.max(minHedgeDelayMillis, latencies.getValueAtPercentile(hedgePercentile));
+            }
+            if (count >= WINDOW_SAMPLES) {
+                latencies.reset();
+            }
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package com.andy.nasa.elasticsearch;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import io.dropwizard.jackson.Jackson;
+import org.apache.http.entity.ContentType;
+
+/**
+ * The formats that can be used on the wire between this application and elastic search
+ * json is the readable default, smile is the binary form of json that elastic search
+ * also accepts and returns, which is cheaper to encode and decode on both sides
+ */
+public enum WireFormat {
+
+    JSON("json", new JsonFactory(), ContentType.APPLICATION_JSON, (byte) '\n'),
+    SMILE("smile", new SmileFactory(), ContentType.create("application/smile"), (byte) 0xFF);
+
+    // the name elastic search knows the format by, used for the format parameter
+    private final String formatName;
+
+    // mapper for reading and writing in this format
+    private final ObjectMapper objectMapper;
+
+    // content type sent with request bodies
+    private final ContentType contentType;
+
+    // byte that separates lines in the bulk API body
+    private final byte bulkSeparator;
+
+    WireFormat(String formatName, JsonFactory jsonFactory, ContentType contentType, byte bulkSeparator) {
+        this.formatName = formatName;
+        this.objectMapper = Jackson.newObjectMapper(jsonFactory);
+        this.contentType = contentType;
+        this.bulkSeparator = bulkSeparator;
+    }
+
+    /**
+     * gets the name elastic search uses for the format
+     * @return formatName
+     */
+    public String getFormatName() {
+        return formatName;
+    }
+
+    /**
+     * gets the mapper that reads and writes this format
+     * @return objectMapper
+     */
+    public ObjectMapper getObjectMapper() {
+        return objectMapper;
+    }
+
+    /**
+     * gets the content type for request bodies in this format
+     * @return contentType
+     */
+    public ContentType getContentType() {
+        return contentType;
+    }
+
+    /**
+     * gets the byte that ends each line of a bulk API body
+     * @return bulkSeparator
+     */
+    public byte getBulkSeparator() {
+        return bulkSeparator;
+    }
+}
@@ -1,20 +1,34 @@
 package com.andy.nasa.event;
 
+import com.andy.nasa.elasticsearch.WireFormat;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
 import model.DBEntry;
 import parser.EntryParser;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import io.dropwizard.jackson.Jackson;
-import org.apache.http.entity.ContentType;
-import org.apache.http.nio.entity.NStringEntity;
+import org.apache.http.nio.entity.NByteArrayEntity;
+import org.elasticsearch.client.Response;
 import org.elasticsearch.client.RestClient;
 
-import java.util.Collections;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static com.zackehh.jackson.Jive.newJsonEntry;
 import static com.zackehh.jackson.Jive.newObjectNode;
@@ -28,26 +42,125 @@ public class DatabaseHandler {
     // ES rest client
     private final RestClient restClient;
 
-    // json object mapper
-    private final ObjectMapper objectMapper = Jackson.newObjectMapper();
+    // format the bulk documents are written in
+    private final WireFormat wireFormat;
 
-    // string builder used for bulk API syntax
-    private StringBuilder bulkDoc;
+    // object mapper for the wire format
+    private final ObjectMapper objectMapper;
+
+    // byte buffer used for bulk API syntax
+    private ByteArrayOutputStream bulkDoc;
+
+    // the entries in the bulk buffer, in the order they were added
+    private List<DBEntry> bulkEntries;
+
+    // the stamps of each message with entries in the bulk buffer
+    private List<IngestionStamps> bulkStamps;
+
+    // told about the entries written by each flush
+    private final List<FlushListener> flushListeners = new CopyOnWriteArrayList<>();
+
+    // parameters of the bulk request, only the status of each item is sent back
+    private final Map<String, String> bulkParams = new HashMap<>();
+
+    // how long the last bulk request took, in milliseconds
+    private volatile long lastFlushMillis = 0;
 
     // to make sure count can only be updated by one resource at a time
     private AtomicInteger count = new AtomicInteger(0);
 
+    // bumped after every successful flush so cached query results know data changed, and again
+    // once the flush has been refreshed into the index
+    private final AtomicLong generation = new AtomicLong(0);
+
+    // a little longer than the refresh interval ES refreshes the index at by default, after
+    // which the documents of a flush can be searched
+    static final long REFRESH_MILLIS = 1500;
+
+    // how long each bulk request takes, how many documents are written and how many of them fail
+    private final Timer flushTime;
+    private final Meter documents;
+    private final Meter bulkFailures;
+    private final Meter flushErrors;
+
+    // what started each flush, the buffer filling up, the most messages being buffered or the schedule
+    private final Meter sizeFlushes;
+    private final Meter messageFlushes;
+    private final Meter scheduledFlushes;
+
+    // the most messages buffered before a flush, as many as are handed over before any are acknowledged
+    private volatile int maxBufferedMessages = Integer.MAX_VALUE;
+
+    // how long messages take through each stage and how far behind the index is
+    private final IngestionLag ingestionLag;
+
+    // flushes the buffer every interval, 5 seconds unless given
+    private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1);
+
+    // tells the listeners about each flush in order, off the flush lock so the writers are not held up by them
+    private final ExecutorService listenerExecutor = Executors.newSingleThreadExecutor();
+
+    // how many times a listener failed to take in a flush
+    private final Meter listenerErrors;
+
     /**
      * Constructor for DatabaseHandler in which has a fixed scheduler
-     * that will perform flush every 5 seconds
+     * that will perform flush every 5 seconds, writing json
      * @param restClient storing given rest client locally
      */
     public DatabaseHandler(RestClient restClient) {
+        this(restClient, WireFormat.JSON);
+    }
+
+    /**
+     * Constructor for DatabaseHandler in which has a fixed scheduler
+     * that will perform flush every 5 seconds
+     * @param restClient storing given rest client locally
+     * @param wireFormat the format to write bulk documents in
+     */
+    public DatabaseHandler(RestClient restClient, WireFormat wireFormat) {
+        this(restClient, wireFormat, new MetricRegistry());
+    }
+
+    /**
+     * Constructor for DatabaseHandler in which has a fixed scheduler
+     * that will perform flush every 5 seconds
+     * @param restClient storing given rest client locally
+     * @param wireFormat the format to write bulk documents in
+     * @param metrics where the metrics of the buffer and the flushes are registered
+     */
+    public DatabaseHandler(RestClient restClient, WireFormat wireFormat, MetricRegistry metrics) {
+        this(restClient, wireFormat, metrics, 5000);
+    }
+
+    /**
+     * Constructor for DatabaseHandler in which has a fixed scheduler
+     * that will perform flush every interval
+     * @param restClient storing given rest client locally
+     * @param wireFormat the format to write bulk documents in
+     * @param metrics where the metrics of the buffer and the flushes are registered
+     * @param flushMillis how often the buffer is flushed when it does not fill up first
+     */
+    public DatabaseHandler(RestClient restClient, WireFormat wireFormat, MetricRegistry metrics, long flushMillis) {
         this.restClient = restClient;
+        this.wireFormat = wireFormat;
+        this.objectMapper = wireFormat.getObjectMapper();
+        this.bulkParams.put("format", wireFormat.getFormatName());
+        this.bulkParams.put("filter_path", "items.*.status");
         resetBulkDoc();
-        ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1);
+        metrics.register("ingest.buffered.documents", (Gauge<Integer>) () -> count.get());
+        metrics.register("ingest.buffered.bytes", (Gauge<Integer>) () -> bulkDoc.size());
+        this.flushTime = metrics.timer("ingest.flush");
+        this.documents = metrics.meter("ingest.documents");
+        this.bulkFailures = metrics.meter("ingest.bulk.failures");
+        this.flushErrors = metrics.meter("ingest.flush.errors");
+        this.listenerErrors = metrics.meter("ingest.listener.errors");
+        this.sizeFlushes = metrics.meter("ingest.flush.size");
+        this.messageFlushes = metrics.meter("ingest.flush.messages");
+        this.scheduledFlushes = metrics.meter("ingest.flush.scheduled");
+        this.ingestionLag = new IngestionLag(metrics);
         // else nothing until there's stuff there
-        scheduler.scheduleAtFixedRate(this::flush, 5, 5, TimeUnit.SECONDS);
+        scheduler.scheduleAtFixedRate(() -> flush(scheduledFlushes), flushMillis, flushMillis, TimeUnit.MILLISECONDS);
 
         // send mappings for the data
 
@@ -60,8 +173,24 @@ public class DatabaseHandler {
      * @throws Exception Jackson process exception
      */
     public void writeToDB(String entryPayload) throws Exception {
+        writeToDB(entryPayload, IngestionStamps.deliveredNow());
+    }
+
+    /**
+     * This is the write to DB method which will write the data to ES local instance,
+     * stamping the message as its entries are parsed and buffered
+     * @param entryPayload the entries to be wrote to the DB
+     * @param stamps the stamps of the message the entries were delivered in
+     * @throws Exception Jackson process exception
+     */
+    public void writeToDB(String entryPayload, IngestionStamps stamps) throws Exception {
+        ingestionLag.delivered(stamps);
         List<DBEntry> nasaData = EntryParser.parse(entryPayload);
+        stamps.setParsed(System.currentTimeMillis());
 
+        // the lines of every entry are written before any are buffered, so the
+        // message is buffered whole and acknowledged by the response of one flush
+        List<byte[]> lines = new ArrayList<>(nasaData.size() * 2);
         for (DBEntry entry: nasaData) {
             // this sets up the first part of the ES
             // bulk api syntax
@@ -71,43 +200,261 @@ public class DatabaseHandler {
                 ))
             );
 
-            // string builder used to build correct bulk API syntax
-            bulkDoc.append(objectMapper.writeValueAsString(index));
-            bulkDoc.append("\n");
-            bulkDoc.append(objectMapper.writeValueAsString(entry));
-            bulkDoc.append("\n");
-            count.incrementAndGet();
-
-            // perform 1 http request per 1000 entries
-            if (count.get() > 1000) {
-                System.out.println("1000 entries sent");
-                flush();
-                System.out.println("1000 done");
-            }
+            // each line is its own document so the separator can split them
+            byte[] indexLine = objectMapper.writeValueAsBytes(index);
+            byte[] entryLine = objectMapper.writeValueAsBytes(entry);
+            lines.add(indexLine);
+            lines.add(entryLine);
+        }
+        if (nasaData.isEmpty()) {
+            // nothing is buffered so there is nothing to wait for
+            stamps.acknowledge();
+            return;
         }
+        int messages = append(lines, nasaData, stamps);
+
+        // perform 1 http request per 1000 entries
+        if (count.get() > 1000) {
+            flush(sizeFlushes);
+        } else if (messages >= maxBufferedMessages) {
+            // the messages are only acknowledged by a flush, so waiting for more would wait for the schedule
+            flush(messageFlushes);
+        }
+    }
+
+    /**
+     * Adds the action and the document lines of a message to the bulk body, locked
+     * so a flush never sends or resets a half written message
+     * @param lines the bulk action line then the document line of each entry
+     * @param entries the entries the documents are of
+     * @param stamps the stamps of the message, stamped as buffered
+     * @return int the messages now in the buffer
+     */
+    private synchronized int append(List<byte[]> lines, List<DBEntry> entries, IngestionStamps stamps) {
+        for (byte[] line : lines) {
+            bulkDoc.write(line, 0, line.length);
+            bulkDoc.write(wireFormat.getBulkSeparator());
+        }
+        bulkEntries.addAll(entries);
+        bulkStamps.add(stamps);
+        stamps.setBuffered(System.currentTimeMillis());
+        count.addAndGet(entries.size());
+        return bulkStamps.size();
     }
 
     /**
      * This is the flush method in which will perform the bulk API call
      * and write the documents, in bulk, to ES instance
+     * @param trigger the meter of what started the flush
      */
-    private synchronized void flush() {
+    private synchronized void flush(Meter trigger) {
         //used to make sure no 404 bad requests happen due to no data being there
         if (count.get() > 0) {
+            trigger.mark();
             try {
-                // the ES rest client for the HTTP bulk API request
-                restClient.performRequest(
-                        "POST",
-                        "/nasa/log/_bulk",
-                        Collections.emptyMap(),
-                        new NStringEntity(bulkDoc.toString(), ContentType.APPLICATION_JSON)
-                );
+                Response response = bulk();
+                List<DBEntry> created = created(response, bulkEntries);
+                documents.mark(bulkEntries.size());
+                ingestionLag.acknowledged(bulkStamps, newest(created));
+                bulkStamps.forEach(IngestionStamps::acknowledge);
                 resetBulkDoc();
+                generation.incrementAndGet();
+                refreshed();
+                notifyListeners(created);
             } catch (Exception e) {
+                flushErrors.mark();
                 e.printStackTrace();
             }
+        } else if (trigger == scheduledFlushes) {
+            // nothing was written for a whole interval, so there is no slow flush to hold ingestion back
+            lastFlushMillis = 0;
         }
-        //else do thing
+    }
+
+    /**
+     * This method tells the listeners about the entries of a flush on their own thread, so the
+     * requests and files they write do not hold the flush lock. There is one thread so they are
+     * told about flushes in the order they were written, and one listener failing does not stop
+     * the others hearing about it
+     * @param created the entries the flush created
+     */
+    private void notifyListeners(List<DBEntry> created) {
+        try {
+            listenerExecutor.execute(() -> {
+                for (FlushListener flushListener : flushListeners) {
+                    try {
+                        flushListener.flushed(created);
+                    } catch (Exception e) {
+                        listenerErrors.mark();
+                        e.printStackTrace();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // closed, nothing is kept up from here on
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * This method bumps the generation again once the documents of a flush can be searched.
+     * The bulk request does not wait for the refresh, which would hold up ingestion, so results
+     * cached between the flush and the refresh are of the index before it and are dropped then
+     */
+    private void refreshed() {
+        try {
+            scheduler.schedule(generation::incrementAndGet, REFRESH_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // closed, so this was the last flush
+            generation.incrementAndGet();
+        }
+    }
+
+    /**
+     * This method sends the bulk buffer to ES, timing only the bulk request so the time
+     * the flush listeners take is not counted as ES being slow
+     * @return Response the response to the bulk request
+     * @throws Exception IO exception talking to ES
+     */
+    private Response bulk() throws Exception {
+        long start = System.nanoTime();
+        try {
+            // the ES rest client for the HTTP bulk API request
+            return restClient.performRequest(
+                    "POST",
+                    "/nasa/log/_bulk",
+                    bulkParams,
+                    new NByteArrayEntity(bulkDoc.toByteArray(), wireFormat.getContentType())
+            );
+        } finally {
+            long nanos = System.nanoTime() - start;
+            flushTime.update(nanos, TimeUnit.NANOSECONDS);
+            lastFlushMillis = TimeUnit.NANOSECONDS.toMillis(nanos);
+        }
+    }
+
+    /**
+     * This method finds the entries of a bulk request that created a new document,
+     * the items of the response are in the same order as the entries were sent
+     * @param response the response to the bulk request
+     * @param entries the entries that were sent
+     * @return List<DBEntry> the entries that were created
+     * @throws Exception IO exception reading the response
+     */
+    private List<DBEntry> created(Response response, List<DBEntry> entries) throws Exception {
+        JsonNode items;
+        try (InputStream in = response.getEntity().getContent()) {
+            items = objectMapper.readTree(in).path("items");
+        }
+        List<DBEntry> created = new ArrayList<>();
+        for (int i = 0; i < entries.size(); i++) {
+            // each item is keyed by its action, 201 is created where 200 replaced a document
+            int status = items.path(i).elements().hasNext() ? items.path(i).elements().next().path("status").asInt() : 0;
+            if (status == 201) {
+                created.add(entries.get(i));
+            } else if (status != 200) {
+                bulkFailures.mark();
+            }
+        }
+        return created;
+    }
+
+    /**
+     * This method finds the newest time of the entries
+     * @param entries the entries
+     * @return long milliseconds since the epoch, Long.MIN_VALUE if none of them have a time
+     */
+    private static long newest(List<DBEntry> entries) {
+        long newest = Long.MIN_VALUE;
+        for (DBEntry entry : entries) {
+            if (entry.datetime() != null) {
+                newest = Math.max(newest, entry.datetime().getMillis());
+            }
+        }
+        return newest;
+    }
+
+    /**
+     * Stops the scheduled flushes and flushes whatever is left in the bulk buffer,
+     * for when nothing more is going to be written, then waits for the listeners to hear about it
+     */
+    public void close() {
+        scheduler.shutdown();
+        flush(scheduledFlushes);
+        listenerExecutor.shutdown();
+        try {
+            listenerExecutor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Sets the most messages buffered before they are flushed. Messages are acknowledged by the flush
+     * they are written in, so once as many are buffered as rabbit hands over before any are acknowledged
+     * nothing more is delivered until the next flush, which should not have to wait for the schedule
+     * @param maxBufferedMessages the most messages, the prefetch of the consumer
+     */
+    public void setMaxBufferedMessages(int maxBufferedMessages) {
+        this.maxBufferedMessages = maxBufferedMessages;
+    }
+
+    /**
+     * gets how many entries are in the bulk buffer waiting for the next flush
+     * @return the buffered entries
+     */
+    public int getBufferedDocuments() {
+        return count.get();
+    }
+
+    /**
+     * gets how long the last bulk request took, failed or not
+     * @return lastFlushMillis, 0 before the first flush or once a scheduled flush found nothing to write
+     */
+    public long getLastFlushMillis() {
+        return lastFlushMillis;
+    }
+
+    /**
+     * gets how long messages take through each stage of ingestion and how far behind the index is
+     * @return ingestionLag
+     */
+    public IngestionLag getIngestionLag() {
+        return ingestionLag;
+    }
+
+    /**
+     * Adds a listener told about the entries written by every flush from now on
+     * @param flushListener the listener
+     */
+    public void addFlushListener(FlushListener flushListener) {
+        flushListeners.add(flushListener);
+    }
+
+    /**
+     * Runs an action while no flush is in progress, so everything flushed before it has been
+     * sent to ES and given to the listeners and everything flushed after it is given to the
+     * listeners. It runs on the listener thread once the flushes before it have been given out
+     * @param action the action to run, which must not be run by a listener
+     * @param <T> type of the result of the action
+     * @return T the result of the action
+     * @throws Exception anything the action throws
+     */
+    public synchronized <T> T betweenFlushes(Callable<T> action) throws Exception {
+        try {
+            return listenerExecutor.submit(action).get();
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        }
+    }
+
+    /**
+     * Returns the ingest generation, which changes every time
+     * documents have been written to ES
+     * @return generation
+     */
+    public long getGeneration() {
+        return generation.get();
     }
 
     /**
@@ -116,7 +463,9 @@ public class DatabaseHandler {
      * is missed and all data is controlled
      */
     private void resetBulkDoc() {
-        this.bulkDoc = new StringBuilder();
+        this.bulkDoc = new ByteArrayOutputStream();
+        this.bulkEntries = new ArrayList<>();
+        this.bulkStamps = new ArrayList<>();
         this.count = new AtomicInteger(0);
     }
 }
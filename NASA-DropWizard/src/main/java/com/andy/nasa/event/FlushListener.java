@@ -0,0 +1,21 @@
+package com.andy.nasa.event;
+
+import model.DBEntry;
+
+import java.util.List;
+
+/**
+ * Told about the entries the database handler has written to elastic search
+ * so that anything kept alongside the index can be updated as data comes in
+ */
+public interface FlushListener {
+
+    /**
+     * Called after a bulk write with the entries it created, entries that replaced
+     * a document with the same id or failed to be written are left out. It is called on
+     * the handler's listener thread, in the order the flushes were written, while the
+     * next flush can already be writing
+     * @param entries the entries newly written
+     */
+    void flushed(List<DBEntry> entries);
+}
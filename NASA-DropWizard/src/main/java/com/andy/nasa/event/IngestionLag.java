@@ -0,0 +1,108 @@
+package com.andy.nasa.event;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.MetricRegistry;
+
+import java.util.Collection;
+import java.util.function.LongSupplier;
+
+/**
+ * This class measures how far behind ingestion is, from the stamps of each message once the
+ * bulk response acknowledges it. The time between each stage and the next and from the first
+ * stamp to the acknowledgement are histograms, so a slowdown shows in the stage it is in.
+ * How long ago the last message delivered was published is the lag of the consumer, and how
+ * far the newest time indexed is behind the clock is how stale the data behind the API's is
+ */
+public class IngestionLag {
+
+    // the time between each stage and the next, in milliseconds
+    private final Histogram publishToDeliver;
+    private final Histogram deliverToParse;
+    private final Histogram parseToBuffer;
+    private final Histogram bufferToAck;
+
+    // the time from publishing, or delivery when the message was not stamped, to the acknowledgement
+    private final Histogram endToEnd;
+
+    // the current time in milliseconds
+    private final LongSupplier clock;
+
+    // how long the last message delivered took from being published, 0 when not known
+    private volatile long consumerLag = 0;
+
+    // the newest time of the entries indexed so far, none until some have been
+    private volatile long newestIndexed = Long.MIN_VALUE;
+
+    /**
+     * Creates the measurements and registers them
+     * @param metrics where the histograms and gauges are registered
+     */
+    public IngestionLag(MetricRegistry metrics) {
+        this(metrics, System::currentTimeMillis);
+    }
+
+    /**
+     * Creates the measurements and registers them
+     * @param metrics where the histograms and gauges are registered
+     * @param clock supplies the current time in milliseconds
+     */
+    public IngestionLag(MetricRegistry metrics, LongSupplier clock) {
+        this.clock = clock;
+        this.publishToDeliver = metrics.histogram("ingest.lag.publish-to-deliver");
+        this.deliverToParse = metrics.histogram("ingest.lag.deliver-to-parse");
+        this.parseToBuffer = metrics.histogram("ingest.lag.parse-to-buffer");
+        this.bufferToAck = metrics.histogram("ingest.lag.buffer-to-ack");
+        this.endToEnd = metrics.histogram("ingest.lag.end-to-end");
+        metrics.register("ingest.lag.consumer", (Gauge<Long>) () -> consumerLag);
+        metrics.register("ingest.lag.newest-indexed", (Gauge<Long>) this::getIndexedLag);
+    }
+
+    /**
+     * Records a message being delivered
+     * @param stamps the stamps of the message
+     */
+    public void delivered(IngestionStamps stamps) {
+        if (stamps.getPublished() > 0) {
+            consumerLag = stamps.getDelivered() - stamps.getPublished();
+        }
+    }
+
+    /**
+     * Records the messages of a bulk request having been acknowledged by its response
+     * @param messages the stamps of each message in the bulk request
+     * @param newest the newest time of the entries written, Long.MIN_VALUE for none
+     */
+    public void acknowledged(Collection<IngestionStamps> messages, long newest) {
+        long now = clock.getAsLong();
+        for (IngestionStamps stamps : messages) {
+            if (stamps.getPublished() > 0) {
+                publishToDeliver.update(stamps.getDelivered() - stamps.getPublished());
+            }
+            deliverToParse.update(stamps.getParsed() - stamps.getDelivered());
+            parseToBuffer.update(stamps.getBuffered() - stamps.getParsed());
+            bufferToAck.update(now - stamps.getBuffered());
+            endToEnd.update(now - (stamps.getPublished() > 0 ? stamps.getPublished() : stamps.getDelivered()));
+        }
+        if (newest > newestIndexed) {
+            newestIndexed = newest;
+        }
+    }
+
+    /**
+     * gets how far the newest time indexed is behind the clock
+     * @return the lag in milliseconds, 0 until anything has been indexed
+     */
+    public long getIndexedLag() {
+        long newest = newestIndexed;
+        return newest == Long.MIN_VALUE ? 0 : clock.getAsLong() - newest;
+    }
+
+    /**
+     * gets how long the last message delivered took from being published
+     * @return the lag in milliseconds, 0 when not known
+     */
+    public long getConsumerLag() {
+        return consumerLag;
+    }
+}
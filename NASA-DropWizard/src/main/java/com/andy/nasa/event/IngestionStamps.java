@@ -0,0 +1,108 @@
+package com.andy.nasa.event;
+
+/**
+ * This class holds when one message of entries reached each stage of ingestion, published,
+ * delivered, parsed and buffered, all in milliseconds since the epoch. The entries of a message
+ * are buffered together so the message is acknowledged by the bulk response of one flush,
+ * which is when the message is acknowledged to whatever delivered it
+ */
+public final class IngestionStamps {
+
+    // when the message was published, 0 when the publisher did not stamp it
+    private final long published;
+
+    // when the message was delivered to the application
+    private final long delivered;
+
+    // acknowledges the message to whatever delivered it once its entries are written
+    private final Runnable acknowledgement;
+
+    // when the entries of the message were parsed and when they were put in the bulk buffer
+    private volatile long parsed = 0;
+    private volatile long buffered = 0;
+
+    /**
+     * Creates the stamps of a message as it is delivered
+     * @param published when the message was published, 0 if that is not known
+     * @param delivered when the message was delivered
+     */
+    public IngestionStamps(long published, long delivered) {
+        this(published, delivered, () -> { });
+    }
+
+    /**
+     * Creates the stamps of a message as it is delivered
+     * @param published when the message was published, 0 if that is not known
+     * @param delivered when the message was delivered
+     * @param acknowledgement acknowledges the message once its entries are written
+     */
+    public IngestionStamps(long published, long delivered, Runnable acknowledgement) {
+        this.published = published;
+        this.delivered = delivered;
+        this.acknowledgement = acknowledgement;
+    }
+
+    /**
+     * Creates the stamps of a message delivered now that was not stamped when published
+     * @return IngestionStamps the stamps
+     */
+    public static IngestionStamps deliveredNow() {
+        return new IngestionStamps(0, System.currentTimeMillis());
+    }
+
+    /**
+     * gets when the message was published
+     * @return published, 0 if that is not known
+     */
+    public long getPublished() {
+        return published;
+    }
+
+    /**
+     * gets when the message was delivered
+     * @return delivered
+     */
+    public long getDelivered() {
+        return delivered;
+    }
+
+    /**
+     * gets when the entries of the message were parsed
+     * @return parsed, 0 until they are
+     */
+    public long getParsed() {
+        return parsed;
+    }
+
+    /**
+     * Stamps when the entries of the message were parsed
+     * @param parsed milliseconds since the epoch
+     */
+    public void setParsed(long parsed) {
+        this.parsed = parsed;
+    }
+
+    /**
+     * gets when the entries of the message were put in the bulk buffer
+     * @return buffered, 0 until they are
+     */
+    public long getBuffered() {
+        return buffered;
+    }
+
+    /**
+     * Stamps when the entries of the message were put in the bulk buffer
+     * @param buffered milliseconds since the epoch
+     */
+    public void setBuffered(long buffered) {
+        this.buffered = buffered;
+    }
+
+    /**
+     * Acknowledges the message to whatever delivered it, once its entries are written
+     * or once it is known there is nothing in it to write
+     */
+    public void acknowledge() {
+        acknowledgement.run();
+    }
+}
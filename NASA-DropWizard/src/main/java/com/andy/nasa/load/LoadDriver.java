@@ -0,0 +1,290 @@
+package com.andy.nasa.load;
+
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.nio.client.HttpAsyncClient;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Function;
+
+/**
+ * This class calls the API's at a fixed rate whatever the API's are doing, open loop, so a slow
+ * answer does not hold back the calls after it as it would with callers waiting on each answer.
+ * Each call is timed from when it was meant to be sent rather than when it was, so calls that
+ * queued behind slow ones count the time they queued and latency is not hidden by the driver
+ * falling behind. Calls are picked at random from a weighted mix of the API's
+ */
+public class LoadDriver {
+
+    // the path of each API that can be called, the parameters picked at random
+    static final Map<String, Function<Random, String>> ENDPOINTS;
+
+    static {
+        Map<String, Function<Random, String>> endpoints = new LinkedHashMap<>();
+        endpoints.put("top-five-users", random -> "/top-five-users");
+        endpoints.put("top-n-users", random -> "/top-n-users/" + (1 + random.nextInt(50)));
+        endpoints.put("average-payload-size", random -> "/average-payload-size");
+        endpoints.put("users-data", random -> "/users/data");
+        endpoints.put("clients-unique", random -> "/clients/unique");
+        endpoints.put("months-requests", random -> "/months/requests");
+        endpoints.put("error-rate", random -> "/error/rate");
+        endpoints.put("error-rate-month", random -> "/error/rate/month");
+        endpoints.put("extensions-popular", random -> "/extensions/popular");
+        endpoints.put("extensions", random -> "/extensions/" + SyntheticLog.EXTENSIONS.get(random.nextInt(SyntheticLog.EXTENSIONS.size())));
+        endpoints.put("api-call", random -> "/api/call");
+        endpoints.put("requests-user", random -> "/requests/" + SyntheticLog.user(random.nextInt(SyntheticLog.USERS)));
+        endpoints.put("payload-size-distribution", random -> "/payload-size/distribution");
+        endpoints.put("dashboard", random -> "/dashboard");
+        ENDPOINTS = Collections.unmodifiableMap(endpoints);
+    }
+
+    // the mix used when none is given, weighted towards what a dashboard asks for most
+    public static final String DEFAULT_MIX = "top-five-users=2,top-n-users=3,average-payload-size=2,users-data=1,"
+            + "clients-unique=2,months-requests=1,error-rate=1,error-rate-month=2,extensions-popular=1,"
+            + "extensions=1,api-call=1,requests-user=3,payload-size-distribution=1,dashboard=1";
+
+    // sends the calls without waiting for their answers
+    private final HttpAsyncClient client;
+
+    // the url the paths are added to
+    private final String baseUrl;
+
+    // each API of the mix and the total of the weights before it and its own
+    private final List<String> names = new ArrayList<>();
+    private final List<Integer> cumulativeWeights = new ArrayList<>();
+
+    // calls per second
+    private final double rate;
+
+    // picks the API of each call and its parameters
+    private final Random random;
+
+    // how long the calls of each API took in microseconds, how many failed and why the last one did
+    private final Map<String, Histogram> latencies = new LinkedHashMap<>();
+    private final Map<String, AtomicLong> errors = new LinkedHashMap<>();
+    private final Map<String, String> lastErrors = new ConcurrentHashMap<>();
+
+    // the most the driver itself was late sending a call, in microseconds
+    private final AtomicLong maxSendLag = new AtomicLong();
+
+    // calls sent and not yet answered
+    private final AtomicLong outstanding = new AtomicLong();
+
+    /**
+     * Creates the driver
+     * @param client sends the calls, started
+     * @param baseUrl the url the paths are added to e.g. http://localhost:8080
+     * @param mix each API and its weight, see {@link #parseMix}
+     * @param rate calls per second
+     * @param seed seeds the picking of the calls so runs can be repeated
+     */
+    public LoadDriver(HttpAsyncClient client, String baseUrl, Map<String, Integer> mix, double rate, long seed) {
+        if (rate <= 0) {
+            throw new IllegalArgumentException("The rate must be more than 0 calls per second");
+        }
+        this.client = client;
+        this.baseUrl = baseUrl.endsWith("/") ? baseUrl.substring(0, baseUrl.length() - 1) : baseUrl;
+        this.rate = rate;
+        this.random = new Random(seed);
+        int total = 0;
+        for (Map.Entry<String, Integer> weight : mix.entrySet()) {
+            total += weight.getValue();
+            names.add(weight.getKey());
+            cumulativeWeights.add(total);
+            latencies.put(weight.getKey(), new ConcurrentHistogram(3));
+            errors.put(weight.getKey(), new AtomicLong());
+        }
+    }
+
+    /**
+     * This method reads a mix of API's written as name=weight pairs separated by commas
+     * e.g. top-n-users=3,requests-user=1, a name without a weight has a weight of 1
+     * @param mix the mix
+     * @return Map<String, Integer> each API and its weight
+     */
+    public static Map<String, Integer> parseMix(String mix) {
+        Map<String, Integer> weights = new LinkedHashMap<>();
+        for (String pair : mix.split(",")) {
+            if (pair.trim().isEmpty()) {
+                continue;
+            }
+            String[] nameWeight = pair.trim().split("=", 2);
+            String name = nameWeight[0].trim();
+            if (!ENDPOINTS.containsKey(name)) {
+                throw new IllegalArgumentException("Unknown API " + name + ", the API's are " + ENDPOINTS.keySet());
+            }
+            int weight = nameWeight.length == 2 ? Integer.parseInt(nameWeight[1].trim()) : 1;
+            if (weight < 0) {
+                throw new IllegalArgumentException("The weight of " + name + " cannot be negative");
+            }
+            if (weight > 0) {
+                weights.merge(name, weight, Integer::sum);
+            }
+        }
+        if (weights.isEmpty()) {
+            throw new IllegalArgumentException("The mix has no API's to call");
+        }
+        return weights;
+    }
+
+    /**
+     * Calls the API's for a while, the calls meant to be sent during the warm up are not counted
+     * @param warmupMillis how long to call the API's before counting the calls
+     * @param durationMillis how long to count the calls for after the warm up
+     * @param drainMillis how long to wait for the last calls to be answered, those that are not count as failed
+     * @throws InterruptedException interrupted waiting
+     */
+    public void run(long warmupMillis, long durationMillis, long drainMillis) throws InterruptedException {
+        long intervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+        long start = System.nanoTime();
+        long measureFrom = start + TimeUnit.MILLISECONDS.toNanos(warmupMillis);
+        long end = measureFrom + TimeUnit.MILLISECONDS.toNanos(durationMillis);
+        for (long call = 0; ; call++) {
+            long intended = start + call * intervalNanos;
+            if (intended >= end) {
+                break;
+            }
+            long wait;
+            while ((wait = intended - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(wait);
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+            }
+            maxSendLag.accumulateAndGet(TimeUnit.NANOSECONDS.toMicros(-wait), Math::max);
+            send(pick(), intended, intended >= measureFrom);
+        }
+        long drainUntil = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(drainMillis);
+        while (outstanding.get() > 0 && System.nanoTime() < drainUntil) {
+            Thread.sleep(10);
+        }
+    }
+
+    /**
+     * gets the calls still waiting for an answer
+     * @return outstanding
+     */
+    public long getOutstanding() {
+        return outstanding.get();
+    }
+
+    /**
+     * gets the results of each API and of all of them together, calls still waiting for an answer count as failed
+     * @return ObjectNode the rate, how late the driver was and the calls, failures and latency percentiles of each API
+     */
+    public ObjectNode report() {
+        ObjectNode report = JsonNodeFactory.instance.objectNode();
+        report.put("rate", rate);
+        report.put("maxSendLagMillis", maxSendLag.get() / 1000.0);
+        report.put("unanswered", outstanding.get());
+        Histogram all = new Histogram(3);
+        long allErrors = 0;
+        ObjectNode endpoints = report.putObject("endpoints");
+        for (String name : names) {
+            all.add(latencies.get(name));
+            allErrors += errors.get(name).get();
+            ObjectNode endpoint = result(endpoints.putObject(name), latencies.get(name), errors.get(name).get());
+            if (lastErrors.containsKey(name)) {
+                endpoint.put("lastError", lastErrors.get(name));
+            }
+        }
+        result(report.putObject("all"), all, allErrors + outstanding.get());
+        return report;
+    }
+
+    /**
+     * This method writes the calls, failures and latency percentiles of a histogram into a node
+     * @param result the node written into
+     * @param histogram the latencies of the answered calls in microseconds
+     * @param failed the calls that failed
+     * @return ObjectNode the node
+     */
+    private static ObjectNode result(ObjectNode result, Histogram histogram, long failed) {
+        long calls = histogram.getTotalCount() + failed;
+        result.put("calls", calls);
+        result.put("errors", failed);
+        result.put("errorRate", calls == 0 ? 0 : (double) failed / calls);
+        result.put("p50Millis", histogram.getValueAtPercentile(50) / 1000.0);
+        result.put("p90Millis", histogram.getValueAtPercentile(90) / 1000.0);
+        result.put("p99Millis", histogram.getValueAtPercentile(99) / 1000.0);
+        result.put("p999Millis", histogram.getValueAtPercentile(99.9) / 1000.0);
+        result.put("maxMillis", histogram.getMaxValue() / 1000.0);
+        return result;
+    }
+
+    /**
+     * This method picks the API of the next call by its weight
+     * @return String the name of the API
+     */
+    private String pick() {
+        int total = cumulativeWeights.get(cumulativeWeights.size() - 1);
+        int pick = random.nextInt(total);
+        for (int i = 0; i < names.size(); i++) {
+            if (pick < cumulativeWeights.get(i)) {
+                return names.get(i);
+            }
+        }
+        return names.get(names.size() - 1);
+    }
+
+    /**
+     * This method sends a call without waiting for it
+     * @param name the API called
+     * @param intended when the call was meant to be sent, in nanoseconds
+     * @param measured whether the call is counted
+     */
+    private void send(String name, long intended, boolean measured) {
+        outstanding.incrementAndGet();
+        client.execute(new HttpGet(baseUrl + ENDPOINTS.get(name).apply(random)), new FutureCallback<HttpResponse>() {
+            @Override
+            public void completed(HttpResponse response) {
+                int status = response.getStatusLine().getStatusCode();
+                if (measured) {
+                    if (status >= 400) {
+                        countFailure(name, "HTTP " + status);
+                    } else {
+                        latencies.get(name).recordValue(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - intended));
+                    }
+                }
+                outstanding.decrementAndGet();
+            }
+
+            @Override
+            public void failed(Exception e) {
+                if (measured) {
+                    countFailure(name, String.valueOf(e));
+                }
+                outstanding.decrementAndGet();
+            }
+
+            @Override
+            public void cancelled() {
+                failed(new Exception("cancelled"));
+            }
+        });
+    }
+
+    /**
+     * This method counts a call that failed
+     * @param name the API called
+     * @param why why it failed
+     */
+    private void countFailure(String name, String why) {
+        errors.get(name).incrementAndGet();
+        lastErrors.put(name, why);
+    }
+}
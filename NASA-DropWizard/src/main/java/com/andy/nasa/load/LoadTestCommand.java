@@ -0,0 +1,204 @@
+package com.andy.nasa.load;
+
+import com.andy.nasa.configuration.NasaConfig;
+import com.andy.nasa.configuration.configs.ElasticSearchConfig;
+import com.andy.nasa.event.DatabaseHandler;
+import com.codahale.metrics.MetricRegistry;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import io.dropwizard.cli.ConfiguredCommand;
+import io.dropwizard.setup.Bootstrap;
+import net.sourceforge.argparse4j.inf.Namespace;
+import net.sourceforge.argparse4j.inf.Subparser;
+import org.apache.http.HttpHost;
+import org.apache.http.entity.ContentType;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.nio.entity.NStringEntity;
+import org.elasticsearch.client.ResponseException;
+import org.elasticsearch.client.RestClient;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * This command drives a running NASA-API with a weighted mix of calls to its API's at a fixed rate,
+ * see {@link LoadDriver}, and reports the latency and failures of each API. It can write a dataset
+ * of synthetic entries of a chosen size to the elastic search of the config first, e.g.
+ * java -jar NASA-DropWizard.jar load-test config.yml --load 1000000 --rate 200 --duration 120
+ */
+public class LoadTestCommand extends ConfiguredCommand<NasaConfig> {
+
+    // lines in each message of the dataset, as rabbit messages carry many entries each
+    private static final int LINES_PER_MESSAGE = 100;
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    /**
+     * Creates the command
+     */
+    public LoadTestCommand() {
+        super("load-test", "Calls the API's of a running NASA-API at a fixed rate and reports their latency");
+    }
+
+    /**
+     * Adds the arguments of the load test to the config file
+     * @param subparser the parser of the arguments
+     */
+    @Override
+    public void configure(Subparser subparser) {
+        super.configure(subparser);
+        subparser.addArgument("--url")
+                .setDefault("http://localhost:8080")
+                .help("the url of the running NASA-API");
+        subparser.addArgument("--rate")
+                .type(Double.class)
+                .setDefault(50.0)
+                .help("calls per second, sent whether or not the earlier calls were answered");
+        subparser.addArgument("--duration")
+                .type(Long.class)
+                .setDefault(60L)
+                .help("seconds to count the calls for");
+        subparser.addArgument("--warmup")
+                .type(Long.class)
+                .setDefault(10L)
+                .help("seconds to call the API's for before counting the calls");
+        subparser.addArgument("--mix")
+                .setDefault(LoadDriver.DEFAULT_MIX)
+                .help("the API's called and their weights, as name=weight,... of " + LoadDriver.ENDPOINTS.keySet());
+        subparser.addArgument("--connections")
+                .type(Integer.class)
+                .setDefault(100)
+                .help("the most calls waiting for an answer at once, the rest queue and count the time they queue");
+        subparser.addArgument("--seed")
+                .type(Long.class)
+                .setDefault(1L)
+                .help("seeds the picking of the calls so runs can be repeated");
+        subparser.addArgument("--load")
+                .type(Long.class)
+                .setDefault(0L)
+                .help("synthetic entries written to elastic search before the calls start");
+        subparser.addArgument("--settings")
+                .setDefault("elastic-settings.json")
+                .help("the settings and mappings of the index, used when the dataset creates it");
+        subparser.addArgument("--output")
+                .help("file the report is written to as json");
+    }
+
+    /**
+     * Writes the dataset if asked to, then calls the API's and reports how they did
+     * @param bootstrap the bootstrap of the application
+     * @param namespace the arguments
+     * @param nasaConfig where the elastic search the dataset is written to is configured
+     * @throws Exception talking to elastic search or writing the report
+     */
+    @Override
+    protected void run(Bootstrap<NasaConfig> bootstrap, Namespace namespace, NasaConfig nasaConfig) throws Exception {
+        Map<String, Integer> mix = LoadDriver.parseMix(namespace.getString("mix"));
+        long load = namespace.getLong("load");
+        if (load > 0) {
+            load(nasaConfig.getElasticSearchConfig(), load, new File(namespace.getString("settings")));
+        }
+
+        int connections = namespace.getInt("connections");
+        try (CloseableHttpAsyncClient client = HttpAsyncClients.custom()
+                .setMaxConnTotal(connections)
+                .setMaxConnPerRoute(connections)
+                .build()) {
+            client.start();
+            LoadDriver loadDriver = new LoadDriver(
+                    client,
+                    namespace.getString("url"),
+                    mix,
+                    namespace.getDouble("rate"),
+                    namespace.getLong("seed")
+            );
+            loadDriver.run(namespace.getLong("warmup") * 1000, namespace.getLong("duration") * 1000, 30000);
+            ObjectNode report = loadDriver.report();
+            print(report);
+            if (namespace.getString("output") != null) {
+                objectMapper.writerWithDefaultPrettyPrinter().writeValue(new File(namespace.getString("output")), report);
+            }
+        }
+    }
+
+    /**
+     * This method writes synthetic entries to elastic search through the database handler, the
+     * same way ingestion writes them, creating the index first if there is not one
+     * @param elasticSearchConfig the elastic search written to
+     * @param entries how many entries to write
+     * @param settings the settings and mappings of the index
+     * @throws Exception talking to elastic search
+     */
+    private void load(ElasticSearchConfig elasticSearchConfig, long entries, File settings) throws Exception {
+        try (RestClient restClient = RestClient
+                .builder(new HttpHost(elasticSearchConfig.getHost(), elasticSearchConfig.getPort(), "http"))
+                .build()) {
+            try (InputStream in = new FileInputStream(settings)) {
+                JsonNode index = objectMapper.readTree(in);
+                restClient.performRequest(
+                        "PUT",
+                        "nasa",
+                        Collections.emptyMap(),
+                        new NStringEntity(objectMapper.writeValueAsString(index), ContentType.APPLICATION_JSON)
+                );
+            } catch (ResponseException e) {
+                // the index is already there, the entries are added to it
+                if (e.getResponse().getStatusLine().getStatusCode() != 400) {
+                    throw e;
+                }
+            }
+            MetricRegistry metrics = new MetricRegistry();
+            DatabaseHandler databaseHandler = new DatabaseHandler(restClient, elasticSearchConfig.getFormat(), metrics);
+            long start = System.nanoTime();
+            for (long first = 0; first < entries; first += LINES_PER_MESSAGE) {
+                databaseHandler.writeToDB(SyntheticLog.lines(first, Math.min(entries, first + LINES_PER_MESSAGE)));
+            }
+            databaseHandler.close();
+            long written = metrics.meter("ingest.documents").getCount();
+            System.out.printf("Wrote %d of %d entries in %.1fs%n", written, entries, (System.nanoTime() - start) / 1e9);
+            // a refresh makes the entries searchable before the first call
+            restClient.performRequest("POST", "/nasa/_refresh");
+        }
+    }
+
+    /**
+     * This method prints the report as a table of each API
+     * @param report the report of the load driver
+     */
+    private static void print(ObjectNode report) {
+        System.out.printf("%.1f calls/s, driver up to %.1fms late sending, %d calls unanswered%n",
+                report.path("rate").asDouble(), report.path("maxSendLagMillis").asDouble(), report.path("unanswered").asLong());
+        String format = "%-26s %8s %8s %10s %10s %10s %10s %10s%n";
+        System.out.printf(format, "api", "calls", "errors", "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "max ms");
+        Iterator<Map.Entry<String, JsonNode>> endpoints = report.path("endpoints").fields();
+        while (endpoints.hasNext()) {
+            Map.Entry<String, JsonNode> endpoint = endpoints.next();
+            printRow(format, endpoint.getKey(), endpoint.getValue());
+        }
+        printRow(format, "all", report.path("all"));
+    }
+
+    /**
+     * This method prints the row of one API
+     * @param format the format of a row
+     * @param name the name of the API
+     * @param result its calls, failures and latencies
+     */
+    private static void printRow(String format, String name, JsonNode result) {
+        System.out.printf(format,
+                name,
+                result.path("calls").asText(),
+                result.path("errors").asText(),
+                result.path("p50Millis").asText(),
+                result.path("p90Millis").asText(),
+                result.path("p99Millis").asText(),
+                result.path("p999Millis").asText(),
+                result.path("maxMillis").asText());
+    }
+}
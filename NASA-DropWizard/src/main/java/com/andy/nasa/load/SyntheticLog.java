@@ -0,0 +1,69 @@
+package com.andy.nasa.load;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.joda.time.format.DateTimeFormat;
+import org.joda.time.format.DateTimeFormatter;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * This class makes access log lines in the format of the NASA logs, each numbered line is always
+ * the same and different from every other so every line is a new entry. Users, clients, extensions
+ * and response codes are spread out over a fixed set of each, like the real logs
+ */
+public final class SyntheticLog {
+
+    // how many users and clients the lines are spread over
+    public static final int USERS = 997;
+    public static final int CLIENTS = 5003;
+
+    // the extensions the resources have
+    public static final List<String> EXTENSIONS = Collections.unmodifiableList(Arrays.asList("html", "gif", "jpg"));
+
+    // the format of the time of a log line
+    private static final DateTimeFormatter LOG_TIME = DateTimeFormat
+            .forPattern("dd/MMM/yyyy:HH:mm:ss Z")
+            .withLocale(Locale.ENGLISH)
+            .withZone(DateTimeZone.forOffsetHours(-6));
+
+    // the time of the first line, each line after is a second later
+    private static final long FIRST_MILLIS = new DateTime("1995-06-01T06:00:00Z").getMillis();
+
+    private SyntheticLog() { }
+
+    /**
+     * This method makes a run of lines, each ended with a new line
+     * @param first the number of the first line
+     * @param end the number after the last line
+     * @return String the lines
+     */
+    public static String lines(long first, long end) {
+        StringBuilder lines = new StringBuilder((int) Math.max(0, end - first) * 100);
+        for (long line = first; line < end; line++) {
+            int status = line % 20 == 0 ? 404 : line % 7 == 0 ? 304 : 200;
+            String resource = line % 2 == 0
+                    ? "/~" + user(line) + "/page" + line % 50 + "." + EXTENSIONS.get(0)
+                    : "/images/logo" + line % 20 + "." + EXTENSIONS.get(line % 3 == 0 ? 2 : 1) + " HTTP/1.0";
+            lines.append("client").append(line % CLIENTS).append(".example.com - - [")
+                    .append(LOG_TIME.print(FIRST_MILLIS + line * 1000))
+                    .append("] \"GET ").append(resource).append("\" ")
+                    .append(status).append(' ')
+                    .append(status == 200 ? String.valueOf(line * 7919 % 50000) : "-")
+                    .append('\n');
+        }
+        return lines.toString();
+    }
+
+    /**
+     * This method names the user of a line, or any number spread over the users
+     * @param number the number of the line
+     * @return String the username
+     */
+    public static String user(long number) {
+        return "user" + Math.floorMod(number, (long) USERS);
+    }
+}
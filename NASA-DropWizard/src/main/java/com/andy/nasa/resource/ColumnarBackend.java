@@ -0,0 +1,263 @@
+package com.andy.nasa.resource;
+
+import com.andy.nasa.columnar.ColumnStore;
+import com.andy.nasa.columnar.ColumnStore.Column;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+
+import javax.ws.rs.BadRequestException;
+import javax.ws.rs.ServiceUnavailableException;
+import javax.ws.rs.core.StreamingOutput;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+import static com.zackehh.jackson.Jive.newJsonEntry;
+import static com.zackehh.jackson.Jive.newObjectNode;
+
+/**
+ * This class answers the queries of the API's by scanning the columns of a {@link ColumnStore},
+ * each answer shaped exactly like the answer elastic search gives. Scans run on the common
+ * fork join pool, each split across the cores by the store. Counts of the requests matching
+ * filters, of an extension, of a user and of the errors, come from the bitmap index of the store
+ */
+public class ColumnarBackend implements QueryBackend {
+
+    // the columns scanned
+    private final ColumnStore columnStore;
+
+    // turns the results of the dashboard metrics into json
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    // the column of each ranking
+    private final Map<Ranking, Column> rankingColumns = new EnumMap<>(Ranking.class);
+
+    /**
+     * Creates the backend
+     * @param columnStore the columns scanned, which answer once they are ready
+     */
+    public ColumnarBackend(ColumnStore columnStore) {
+        this.columnStore = columnStore;
+        rankingColumns.put(Ranking.USERS, Column.USER);
+        rankingColumns.put(Ranking.USERS_DATA, Column.USER);
+        rankingColumns.put(Ranking.EXTENSIONS, Column.EXTENSION);
+        rankingColumns.put(Ranking.API_CALLS, Column.METHOD);
+    }
+
+    @Override
+    public CompletableFuture<List<String>> topUsers(TimeRange range, int nUsers) {
+        return scan(() -> columnStore
+                .ranking(Column.USER, false, range.getFrom(), range.getTo())
+                .stream()
+                .limit(nUsers)
+                .map(Map.Entry::getKey)
+                .collect(Collectors.toList()));
+    }
+
+    @Override
+    public CompletableFuture<Double> averagePayloadSize(TimeRange range) {
+        return scan(() -> {
+            long[] totals = columnStore.totals(range.getFrom(), range.getTo());
+            // the avg aggregation of no documents is read as 0
+            return totals[0] == 0 ? 0.0 : (double) totals[2] / totals[0];
+        });
+    }
+
+    @Override
+    public CompletableFuture<ObjectNode> usersMostData(TimeRange range) {
+        return scan(() -> top(columnStore.ranking(Column.USER, true, range.getFrom(), range.getTo()), 5));
+    }
+
+    @Override
+    public CompletableFuture<Integer> uniqueClients(TimeRange range) {
+        return scan(() -> columnStore.distinct(Column.CLIENT, range.getFrom(), range.getTo()));
+    }
+
+    @Override
+    public CompletableFuture<ObjectNode> requestsPerMonth(TimeRange range) {
+        return scan(() -> months(range, counts -> JsonNodeFactory.instance.numberNode((int) counts[0])));
+    }
+
+    @Override
+    public CompletableFuture<Double> errorRate(TimeRange range) {
+        return scan(() -> {
+            // both counts come from the bitmap index rather than a scan
+            long errors = columnStore.count(Collections.emptyMap(), 400, 599, range.getFrom(), range.getTo());
+            long requests = columnStore.count(Collections.emptyMap(), Integer.MIN_VALUE, Integer.MAX_VALUE, range.getFrom(), range.getTo());
+            return requests == 0 ? 0.0 : ((double) errors / requests) * 100;
+        });
+    }
+
+    @Override
+    public CompletableFuture<ObjectNode> errorRatePerMonth(TimeRange range) {
+        return scan(() -> months(range, counts ->
+                JsonNodeFactory.instance.numberNode(counts[0] == 0 ? 0.0 : ((double) counts[1] / counts[0]) * 100)));
+    }
+
+    @Override
+    public CompletableFuture<ObjectNode> popularExtensions(TimeRange range) {
+        return scan(() -> top(columnStore.ranking(Column.EXTENSION, false, range.getFrom(), range.getTo()), 5));
+    }
+
+    @Override
+    public CompletableFuture<Integer> numberExtensionRequests(TimeRange range, String extension) {
+        return scan(() -> (int) columnStore.count(Column.EXTENSION, extension, range.getFrom(), range.getTo()));
+    }
+
+    @Override
+    public CompletableFuture<ObjectNode> apiCalls(TimeRange range) {
+        return scan(() -> top(columnStore.ranking(Column.METHOD, false, range.getFrom(), range.getTo()), 3));
+    }
+
+    @Override
+    public CompletableFuture<ObjectNode> requestsUser(TimeRange range, String user) {
+        return scan(() -> {
+            long requests = columnStore.count(Column.USER, user, range.getFrom(), range.getTo());
+            return requests == 0 ? newObjectNode() : newObjectNode(newJsonEntry(user, (int) requests));
+        });
+    }
+
+    @Override
+    public CompletableFuture<ObjectNode> payloadSizeDistribution(TimeRange range,
+                                                                 List<Double> percents,
+                                                                 String user,
+                                                                 String extension,
+                                                                 DateTime month) {
+        return scan(() -> {
+            Long from = range.getFrom();
+            Long to = range.getTo();
+            if (month != null) {
+                // the month is in UTC like the months of the date histogram, and within the range
+                DateTime start = month.withZone(DateTimeZone.UTC).withDayOfMonth(1).withTimeAtStartOfDay();
+                from = from == null ? start.getMillis() : Math.max(from, start.getMillis());
+                to = to == null ? start.plusMonths(1).getMillis() - 1 : Math.min(to, start.plusMonths(1).getMillis() - 1);
+                if (from > to) {
+                    return PayloadDistribution.of(new int[0], percents);
+                }
+            }
+            int[] sizes;
+            if (user != null) {
+                sizes = columnStore.payloadSizes(Column.USER, user, from, to);
+            } else if (extension != null) {
+                sizes = columnStore.payloadSizes(Column.EXTENSION, extension, from, to);
+            } else {
+                sizes = columnStore.payloadSizes(null, null, from, to);
+            }
+            return PayloadDistribution.of(sizes, percents);
+        });
+    }
+
+    /**
+     * Pages through a ranking, every term is ranked on every page and the page is the
+     * slice of the ranking at its position, so pages are ordered highest first across pages too
+     * @param ranking the ranking paged through
+     * @param range only the requests in this range
+     * @param cursor the cursor of the page given back with the one before, empty for the first page
+     * @param pageSize how many terms a page holds
+     * @return StreamingOutput the page
+     */
+    @Override
+    public CompletableFuture<StreamingOutput> page(Ranking ranking, TimeRange range, String cursor, int pageSize) {
+        TermsPager.Cursor current;
+        try {
+            current = cursor.isEmpty() ? null : TermsPager.Cursor.parse(cursor);
+        } catch (BadRequestException e) {
+            CompletableFuture<StreamingOutput> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+        return scan(() -> {
+            List<Map.Entry<String, Long>> terms = columnStore.ranking(
+                    rankingColumns.get(ranking), ranking == Ranking.USERS_DATA, range.getFrom(), range.getTo());
+            TermsPager.Cursor page = current == null ? TermsPager.Cursor.first(terms.size(), pageSize) : current;
+            // a cursor made for a page size is read at that page size
+            int size = (int) Math.max(1, (terms.size() + page.getPartitions() - 1) / page.getPartitions());
+            int start = Math.min(terms.size(), page.getPartition() * size);
+            return TermsPager.page(terms.subList(start, Math.min(terms.size(), start + size)), page.next());
+        });
+    }
+
+    /**
+     * Answers every metric at once, each scan running alongside the others
+     * @param names the names of the metrics, all of them in {@link #DASHBOARD_METRICS}
+     * @param range only the requests in this range
+     * @return ObjectNode each name with its result
+     */
+    @Override
+    public CompletableFuture<ObjectNode> dashboard(List<String> names, TimeRange range) {
+        List<CompletableFuture<JsonNode>> metrics = names
+                .stream()
+                .map(name -> metric(name, range)
+                        .<JsonNode>thenApply(objectMapper::valueToTree)
+                        .exceptionally(error -> newObjectNode(newJsonEntry("error",
+                                (error instanceof CompletionException ? error.getCause() : error).getMessage()))))
+                .collect(Collectors.toList());
+        return CompletableFuture
+                .allOf(metrics.toArray(new CompletableFuture[0]))
+                .thenApply(done -> {
+                    ObjectNode results = newObjectNode();
+                    for (int i = 0; i < names.size(); i++) {
+                        results.set(names.get(i), metrics.get(i).join());
+                    }
+                    return results;
+                });
+    }
+
+    /**
+     * This method runs a scan of the columns without waiting for it
+     * @param query the scan
+     * @param <T> type of the result
+     * @return T the result, failed with service unavailable while the columns are still being filled
+     */
+    private <T> CompletableFuture<T> scan(Supplier<T> query) {
+        return CompletableFuture.supplyAsync(() -> {
+            if (!columnStore.isReady()) {
+                throw new ServiceUnavailableException("The columns are still being loaded");
+            }
+            return query.get();
+        });
+    }
+
+    /**
+     * This method puts the first terms of a ranking in an object like the buckets of a terms aggregation
+     * @param ranking the ranking
+     * @param size how many terms wanted
+     * @return ObjectNode each term and its value, highest first
+     */
+    private static ObjectNode top(List<Map.Entry<String, Long>> ranking, int size) {
+        ObjectNode buckets = newObjectNode();
+        ranking.stream().limit(size).forEach(term -> buckets.put(term.getKey(), term.getValue().intValue()));
+        return buckets;
+    }
+
+    /**
+     * This method puts the counts of each month in an object like the buckets of a date histogram,
+     * every month from the first to the last is there even when it has no requests
+     * @param range only the requests in this range
+     * @param reader reads the result of a month from its requests and errors
+     * @return ObjectNode the start of each month and its result
+     */
+    private ObjectNode months(TimeRange range, Function<long[], JsonNode> reader) {
+        SortedMap<Long, long[]> months = columnStore.months(range.getFrom(), range.getTo());
+        ObjectNode buckets = newObjectNode();
+        if (months.isEmpty()) {
+            return buckets;
+        }
+        DateTime last = new DateTime(months.lastKey(), DateTimeZone.UTC);
+        for (DateTime month = new DateTime(months.firstKey(), DateTimeZone.UTC); !month.isAfter(last); month = month.plusMonths(1)) {
+            buckets.set(String.valueOf(month.getMillis()), reader.apply(months.getOrDefault(month.getMillis(), new long[2])));
+        }
+        return buckets;
+    }
+}
@@ -0,0 +1,1176 @@
+package com.andy.nasa.resource;
+
+import com.andy.nasa.aggregate.Rollups;
+import com.andy.nasa.elasticsearch.HedgedRequests;
+import com.andy.nasa.elasticsearch.WireFormat;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.MetricRegistry;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.zackehh.jackson.Jive;
+import com.zackehh.jackson.stream.JiveCollectors;
+import org.elasticsearch.client.Response;
+import org.elasticsearch.client.RestClient;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+
+import javax.ws.rs.BadRequestException;
+import javax.ws.rs.core.StreamingOutput;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import static com.zackehh.jackson.Jive.newJsonEntry;
+import static com.zackehh.jackson.Jive.newObjectNode;
+
+/**
+ * This class answers the queries of the API's from elastic search, each query body is
+ * encoded once in the wire format and sent without waiting, the future is completed from
+ * the rest client's callback. Ranges of whole hours are answered from the rollups once they are ready
+ */
+public class ElasticSearchBackend implements QueryBackend {
+
+    // sends the searches to ES, again to another node when one is slow
+    private final HedgedRequests requests;
+
+    // rollups of each hour, used instead of the entries for ranges of whole hours once they are ready
+    private final Rollups rollups;
+
+    // format queries are sent and responses are returned in
+    private final WireFormat wireFormat;
+
+    // this is to map values in the wire format
+    private final ObjectMapper objectMapper;
+
+    // asks elastic search to respond in the wire format
+    private final Map<String, String> formatParams;
+
+    // the size of the body of each response from elastic search
+    private final Histogram responseBytes;
+
+    // end point for index and indices
+    private final String endpoint = "/nasa/log/";
+
+    // common field in query taken as global for removal of redundant code
+    private final Map.Entry<String, JsonNode> size = newJsonEntry("size", 0);
+
+    // the query bodies encoded once in the wire format
+    private final RangedTemplate topUsersTemplate;
+    private final RangedTemplate averagePayloadSizeTemplate;
+    private final RangedTemplate usersMostDataTemplate;
+    private final RangedTemplate uniqueClientsTemplate;
+    private final RangedTemplate requestsPerMonthTemplate;
+    private final RangedTemplate errorRateTemplate;
+    private final RangedTemplate errorRatePerMonthTemplate;
+    private final RangedTemplate popularExtensionsTemplate;
+    private final RangedTemplate numberExtensionRequestTemplate;
+    private final RangedTemplate apiCallsTemplate;
+    private final RangedTemplate requestsUserTemplate;
+    private final RangedTemplate payloadSizesTemplate;
+    private final RangedTemplate payloadSizesUserTemplate;
+    private final RangedTemplate payloadSizesExtensionTemplate;
+    private final RangedTemplate payloadSizesMonthTemplate;
+    private final RangedTemplate rollupTotalsTemplate;
+    private final RangedTemplate rollupMonthsTemplate;
+    private final RangedTemplate rollupExtensionsTemplate;
+    private final RangedTemplate rollupExtensionTemplate;
+
+    // the rollups of each hour and of each extension in each hour
+    private final String rollupHourEndpoint = Rollups.INDEX + Rollups.HOUR_TYPE + "/";
+    private final String rollupExtensionEndpoint = Rollups.INDEX + Rollups.EXTENSION_TYPE + "/";
+
+    // page through every term of each ranking
+    private final Map<Ranking, TermsPager> pagers = new EnumMap<>(Ranking.class);
+
+    // the header of each search in a multi search, empty to search the endpoint
+    private final byte[] multiSearchHeader;
+
+    // the searches of the dashboard metrics, by name
+    private final Map<String, Function<TimeRange, SearchQuery<?>>> dashboardQueries = new LinkedHashMap<>();
+
+    /**
+     * Creates the backend
+     * @param restClient instance of ES rest client
+     * @param wireFormat the format for query bodies and responses
+     * @param rollups rollups of each hour that answer ranges of whole hours once they are ready
+     */
+    public ElasticSearchBackend(RestClient restClient, WireFormat wireFormat, Rollups rollups) {
+        this(new HedgedRequests(restClient), wireFormat, rollups);
+    }
+
+    /**
+     * Creates the backend
+     * @param requests sends the searches to ES, hedged and behind a circuit breaker
+     * @param wireFormat the format for query bodies and responses
+     * @param rollups rollups of each hour that answer ranges of whole hours once they are ready
+     */
+    public ElasticSearchBackend(HedgedRequests requests, WireFormat wireFormat, Rollups rollups) {
+        this(requests, wireFormat, rollups, new MetricRegistry());
+    }
+
+    /**
+     * Creates the backend
+     * @param requests sends the searches to ES, hedged and behind a circuit breaker
+     * @param wireFormat the format for query bodies and responses
+     * @param rollups rollups of each hour that answer ranges of whole hours once they are ready
+     * @param metrics where the size of the responses from ES is registered
+     */
+    public ElasticSearchBackend(HedgedRequests requests, WireFormat wireFormat, Rollups rollups, MetricRegistry metrics) {
+        this.requests = requests;
+        this.responseBytes = metrics.histogram(MetricRegistry.name("es", "response-bytes"));
+        this.rollups = rollups;
+        this.wireFormat = wireFormat;
+        this.objectMapper = wireFormat.getObjectMapper();
+        this.formatParams = Collections.singletonMap("format", wireFormat.getFormatName());
+
+        // the queries are built and encoded here rather than on every request
+        this.topUsersTemplate = new RangedTemplate(objectMapper, topUsersBody(), "datetime", "nUsers");
+        this.averagePayloadSizeTemplate = new RangedTemplate(objectMapper, averagePayloadSizeBody(), "datetime");
+        this.usersMostDataTemplate = new RangedTemplate(objectMapper, usersMostDataBody(), "datetime");
+        this.uniqueClientsTemplate = new RangedTemplate(objectMapper, uniqueClientsBody(), "datetime");
+        this.requestsPerMonthTemplate = new RangedTemplate(objectMapper, requestsPerMonthBody(), "datetime");
+        this.errorRateTemplate = new RangedTemplate(objectMapper, errorRateBody(), "datetime");
+        this.errorRatePerMonthTemplate = new RangedTemplate(objectMapper, errorRatePerMonthBody(), "datetime");
+        this.popularExtensionsTemplate = new RangedTemplate(objectMapper, popularExtensionsBody(), "datetime");
+        this.numberExtensionRequestTemplate = new RangedTemplate(objectMapper, numberExtensionRequestBody(), "datetime", "extension");
+        this.apiCallsTemplate = new RangedTemplate(objectMapper, apiCallsBody(), "datetime");
+        this.requestsUserTemplate = new RangedTemplate(objectMapper, requestsUserBody(), "datetime", "user");
+        this.payloadSizesTemplate = new RangedTemplate(objectMapper, payloadSizeDistributionBody(null), "datetime", "percents");
+        this.payloadSizesUserTemplate = new RangedTemplate(objectMapper, payloadSizeDistributionBody(newObjectNode(
+                newJsonEntry("term", newObjectNode(newJsonEntry("username", QueryTemplate.param("user"))))
+        )), "datetime", "user", "percents");
+        this.payloadSizesExtensionTemplate = new RangedTemplate(objectMapper, payloadSizeDistributionBody(newObjectNode(
+                newJsonEntry("term", newObjectNode(newJsonEntry("fileExtension", QueryTemplate.param("extension"))))
+        )), "datetime", "extension", "percents");
+        this.payloadSizesMonthTemplate = new RangedTemplate(objectMapper, payloadSizeDistributionBody(newObjectNode(
+                newJsonEntry("range", newObjectNode(newJsonEntry("datetime", newObjectNode(
+                        newJsonEntry("gte", QueryTemplate.param("monthStart")),
+                        newJsonEntry("lt", QueryTemplate.param("monthEnd"))
+                ))))
+        )), "datetime", "monthStart", "monthEnd", "percents");
+        this.rollupTotalsTemplate = new RangedTemplate(objectMapper, rollupTotalsBody(), "hour");
+        this.rollupMonthsTemplate = new RangedTemplate(objectMapper, rollupMonthsBody(), "hour");
+        this.rollupExtensionsTemplate = new RangedTemplate(objectMapper, rollupExtensionsBody(), "hour");
+        this.rollupExtensionTemplate = new RangedTemplate(objectMapper, rollupExtensionBody(), "hour", "extension");
+        this.pagers.put(Ranking.USERS, new TermsPager(objectMapper, "username", null));
+        this.pagers.put(Ranking.USERS_DATA, new TermsPager(objectMapper, "username", "payloadSize"));
+        this.pagers.put(Ranking.EXTENSIONS, new TermsPager(objectMapper, "fileExtension", null));
+        this.pagers.put(Ranking.API_CALLS, new TermsPager(objectMapper, "restfulAPI", null));
+        this.multiSearchHeader = new QueryTemplate(objectMapper, newObjectNode()).fill();
+
+        dashboardQueries.put("top-five-users", range -> topUsersQuery(range, 5));
+        dashboardQueries.put("average-payload-size", this::averagePayloadSizeQuery);
+        dashboardQueries.put("users/data", this::usersMostDataQuery);
+        dashboardQueries.put("clients/unique", this::uniqueClientsQuery);
+        dashboardQueries.put("months/requests", this::requestsPerMonthQuery);
+        dashboardQueries.put("error/rate", this::errorRateQuery);
+        dashboardQueries.put("error/rate/month", this::errorRatePerMonthQuery);
+        dashboardQueries.put("extensions/popular", this::popularExtensionsQuery);
+        dashboardQueries.put("api/call", this::apiCallsQuery);
+    }
+
+    @Override
+    public CompletableFuture<List<String>> topUsers(TimeRange range, int nUsers) {
+        return search(topUsersQuery(range, nUsers));
+    }
+
+    @Override
+    public CompletableFuture<Double> averagePayloadSize(TimeRange range) {
+        if (rollupsCover(range)) {
+            return search(rollupHourEndpoint, rollupTotalsQuery(range, totals -> ratio(
+                    totals.path("payloadSum").path("value").asDouble(),
+                    totals.path("requests").path("value").asDouble()
+            )));
+        }
+        return search(averagePayloadSizeQuery(range));
+    }
+
+    @Override
+    public CompletableFuture<ObjectNode> usersMostData(TimeRange range) {
+        return search(usersMostDataQuery(range));
+    }
+
+    @Override
+    public CompletableFuture<Integer> uniqueClients(TimeRange range) {
+        return search(uniqueClientsQuery(range));
+    }
+
+    @Override
+    public CompletableFuture<ObjectNode> requestsPerMonth(TimeRange range) {
+        if (rollupsCover(range)) {
+            return search(rollupHourEndpoint, rollupMonthsQuery(range, month -> JsonNodeFactory.instance.numberNode(month.path("requests").path("value").asInt())));
+        }
+        return search(requestsPerMonthQuery(range));
+    }
+
+    @Override
+    public CompletableFuture<Double> errorRate(TimeRange range) {
+        if (rollupsCover(range)) {
+            return search(rollupHourEndpoint, rollupTotalsQuery(range, ElasticSearchBackend::rollupErrorRate));
+        }
+        return search(errorRateQuery(range));
+    }
+
+    @Override
+    public CompletableFuture<ObjectNode> errorRatePerMonth(TimeRange range) {
+        if (rollupsCover(range)) {
+            return search(rollupHourEndpoint, rollupMonthsQuery(range, month -> JsonNodeFactory.instance.numberNode(rollupErrorRate(month))));
+        }
+        return search(errorRatePerMonthQuery(range));
+    }
+
+    @Override
+    public CompletableFuture<ObjectNode> popularExtensions(TimeRange range) {
+        if (rollupsCover(range)) {
+            // the rollups count every extension of every hour, so they are exact
+            return search(rollupExtensionEndpoint, rollupExtensionsQuery(range));
+        }
+        return search(popularExtensionsQuery(range));
+    }
+
+    @Override
+    public CompletableFuture<Integer> numberExtensionRequests(TimeRange range, String extension) {
+        if (rollupsCover(range)) {
+            return search(rollupExtensionEndpoint, rollupExtensionQuery(range, extension));
+        }
+        return search(numberExtensionRequestQuery(range, extension));
+    }
+
+    @Override
+    public CompletableFuture<ObjectNode> apiCalls(TimeRange range) {
+        return search(apiCallsQuery(range));
+    }
+
+    @Override
+    public CompletableFuture<ObjectNode> requestsUser(TimeRange range, String user) {
+        return search(requestsUserQuery(range, user));
+    }
+
+    @Override
+    public CompletableFuture<ObjectNode> payloadSizeDistribution(TimeRange range,
+                                                                 List<Double> percents,
+                                                                 String user,
+                                                                 String extension,
+                                                                 DateTime month) {
+        return search(payloadSizeDistributionQuery(range, percents, user, extension, month));
+    }
+
+    /**
+     * Pages through a ranking with terms partitioning, the first page finds how many
+     * partitions the terms are hashed into from the cardinality of the field, see {@link TermsPager}
+     * @param ranking the ranking paged through
+     * @param range only the requests in this range
+     * @param cursor the cursor of the page given back with the one before, empty for the first page
+     * @param pageSize how many terms a page is meant to hold
+     * @return StreamingOutput the page, streamed to the response as it is read from ES rather than cached
+     */
+    @Override
+    public CompletableFuture<StreamingOutput> page(Ranking ranking, TimeRange range, String cursor, int pageSize) {
+        TermsPager pager = pagers.get(ranking);
+        CompletableFuture<TermsPager.Cursor> page;
+        if (cursor.isEmpty()) {
+            page = performRequest(
+                    endpoint + "_search",
+                    params(Collections.singletonList("aggregations.distinct_terms.value")),
+                    pager.cardinalityQuery(range)
+            ).thenApply(response -> TermsPager.Cursor.first(TermsPager.cardinality(readTree(response)), pageSize));
+        } else {
+            try {
+                page = CompletableFuture.completedFuture(TermsPager.Cursor.parse(cursor));
+            } catch (BadRequestException e) {
+                return failedFuture(e);
+            }
+        }
+        return page.thenCompose(current -> partition(pager, range, current, pageSize));
+    }
+
+    /**
+     * This method searches the partition of a page, a partition holding more terms than were
+     * asked for is split in two and its first half searched in its place so no term is left out
+     * @param pager the pager of the ranking
+     * @param range only the requests in this range
+     * @param cursor the page
+     * @param pageSize how many terms a page is meant to hold
+     * @return StreamingOutput the page, streamed to the response as it is read from ES
+     */
+    private CompletableFuture<StreamingOutput> partition(TermsPager pager, TimeRange range, TermsPager.Cursor cursor, int pageSize) {
+        return performRequest(
+                endpoint + "_search",
+                params(Collections.singletonList(TermsPager.partitionFilterPath())),
+                pager.partitionQuery(range, cursor, pageSize)
+        ).thenCompose(response -> {
+            try {
+                TermsPager.Partition partition = TermsPager.open(objectMapper, content(response));
+                if (partition.isComplete() || !cursor.canSplit()) {
+                    return CompletableFuture.completedFuture(pager.page(objectMapper, partition, cursor.next()));
+                }
+                partition.close();
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+            return partition(pager, range, cursor.split(), pageSize);
+        });
+    }
+
+    /**
+     * Answers every metric in one multi search round trip to elastic search
+     * @param names the names of the metrics, all of them in {@link #DASHBOARD_METRICS}
+     * @param range only the requests in this range
+     * @return ObjectNode each name with its result
+     */
+    @Override
+    public CompletableFuture<ObjectNode> dashboard(List<String> names, TimeRange range) {
+        return multiSearch(names, range);
+    }
+
+    /**
+     * This method checks whether the rollups can answer a range, which must be of whole hours and
+     * bounded as entries without a time are in no rollup
+     * @param range the range
+     * @return boolean true when the rollups can answer it
+     */
+    private boolean rollupsCover(TimeRange range) {
+        return range.isBounded() && rollups.isReady() && range.isAligned(Rollups.GRANULARITY_MILLIS);
+    }
+
+    /**
+     * Builds the query for the top n amount of users
+     * @param range only the requests in this range
+     * @param nUsers the amount of users wanted returning
+     * @return the query and how its List<String> of users is read
+     */
+    private SearchQuery<List<String>> topUsersQuery(TimeRange range, Integer nUsers) {
+        return new SearchQuery<>(
+                topUsersTemplate.fill(range, nUsers),
+                // use a stream of each bucket returned getting the value of key and collecting it in list form
+                buckets -> Jive
+                        .stream((ArrayNode) buckets)
+                        .map(bucketNode -> bucketNode.path("key").asText())
+                        .collect(Collectors.toList()),
+                "aggregations", "group_by_username", "buckets"
+        ).withFilterPath("aggregations.group_by_username.buckets.key");
+    }
+
+    /**
+     * Builds the body of {@link #topUsersQuery} with placeholders for its parameters
+     * @return JsonNode the body
+     */
+    private JsonNode topUsersBody() {
+        return newObjectNode(
+                size,
+                newJsonEntry("aggs", newObjectNode(
+                        newJsonEntry("group_by_username", newObjectNode(
+                                newJsonEntry("terms", newObjectNode(
+                                        newJsonEntry("field", "username"),
+                                        newJsonEntry("size", QueryTemplate.param("nUsers"))
+                                ))
+                        ))
+                ))
+        );
+    }
+
+    /**
+     * Builds the elastic search query behind {@link #averagePayloadSize}
+     * @param range see {@link #averagePayloadSize}
+     * @return Double the query and how its result is read
+     */
+    private SearchQuery<Double> averagePayloadSizeQuery(TimeRange range) {
+        return new SearchQuery<>(
+                averagePayloadSizeTemplate.fill(range),
+                // returning the value of the average payload size
+                averagePayloadSize -> averagePayloadSize.path("value").asDouble(),
+                "aggregations", "average_payloadsize"
+        );
+    }
+
+    /**
+     * Builds the body of {@link #averagePayloadSizeQuery}
+     * @return JsonNode the body
+     */
+    private JsonNode averagePayloadSizeBody() {
+        return newObjectNode(
+            size,
+                newJsonEntry("aggs", newObjectNode(
+                    newJsonEntry("average_payloadsize", newObjectNode(
+                        newJsonEntry("avg", newObjectNode(
+                            newJsonEntry("field", "payloadSize")
+                        ))
+                    ))
+                ))
+        );
+    }
+
+    /**
+     * Builds the elastic search query behind {@link #usersMostData}
+     * @param range see {@link #usersMostData}
+     * @return ObjectNode the query and how its result is read
+     */
+    private SearchQuery<ObjectNode> usersMostDataQuery(TimeRange range) {
+        return new SearchQuery<>(
+                usersMostDataTemplate.fill(range),
+                buckets -> Jive
+                        .stream((ArrayNode) buckets)
+                        .map(bucket -> Jive.newJsonEntry(
+                                bucket.path("key").asText(),
+                                bucket.path("total_payloadSize").path("value").asInt()
+                        ))
+                        .collect(JiveCollectors.toObjectNode()),
+                "aggregations", "by_user", "buckets"
+        );
+    }
+
+    /**
+     * Builds the body of {@link #usersMostDataQuery}
+     * @return JsonNode the body
+     */
+    private JsonNode usersMostDataBody() {
+        return newObjectNode(
+                size,
+                newJsonEntry("aggs", newObjectNode(
+                        newJsonEntry("by_user", newObjectNode(
+                                newJsonEntry("terms", newObjectNode(
+                                        newJsonEntry("field", "username"),
+                                        newJsonEntry("order", newObjectNode(
+                                                newJsonEntry("total_payloadSize", "desc")
+                                        )),
+                                        newJsonEntry("size", 5)
+                                )),
+                                newJsonEntry("aggs", newObjectNode(
+                                        newJsonEntry("total_payloadSize" , newObjectNode(
+                                                newJsonEntry("sum", newObjectNode(
+                                                        newJsonEntry("field", "payloadSize")
+                                                ))
+                                        ))
+                                ))
+                        ))
+                ))
+        );
+    }
+
+    /**
+     * Builds the elastic search query behind {@link #uniqueClients}
+     * @param range see {@link #uniqueClients}
+     * @return Integer the query and how its result is read
+     */
+    private SearchQuery<Integer> uniqueClientsQuery(TimeRange range) {
+        return new SearchQuery<>(
+                uniqueClientsTemplate.fill(range),
+                clients -> clients.path("value").asInt(),
+                "aggregations", "distinct_clients"
+        );
+    }
+
+    /**
+     * Builds the body of {@link #uniqueClientsQuery}
+     * @return JsonNode the body
+     */
+    private JsonNode uniqueClientsBody() {
+        return newObjectNode(
+                size,
+                newJsonEntry("aggs", newObjectNode(
+                        newJsonEntry("distinct_clients", newObjectNode(
+                                newJsonEntry("cardinality", newObjectNode(
+                                        newJsonEntry("field", "client")
+                                ))
+                        ))
+                ))
+        );
+    }
+
+    /**
+     * Builds the elastic search query behind {@link #requestsPerMonth}
+     * @param range see {@link #requestsPerMonth}
+     * @return ObjectNode the query and how its result is read
+     */
+    private SearchQuery<ObjectNode> requestsPerMonthQuery(TimeRange range) {
+        return new SearchQuery<>(
+                requestsPerMonthTemplate.fill(range),
+                buckets -> Jive
+                        .stream((ArrayNode) buckets)
+                        .map(bucket -> Jive.newJsonEntry(
+                            bucket.path("key").asText(),
+                            bucket.path("doc_count")
+                        ))
+                        .collect(JiveCollectors.toObjectNode()),
+                "aggregations", "get_months", "buckets"
+        );
+    }
+
+    /**
+     * Builds the body of {@link #requestsPerMonthQuery}
+     * @return JsonNode the body
+     */
+    private JsonNode requestsPerMonthBody() {
+        return newObjectNode(
+                size,
+                newJsonEntry("aggs", newObjectNode(
+                        newJsonEntry("get_months", newObjectNode(
+                                newJsonEntry("date_histogram", newObjectNode(
+                                        newJsonEntry("field", "datetime"),
+                                        newJsonEntry("interval", "month")
+                                ))
+                        ))
+                ))
+        );
+    }
+
+    /**
+     * Builds the elastic search query behind {@link #errorRate}
+     * the total hits are every document so one search gives both counts
+     * @param range see {@link #errorRate}
+     * @return Double the query and how its result is read
+     */
+    private SearchQuery<Double> errorRateQuery(TimeRange range) {
+        return new SearchQuery<>(
+                errorRateTemplate.fill(range),
+                response -> ratio(
+                        response.path("aggregations").path("filter_responseCode").path("doc_count").asDouble(),
+                        response.path("hits").path("total").asDouble()
+                ) * 100
+        ).withFilterPath("aggregations.filter_responseCode.doc_count", "hits.total");
+    }
+
+    /**
+     * Builds the body of {@link #errorRateQuery}
+     * @return JsonNode the body
+     */
+    private JsonNode errorRateBody() {
+        return newObjectNode(
+                size,
+                newJsonEntry("aggs", newObjectNode(
+                        newJsonEntry("filter_responseCode", newObjectNode(
+                                newJsonEntry("filter", newObjectNode(
+                                        newJsonEntry("range", newObjectNode(
+                                                newJsonEntry("responseCode", newObjectNode(
+                                                        newJsonEntry("gte", 400),
+                                                        newJsonEntry("lte", 599)
+                                                ))
+                                        ))
+                                ))
+                        ))
+                ))
+        );
+    }
+
+    /**
+     * Builds the elastic search query behind {@link #errorRatePerMonth}
+     * @param range see {@link #errorRatePerMonth}
+     * @return ObjectNode the query and how its result is read
+     */
+    private SearchQuery<ObjectNode> errorRatePerMonthQuery(TimeRange range) {
+        return new SearchQuery<>(
+                errorRatePerMonthTemplate.fill(range),
+                buckets -> Jive
+                        .stream((ArrayNode) buckets)
+                        .map(bucketNode -> Jive.newJsonEntry(
+                                bucketNode.path("key").asText(),
+                                ratio(
+                                        bucketNode.path("filter_responseCode").path("doc_count").asDouble(),
+                                        bucketNode.path("doc_count").asDouble()
+                                ) * 100
+                        ))
+                        .collect(JiveCollectors.toObjectNode()),
+                "aggregations", "get_months", "buckets"
+        );
+    }
+
+    /**
+     * Builds the body of {@link #errorRatePerMonthQuery}
+     * @return JsonNode the body
+     */
+    private JsonNode errorRatePerMonthBody() {
+        return newObjectNode(
+                size,
+                newJsonEntry("aggs", newObjectNode(
+                        newJsonEntry("get_months", newObjectNode(
+                                newJsonEntry("date_histogram", newObjectNode(
+                                        newJsonEntry("field", "datetime"),
+                                        newJsonEntry("interval", "month")
+                                )),
+                                newJsonEntry("aggs", newObjectNode(
+                                        newJsonEntry("filter_responseCode", newObjectNode(
+                                                newJsonEntry("filter", newObjectNode(
+                                                        newJsonEntry("range", newObjectNode(
+                                                                newJsonEntry("responseCode", newObjectNode(
+                                                                        newJsonEntry("gte", 400),
+                                                                        newJsonEntry("lte", 599)
+                                                                ))
+                                                        ))
+                                                ))
+                                        ))
+                                ))
+                        ))
+                ))
+        );
+    }
+
+    /**
+     * Builds the elastic search query behind {@link #popularExtensions}
+     * @param range see {@link #popularExtensions}
+     * @return ObjectNode the query and how its result is read
+     */
+    private SearchQuery<ObjectNode> popularExtensionsQuery(TimeRange range) {
+        return new SearchQuery<>(
+                popularExtensionsTemplate.fill(range),
+                buckets -> Jive
+                        .stream((ArrayNode) buckets)
+                        .map(bucketNode -> Jive.newJsonEntry(
+                                bucketNode.path("key").asText(),
+                                bucketNode.path("doc_count").asInt()
+                        ))
+                        .collect(JiveCollectors.toObjectNode()),
+                "aggregations", "group_file_extensions", "buckets"
+        );
+    }
+
+    /**
+     * Builds the body of {@link #popularExtensionsQuery}
+     * @return JsonNode the body
+     */
+    private JsonNode popularExtensionsBody() {
+        return newObjectNode(
+                size,
+                newJsonEntry("aggs", newObjectNode(
+                        newJsonEntry("group_file_extensions", newObjectNode(
+                                newJsonEntry("terms", newObjectNode(
+                                        newJsonEntry("field", "fileExtension"),
+                                        newJsonEntry("size", 5)
+                                ))
+                        ))
+                ))
+        );
+    }
+
+    /**
+     * Builds the elastic search query behind {@link #numberExtensionRequests}
+     * @param range see {@link #numberExtensionRequests}
+     * @param extension see {@link #numberExtensionRequests}
+     * @return Integer the query and how its result is read
+     */
+    private SearchQuery<Integer> numberExtensionRequestQuery(TimeRange range, String extension) {
+        // the total hits of a search are the same as its count
+        return new SearchQuery<>(
+                numberExtensionRequestTemplate.fill(range, extension),
+                total -> total.intValue(),
+                "hits", "total"
+        );
+    }
+
+    /**
+     * Builds the body of {@link #numberExtensionRequestQuery} with placeholders for its parameters
+     * @return JsonNode the body
+     */
+    private JsonNode numberExtensionRequestBody() {
+        return newObjectNode(
+                size,
+                newJsonEntry("query", newObjectNode(
+                        newJsonEntry("constant_score", newObjectNode(
+                                newJsonEntry("filter", newObjectNode(
+                                        newJsonEntry("term", newObjectNode(
+                                                newJsonEntry("fileExtension", QueryTemplate.param("extension"))
+                                        ))
+                                ))
+                        ))
+                ))
+        );
+    }
+
+    /**
+     * Builds the elastic search query behind {@link #apiCalls}
+     * @param range see {@link #apiCalls}
+     * @return ObjectNode the query and how its result is read
+     */
+    private SearchQuery<ObjectNode> apiCallsQuery(TimeRange range) {
+        return new SearchQuery<>(
+                apiCallsTemplate.fill(range),
+                buckets -> Jive
+                        .stream((ArrayNode) buckets)
+                        .map(bucketNode -> Jive.newJsonEntry(
+                                bucketNode.path("key").asText(),
+                                bucketNode.path("doc_count").asInt()
+                        ))
+                        .collect(JiveCollectors.toObjectNode()),
+                "aggregations", "group_by_api", "buckets"
+        );
+    }
+
+    /**
+     * Builds the body of {@link #apiCallsQuery}
+     * @return JsonNode the body
+     */
+    private JsonNode apiCallsBody() {
+        return newObjectNode(
+                size,
+                newJsonEntry("aggs", newObjectNode(
+                        newJsonEntry("group_by_api", newObjectNode(
+                                newJsonEntry("terms", newObjectNode(
+                                        newJsonEntry("field", "restfulAPI"),
+                                        newJsonEntry("size", 3)
+                                ))
+                        ))
+                ))
+        );
+    }
+
+    /**
+     * Builds the elastic search query behind {@link #requestsUser}
+     * @param range see {@link #requestsUser}
+     * @param user see {@link #requestsUser}
+     * @return ObjectNode the query and how its result is read
+     */
+    private SearchQuery<ObjectNode> requestsUserQuery(TimeRange range, String user) {
+        return new SearchQuery<>(
+                requestsUserTemplate.fill(range, user),
+                buckets -> Jive
+                        .stream((ArrayNode) buckets)
+                        .map(bucketNode -> Jive.newJsonEntry(
+                                bucketNode.path("key").asText(),
+                                bucketNode.path("doc_count").asInt()
+                        ))
+                        .collect(JiveCollectors.toObjectNode()),
+                "aggregations", "group_by_api", "buckets"
+        );
+    }
+
+    /**
+     * Builds the body of {@link #requestsUserQuery} with placeholders for its parameters
+     * @return JsonNode the body
+     */
+    private JsonNode requestsUserBody() {
+        return newObjectNode(
+                size,
+                newJsonEntry("query", newObjectNode(
+                        newJsonEntry("constant_score", newObjectNode(
+                                newJsonEntry("filter", newObjectNode(
+                                        newJsonEntry("term", newObjectNode(
+                                                newJsonEntry("username", QueryTemplate.param("user"))
+                                        ))
+
+                                ))
+                        ))
+                )),
+                newJsonEntry("aggs", newObjectNode(
+                        newJsonEntry("group_by_api", newObjectNode(
+                                newJsonEntry("terms", newObjectNode(
+                                        newJsonEntry("field", "username")
+                                ))
+                        ))
+                ))
+        );
+    }
+
+    /**
+     * Builds the elastic search query behind {@link #payloadSizeDistribution}
+     * @param range see {@link #payloadSizeDistribution}
+     * @param percents see {@link #payloadSizeDistribution}
+     * @param user see {@link #payloadSizeDistribution}, null for any
+     * @param extension see {@link #payloadSizeDistribution}, null for any
+     * @param month see {@link #payloadSizeDistribution}, null for any
+     * @return ObjectNode the query and how its result is read
+     */
+    private SearchQuery<ObjectNode> payloadSizeDistributionQuery(TimeRange range, List<Double> percents,
+                                                                 String user,
+                                                                 String extension,
+                                                                 DateTime month) {
+        byte[] body;
+        if (user != null) {
+            body = payloadSizesUserTemplate.fill(range, user, percents);
+        } else if (extension != null) {
+            body = payloadSizesExtensionTemplate.fill(range, extension, percents);
+        } else if (month != null) {
+            // the month is in UTC like the months of the date histogram
+            DateTime start = month.withZone(DateTimeZone.UTC).withDayOfMonth(1).withTimeAtStartOfDay();
+            body = payloadSizesMonthTemplate.fill(range, start.getMillis(), start.plusMonths(1).getMillis(), percents);
+        } else {
+            body = payloadSizesTemplate.fill(range, percents);
+        }
+        return new SearchQuery<>(body, PayloadDistribution::of, "aggregations");
+    }
+
+    /**
+     * Builds the body of {@link #payloadSizeDistributionQuery} with a placeholder for its percentiles
+     * @param filter the filter of the requests, null for every request
+     * @return JsonNode the body
+     */
+    private JsonNode payloadSizeDistributionBody(JsonNode filter) {
+        ObjectNode body = newObjectNode(
+                size,
+                newJsonEntry("aggs", PayloadDistribution.aggregations(QueryTemplate.param("percents")))
+        );
+        if (filter != null) {
+            body.set("query", newObjectNode(
+                    newJsonEntry("constant_score", newObjectNode(
+                            newJsonEntry("filter", filter)
+                    ))
+            ));
+        }
+        return body;
+    }
+
+    /**
+     * Builds the query of the rollups that sums the requests, errors and payloads of a range
+     * @param range the range, of whole hours
+     * @param reader reads the result from the sums
+     * @param <T> type of the result
+     * @return T the query and how its result is read
+     */
+    private <T> SearchQuery<T> rollupTotalsQuery(TimeRange range, Function<JsonNode, T> reader) {
+        return new SearchQuery<>(rollupTotalsTemplate.fill(range), reader, "aggregations");
+    }
+
+    /**
+     * Builds the query of the rollups that sums the requests, errors and payloads of each month of a range,
+     * every month between the first and the last is in the result like the date histogram of the entries
+     * @param range the range, of whole hours
+     * @param reader reads the result of a month from its sums
+     * @return ObjectNode the query and how the start of each month and its result are read
+     */
+    private SearchQuery<ObjectNode> rollupMonthsQuery(TimeRange range, Function<JsonNode, JsonNode> reader) {
+        return new SearchQuery<>(
+                rollupMonthsTemplate.fill(range),
+                buckets -> Jive
+                        .stream((ArrayNode) buckets)
+                        .map(bucket -> Jive.newJsonEntry(bucket.path("key").asText(), reader.apply(bucket)))
+                        .collect(JiveCollectors.toObjectNode()),
+                "aggregations", "get_months", "buckets"
+        );
+    }
+
+    /**
+     * Builds the query of the rollups behind {@link #popularExtensions}
+     * @param range the range, of whole hours
+     * @return ObjectNode the query and how the extensions and their requests are read
+     */
+    private SearchQuery<ObjectNode> rollupExtensionsQuery(TimeRange range) {
+        return new SearchQuery<>(
+                rollupExtensionsTemplate.fill(range),
+                buckets -> Jive
+                        .stream((ArrayNode) buckets)
+                        .map(bucket -> Jive.newJsonEntry(
+                                bucket.path("key").asText(),
+                                bucket.path("requests").path("value").asInt()
+                        ))
+                        .collect(JiveCollectors.toObjectNode()),
+                "aggregations", "group_file_extensions", "buckets"
+        );
+    }
+
+    /**
+     * Builds the query of the rollups behind {@link #numberExtensionRequests}
+     * @param range the range, of whole hours
+     * @param extension the extension
+     * @return Integer the query and how its result is read
+     */
+    private SearchQuery<Integer> rollupExtensionQuery(TimeRange range, String extension) {
+        return new SearchQuery<>(
+                rollupExtensionTemplate.fill(range, extension),
+                requests -> requests.path("value").asInt(),
+                "aggregations", "requests"
+        );
+    }
+
+    /**
+     * This method works out the error rate from the sums of rollups, the same as the
+     * error rate of the entries the 4xx and 5xx responses are errors
+     * @param sums the sums of the rollups
+     * @return double the percentage of requests that failed
+     */
+    private static double rollupErrorRate(JsonNode sums) {
+        return ratio(
+                sums.path("status4xx").path("value").asDouble() + sums.path("status5xx").path("value").asDouble(),
+                sums.path("requests").path("value").asDouble()
+        ) * 100;
+    }
+
+    /**
+     * This method divides one count by another, a range or month with no requests has no
+     * average or error rate and is read as 0 like the avg aggregation of no documents
+     * @param count the count divided
+     * @param requests the requests it is divided by
+     * @return double the ratio, 0 when there are no requests
+     */
+    private static double ratio(double count, double requests) {
+        return requests == 0 ? 0 : count / requests;
+    }
+
+    /**
+     * Builds the sums of the rollups of each hour
+     * @return ObjectNode the aggregations
+     */
+    private static ObjectNode rollupSums() {
+        ObjectNode sums = newObjectNode();
+        for (String field : Arrays.asList("requests", "payloadSum", "status4xx", "status5xx")) {
+            sums.set(field, newObjectNode(newJsonEntry("sum", newObjectNode(newJsonEntry("field", field)))));
+        }
+        return sums;
+    }
+
+    /**
+     * Builds the body of {@link #rollupTotalsQuery}
+     * @return JsonNode the body
+     */
+    private JsonNode rollupTotalsBody() {
+        return newObjectNode(
+                size,
+                newJsonEntry("aggs", rollupSums())
+        );
+    }
+
+    /**
+     * Builds the body of {@link #rollupMonthsQuery}
+     * @return JsonNode the body
+     */
+    private JsonNode rollupMonthsBody() {
+        return newObjectNode(
+                size,
+                newJsonEntry("aggs", newObjectNode(
+                        newJsonEntry("get_months", newObjectNode(
+                                newJsonEntry("date_histogram", newObjectNode(
+                                        newJsonEntry("field", "hour"),
+                                        newJsonEntry("interval", "month")
+                                )),
+                                newJsonEntry("aggs", rollupSums())
+                        ))
+                ))
+        );
+    }
+
+    /**
+     * Builds the body of {@link #rollupExtensionsQuery}
+     * @return JsonNode the body
+     */
+    private JsonNode rollupExtensionsBody() {
+        return newObjectNode(
+                size,
+                newJsonEntry("aggs", newObjectNode(
+                        newJsonEntry("group_file_extensions", newObjectNode(
+                                newJsonEntry("terms", newObjectNode(
+                                        newJsonEntry("field", "extension"),
+                                        newJsonEntry("size", 5),
+                                        newJsonEntry("order", newObjectNode(
+                                                newJsonEntry("requests", "desc")
+                                        ))
+                                )),
+                                newJsonEntry("aggs", newObjectNode(
+                                        newJsonEntry("requests", newObjectNode(
+                                                newJsonEntry("sum", newObjectNode(
+                                                        newJsonEntry("field", "requests")
+                                                ))
+                                        ))
+                                ))
+                        ))
+                ))
+        );
+    }
+
+    /**
+     * Builds the body of {@link #rollupExtensionQuery} with placeholders for its parameters
+     * @return JsonNode the body
+     */
+    private JsonNode rollupExtensionBody() {
+        return newObjectNode(
+                size,
+                newJsonEntry("query", newObjectNode(
+                        newJsonEntry("constant_score", newObjectNode(
+                                newJsonEntry("filter", newObjectNode(
+                                        newJsonEntry("term", newObjectNode(
+                                                newJsonEntry("extension", QueryTemplate.param("extension"))
+                                        ))
+                                ))
+                        ))
+                )),
+                newJsonEntry("aggs", newObjectNode(
+                        newJsonEntry("requests", newObjectNode(
+                                newJsonEntry("sum", newObjectNode(
+                                        newJsonEntry("field", "requests")
+                                ))
+                        ))
+                ))
+        );
+    }
+
+    /**
+     * This method is use to set up and perform the http request/ elastic search query
+     * which then reads the result out of the response to that request
+     * @param query give it the query and how its result is read
+     * @param <T> type of the result
+     * @return T the result once the response arrives
+     */
+    private <T> CompletableFuture<T> search(SearchQuery<T> query) {
+        return search(endpoint, query);
+    }
+
+    /**
+     * This method searches an index other than the entries, such as the rollups
+     * @param searchEndpoint the index and type searched
+     * @param query give it the query and how its result is read
+     * @param <T> type of the result
+     * @return T the result once the response arrives
+     */
+    private <T> CompletableFuture<T> search(String searchEndpoint, SearchQuery<T> query) {
+        return performRequest(
+                searchEndpoint + "_search",
+                params(Arrays.asList(query.getFilterPath())),
+                query.getBody()
+        )
+                .thenApply(response -> read(response, query));
+    }
+
+    /**
+     * This method sends several searches in one multi search request and reads each
+     * result, a search that fails is answered with its error instead of failing the others
+     * @param names the names of the dashboard metrics to search for
+     * @param range only the requests in this range
+     * @return ObjectNode each name with its result once the response arrives
+     */
+    private CompletableFuture<ObjectNode> multiSearch(List<String> names, TimeRange range) {
+        List<SearchQuery<?>> queries = names
+                .stream()
+                .map(name -> dashboardQueries.get(name).apply(range))
+                .collect(Collectors.toList());
+        // every search is a header line then a body line, like the bulk API
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        for (SearchQuery<?> query : queries) {
+            // an empty header searches the index and type of the endpoint
+            body.write(multiSearchHeader, 0, multiSearchHeader.length);
+            body.write(wireFormat.getBulkSeparator());
+            body.write(query.getBody(), 0, query.getBody().length);
+            body.write(wireFormat.getBulkSeparator());
+        }
+        // only the fields every search needs are sent back, a search that keeps all of its
+        // response means nothing can be left out
+        List<String> filterPath = new ArrayList<>();
+        if (queries.stream().allMatch(query -> query.getFilterPath().length > 0)) {
+            // took is kept so no response is left out and the order still matches the searches
+            filterPath.add("responses.took");
+            filterPath.add("responses.error");
+            queries.forEach(query -> Arrays
+                    .stream(query.getFilterPath())
+                    .forEach(filter -> filterPath.add("responses." + filter))
+            );
+        }
+        return performRequest(
+                endpoint + "_msearch",
+                params(filterPath),
+                body.toByteArray()
+        )
+                .thenApply(this::readTree)
+                .thenApply(response -> {
+                    // responses come back in the same order the searches were sent
+                    JsonNode responses = response.path("responses");
+                    ObjectNode results = newObjectNode();
+                    for (int i = 0; i < queries.size(); i++) {
+                        JsonNode item = responses.path(i);
+                        if (item.has("error")) {
+                            results.set(names.get(i), newObjectNode(newJsonEntry("error", item.path("error"))));
+                        } else {
+                            results.set(names.get(i), objectMapper.valueToTree(queries.get(i).read(item)));
+                        }
+                    }
+                    return results;
+                });
+    }
+
+    /**
+     * This method sends a search to elastic search without waiting for it, a search is only
+     * read so it is sent again to another node when the first is slow to answer
+     * @param path the path of the request
+     * @param params the parameters of the request
+     * @param body the body of the request in the wire format
+     * @return Response the response once it arrives
+     */
+    private CompletableFuture<Response> performRequest(String path, Map<String, String> params, byte[] body) {
+        return requests.performRequest("GET", path, params, body, wireFormat.getContentType())
+                .thenApply(response -> {
+                    // the length ES gave, the body is read as it is streamed so it is not counted
+                    long length = response.getEntity().getContentLength();
+                    if (length >= 0) {
+                        responseBytes.update(length);
+                    }
+                    return response;
+                });
+    }
+
+    /**
+     * This method builds the parameters of a search, asking for the wire format
+     * and keeping only the fields of the response in the filter path
+     * @param filterPath the dotted paths of the fields to keep, empty to keep all of them
+     * @return Map<String, String> the parameters
+     */
+    private Map<String, String> params(List<String> filterPath) {
+        if (filterPath.isEmpty()) {
+            return formatParams;
+        }
+        Map<String, String> params = new HashMap<>(formatParams);
+        params.put("filter_path", String.join(",", filterPath));
+        return params;
+    }
+
+    /**
+     * This method streams the result of a search out of its response
+     * @param response give the response from the request
+     * @param query the query that was searched
+     * @param <T> type of the result
+     * @return T the result
+     */
+    private <T> T read(Response response, SearchQuery<T> query) {
+        try (InputStream in = response.getEntity().getContent()) {
+            return query.read(objectMapper, in);
+        } catch (IOException e) {
+            throw new CompletionException(e);
+        }
+    }
+
+    /**
+     * This method opens the body of a response to be streamed, which the reader must close
+     * @param response give the response from the request
+     * @return InputStream the body
+     */
+    private static InputStream content(Response response) {
+        try {
+            return response.getEntity().getContent();
+        } catch (IOException e) {
+            throw new CompletionException(e);
+        }
+    }
+
+    /**
+     * This method reads the whole body of a response
+     * @param response give the response from the request
+     * @return JsonNode return json node of the body
+     */
+    private JsonNode readTree(Response response) {
+        try (InputStream in = response.getEntity().getContent()) {
+            return objectMapper.readTree(in);
+        } catch (IOException e) {
+            throw new CompletionException(e);
+        }
+    }
+
+    /**
+     * Creates a future that has already failed, for errors found before a request is sent
+     * @param error what went wrong
+     * @param <T> type of the future
+     * @return CompletableFuture<T> the failed future
+     */
+    private static <T> CompletableFuture<T> failedFuture(Throwable error) {
+        CompletableFuture<T> failed = new CompletableFuture<>();
+        failed.completeExceptionally(error);
+        return failed;
+    }
+}
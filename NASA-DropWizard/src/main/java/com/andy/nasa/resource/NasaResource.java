@@ -1,31 +1,48 @@
 package com.andy.nasa.resource;
 
+import com.andy.nasa.aggregate.MaterializedAggregates;
+import com.andy.nasa.aggregate.Rollups;
+import com.andy.nasa.aggregate.SpaceSaving;
+import com.andy.nasa.aggregate.UniqueClients;
+import com.andy.nasa.cache.ResultCache;
+import com.andy.nasa.cache.SingleFlight;
+import com.andy.nasa.configuration.configs.TimeoutConfig;
+import com.andy.nasa.elasticsearch.WireFormat;
 import com.andy.nasa.event.DatabaseHandler;
-import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
 import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.io.CountingOutputStream;
 import com.zackehh.jackson.Jive;
 import com.zackehh.jackson.stream.JiveCollectors;
-import io.dropwizard.jackson.Jackson;
+import io.dropwizard.jersey.params.DateTimeParam;
 import io.swagger.annotations.Api;
-import org.apache.http.nio.entity.NStringEntity;
 import org.elasticsearch.client.Response;
 import org.elasticsearch.client.RestClient;
+import org.joda.time.DateTime;
 
 import javax.ws.rs.*;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
 import javax.ws.rs.core.MediaType;
-import java.io.InputStream;
+import javax.ws.rs.core.StreamingOutput;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 
 import static com.zackehh.jackson.Jive.newJsonEntry;
-import static com.zackehh.jackson.Jive.newObjectNode;
 
 /**
  * This resource class is the API's that can be called with the dropwizard application
+ * every query API is asynchronous, the request thread is handed back while the backend
+ * works and the response is resumed when its query completes
  * Created by awaldman on 4/18/17.
  */
 @Path("/")
@@ -33,29 +50,99 @@ import static com.zackehh.jackson.Jive.newObjectNode;
 @Produces(MediaType.APPLICATION_JSON)
 public class NasaResource {
 
-    // rest client for ES
-    private final RestClient restClient;
+    // answers the queries the aggregates and sketches cannot
+    private final QueryBackend backend;
 
     // database handler to allow writing to database
     private final DatabaseHandler databaseHandler;
 
-    // this is to map json values
-    private final ObjectMapper objectMapper = Jackson.newObjectMapper();
+    // results of earlier queries, reused until more data is ingested
+    private final ResultCache resultCache;
 
-    // end point for index and indices
-    private final String endpoint = "/nasa/log/";
+    // aggregates kept up to date by ingestion, used instead of the backend once they are ready
+    private final MaterializedAggregates aggregates;
 
-    // common field in query taken as global for removal of redundant code
-    private final Map.Entry<String, JsonNode> size = newJsonEntry("size", 0);
+    // sketches of each day's clients, used instead of the backend once they are ready
+    private final UniqueClients uniqueClients;
+
+    // how long each API waits on the backend before giving up
+    private final TimeoutConfig timeoutConfig;
+
+    // where how long the backend takes and how big its answers are is registered for each API
+    private final MetricRegistry metrics;
+
+    // header giving the most a count answered from the sketches may be over
+    static final String COUNT_ERROR_HEADER = "X-Count-Error";
+
+    // header giving the standard error of an estimate, relative to the real count
+    static final String STANDARD_ERROR_HEADER = "X-Standard-Error";
+
+    // warning that a result is stale, given with the last result when the backend fails or is too slow
+    static final String WARNING_HEADER = "Warning";
+    static final String STALE_WARNING = "110 - \"Response is Stale\"";
+
+    // percentiles of the payload size distribution when none are asked for
+    private static final List<Double> DEFAULT_PERCENTS = Collections.unmodifiableList(Arrays.asList(50.0, 90.0, 99.0, 99.9));
+
+    // the most terms one query or page asks every shard for
+    static final int MAX_TERMS = 10000;
 
     /**
      * This creates an instances of the NasaResource passing the rest client for es5
-     * this allows me to interact over http to elastic search
+     * this allows me to interact over http to elastic search using json
      * @param restClient instance of ES rest client for local use
      */
     public NasaResource(RestClient restClient, DatabaseHandler databaseHandler) {
-        this.restClient = restClient;
+        this(
+                new ElasticSearchBackend(restClient, WireFormat.JSON, new Rollups(restClient, WireFormat.JSON)),
+                databaseHandler,
+                new ResultCache(1000, 30, databaseHandler::getGeneration, new SingleFlight()),
+                new MaterializedAggregates(),
+                new UniqueClients(),
+                TimeoutConfig.of(30000)
+        );
+    }
+
+    /**
+     * This creates an instances of the NasaResource answering from a backend
+     * @param backend answers the queries, from elastic search or from columns in memory
+     * @param resultCache cache for the results of the queries
+     * @param aggregates aggregates that answer some of the API's without the backend once they are ready
+     * @param uniqueClients sketches that estimate the unique clients once they are ready
+     * @param timeoutConfig how long each API waits for its query
+     */
+    public NasaResource(QueryBackend backend,
+                        DatabaseHandler databaseHandler,
+                        ResultCache resultCache,
+                        MaterializedAggregates aggregates,
+                        UniqueClients uniqueClients,
+                        TimeoutConfig timeoutConfig) {
+        this(backend, databaseHandler, resultCache, aggregates, uniqueClients, timeoutConfig, new MetricRegistry());
+    }
+
+    /**
+     * This creates an instances of the NasaResource answering from a backend
+     * @param backend answers the queries, from elastic search or from columns in memory
+     * @param resultCache cache for the results of the queries
+     * @param aggregates aggregates that answer some of the API's without the backend once they are ready
+     * @param uniqueClients sketches that estimate the unique clients once they are ready
+     * @param timeoutConfig how long each API waits for its query
+     * @param metrics where the latency of the backend and the size of its answers are registered for each API
+     */
+    public NasaResource(QueryBackend backend,
+                        DatabaseHandler databaseHandler,
+                        ResultCache resultCache,
+                        MaterializedAggregates aggregates,
+                        UniqueClients uniqueClients,
+                        TimeoutConfig timeoutConfig,
+                        MetricRegistry metrics) {
+        this.metrics = metrics;
+        this.backend = backend;
         this.databaseHandler = databaseHandler;
+        this.resultCache = resultCache;
+        this.aggregates = aggregates;
+        this.uniqueClients = uniqueClients;
+        this.timeoutConfig = timeoutConfig;
     }
 
     /**
@@ -71,454 +158,610 @@ public class NasaResource {
 
     /**
      * This API queries for the top 5 users
-     * @return List<String> list of the top 5 users
-     * @throws Exception throws language exception
+     * @param range only the requests in this range
+     * @param exact true to ask the backend rather than answer from the sketches
+     * @param asyncResponse resumed with List<String> list of the top 5 users
      */
     @GET
     @Path("/top-five-users")
-    public List<String> topFiveUsers() throws Exception {
-        JsonNode myQuery = newObjectNode(
-            size,
-            newJsonEntry("aggs", newObjectNode(
-                newJsonEntry("group_by_username", newObjectNode(
-                    newJsonEntry("terms", newObjectNode(
-                        newJsonEntry("field", "username"),
-                        newJsonEntry("size", 5)
-                    ))
-                ))
-            ))
+    public void topFiveUsers(@BeanParam TimeRange range,
+                             @QueryParam("exact") boolean exact,
+                             @Suspended AsyncResponse asyncResponse) {
+        if (rejectInverted(asyncResponse, range)) {
+            return;
+        }
+        respondRanked(
+                asyncResponse,
+                range,
+                exact,
+                () -> aggregates.topUsers(5),
+                NasaResource::items,
+                "top-five-users",
+                () -> backend.topUsers(range, 5),
+                range.getFrom(),
+                range.getTo()
         );
-        // input stream returning the response in bytes form the request
-        InputStream in = performQueryRequest(myQuery, "search").getEntity().getContent();
-        // getting the path to the buckets from the input stream
-        JsonNode buckets = getPath(in, "aggregations", "group_by_username", "buckets");
-        // turning the buckets in to an json array
-        ArrayNode bucketArray = (ArrayNode) buckets;
-        // use a stream of each bucket returned getting the value of key and collecting it in list form
-        return Jive
-                .stream(bucketArray)
-                .map(bucketNode -> bucketNode.path("key").asText())
-                .collect(Collectors.toList());
     }
 
     /**
      * This API queries for the top n amount of users and returns a list
      * in descending order from most seen user
-     * @param nUsers the amount of users wanted returning
-     * @return List<String>
-     * @throws Exception language exception
+     * @param nUsers the amount of users wanted returning, or in each page when paging
+     * @param range only the requests in this range
+     * @param exact true to ask the backend rather than answer from the sketches
+     * @param cursor pages through every user and their requests when given, empty for the first page
+     * @param asyncResponse resumed with List<String>, or the page streamed when paging
      */
     @GET
     @Path("/top-n-users/{nUsers}")
-    public List<String> topNUsers(@PathParam("nUsers") Integer nUsers) throws Exception {
-        JsonNode myQuery = newObjectNode(
-                size,
-                newJsonEntry("aggs", newObjectNode(
-                        newJsonEntry("group_by_username", newObjectNode(
-                                newJsonEntry("terms", newObjectNode(
-                                        newJsonEntry("field", "username"),
-                                        newJsonEntry("size", nUsers)
-                                ))
-                        ))
-                ))
+    public void topNUsers(@PathParam("nUsers") Integer nUsers,
+                          @BeanParam TimeRange range,
+                          @QueryParam("exact") boolean exact,
+                          @QueryParam("cursor") String cursor,
+                          @Suspended AsyncResponse asyncResponse) {
+        if (rejectInverted(asyncResponse, range)) {
+            return;
+        }
+        if (cursor != null) {
+            respondPage(asyncResponse, QueryBackend.Ranking.USERS, "top-n-users", range, cursor, nUsers);
+            return;
+        }
+        if (nUsers < 1 || nUsers > MAX_TERMS) {
+            // every shard would build and send back this many buckets
+            asyncResponse.resume(new BadRequestException(
+                    "Between 1 and " + MAX_TERMS + " users can be asked for, page through more with a cursor"
+            ));
+            return;
+        }
+        respondRanked(
+                asyncResponse,
+                range,
+                exact,
+                () -> aggregates.topUsers(nUsers),
+                NasaResource::items,
+                "top-n-users",
+                () -> backend.topUsers(range, nUsers),
+                nUsers,
+                range.getFrom(),
+                range.getTo()
         );
-        InputStream in = performQueryRequest(myQuery, "search").getEntity().getContent();
-        JsonNode buckets = getPath(in, "aggregations", "group_by_username", "buckets");
-        ArrayNode bucketArray = (ArrayNode) buckets;
-        // use a stream of each bucket returned getting the value of key and collecting it in list form
-        return Jive
-                .stream(bucketArray)
-                .map(bucketNode -> bucketNode.path("key").asText())
-                .collect(Collectors.toList());
     }
 
     /**
      * This API will query for the average payload size all of all the entries in the DB
-     * @return float of the average payload size
-     * @throws Exception language exception
+     * @param range only the requests in this range
+     * @param asyncResponse resumed with the average payload size
      */
     @GET
     @Path("/average-payload-size")
-    public double averagePayloadSize() throws Exception {
-        JsonNode myQuery = newObjectNode(
-            size,
-                newJsonEntry("aggs", newObjectNode(
-                    newJsonEntry("average_payloadsize", newObjectNode(
-                        newJsonEntry("avg", newObjectNode(
-                            newJsonEntry("field", "payloadSize")
-                        ))
-                    ))
-                ))
+    public void averagePayloadSize(@BeanParam TimeRange range, @Suspended AsyncResponse asyncResponse) {
+        if (rejectInverted(asyncResponse, range)) {
+            return;
+        }
+        respond(
+                asyncResponse,
+                range,
+                aggregates::averagePayloadSize,
+                "average-payload-size",
+                () -> backend.averagePayloadSize(range)
         );
-        // content of the response from the query request
-        InputStream in = performQueryRequest(myQuery, "search").getEntity().getContent();
-        // get the information from the specified path from the input stream (response)
-        JsonNode averagePayloadSize = getPath(in, "aggregations", "average_payloadsize");
-        // returning the value of the average payload size
-        return averagePayloadSize.path("value").asDouble();
     }
 
     /**
      * This API will return the users that request the most amount of data
-     * @return ObjectNode string in json form of the user with amount of data
-     * @throws Exception language exception
+     * @param range only the requests in this range
+     * @param exact true to ask the backend rather than answer from the sketches
+     * @param cursor pages through every user and their data when given, empty for the first page
+     * @param pageSize how many users each page is meant to hold
+     * @param asyncResponse resumed with ObjectNode string in json form of the user with amount of data,
+     *                      or the page streamed when paging
      */
     @GET
     @Path("/users/data")
-    public ObjectNode getUsersMostData() throws Exception {
-        JsonNode myQuery = newObjectNode(
-                size,
-                newJsonEntry("aggs", newObjectNode(
-                        newJsonEntry("by_user", newObjectNode(
-                                newJsonEntry("terms", newObjectNode(
-                                        newJsonEntry("field", "username"),
-                                        newJsonEntry("order", newObjectNode(
-                                                newJsonEntry("total_payloadSize", "desc")
-                                        )),
-                                        newJsonEntry("size", 5)
-                                )),
-                                newJsonEntry("aggs", newObjectNode(
-                                        newJsonEntry("total_payloadSize" , newObjectNode(
-                                                newJsonEntry("sum", newObjectNode(
-                                                        newJsonEntry("field", "payloadSize")
-                                                ))
-                                        ))
-                                ))
-                        ))
-                ))
+    public void getUsersMostData(@BeanParam TimeRange range,
+                                 @QueryParam("exact") boolean exact,
+                                 @QueryParam("cursor") String cursor,
+                                 @QueryParam("size") @DefaultValue("1000") int pageSize,
+                                 @Suspended AsyncResponse asyncResponse) {
+        if (rejectInverted(asyncResponse, range)) {
+            return;
+        }
+        if (cursor != null) {
+            respondPage(asyncResponse, QueryBackend.Ranking.USERS_DATA, "users/data", range, cursor, pageSize);
+            return;
+        }
+        respondRanked(
+                asyncResponse,
+                range,
+                exact,
+                aggregates::usersMostData,
+                NasaResource::counts,
+                "users/data",
+                () -> backend.usersMostData(range),
+                range.getFrom(),
+                range.getTo()
         );
-        // content of the response from the query request
-        InputStream in = performQueryRequest(myQuery, "search").getEntity().getContent();
-        // get the information from the specified path from the input stream (response)
-        JsonNode buckets = getPath(in, "aggregations", "by_user", "buckets");
-        // returning the value of the average payload size
-        ArrayNode arrayNode = (ArrayNode) buckets;
-
-        return Jive
-                .stream(arrayNode)
-                .map(bucket -> Jive.newJsonEntry(
-                        bucket.path("key").asText(),
-                        bucket.path("total_payloadSize").path("value").asInt()
-                ))
-                .collect(JiveCollectors.toObjectNode());
-
     }
 
     /**
-     * This API will return the number of all the clients (non-duplicates)
-     * @return Integer number of unique clients
-     * @throws Exception language exception
+     * This API will return the number of all the clients (non-duplicates), estimated from
+     * the sketch of each day's clients once they are ready with the standard error of the
+     * estimate in the standard error header
+     * @param range only count requests in this range, to the day when estimated
+     * @param exact true to ask the backend rather than estimate from the sketches
+     * @param asyncResponse resumed with Integer number of unique clients
      */
     @GET
     @Path("/clients/unique")
-    public Integer getUniqueClients() throws Exception {
-        JsonNode myQuery = newObjectNode(
-                size,
-                newJsonEntry("aggs", newObjectNode(
-                        newJsonEntry("distinct_clients", newObjectNode(
-                                newJsonEntry("cardinality", newObjectNode(
-                                        newJsonEntry("field", "client")
-                                ))
-                        ))
-                ))
-        );
-        // content of the response from the query request
-        InputStream in = performQueryRequest(myQuery, "search").getEntity().getContent();
-        // get the information from the specified path from the input stream (response)
-        JsonNode clients = getPath(in, "aggregations", "distinct_clients");
-        return clients.path("value").asInt();
+    public void getUniqueClients(@BeanParam TimeRange range,
+                                 @QueryParam("exact") boolean exact,
+                                 @Suspended AsyncResponse asyncResponse) {
+        if (rejectInverted(asyncResponse, range)) {
+            return;
+        }
+        if (!exact && uniqueClients.isReady()) {
+            asyncResponse.resume(javax.ws.rs.core.Response
+                    .ok((int) uniqueClients.estimate(range.getFromTime(), range.getToTime()))
+                    .header(STANDARD_ERROR_HEADER, uniqueClients.getStandardError())
+                    .build()
+            );
+        } else {
+            respond(
+                    asyncResponse,
+                    "clients/unique",
+                    () -> backend.uniqueClients(range),
+                    range.getFrom(),
+                    range.getTo()
+            );
+        }
     }
 
     /**
      * This API will return how many requests were sent every month
-     * @return ObjectNode string in json format of month and amount of requests
-     * @throws Exception language exception
+     * @param asyncResponse resumed with ObjectNode string in json format of month and amount of requests
      */
     @GET
     @Path("/months/requests")
-    public ObjectNode requestsPerMonth() throws Exception {
-        JsonNode myQuery = newObjectNode(
-                size,
-                newJsonEntry("aggs", newObjectNode(
-                        newJsonEntry("get_months", newObjectNode(
-                                newJsonEntry("date_histogram", newObjectNode(
-                                        newJsonEntry("field", "datetime"),
-                                        newJsonEntry("interval", "month")
-                                ))
-                        ))
-                ))
+    public void requestsPerMonth(@BeanParam TimeRange range, @Suspended AsyncResponse asyncResponse) {
+        if (rejectInverted(asyncResponse, range)) {
+            return;
+        }
+        respond(
+                asyncResponse,
+                range,
+                aggregates::requestsPerMonth,
+                "months/requests",
+                () -> backend.requestsPerMonth(range)
         );
-        // content of the response from the query request
-        InputStream in = performQueryRequest(myQuery, "search").getEntity().getContent();
-        // get the information from the specified path from the input stream (response)
-        JsonNode buckets = getPath(in, "aggregations", "get_months", "buckets");
-        // returning the value of the average payload size
-        ArrayNode bucketArray = (ArrayNode) buckets;
-
-        return Jive
-                .stream(bucketArray)
-                .map(bucket -> Jive.newJsonEntry(
-                    bucket.path("key").asText(),
-                    bucket.path("doc_count")
-                ))
-                .collect(JiveCollectors.toObjectNode());
     }
 
     /**
      * This API will return the error rate for a request of data from NASA
-     * @return double the error rate of all the requests made
-     * @throws Exception language exception
+     * @param asyncResponse resumed with the error rate of all the requests made
      */
     @GET
     @Path("/error/rate")
-    public double errorRate() throws Exception{
-        Response response = restClient.performRequest(
-                "GET",
-                endpoint + "_count"
-        );
-        // content of the response from the query request
-        InputStream in = response.getEntity().getContent();
-        // get the information from the specified path from the input stream (response)
-        Integer totalDocs = getPath(in, "count").asInt();
-
-        JsonNode myQueryTwo = newObjectNode(
-                size,
-                newJsonEntry("aggs", newObjectNode(
-                        newJsonEntry("filter_responseCode", newObjectNode(
-                                newJsonEntry("filter", newObjectNode(
-                                        newJsonEntry("range", newObjectNode(
-                                                newJsonEntry("responseCode", newObjectNode(
-                                                        newJsonEntry("gte", 400),
-                                                        newJsonEntry("lte", 599)
-                                                ))
-                                        ))
-                                ))
-                        ))
-                ))
+    public void errorRate(@BeanParam TimeRange range, @Suspended AsyncResponse asyncResponse) {
+        if (rejectInverted(asyncResponse, range)) {
+            return;
+        }
+        respond(
+                asyncResponse,
+                range,
+                aggregates::errorRate,
+                "error/rate",
+                () -> backend.errorRate(range)
         );
-        // content of the response from the query request
-        InputStream inTwo = performQueryRequest(myQueryTwo, "search").getEntity().getContent();
-        // get the information from the specified path from the input stream (response)
-        Double errorDocTotal = getPath(inTwo, "aggregations", "filter_responseCode", "doc_count").asDouble();
-        return (errorDocTotal / totalDocs) * 100;
     }
 
     /**
      * This API will return the error rate for each month
-     * @return ObjectNode string in json format with the month and amount of failed requests
-     * @throws Exception language exception
+     * @param asyncResponse resumed with ObjectNode string in json format with the month and amount of failed requests
      */
     @GET
     @Path("/error/rate/month")
-    public ObjectNode errorRatePerMonth() throws Exception {
-        JsonNode myQuery = newObjectNode(
-                size,
-                newJsonEntry("aggs", newObjectNode(
-                        newJsonEntry("get_months", newObjectNode(
-                                newJsonEntry("date_histogram", newObjectNode(
-                                        newJsonEntry("field", "datetime"),
-                                        newJsonEntry("interval", "month")
-                                )),
-                                newJsonEntry("aggs", newObjectNode(
-                                        newJsonEntry("filter_responseCode", newObjectNode(
-                                                newJsonEntry("filter", newObjectNode(
-                                                        newJsonEntry("range", newObjectNode(
-                                                                newJsonEntry("responseCode", newObjectNode(
-                                                                        newJsonEntry("gte", 400),
-                                                                        newJsonEntry("lte", 599)
-                                                                ))
-                                                        ))
-                                                ))
-                                        ))
-                                ))
-                        ))
-                ))
+    public void errorRatePerMonth(@BeanParam TimeRange range, @Suspended AsyncResponse asyncResponse) {
+        if (rejectInverted(asyncResponse, range)) {
+            return;
+        }
+        respond(
+                asyncResponse,
+                range,
+                aggregates::errorRatePerMonth,
+                "error/rate/month",
+                () -> backend.errorRatePerMonth(range)
         );
-        // content of the response from the query request
-        InputStream in = performQueryRequest(myQuery, "search").getEntity().getContent();
-        // get the information from the specified path from the input stream (response)
-        JsonNode buckets = getPath(in, "aggregations", "get_months", "buckets");
-        // returning the value of the average payload size
-        ArrayNode bucketArray = (ArrayNode) buckets;
-
-        return Jive
-                .stream(bucketArray)
-                .map(bucketNode -> Jive.newJsonEntry(
-                        bucketNode.path("key").asText(),
-                        (bucketNode.path("filter_responseCode").path("doc_count").asDouble()
-                                / bucketNode.path("doc_count").asDouble()) * 100
-                ))
-                .collect(JiveCollectors.toObjectNode());
     }
 
     /**
      * This API will return the most popular extensions from resources requested
-     * @return ObjectNode string in json format holding extension and how many of them
-     * @throws Exception language exception
+     * @param range only the requests in this range
+     * @param exact true to ask the backend rather than answer from the sketches
+     * @param cursor pages through every extension and their requests when given, empty for the first page
+     * @param pageSize how many extensions each page is meant to hold
+     * @param asyncResponse resumed with ObjectNode string in json format holding extension and how many of them,
+     *                      or the page streamed when paging
      */
     @GET
     @Path("/extensions/popular")
-    public ObjectNode getPopularExtensions() throws Exception {
-        JsonNode myQuery = newObjectNode(
-                size,
-                newJsonEntry("aggs", newObjectNode(
-                        newJsonEntry("group_file_extensions", newObjectNode(
-                                newJsonEntry("terms", newObjectNode(
-                                        newJsonEntry("field", "fileExtension"),
-                                        newJsonEntry("size", 5)
-                                ))
-                        ))
-                ))
+    public void getPopularExtensions(@BeanParam TimeRange range,
+                                     @QueryParam("exact") boolean exact,
+                                     @QueryParam("cursor") String cursor,
+                                     @QueryParam("size") @DefaultValue("1000") int pageSize,
+                                     @Suspended AsyncResponse asyncResponse) {
+        if (rejectInverted(asyncResponse, range)) {
+            return;
+        }
+        if (cursor != null) {
+            respondPage(asyncResponse, QueryBackend.Ranking.EXTENSIONS, "extensions/popular", range, cursor, pageSize);
+            return;
+        }
+        respondRanked(
+                asyncResponse,
+                range,
+                exact,
+                aggregates::popularExtensions,
+                NasaResource::counts,
+                "extensions/popular",
+                () -> backend.popularExtensions(range),
+                range.getFrom(),
+                range.getTo()
         );
-        // content of the response from the query request
-        InputStream in = performQueryRequest(myQuery, "search").getEntity().getContent();
-        // get the information from the specified path from the input stream (response)
-        JsonNode buckets = getPath(in, "aggregations", "group_file_extensions", "buckets");
-        // returning the value of the average payload size
-        ArrayNode bucketArray = (ArrayNode) buckets;
-        return Jive
-                .stream(bucketArray)
-                .map(bucketNode -> Jive.newJsonEntry(
-                        bucketNode.path("key").asText(),
-                        bucketNode.path("doc_count").asInt()
-                ))
-                .collect(JiveCollectors.toObjectNode());
     }
 
     /**
      * This API will return number of times an extension was requested
      * @param extension the extension to query on how many times a resource with it was requested
-     * @return Integer the amount of time the extension was found on a resource
-     * @throws Exception language exception
+     * @param range only the requests in this range
+     * @param asyncResponse resumed with the amount of time the extension was found on a resource
      */
     @GET
     @Path("/extensions/{extension}")
-    public Integer getNumberExtensionRequest(@PathParam("extension") String extension) throws Exception{
-        JsonNode myQuery = newObjectNode(
-                newJsonEntry("query", newObjectNode(
-                        newJsonEntry("constant_score", newObjectNode(
-                                newJsonEntry("filter", newObjectNode(
-                                        newJsonEntry("term", newObjectNode(
-                                                newJsonEntry("fileExtension", extension)
-                                        ))
-                                ))
-                        ))
-                ))
+    public void getNumberExtensionRequest(@PathParam("extension") String extension,
+                                          @BeanParam TimeRange range,
+                                          @Suspended AsyncResponse asyncResponse) {
+        if (rejectInverted(asyncResponse, range)) {
+            return;
+        }
+        respond(
+                asyncResponse,
+                range,
+                null,
+                "extensions",
+                () -> backend.numberExtensionRequests(range, extension),
+                extension
         );
-        // content of the response from the query request
-        InputStream in = performQueryRequest(myQuery, "count").getEntity().getContent();
-        return getPath(in, "count").intValue();
     }
 
     /**
      * This API will get all the restAPI calls and how many times each one was used
      * only three as they are the only ones that matter
-     * @return ObjectNode string in json format of api calls & times that api appeared
-     * @throws Exception language exception
+     * @param range only the requests in this range
+     * @param cursor pages through every api call and their requests when given, empty for the first page
+     * @param pageSize how many api calls each page is meant to hold
+     * @param asyncResponse resumed with ObjectNode string in json format of api calls & times that api appeared,
+     *                      or the page streamed when paging
      */
     @GET
     @Path("/api/call")
-    public ObjectNode getApiCalls() throws Exception {
-        JsonNode myQuery = newObjectNode(
-                size,
-                newJsonEntry("aggs", newObjectNode(
-                        newJsonEntry("group_by_api", newObjectNode(
-                                newJsonEntry("terms", newObjectNode(
-                                        newJsonEntry("field", "restfulAPI"),
-                                        newJsonEntry("size", 3)
-                                ))
-                        ))
-                ))
-        );
-        InputStream in = performQueryRequest(myQuery, "search").getEntity().getContent();
-        // get the information from the specified path from the input stream (response)
-        JsonNode buckets = getPath(in, "aggregations", "group_by_api", "buckets");
-        // returning the value of the average payload size
-        ArrayNode bucketArray = (ArrayNode) buckets;
-        return Jive
-                .stream(bucketArray)
-                .map(bucketNode -> Jive.newJsonEntry(
-                        bucketNode.path("key").asText(),
-                        bucketNode.path("doc_count").asInt()
-                ))
-                .collect(JiveCollectors.toObjectNode());
+    public void getApiCalls(@BeanParam TimeRange range,
+                            @QueryParam("cursor") String cursor,
+                            @QueryParam("size") @DefaultValue("1000") int pageSize,
+                            @Suspended AsyncResponse asyncResponse) {
+        if (rejectInverted(asyncResponse, range)) {
+            return;
+        }
+        if (cursor != null) {
+            respondPage(asyncResponse, QueryBackend.Ranking.API_CALLS, "api/call", range, cursor, pageSize);
+            return;
+        }
+        respond(asyncResponse, range, aggregates::apiCalls, "api/call", () -> backend.apiCalls(range));
     }
 
     /**
      * This API is used to get the number of requests a given user makes to the NASA data
      * @param user the user getting queried
-     * @return ObjectNode string in json format with user and number of requests made
-     * @throws Exception language exception
+     * @param range only the requests in this range
+     * @param asyncResponse resumed with ObjectNode string in json format with user and number of requests made
      */
     @GET
     @Path("/requests/{user}")
-    public ObjectNode getRequestsUser(@PathParam("user") String user) throws Exception{
-        JsonNode myQuery = newObjectNode(
-                size,
-                newJsonEntry("query", newObjectNode(
-                        newJsonEntry("constant_score", newObjectNode(
-                                newJsonEntry("filter", newObjectNode(
-                                        newJsonEntry("term", newObjectNode(
-                                                newJsonEntry("username", user)
-                                        ))
-
-                                ))
-                        ))
-                )),
-                newJsonEntry("aggs", newObjectNode(
-                        newJsonEntry("group_by_api", newObjectNode(
-                                newJsonEntry("terms", newObjectNode(
-                                        newJsonEntry("field", "username")
-                                ))
-                        ))
-                ))
+    public void getRequestsUser(@PathParam("user") String user,
+                                @BeanParam TimeRange range,
+                                @Suspended AsyncResponse asyncResponse) {
+        if (rejectInverted(asyncResponse, range)) {
+            return;
+        }
+        respond(
+                asyncResponse,
+                range,
+                // there are too many users to keep the requests of each of them
+                null,
+                "requests",
+                () -> backend.requestsUser(range, user),
+                user
         );
-        // content of the response from the query request
-        InputStream in = performQueryRequest(myQuery, "search").getEntity().getContent();
-        // get the information from the specified path from the input stream (response)
-        JsonNode buckets = getPath(in, "aggregations", "group_by_api", "buckets");
-        // returning the value of the average payload size
-        ArrayNode bucketArray = (ArrayNode) buckets;
-        return Jive
-                .stream(bucketArray)
-                .map(bucketNode -> Jive.newJsonEntry(
-                        bucketNode.path("key").asText(),
-                        bucketNode.path("doc_count").asInt()
-                ))
+    }
+
+    /**
+     * This API will return how the payload sizes are spread, the count, min, max and mean,
+     * the size at each percentile and a histogram of sizes in powers of two, for every request
+     * or only those of one user, one extension or one month. Histograms are kept at ingestion
+     * overall, by extension and by month, per user it is always asked of ES as there are too
+     * many users to keep a histogram each
+     * @param percents the percentiles wanted, 50, 90, 99 and 99.9 when none are given
+     * @param user only the requests of this user
+     * @param extension only the requests for this file extension
+     * @param month only the requests of the month this time is in
+     * @param range only the requests in this range
+     * @param exact true to ask ES rather than answer from the histograms
+     * @param asyncResponse resumed with ObjectNode of the distribution
+     */
+    @GET
+    @Path("/payload-size/distribution")
+    public void getPayloadSizeDistribution(@QueryParam("percent") List<Double> percents,
+                                           @QueryParam("user") String user,
+                                           @QueryParam("extension") String extension,
+                                           @QueryParam("month") DateTimeParam month,
+                                           @BeanParam TimeRange range,
+                                           @QueryParam("exact") boolean exact,
+                                           @Suspended AsyncResponse asyncResponse) {
+        if (rejectInverted(asyncResponse, range)) {
+            return;
+        }
+        if ((user != null ? 1 : 0) + (extension != null ? 1 : 0) + (month != null ? 1 : 0) > 1) {
+            asyncResponse.resume(new BadRequestException("Only one of user, extension and month can be given"));
+            return;
+        }
+        for (Double percent : percents) {
+            if (percent < 0 || percent > 100) {
+                asyncResponse.resume(new BadRequestException("Percentiles must be between 0 and 100"));
+                return;
+            }
+        }
+        List<Double> wanted = percents.isEmpty() ? DEFAULT_PERCENTS : percents;
+        DateTime monthTime = month == null ? null : month.get();
+        if (!exact && user == null && !range.isBounded() && aggregates.isReady()) {
+            asyncResponse.resume(PayloadDistribution.of(aggregates.payloadSizes(extension, monthTime), wanted));
+        } else {
+            respond(
+                    asyncResponse,
+                    "payload-size/distribution",
+                    () -> backend.payloadSizeDistribution(range, wanted, user, extension, monthTime),
+                    wanted, user, extension, monthTime == null ? null : monthTime.getMillis(), range.getFrom(), range.getTo()
+            );
+        }
+    }
+
+    /**
+     * This API answers several of the other API's at once for a dashboard,
+     * all of them in one round trip to the backend
+     * @param metrics names of the API's wanted e.g. top-five-users, all of them when none are given
+     * @param range only the requests in this range
+     * @param asyncResponse resumed with ObjectNode of each metric name and its result
+     */
+    @GET
+    @Path("/dashboard")
+    public void dashboard(@QueryParam("metric") List<String> metrics,
+                          @BeanParam TimeRange range,
+                          @Suspended AsyncResponse asyncResponse) {
+        if (rejectInverted(asyncResponse, range)) {
+            return;
+        }
+        List<String> names = metrics == null || metrics.isEmpty()
+                ? new ArrayList<>(QueryBackend.DASHBOARD_METRICS)
+                : new ArrayList<>(metrics);
+        for (String name : names) {
+            if (!QueryBackend.DASHBOARD_METRICS.contains(name)) {
+                asyncResponse.resume(new BadRequestException("Unknown dashboard metric " + name));
+                return;
+            }
+        }
+        respond(asyncResponse, "dashboard", () -> backend.dashboard(names, range), names, range.getFrom(), range.getTo());
+    }
+
+    /**
+     * This method answers a suspended request with a bad request when its range ends before it
+     * starts, rather than asking the backend for a range no request could be in
+     * @param asyncResponse the suspended request
+     * @param range the range of the request
+     * @return boolean true when the request was answered
+     */
+    private static boolean rejectInverted(AsyncResponse asyncResponse, TimeRange range) {
+        if (range.isInverted()) {
+            asyncResponse.resume(new BadRequestException("The range must not start after it ends"));
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * This method plans a suspended request against the cheapest source that can answer it,
+     * the in memory aggregates when they are ready and there is no range, otherwise the
+     * cached or queried result
+     * @param asyncResponse the suspended request
+     * @param range the range of the request
+     * @param aggregate reads the result from the aggregates, null when they cannot answer it
+     * @param endpointName name of the endpoint, used for the cache and its timeout
+     * @param query starts the query of the backend when the result is not cached
+     * @param params parameters of the endpoint other than the range
+     * @param <T> type of the result
+     */
+    private <T> void respond(AsyncResponse asyncResponse,
+                             TimeRange range,
+                             Supplier<T> aggregate,
+                             String endpointName,
+                             Supplier<CompletableFuture<T>> query,
+                             Object... params) {
+        if (aggregate != null && !range.isBounded() && aggregates.isReady()) {
+            asyncResponse.resume(aggregate.get());
+            return;
+        }
+        Object[] rangedParams = Arrays.copyOf(params, params.length + 2);
+        rangedParams[params.length] = range.getFrom();
+        rangedParams[params.length + 1] = range.getTo();
+        respond(asyncResponse, endpointName, query, rangedParams);
+    }
+
+    /**
+     * This method answers a suspended ranking request from the sketches when the aggregates
+     * are ready and an exact answer was not asked for, the most any count in the answer may
+     * be over is given in the count error header. Otherwise it is answered by the backend
+     * @param asyncResponse the suspended request
+     * @param range the range of the request, the sketches only answer when there is none
+     * @param exact true to always ask the backend
+     * @param ranking reads the ranking from the sketches
+     * @param shape turns the ranking into the result
+     * @param endpointName name of the endpoint, used for the cache and its timeout
+     * @param query starts the query when the result is not cached
+     * @param params parameters of the endpoint
+     * @param <T> type of the result
+     */
+    private <T> void respondRanked(AsyncResponse asyncResponse,
+                                   TimeRange range,
+                                   boolean exact,
+                                   Supplier<List<SpaceSaving.Counter>> ranking,
+                                   Function<List<SpaceSaving.Counter>, T> shape,
+                                   String endpointName,
+                                   Supplier<CompletableFuture<T>> query,
+                                   Object... params) {
+        if (!exact && !range.isBounded() && aggregates.isReady()) {
+            List<SpaceSaving.Counter> counters = ranking.get();
+            asyncResponse.resume(javax.ws.rs.core.Response
+                    .ok(shape.apply(counters))
+                    .header(COUNT_ERROR_HEADER, counters.stream().mapToLong(SpaceSaving.Counter::getError).max().orElse(0))
+                    .build()
+            );
+        } else {
+            respond(asyncResponse, endpointName, query, params);
+        }
+    }
+
+    /**
+     * This method gives the items of a ranking in order
+     * @param counters the ranking
+     * @return List<String> the items
+     */
+    private static List<String> items(List<SpaceSaving.Counter> counters) {
+        return counters
+                .stream()
+                .map(SpaceSaving.Counter::getItem)
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * This method gives the items of a ranking in order with their counts
+     * @param counters the ranking
+     * @return ObjectNode each item and its count
+     */
+    private static ObjectNode counts(List<SpaceSaving.Counter> counters) {
+        return counters
+                .stream()
+                .map(counter -> Jive.newJsonEntry(counter.getItem(), (int) counter.getCount()))
                 .collect(JiveCollectors.toObjectNode());
     }
 
     /**
-     * This method is use to set up and perform the http request/ elastic search query
-     * which then returns the response to that request
-     * @param jsonNode give it the query, the json formatted query
-     * @param queryType the type of query e.g _search
-     * @return Response return the response to the query
-     * @throws Exception language exception
-     * @throws Exception language exception
+     * This method answers a suspended request with the cached or queried result, when the
+     * query fails or the endpoint's timeout passes first it is answered with the last result
+     * of the endpoint as a stale result, or with the failure if there is none
+     * @param asyncResponse the suspended request
+     * @param endpointName name of the endpoint, used for the cache and its timeout
+     * @param query starts the query when the result is not cached
+     * @param params parameters of the endpoint
+     * @param <T> type of the result
      */
-    private Response performQueryRequest(JsonNode jsonNode, String queryType) throws Exception {
-        return  restClient.performRequest(
-            "GET",
-            endpoint + "_" + queryType,
-            Collections.emptyMap(),
-            new NStringEntity(objectMapper.writeValueAsString(jsonNode))
-        );
+    private <T> void respond(AsyncResponse asyncResponse,
+                             String endpointName,
+                             Supplier<CompletableFuture<T>> query,
+                             Object... params) {
+        asyncResponse.setTimeout(timeoutConfig.getTimeoutMillis(endpointName), TimeUnit.MILLISECONDS);
+        asyncResponse.setTimeoutHandler(timedOut -> resumeStale(
+                timedOut,
+                endpointName,
+                new ServiceUnavailableException("The backend did not answer " + endpointName + " in time"),
+                params
+        ));
+        resultCache.get(endpointName, () -> time(endpointName, query), params).whenComplete((result, error) -> {
+            if (error == null) {
+                asyncResponse.resume(result);
+            } else {
+                // the cause is what went wrong, not the future's wrapper
+                resumeStale(asyncResponse, endpointName, error instanceof CompletionException ? error.getCause() : error, params);
+            }
+        });
     }
 
     /**
-     * This method will get Json object at a certain path in the response object
-     * mainly used to simplify code, keep it more maintainable and use variadic variables
-     * @param in give input stream (response from request)
-     * @param paths the path to the information wanted
-     * @return JsonNode return json node of result
-     * @throws Exception language exception
+     * This method answers a suspended request whose query failed with the last result of the
+     * endpoint and parameters, with a warning that it is stale, a request the client got wrong
+     * or one without a result yet is answered with the failure
+     * @param asyncResponse the suspended request
+     * @param endpointName name of the endpoint
+     * @param failure why the query failed
+     * @param params parameters of the endpoint
      */
-    private JsonNode getPath(InputStream in, String... paths) throws Exception {
-        JsonNode jsonNode = objectMapper.readTree(in);
-        for (String str : paths){
-            jsonNode = jsonNode.path(str);
+    private void resumeStale(AsyncResponse asyncResponse, String endpointName, Throwable failure, Object... params) {
+        Object stale = failure instanceof ClientErrorException ? null : resultCache.getStale(endpointName, params);
+        if (stale == null) {
+            asyncResponse.resume(failure);
+        } else {
+            metrics.meter(MetricRegistry.name("api", endpointName, "stale")).mark();
+            asyncResponse.resume(javax.ws.rs.core.Response.ok(stale).header(WARNING_HEADER, STALE_WARNING).build());
         }
-        return jsonNode;
     }
-}
\ No newline at end of file
+
+    /**
+     * This method answers a suspended request with one page of a ranking, which is not cached
+     * @param asyncResponse the suspended request
+     * @param ranking the ranking paged through
+     * @param endpointName name of the endpoint, used for its timeout
+     * @param range only the terms of the requests in this range
+     * @param cursor the page from the cursor of the one before, empty for the first page
+     * @param pageSize how many terms a page is meant to hold
+     */
+    private void respondPage(AsyncResponse asyncResponse,
+                             QueryBackend.Ranking ranking,
+                             String endpointName,
+                             TimeRange range,
+                             String cursor,
+                             int pageSize) {
+        if (pageSize < 1 || pageSize > MAX_TERMS) {
+            asyncResponse.resume(new BadRequestException("Pages hold between 1 and " + MAX_TERMS + " terms"));
+            return;
+        }
+        asyncResponse.setTimeout(timeoutConfig.getTimeoutMillis(endpointName), TimeUnit.MILLISECONDS);
+        asyncResponse.setTimeoutHandler(timedOut -> timedOut.resume(
+                new ServiceUnavailableException("The backend did not answer " + endpointName + " in time")
+        ));
+        Timer.Context timer = metrics.timer(MetricRegistry.name("api", endpointName, "backend")).time();
+        backend.page(ranking, range, cursor, pageSize).whenComplete((output, error) -> {
+            timer.stop();
+            if (error == null) {
+                // the page is only written out once it is resumed, so it is measured as it is written
+                StreamingOutput measured = out -> {
+                    CountingOutputStream counting = new CountingOutputStream(out);
+                    output.write(counting);
+                    metrics.histogram(MetricRegistry.name("api", endpointName, "response-bytes")).update(counting.getCount());
+                };
+                asyncResponse.resume(javax.ws.rs.core.Response.ok(measured).build());
+            } else {
+                // the cause is what went wrong, not the future's wrapper
+                asyncResponse.resume(error instanceof CompletionException ? error.getCause() : error);
+            }
+        });
+    }
+
+    /**
+     * This method runs the query of the backend for an API, timing it. The size of what ES
+     * sends back is measured by the backend, as it is read rather than written again here
+     * @param endpointName name of the endpoint, the metrics are registered under it
+     * @param query starts the query
+     * @param <T> type of the result
+     * @return CompletableFuture<T> the result of the query
+     */
+    private <T> CompletableFuture<T> time(String endpointName, Supplier<CompletableFuture<T>> query) {
+        Timer.Context timer = metrics.timer(MetricRegistry.name("api", endpointName, "backend")).time();
+        return query.get().whenComplete((result, error) -> timer.stop());
+    }
+}
@@ -0,0 +1,185 @@
+package com.andy.nasa.resource;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.HdrHistogram.Histogram;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static com.zackehh.jackson.Jive.newArrayNode;
+import static com.zackehh.jackson.Jive.newJsonEntry;
+import static com.zackehh.jackson.Jive.newObjectNode;
+
+/**
+ * This class describes how payload sizes are spread, as the count, min, max and mean,
+ * the size at each percentile asked for and a histogram of sizes in powers of two,
+ * read either from a histogram built at ingestion or from elastic search aggregations
+ */
+final class PayloadDistribution {
+
+    // the bounds of the histogram, the first range is everything under 1KB
+    // and each range after it is twice as wide as the one before
+    static final List<long[]> RANGES;
+
+    static {
+        List<long[]> ranges = new ArrayList<>();
+        ranges.add(new long[] {0, 1024});
+        for (long from = 1024; from < Integer.MAX_VALUE; from *= 2) {
+            ranges.add(new long[] {from, from * 2});
+        }
+        RANGES = Collections.unmodifiableList(ranges);
+    }
+
+    private PayloadDistribution() { }
+
+    /**
+     * Describes the payload sizes in a histogram
+     * @param histogram the histogram of the payload sizes
+     * @param percents the percentiles wanted
+     * @return ObjectNode the distribution
+     */
+    static ObjectNode of(Histogram histogram, List<Double> percents) {
+        boolean empty = histogram.getTotalCount() == 0;
+        ObjectNode percentiles = newObjectNode();
+        for (Double percent : percents) {
+            percentiles.put(String.valueOf(percent), empty ? null : histogram.getValueAtPercentile(percent));
+        }
+        ArrayNode buckets = newArrayNode();
+        for (long[] range : RANGES) {
+            long count = histogram.getCountBetweenValues(range[0], range[1] - 1);
+            if (count > 0) {
+                buckets.add(bucket(range[0], range[1], count));
+            }
+        }
+        return newObjectNode(
+                newJsonEntry("count", histogram.getTotalCount()),
+                newJsonEntry("min", empty ? null : histogram.getMinValue()),
+                newJsonEntry("max", empty ? null : histogram.getMaxValue()),
+                newJsonEntry("mean", empty ? null : histogram.getMean()),
+                newJsonEntry("percentiles", percentiles),
+                newJsonEntry("histogram", buckets)
+        );
+    }
+
+    /**
+     * Describes every payload size, with the percentiles interpolated between the two sizes either
+     * side of them and rounded like those of ES
+     * @param sizes the payload sizes smallest first
+     * @param percents the percentiles wanted
+     * @return ObjectNode the distribution
+     */
+    static ObjectNode of(int[] sizes, List<Double> percents) {
+        boolean empty = sizes.length == 0;
+        ObjectNode percentiles = newObjectNode();
+        for (Double percent : percents) {
+            Long value = null;
+            if (!empty) {
+                double position = percent / 100 * (sizes.length - 1);
+                int below = (int) Math.floor(position);
+                int above = Math.min(below + 1, sizes.length - 1);
+                value = Math.round(sizes[below] + (sizes[above] - sizes[below]) * (position - below));
+            }
+            percentiles.put(String.valueOf(percent), value);
+        }
+        long sum = 0;
+        long[] counts = new long[RANGES.size()];
+        for (int size : sizes) {
+            sum += size;
+            // the first range holds everything under 1KB, after that the range is the power of two
+            counts[size < 1024 ? 0 : 31 - Integer.numberOfLeadingZeros(size) - 9]++;
+        }
+        ArrayNode buckets = newArrayNode();
+        for (int range = 0; range < counts.length; range++) {
+            if (counts[range] > 0) {
+                buckets.add(bucket(RANGES.get(range)[0], RANGES.get(range)[1], counts[range]));
+            }
+        }
+        return newObjectNode(
+                newJsonEntry("count", (long) sizes.length),
+                newJsonEntry("min", empty ? null : (Long) (long) sizes[0]),
+                newJsonEntry("max", empty ? null : (Long) (long) sizes[sizes.length - 1]),
+                newJsonEntry("mean", empty ? null : (Double) ((double) sum / sizes.length)),
+                newJsonEntry("percentiles", percentiles),
+                newJsonEntry("histogram", buckets)
+        );
+    }
+
+    /**
+     * Describes the payload sizes from the aggregations of a search built with {@link #aggregations}
+     * @param aggregations the aggregations of the search response
+     * @return ObjectNode the distribution
+     */
+    static ObjectNode of(JsonNode aggregations) {
+        JsonNode stats = aggregations.path("payload_stats");
+        ObjectNode percentiles = newObjectNode();
+        // sizes are whole bytes, so the interpolated percentiles of ES are rounded to match the histograms
+        aggregations.path("payload_percentiles").path("values").fields().forEachRemaining(percentile ->
+                percentiles.put(percentile.getKey(), percentile.getValue().isNumber()
+                        ? (Long) Math.round(percentile.getValue().asDouble())
+                        : null)
+        );
+        ArrayNode buckets = newArrayNode();
+        for (JsonNode bucket : aggregations.path("payload_ranges").path("buckets")) {
+            if (bucket.path("doc_count").asLong() > 0) {
+                buckets.add(bucket(bucket.path("from").asLong(), bucket.path("to").asLong(), bucket.path("doc_count").asLong()));
+            }
+        }
+        return newObjectNode(
+                newJsonEntry("count", stats.path("count").asLong()),
+                newJsonEntry("min", stats.path("min").isNumber() ? (Long) stats.path("min").asLong() : null),
+                newJsonEntry("max", stats.path("max").isNumber() ? (Long) stats.path("max").asLong() : null),
+                newJsonEntry("mean", stats.path("avg").isNumber() ? (Double) stats.path("avg").asDouble() : null),
+                newJsonEntry("percentiles", percentiles),
+                newJsonEntry("histogram", buckets)
+        );
+    }
+
+    /**
+     * Builds the aggregations giving the distribution of the payload sizes in elastic search
+     * @param percents placeholder of the array of percentiles wanted, see {@link QueryTemplate#param}
+     * @return JsonNode the aggregations
+     */
+    static JsonNode aggregations(String percents) {
+        ArrayNode ranges = newArrayNode();
+        for (long[] range : RANGES) {
+            ranges.add(newObjectNode(newJsonEntry("from", range[0]), newJsonEntry("to", range[1])));
+        }
+        return newObjectNode(
+                newJsonEntry("payload_stats", newObjectNode(
+                        newJsonEntry("stats", newObjectNode(
+                                newJsonEntry("field", "payloadSize")
+                        ))
+                )),
+                newJsonEntry("payload_percentiles", newObjectNode(
+                        newJsonEntry("percentiles", newObjectNode(
+                                newJsonEntry("field", "payloadSize"),
+                                newJsonEntry("percents", percents)
+                        ))
+                )),
+                newJsonEntry("payload_ranges", newObjectNode(
+                        newJsonEntry("range", newObjectNode(
+                                newJsonEntry("field", "payloadSize"),
+                                newJsonEntry("ranges", ranges)
+                        ))
+                ))
+        );
+    }
+
+    /**
+     * This method describes one range of the histogram
+     * @param from the smallest size in the range
+     * @param to the size the range goes up to, not including it
+     * @param count how many payloads were in the range
+     * @return ObjectNode the range
+     */
+    private static ObjectNode bucket(long from, long to, long count) {
+        return newObjectNode(
+                newJsonEntry("from", from),
+                newJsonEntry("to", to),
+                newJsonEntry("count", count)
+        );
+    }
+}
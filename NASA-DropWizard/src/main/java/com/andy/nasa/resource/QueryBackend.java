@@ -0,0 +1,191 @@
+package com.andy.nasa.resource;
+
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.joda.time.DateTime;
+
+import javax.ws.rs.core.StreamingOutput;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * This interface is where the API's get their answers from the entries once the in memory
+ * aggregates and sketches cannot give them, each query is started without waiting for it
+ * and the future is completed with its result. Answers are the same whichever backend gives them
+ */
+public interface QueryBackend {
+
+    // the queries the dashboard API can answer together, by name
+    List<String> DASHBOARD_METRICS = Collections.unmodifiableList(Arrays.asList(
+            "top-five-users",
+            "average-payload-size",
+            "users/data",
+            "clients/unique",
+            "months/requests",
+            "error/rate",
+            "error/rate/month",
+            "extensions/popular",
+            "api/call"
+    ));
+
+    /**
+     * The rankings that can be paged through, every term of a field with its requests or bytes
+     */
+    enum Ranking {
+        // every user and their requests
+        USERS,
+        // every user and the bytes they requested
+        USERS_DATA,
+        // every file extension and its requests
+        EXTENSIONS,
+        // every http method and its requests
+        API_CALLS
+    }
+
+    /**
+     * Queries the users making the most requests
+     * @param range only the requests in this range
+     * @param nUsers how many users wanted
+     * @return List<String> the users, most requests first
+     */
+    CompletableFuture<List<String>> topUsers(TimeRange range, int nUsers);
+
+    /**
+     * Queries the average payload size
+     * @param range only the requests in this range
+     * @return Double the average payload size
+     */
+    CompletableFuture<Double> averagePayloadSize(TimeRange range);
+
+    /**
+     * Queries the five users requesting the most bytes
+     * @param range only the requests in this range
+     * @return ObjectNode each user and their bytes, most first
+     */
+    CompletableFuture<ObjectNode> usersMostData(TimeRange range);
+
+    /**
+     * Queries the number of unique clients
+     * @param range only the requests in this range
+     * @return Integer the number of clients
+     */
+    CompletableFuture<Integer> uniqueClients(TimeRange range);
+
+    /**
+     * Queries the requests of every month from the first to the last
+     * @param range only the requests in this range
+     * @return ObjectNode the start of each month and its requests
+     */
+    CompletableFuture<ObjectNode> requestsPerMonth(TimeRange range);
+
+    /**
+     * Queries the percentage of requests answered with a 4xx or 5xx
+     * @param range only the requests in this range
+     * @return Double the error rate
+     */
+    CompletableFuture<Double> errorRate(TimeRange range);
+
+    /**
+     * Queries the error rate of every month from the first to the last
+     * @param range only the requests in this range
+     * @return ObjectNode the start of each month and its error rate
+     */
+    CompletableFuture<ObjectNode> errorRatePerMonth(TimeRange range);
+
+    /**
+     * Queries the five most requested file extensions
+     * @param range only the requests in this range
+     * @return ObjectNode each extension and its requests, most first
+     */
+    CompletableFuture<ObjectNode> popularExtensions(TimeRange range);
+
+    /**
+     * Queries the requests for one file extension
+     * @param range only the requests in this range
+     * @param extension the extension
+     * @return Integer the requests
+     */
+    CompletableFuture<Integer> numberExtensionRequests(TimeRange range, String extension);
+
+    /**
+     * Queries the three most used http methods
+     * @param range only the requests in this range
+     * @return ObjectNode each method and its requests, most first
+     */
+    CompletableFuture<ObjectNode> apiCalls(TimeRange range);
+
+    /**
+     * Queries the requests of one user
+     * @param range only the requests in this range
+     * @param user the user
+     * @return ObjectNode the user and their requests, empty if they made none
+     */
+    CompletableFuture<ObjectNode> requestsUser(TimeRange range, String user);
+
+    /**
+     * Queries how the payload sizes are spread, see {@link PayloadDistribution}
+     * @param range only the requests in this range
+     * @param percents the percentiles wanted
+     * @param user only the requests of this user, null for any
+     * @param extension only the requests for this extension, null for any
+     * @param month only the requests of the month this time is in, null for any
+     * @return ObjectNode the distribution
+     */
+    CompletableFuture<ObjectNode> payloadSizeDistribution(TimeRange range,
+                                                          List<Double> percents,
+                                                          String user,
+                                                          String extension,
+                                                          DateTime month);
+
+    /**
+     * Queries one page of a ranking, written out as
+     * {"cursor": next page or null, "buckets": {term: value...}, "truncated": true when terms were left out}
+     * @param ranking the ranking paged through
+     * @param range only the requests in this range
+     * @param cursor the cursor of the page given back with the one before, empty for the first page
+     * @param pageSize how many terms a page is meant to hold
+     * @return StreamingOutput writes the page, failed with a bad request if the cursor is not one that was given back
+     */
+    CompletableFuture<StreamingOutput> page(Ranking ranking, TimeRange range, String cursor, int pageSize);
+
+    /**
+     * Queries several of the dashboard metrics at once, a metric that fails is answered
+     * with its error instead of failing the others
+     * @param names the names of the metrics, all of them in {@link #DASHBOARD_METRICS}
+     * @param range only the requests in this range
+     * @return ObjectNode each name with its result
+     */
+    CompletableFuture<ObjectNode> dashboard(List<String> names, TimeRange range);
+
+    /**
+     * Queries one of the dashboard metrics
+     * @param name the name of the metric, one of {@link #DASHBOARD_METRICS}
+     * @param range only the requests in this range
+     * @return Object the result of the metric
+     */
+    default CompletableFuture<?> metric(String name, TimeRange range) {
+        switch (name) {
+            case "top-five-users":
+                return topUsers(range, 5);
+            case "average-payload-size":
+                return averagePayloadSize(range);
+            case "users/data":
+                return usersMostData(range);
+            case "clients/unique":
+                return uniqueClients(range);
+            case "months/requests":
+                return requestsPerMonth(range);
+            case "error/rate":
+                return errorRate(range);
+            case "error/rate/month":
+                return errorRatePerMonth(range);
+            case "extensions/popular":
+                return popularExtensions(range);
+            case "api/call":
+                return apiCalls(range);
+            default:
+                throw new IllegalArgumentException("Unknown dashboard metric " + name);
+        }
+    }
+}
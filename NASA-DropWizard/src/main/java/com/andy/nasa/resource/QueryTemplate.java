@@ -0,0 +1,165 @@
+package com.andy.nasa.resource;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * This class is a query body encoded once in the wire format, so it does not have to be
+ * built and written again for every request. Parameters are left in the body as
+ * placeholders made by {@link #param} and filling them in only encodes the parameter
+ * values, which are then copied between the encoded parts of the body
+ */
+final class QueryTemplate {
+
+    // the encoded body split around the placeholders
+    private final List<byte[]> parts = new ArrayList<>();
+
+    // which parameter goes after each part, one less than there are parts
+    private final List<Integer> slots = new ArrayList<>();
+
+    // the mapper the body was encoded with, used for the parameter values
+    private final ObjectMapper objectMapper;
+
+    // bytes every document of the format starts with, left off the parameter values
+    private final int headerLength;
+
+    // the whole body when there are no parameters
+    private final byte[] body;
+
+    /**
+     * Encodes the body and finds the placeholders in it
+     * @param objectMapper mapper for the wire format
+     * @param body the query body with placeholders for the parameters
+     * @param params the names of the parameters, in the order their values are given to {@link #fill}
+     */
+    QueryTemplate(ObjectMapper objectMapper, JsonNode body, String... params) {
+        this.objectMapper = objectMapper;
+        this.headerLength = header().length;
+        this.body = encode(body);
+
+        int start = 0;
+        while (true) {
+            // the placeholder that comes next in the body
+            int next = -1;
+            int param = -1;
+            byte[] placeholder = null;
+            for (int i = 0; i < params.length; i++) {
+                byte[] encoded = value(param(params[i]));
+                int index = indexOf(this.body, encoded, start);
+                if (index >= 0 && (next < 0 || index < next)) {
+                    next = index;
+                    param = i;
+                    placeholder = encoded;
+                }
+            }
+            if (next < 0) {
+                break;
+            }
+            parts.add(Arrays.copyOfRange(this.body, start, next));
+            slots.add(param);
+            start = next + placeholder.length;
+        }
+        parts.add(Arrays.copyOfRange(this.body, start, this.body.length));
+    }
+
+    /**
+     * Makes the placeholder for a parameter, used in the body in place of its value
+     * @param name name of the parameter
+     * @return String the placeholder
+     */
+    static String param(String name) {
+        return "{{" + name + "}}";
+    }
+
+    /**
+     * Fills in the parameters of the body, values are encoded on their own so they must not
+     * hold objects, whose field names smile would refer back to from outside the body
+     * @param values the values of the parameters, in the order they were named, scalars or arrays of them
+     * @return byte[] the encoded body, shared when there are no parameters so it must not be changed
+     */
+    byte[] fill(Object... values) {
+        if (slots.isEmpty()) {
+            return body;
+        }
+        byte[][] encoded = new byte[values.length][];
+        for (int i = 0; i < values.length; i++) {
+            encoded[i] = value(values[i]);
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream(body.length + 32);
+        for (int i = 0; i < slots.size(); i++) {
+            out.write(parts.get(i), 0, parts.get(i).length);
+            byte[] value = encoded[slots.get(i)];
+            out.write(value, 0, value.length);
+        }
+        byte[] last = parts.get(parts.size() - 1);
+        out.write(last, 0, last.length);
+        return out.toByteArray();
+    }
+
+    /**
+     * This method encodes a single value as it appears inside a body
+     * @param value the value
+     * @return byte[] the encoded value without the header of the format
+     */
+    private byte[] value(Object value) {
+        byte[] encoded = encode(value);
+        return Arrays.copyOfRange(encoded, headerLength, encoded.length);
+    }
+
+    /**
+     * This method encodes a value in the wire format
+     * @param value the value, null is encoded as null
+     * @return byte[] the encoded value
+     */
+    private byte[] encode(Object value) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (JsonGenerator generator = objectMapper.getFactory().createGenerator(out)) {
+            objectMapper.writeValue(generator, value);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * This method finds the header some formats start every document with
+     * @return byte[] what the format writes before any value
+     */
+    private byte[] header() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (JsonGenerator generator = objectMapper.getFactory().createGenerator(out)) {
+            generator.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * This method finds the first place one array appears in another
+     * @param array the array searched
+     * @param target the array looked for
+     * @param from where to start looking
+     * @return int where the target starts, -1 when it is not there
+     */
+    private static int indexOf(byte[] array, byte[] target, int from) {
+        outer:
+        for (int i = from; i <= array.length - target.length; i++) {
+            for (int j = 0; j < target.length; j++) {
+                if (array[i + j] != target[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+}
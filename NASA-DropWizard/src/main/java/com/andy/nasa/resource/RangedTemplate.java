@@ -0,0 +1,113 @@
+package com.andy.nasa.resource;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.util.Arrays;
+
+import static com.zackehh.jackson.Jive.newArrayNode;
+import static com.zackehh.jackson.Jive.newJsonEntry;
+import static com.zackehh.jackson.Jive.newObjectNode;
+
+/**
+ * This class is a query body encoded once as it is and once for each way its query can be
+ * filtered to a range of time, so a query that is asked for a range only pays for the range
+ * filter then, and a bound that is left open is left out of the filter rather than sent as null
+ */
+final class RangedTemplate {
+
+    // the body for every time
+    private final QueryTemplate whole;
+
+    // the body filtered to a range with both bounds, after the other parameters
+    private final QueryTemplate ranged;
+
+    // the body filtered to the times from the earliest, with that bound after the other parameters
+    private final QueryTemplate from;
+
+    // the body filtered to the times up to the latest, with that bound after the other parameters
+    private final QueryTemplate to;
+
+    /**
+     * Creates the template
+     * @param objectMapper mapper of the wire format
+     * @param body the body, with placeholders made by {@link QueryTemplate#param}
+     * @param field the time field the range is of
+     * @param params the names of the placeholders in the order their values are given
+     */
+    RangedTemplate(ObjectMapper objectMapper, JsonNode body, String field, String... params) {
+        this.whole = new QueryTemplate(objectMapper, body, params);
+        this.ranged = new QueryTemplate(objectMapper, ranged(body, field, "from", "to"), append(params, "from", "to"));
+        this.from = new QueryTemplate(objectMapper, ranged(body, field, "from", null), append(params, "from"));
+        this.to = new QueryTemplate(objectMapper, ranged(body, field, null, "to"), append(params, "to"));
+    }
+
+    /**
+     * Fills in the parameters of the body
+     * @param range the range of time, unbounded for the body as it is
+     * @param values the values of the other parameters, in the order they were named
+     * @return byte[] the encoded body
+     */
+    byte[] fill(TimeRange range, Object... values) {
+        Long from = range.getFrom();
+        Long to = range.getTo();
+        if (from == null && to == null) {
+            return whole.fill(values);
+        } else if (to == null) {
+            return this.from.fill(append(values, from));
+        } else if (from == null) {
+            return this.to.fill(append(values, to));
+        }
+        return ranged.fill(append(values, from, to));
+    }
+
+    /**
+     * This method adds to the end of an array
+     * @param array the array
+     * @param more what is added
+     * @param <T> type of the elements
+     * @return T[] a copy of the array with more at the end
+     */
+    @SafeVarargs
+    private static <T> T[] append(T[] array, T... more) {
+        T[] appended = Arrays.copyOf(array, array.length + more.length);
+        System.arraycopy(more, 0, appended, array.length, more.length);
+        return appended;
+    }
+
+    /**
+     * This method filters the query of a body to a range of time, keeping any query it already had
+     * @param body the body
+     * @param field the time field the range is of
+     * @param from the placeholder of the earliest time, null to leave it open
+     * @param to the placeholder of the latest time, null to leave it open
+     * @return JsonNode a copy of the body with the range
+     */
+    private static JsonNode ranged(JsonNode body, String field, String from, String to) {
+        ObjectNode bounds = newObjectNode();
+        if (from != null) {
+            bounds.put("gte", QueryTemplate.param(from));
+        }
+        if (to != null) {
+            bounds.put("lte", QueryTemplate.param(to));
+        }
+        ArrayNode filters = newArrayNode();
+        filters.add(newObjectNode(
+                newJsonEntry("range", newObjectNode(
+                        newJsonEntry(field, bounds)
+                ))
+        ));
+        if (body.has("query")) {
+            filters.add(body.get("query"));
+        }
+        ObjectNode copy = body.deepCopy();
+        copy.set("query", newObjectNode(
+                newJsonEntry("bool", newObjectNode(
+                        newJsonEntry("filter", filters)
+                ))
+        ));
+        return copy;
+    }
+}
@@ -0,0 +1,152 @@
+package com.andy.nasa.resource;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.MissingNode;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.function.Function;
+
+/**
+ * This class pairs the body of an elastic search search with how its result is read
+ * so the same query can be sent on its own or as part of a multi search
+ * it also knows which fields of the response it needs so elastic search can leave out
+ * the rest with filter_path and the response can be streamed straight to them
+ * @param <T> type of the result read from the response
+ */
+class SearchQuery<T> {
+
+    // the body sent to _search, already encoded in the wire format
+    private final byte[] body;
+
+    // path in the response to the part the reader needs
+    private final String[] path;
+
+    // turns the node found at the path into the result
+    private final Function<JsonNode, T> reader;
+
+    // the fields of the response that are kept with filter_path, the whole path by default
+    private String[] filterPath;
+
+    /**
+     * Creates the query
+     * @param body the encoded body sent to _search
+     * @param reader reads the result from the node at the path
+     * @param path the path in the response the reader starts from, empty for the whole response
+     */
+    SearchQuery(byte[] body, Function<JsonNode, T> reader, String... path) {
+        this.body = body;
+        this.reader = reader;
+        this.path = path;
+        this.filterPath = path.length == 0 ? new String[0] : new String[] {String.join(".", path)};
+    }
+
+    /**
+     * Narrows the fields elastic search sends back, for readers that only need
+     * some of what is under the path or need more than one part of the response
+     * @param filterPath the dotted paths of the fields to keep
+     * @return SearchQuery<T> this query
+     */
+    SearchQuery<T> withFilterPath(String... filterPath) {
+        this.filterPath = filterPath;
+        return this;
+    }
+
+    /**
+     * gets the encoded body sent to _search
+     * @return body
+     */
+    byte[] getBody() {
+        return body;
+    }
+
+    /**
+     * gets the path in the response the reader starts from
+     * @return path
+     */
+    String[] getPath() {
+        return path;
+    }
+
+    /**
+     * gets the dotted paths of the fields kept in the response, empty to keep all of it
+     * @return filterPath
+     */
+    String[] getFilterPath() {
+        return filterPath;
+    }
+
+    /**
+     * Reads the result out of a search response as it is streamed, skipping over
+     * everything that is not on the path rather than building a tree of the whole response
+     * @param objectMapper mapper for the format of the response
+     * @param in the body of the response
+     * @return T the result
+     * @throws IOException if the body cannot be read
+     */
+    T read(ObjectMapper objectMapper, InputStream in) throws IOException {
+        try (JsonParser parser = objectMapper.getFactory().createParser(in)) {
+            parser.nextToken();
+            for (String str : path) {
+                if (!nextField(parser, str)) {
+                    return apply(MissingNode.getInstance());
+                }
+            }
+            // only the part at the end of the path is built as a tree
+            return apply(objectMapper.readTree(parser));
+        }
+    }
+
+    /**
+     * This method moves the parser from the start of an object to the value of one of its fields
+     * @param parser parser positioned at the start of an object
+     * @param field the name of the field wanted
+     * @return boolean true when the parser is at the value of the field, false when it is not there
+     * @throws IOException if the body cannot be read
+     */
+    private static boolean nextField(JsonParser parser, String field) throws IOException {
+        if (parser.getCurrentToken() != JsonToken.START_OBJECT) {
+            return false;
+        }
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String name = parser.getCurrentName();
+            parser.nextToken();
+            if (name.equals(field)) {
+                return true;
+            }
+            parser.skipChildren();
+        }
+        return false;
+    }
+
+    /**
+     * Reads the result out of a search response
+     * @param response the whole search response
+     * @return T the result
+     */
+    T read(JsonNode response) {
+        JsonNode jsonNode = response;
+        for (String str : path) {
+            jsonNode = jsonNode.path(str);
+        }
+        return apply(jsonNode);
+    }
+
+    /**
+     * This method reads the result from the node at the end of the path. filter_path leaves
+     * out an empty list, so the buckets of a search that matched nothing are not in the
+     * response and are read as an empty list
+     * @param node the node at the end of the path, missing when it is not in the response
+     * @return T the result
+     */
+    private T apply(JsonNode node) {
+        if (node.isMissingNode() && path.length > 0 && path[path.length - 1].equals("buckets")) {
+            return reader.apply(JsonNodeFactory.instance.arrayNode());
+        }
+        return reader.apply(node);
+    }
+}
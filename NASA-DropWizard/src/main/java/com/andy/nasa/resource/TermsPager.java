@@ -0,0 +1,461 @@
+package com.andy.nasa.resource;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import javax.ws.rs.BadRequestException;
+import javax.ws.rs.core.StreamingOutput;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+import static com.zackehh.jackson.Jive.newJsonEntry;
+import static com.zackehh.jackson.Jive.newObjectNode;
+
+/**
+ * This class pages through every term of a field with terms partitioning, so the terms
+ * are never all built by the shards or held in memory at once. The terms are hashed into
+ * a number of partitions chosen from the cardinality of the field on the first page, and
+ * each page is one partition whose cursor names the next. A partition holding more terms than
+ * were asked for is split in two by hashing into twice as many partitions, the terms of partition
+ * p of n being those of partitions p and p + n of 2n, and its halves are paged in its place.
+ * The buckets of a page are copied from the response of ES to the response of the API as they
+ * are read, ordered highest first within the page but not across pages
+ */
+final class TermsPager {
+
+    // writes the pages, which are always json whatever format ES answers in
+    private static final JsonFactory JSON = new JsonFactory();
+
+    // the terms of a partition are hashed so it can hold more than the page size, the
+    // terms aggregation is asked for this many times as many so few partitions are split
+    private static final int HEADROOM = 2;
+
+    // the most partitions the terms are split into, past which a page is truncated instead
+    private static final int MAX_PARTITIONS = 1 << 20;
+
+    // the field paged through
+    private final String field;
+
+    // the field summed for each term, null to count the requests of each term
+    private final String sumField;
+
+    // the cardinality of the field, for the number of partitions
+    private final RangedTemplate cardinalityTemplate;
+
+    // one partition of the terms
+    private final RangedTemplate partitionTemplate;
+
+    /**
+     * Creates a pager of a field
+     * @param objectMapper mapper of the wire format the queries are encoded in
+     * @param field the field paged through
+     * @param sumField the field summed for each term, null to count the requests of each term
+     */
+    TermsPager(ObjectMapper objectMapper, String field, String sumField) {
+        this.field = field;
+        this.sumField = sumField;
+        this.cardinalityTemplate = new RangedTemplate(objectMapper, cardinalityBody(), "datetime");
+        this.partitionTemplate = new RangedTemplate(objectMapper, partitionBody(), "datetime", "partition", "partitions", "size");
+    }
+
+    /**
+     * Gets the body of the query for the cardinality of the field
+     * @param range only the terms of the requests in this range
+     * @return byte[] the encoded body
+     */
+    byte[] cardinalityQuery(TimeRange range) {
+        return cardinalityTemplate.fill(range);
+    }
+
+    /**
+     * Gets the body of the query for a page
+     * @param range only the terms of the requests in this range
+     * @param cursor the page
+     * @param pageSize how many terms a page is meant to hold
+     * @return byte[] the encoded body
+     */
+    byte[] partitionQuery(TimeRange range, Cursor cursor, int pageSize) {
+        return partitionTemplate.fill(range, cursor.getPartition(), cursor.getPartitions(), pageSize * HEADROOM);
+    }
+
+    /**
+     * Gets the fields of the responses of {@link #partitionQuery} kept with filter_path
+     * @return String the filter path
+     */
+    static String partitionFilterPath() {
+        return "aggregations.by_term.sum_other_doc_count,aggregations.by_term.buckets";
+    }
+
+    /**
+     * Reads the cardinality of the field from the response of {@link #cardinalityQuery}
+     * @param response the response
+     * @return long the cardinality
+     */
+    static long cardinality(JsonNode response) {
+        return response.path("aggregations").path("distinct_terms").path("value").asLong();
+    }
+
+    /**
+     * Reads the response of {@link #partitionQuery} up to the buckets of the partition, so
+     * whether terms were left out of it is known before any of them are written. ES writes
+     * the requests of the terms left out before the buckets
+     * @param objectMapper mapper of the format of the response
+     * @param response the body of the response, closed with the partition
+     * @return Partition the partition
+     * @throws IOException if the body cannot be read
+     */
+    static Partition open(ObjectMapper objectMapper, InputStream response) throws IOException {
+        JsonParser parser = objectMapper.getFactory().createParser(response);
+        long otherDocs = 0;
+        try {
+            parser.nextToken();
+            if (nextField(parser, "aggregations") && nextField(parser, "by_term")) {
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String name = parser.getCurrentName();
+                    parser.nextToken();
+                    if (name.equals("sum_other_doc_count")) {
+                        otherDocs = parser.getLongValue();
+                    } else if (name.equals("buckets") && parser.getCurrentToken() == JsonToken.START_ARRAY) {
+                        break;
+                    } else {
+                        parser.skipChildren();
+                    }
+                }
+            }
+        } catch (IOException e) {
+            parser.close();
+            response.close();
+            throw e;
+        }
+        return new Partition(parser, response, otherDocs);
+    }
+
+    /**
+     * Streams a page out of a partition opened by {@link #open}, as
+     * {"cursor": next page or null, "buckets": {term: value...}, "truncated": true when terms were left out}
+     * @param objectMapper mapper of the format of the response
+     * @param partition the partition, closed once it is written
+     * @param next the cursor of the next page, null if this is the last
+     * @return StreamingOutput writes the page
+     */
+    StreamingOutput page(ObjectMapper objectMapper, Partition partition, Cursor next) {
+        return output -> {
+            try (Partition current = partition;
+                 JsonGenerator generator = JSON.createGenerator(output)) {
+                generator.writeStartObject();
+                generator.writeStringField("cursor", next == null ? null : next.toString());
+                generator.writeObjectFieldStart("buckets");
+                JsonParser parser = current.parser;
+                if (parser.getCurrentToken() == JsonToken.START_ARRAY) {
+                    // only one bucket is built as a tree at a time
+                    while (parser.nextToken() == JsonToken.START_OBJECT) {
+                        JsonNode bucket = objectMapper.readTree(parser);
+                        generator.writeNumberField(
+                                bucket.path("key").asText(),
+                                sumField == null
+                                        ? bucket.path("doc_count").asLong()
+                                        : bucket.path("total").path("value").asLong()
+                        );
+                        generator.flush();
+                    }
+                }
+                generator.writeEndObject();
+                generator.writeBooleanField("truncated", !current.isComplete());
+                generator.writeEndObject();
+            }
+        };
+    }
+
+    /**
+     * Writes a page of terms already ranked, in the same shape as {@link #page}
+     * @param terms the terms of the page and their values, in the order written
+     * @param next the cursor of the next page, null if this is the last
+     * @return StreamingOutput writes the page
+     */
+    static StreamingOutput page(List<Map.Entry<String, Long>> terms, Cursor next) {
+        return output -> {
+            try (JsonGenerator generator = JSON.createGenerator(output)) {
+                generator.writeStartObject();
+                generator.writeStringField("cursor", next == null ? null : next.toString());
+                generator.writeObjectFieldStart("buckets");
+                for (Map.Entry<String, Long> term : terms) {
+                    generator.writeNumberField(term.getKey(), term.getValue());
+                }
+                generator.writeEndObject();
+                generator.writeBooleanField("truncated", false);
+                generator.writeEndObject();
+            }
+        };
+    }
+
+    /**
+     * This method moves the parser from the start of an object to the value of one of its fields
+     * @param parser parser positioned at the start of an object
+     * @param name the name of the field wanted
+     * @return boolean true when the parser is at the value of the field, false when it is not there
+     * @throws IOException if the body cannot be read
+     */
+    private static boolean nextField(JsonParser parser, String name) throws IOException {
+        if (parser.getCurrentToken() != JsonToken.START_OBJECT) {
+            return false;
+        }
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String current = parser.getCurrentName();
+            parser.nextToken();
+            if (current.equals(name)) {
+                return true;
+            }
+            parser.skipChildren();
+        }
+        return false;
+    }
+
+    /**
+     * This method builds the body of {@link #cardinalityQuery}
+     * @return JsonNode the body
+     */
+    private JsonNode cardinalityBody() {
+        return newObjectNode(
+                newJsonEntry("size", 0),
+                newJsonEntry("aggs", newObjectNode(
+                        newJsonEntry("distinct_terms", newObjectNode(
+                                newJsonEntry("cardinality", newObjectNode(
+                                        newJsonEntry("field", field)
+                                ))
+                        ))
+                ))
+        );
+    }
+
+    /**
+     * This method builds the body of {@link #partitionQuery} with placeholders for the partition and size
+     * @return JsonNode the body
+     */
+    private JsonNode partitionBody() {
+        ObjectNode terms = newObjectNode(
+                newJsonEntry("field", field),
+                newJsonEntry("include", newObjectNode(
+                        newJsonEntry("partition", QueryTemplate.param("partition")),
+                        newJsonEntry("num_partitions", QueryTemplate.param("partitions"))
+                )),
+                newJsonEntry("size", QueryTemplate.param("size"))
+        );
+        ObjectNode byTerm = newObjectNode(newJsonEntry("terms", terms));
+        if (sumField != null) {
+            terms.set("order", newObjectNode(newJsonEntry("total", "desc")));
+            byTerm.set("aggs", newObjectNode(
+                    newJsonEntry("total", newObjectNode(
+                            newJsonEntry("sum", newObjectNode(
+                                    newJsonEntry("field", sumField)
+                            ))
+                    ))
+            ));
+        }
+        return newObjectNode(
+                newJsonEntry("size", 0),
+                newJsonEntry("aggs", newObjectNode(
+                        newJsonEntry("by_term", byTerm)
+                ))
+        );
+    }
+
+    /**
+     * One partition of the terms read from a response up to its buckets
+     */
+    static final class Partition implements Closeable {
+
+        // the response, at the start of the buckets or past the end of the terms when it has none
+        private final JsonParser parser;
+
+        // the body of the response
+        private final InputStream response;
+
+        // the requests of the terms left out of the partition
+        private final long otherDocs;
+
+        /**
+         * Creates a partition
+         * @param parser the response at the start of the buckets
+         * @param response the body of the response
+         * @param otherDocs the requests of the terms left out
+         */
+        private Partition(JsonParser parser, InputStream response, long otherDocs) {
+            this.parser = parser;
+            this.response = response;
+            this.otherDocs = otherDocs;
+        }
+
+        /**
+         * gets whether every term of the partition is in its buckets
+         * @return boolean true when no terms were left out
+         */
+        boolean isComplete() {
+            return otherDocs == 0;
+        }
+
+        /**
+         * Closes the response
+         * @throws IOException closing it
+         */
+        @Override
+        public void close() throws IOException {
+            try {
+                parser.close();
+            } finally {
+                response.close();
+            }
+        }
+    }
+
+    /**
+     * The position of a page, which partition it is out of how many. The partitions split in
+     * two are kept in place of the one they were split from until they are all paged through,
+     * after which the pages carry on from the partition after it
+     */
+    static final class Cursor {
+
+        // the partition being paged through
+        private final int partition;
+
+        // the number of partitions the terms are hashed into
+        private final int partitions;
+
+        // the halves of split partitions still to page through before the next partition, as
+        // pairs of partition and number of partitions with the page of the cursor last
+        private final int[] splits;
+
+        /**
+         * Creates a cursor
+         * @param partition the partition being paged through
+         * @param partitions the number of partitions
+         * @param splits the halves of split partitions still to page through
+         */
+        private Cursor(int partition, int partitions, int[] splits) {
+            this.partition = partition;
+            this.partitions = partitions;
+            this.splits = splits;
+        }
+
+        /**
+         * Creates the cursor of the first page
+         * @param cardinality the number of terms
+         * @param pageSize how many terms a page is meant to hold
+         * @return Cursor the first page
+         */
+        static Cursor first(long cardinality, int pageSize) {
+            return new Cursor(0, (int) Math.max(1, Math.min(MAX_PARTITIONS, (cardinality + pageSize - 1) / pageSize)), new int[0]);
+        }
+
+        /**
+         * Reads a cursor given back by the API
+         * @param cursor the text of the cursor
+         * @return Cursor the page
+         * @throws BadRequestException if it is not a cursor made by {@link #toString}
+         */
+        static Cursor parse(String cursor) {
+            try {
+                String[] parts = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8).split("/");
+                int[] splits = new int[parts.length - 2];
+                for (int i = 0; i < splits.length; i++) {
+                    splits[i] = Integer.parseInt(parts[i + 2]);
+                }
+                Cursor parsed = new Cursor(Integer.parseInt(parts[0]), Integer.parseInt(parts[1]), splits);
+                if (parts.length % 2 == 0 && valid(parsed.partition, parsed.partitions, parsed.partitions)
+                        && IntStream.range(0, splits.length / 2)
+                        .allMatch(split -> valid(splits[split * 2], splits[split * 2 + 1], parsed.partitions))) {
+                    return parsed;
+                }
+            } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException | NegativeArraySizeException e) {
+                // falls through to the bad request
+            }
+            throw new BadRequestException("Invalid cursor " + cursor);
+        }
+
+        /**
+         * This method checks a partition of a cursor is one it could have been made with
+         * @param partition the partition
+         * @param partitions the number of partitions
+         * @param first the number of partitions of the first page
+         * @return boolean true when the terms could be hashed into it
+         */
+        private static boolean valid(int partition, int partitions, int first) {
+            return partition >= 0 && partition < partitions && partitions <= MAX_PARTITIONS && partitions % first == 0;
+        }
+
+        /**
+         * gets the partition of the page
+         * @return partition
+         */
+        int getPartition() {
+            return splits.length == 0 ? partition : splits[splits.length - 2];
+        }
+
+        /**
+         * gets the number of partitions the terms of the page are hashed into
+         * @return partitions
+         */
+        int getPartitions() {
+            return splits.length == 0 ? partitions : splits[splits.length - 1];
+        }
+
+        /**
+         * gets whether the partition of the page can be split in two
+         * @return boolean true when it is not already split into the most partitions
+         */
+        boolean canSplit() {
+            return getPartitions() <= MAX_PARTITIONS / 2;
+        }
+
+        /**
+         * Gets the cursor of the first half of the partition of this page split in two,
+         * the second half is paged through after it
+         * @return Cursor the first half
+         */
+        Cursor split() {
+            int top = splits.length == 0 ? 0 : splits.length - 2;
+            int[] split = Arrays.copyOf(splits, top + 4);
+            split[top] = getPartition() + getPartitions();
+            split[top + 1] = getPartitions() * 2;
+            split[top + 2] = getPartition();
+            split[top + 3] = getPartitions() * 2;
+            return new Cursor(partition, partitions, split);
+        }
+
+        /**
+         * Gets the cursor of the page after this one
+         * @return Cursor the next page, null if this is the last
+         */
+        Cursor next() {
+            if (splits.length > 2) {
+                return new Cursor(partition, partitions, Arrays.copyOf(splits, splits.length - 2));
+            }
+            // the last half of a split partition is paged, so the pages carry on after it
+            return partition + 1 < partitions ? new Cursor(partition + 1, partitions, new int[0]) : null;
+        }
+
+        /**
+         * Encodes the cursor for the API to give back
+         * @return String the cursor
+         */
+        @Override
+        public String toString() {
+            StringBuilder text = new StringBuilder().append(partition).append('/').append(partitions);
+            for (int split : splits) {
+                text.append('/').append(split);
+            }
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(text.toString().getBytes(StandardCharsets.UTF_8));
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package com.andy.nasa.resource;
+
+import io.dropwizard.jersey.params.DateTimeParam;
+import org.joda.time.DateTime;
+
+import javax.ws.rs.QueryParam;
+
+/**
+ * This class is the from and to parameters every query API takes, limiting it to the
+ * requests between two times. Both ends are included and either may be left open
+ */
+public class TimeRange {
+
+    // the earliest time, null for no bound
+    @QueryParam("from")
+    private DateTimeParam from;
+
+    // the latest time, null for no bound
+    @QueryParam("to")
+    private DateTimeParam to;
+
+    /**
+     * Creates a range with no bounds, whose parameters are then filled in by jersey
+     */
+    public TimeRange() {
+    }
+
+    /**
+     * Creates a range between two times
+     * @param from the earliest time, null for no bound
+     * @param to the latest time, null for no bound
+     * @return TimeRange the range
+     */
+    public static TimeRange of(DateTime from, DateTime to) {
+        TimeRange range = new TimeRange();
+        range.from = from == null ? null : new DateTimeParam(from.toString());
+        range.to = to == null ? null : new DateTimeParam(to.toString());
+        return range;
+    }
+
+    /**
+     * gets the earliest time in epoch millis
+     * @return from, null for no bound
+     */
+    public Long getFrom() {
+        return from == null ? null : from.get().getMillis();
+    }
+
+    /**
+     * gets the latest time in epoch millis
+     * @return to, null for no bound
+     */
+    public Long getTo() {
+        return to == null ? null : to.get().getMillis();
+    }
+
+    /**
+     * gets the earliest time
+     * @return from, null for no bound
+     */
+    public DateTime getFromTime() {
+        return from == null ? null : from.get();
+    }
+
+    /**
+     * gets the latest time
+     * @return to, null for no bound
+     */
+    public DateTime getToTime() {
+        return to == null ? null : to.get();
+    }
+
+    /**
+     * Checks whether either end of the range is bounded
+     * @return boolean true when there is a bound
+     */
+    public boolean isBounded() {
+        return from != null || to != null;
+    }
+
+    /**
+     * Checks whether the range ends before it starts, so no request could be in it
+     * @return boolean true when both ends are bounded and from is after to
+     */
+    public boolean isInverted() {
+        return from != null && to != null && getFrom() > getTo();
+    }
+
+    /**
+     * Checks whether the range is made of whole periods of a granularity, starting at the start of
+     * one and ending at the last millisecond of one, so it can be answered by rollups of that granularity
+     * @param granularityMillis the length of the periods
+     * @return boolean true when both bounds fall on the edges of periods
+     */
+    public boolean isAligned(long granularityMillis) {
+        return (from == null || Math.floorMod(getFrom(), granularityMillis) == 0)
+                && (to == null || Math.floorMod(getTo() + 1, granularityMillis) == 0);
+    }
+}
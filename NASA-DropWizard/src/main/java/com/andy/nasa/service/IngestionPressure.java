@@ -0,0 +1,219 @@
+package com.andy.nasa.service;
+
+import com.andy.nasa.configuration.configs.PressureConfig;
+import com.andy.nasa.event.DatabaseHandler;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.elasticsearch.client.Response;
+import org.elasticsearch.client.RestClient;
+
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * This class reads how much pressure ingestion is under and slows it down before elastic search
+ * starts rejecting bulk requests. Each read takes the bulk queue and rejections of every node,
+ * the entries waiting in the bulk buffer and how long the last bulk request took, each as a share
+ * of its limit, and the highest share decides how fast rabbit hands over messages. The depth of
+ * the rabbit queue is read too, but only reported, slowing down because the queue is deep would
+ * only make it deeper
+ */
+public class IngestionPressure {
+
+    /**
+     * How fast messages are consumed
+     */
+    public enum Level {
+        NORMAL,
+        SLOW,
+        PAUSED
+    }
+
+    /**
+     * The signals of pressure that are read
+     */
+    public enum Signal {
+        BULK_QUEUE,
+        BULK_REJECTIONS,
+        BUFFERED_DOCUMENTS,
+        FLUSH_MILLIS,
+        QUEUE_DEPTH
+    }
+
+    // the share of the limit that lowers a level has to be under this share of what raised it
+    static final double RECOVERY = 0.8;
+
+    // ES rest client instance
+    private final RestClient restClient;
+
+    // the bulk buffer and how long its flushes take
+    private final DatabaseHandler databaseHandler;
+
+    // slowed down and paused as pressure rises
+    private final ServiceRabbitIngestion ingestion;
+
+    // json mapper object
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    // the limit of each signal
+    private final Map<Signal, Long> limits = new EnumMap<>(Signal.class);
+
+    // the share of a limit at which ingestion slows down
+    private final double slowRatio;
+
+    // the last reading of each signal, replaced whole on each read
+    private volatile Map<Signal, Long> readings = Collections.emptyMap();
+
+    // the bulk requests rejected by every node so far, negative before the first read
+    private long rejected = -1;
+
+    // how fast ingestion is going and the highest share of a limit it was set from
+    private volatile Level level = Level.NORMAL;
+    private volatile double ratio = 0;
+
+    /**
+     * Creates the pressure readings
+     * @param restClient for reading the thread pools of ES
+     * @param databaseHandler the bulk buffer and how long its flushes take
+     * @param ingestion slowed down and paused as pressure rises
+     * @param pressureConfig the limit of each signal
+     * @param metrics where the pressure and the level are registered
+     */
+    public IngestionPressure(RestClient restClient,
+                             DatabaseHandler databaseHandler,
+                             ServiceRabbitIngestion ingestion,
+                             PressureConfig pressureConfig,
+                             MetricRegistry metrics) {
+        this.restClient = restClient;
+        this.databaseHandler = databaseHandler;
+        this.ingestion = ingestion;
+        this.slowRatio = pressureConfig.getSlowRatio();
+        limits.put(Signal.BULK_QUEUE, pressureConfig.getMaxBulkQueue());
+        limits.put(Signal.BULK_REJECTIONS, pressureConfig.getMaxBulkRejections());
+        limits.put(Signal.BUFFERED_DOCUMENTS, pressureConfig.getMaxBufferedDocuments());
+        limits.put(Signal.FLUSH_MILLIS, pressureConfig.getMaxFlushMillis());
+        limits.put(Signal.QUEUE_DEPTH, pressureConfig.getMaxQueueDepth());
+        metrics.register("ingest.pressure.ratio", (Gauge<Double>) () -> ratio);
+        metrics.register("ingest.pressure.level", (Gauge<String>) () -> level.name());
+    }
+
+    /**
+     * Reads every signal and changes how fast ingestion goes if the pressure calls for it,
+     * a signal that cannot be read is left out of this read
+     */
+    public void poll() {
+        Map<Signal, Long> current = new EnumMap<>(Signal.class);
+        try {
+            readBulkPool(current);
+        } catch (Exception e) {
+            // ES not answering shows as the buffer filling and flushes slowing down
+            e.printStackTrace();
+        }
+        current.put(Signal.BUFFERED_DOCUMENTS, (long) databaseHandler.getBufferedDocuments());
+        current.put(Signal.FLUSH_MILLIS, databaseHandler.getLastFlushMillis());
+        try {
+            current.put(Signal.QUEUE_DEPTH, ingestion.getQueueDepth());
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        readings = current;
+        ratio = ratio(current, limits);
+        level = next(level, ratio, slowRatio);
+        try {
+            ingestion.throttle(level);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * gets the last reading of each signal
+     * @return readings, empty before the first read
+     */
+    public Map<Signal, Long> getReadings() {
+        return readings;
+    }
+
+    /**
+     * gets the limit of a signal
+     * @param signal the signal
+     * @return long the limit
+     */
+    public long getLimit(Signal signal) {
+        return limits.get(signal);
+    }
+
+    /**
+     * gets how fast ingestion is going
+     * @return level
+     */
+    public Level getLevel() {
+        return level;
+    }
+
+    /**
+     * This method reads the longest bulk queue of any node and the bulk requests rejected since the last read
+     * @param current the readings the signals are put in
+     * @throws Exception reading the node stats
+     */
+    private void readBulkPool(Map<Signal, Long> current) throws Exception {
+        Response response = restClient.performRequest(
+                "GET",
+                "_nodes/stats/thread_pool",
+                Collections.singletonMap("filter_path", "nodes.*.thread_pool.bulk.queue,nodes.*.thread_pool.bulk.rejected")
+        );
+        JsonNode nodes;
+        try (InputStream in = response.getEntity().getContent()) {
+            nodes = objectMapper.readTree(in).path("nodes");
+        }
+        long queue = 0;
+        long total = 0;
+        for (JsonNode node : nodes) {
+            JsonNode bulk = node.path("thread_pool").path("bulk");
+            queue = Math.max(queue, bulk.path("queue").asLong());
+            total += bulk.path("rejected").asLong();
+        }
+        current.put(Signal.BULK_QUEUE, queue);
+        // rejections are counted from when a node started, only the ones since the last read matter
+        current.put(Signal.BULK_REJECTIONS, rejected < 0 ? 0 : Math.max(0, total - rejected));
+        rejected = total;
+    }
+
+    /**
+     * This method finds the highest share of its limit any signal that slows ingestion is at
+     * @param readings the reading of each signal
+     * @param limits the limit of each signal
+     * @return double the highest share, 1 or more when a signal is at its limit
+     */
+    static double ratio(Map<Signal, Long> readings, Map<Signal, Long> limits) {
+        double ratio = 0;
+        for (Map.Entry<Signal, Long> reading : readings.entrySet()) {
+            if (reading.getKey() != Signal.QUEUE_DEPTH) {
+                ratio = Math.max(ratio, (double) reading.getValue() / Math.max(1, limits.get(reading.getKey())));
+            }
+        }
+        return ratio;
+    }
+
+    /**
+     * This method decides how fast ingestion should go, it slows down as soon as the pressure calls
+     * for it but only speeds up again once the pressure is well under what slowed it down, so it
+     * does not flap around a limit
+     * @param current how fast ingestion is going
+     * @param ratio the highest share of a limit
+     * @param slowRatio the share of a limit at which ingestion slows down
+     * @return Level how fast ingestion should go
+     */
+    static Level next(Level current, double ratio, double slowRatio) {
+        Level target = ratio >= 1 ? Level.PAUSED : ratio >= slowRatio ? Level.SLOW : Level.NORMAL;
+        if (target.ordinal() >= current.ordinal()) {
+            return target;
+        }
+        double raisedAt = current == Level.PAUSED ? 1 : slowRatio;
+        return ratio < raisedAt * RECOVERY ? target : current;
+    }
+}
@@ -0,0 +1,43 @@
+package com.andy.nasa.service;
+
+import com.codahale.metrics.health.HealthCheck;
+
+/**
+ * Health check for one signal of ingestion pressure, unhealthy while its last
+ * reading is at or over its limit
+ */
+public class PressureHealthCheck extends HealthCheck {
+
+    // the readings of the signals
+    private final IngestionPressure pressure;
+
+    // the signal checked
+    private final IngestionPressure.Signal signal;
+
+    /**
+     * Creates the health check of a signal
+     * @param pressure the readings of the signals
+     * @param signal the signal checked
+     */
+    public PressureHealthCheck(IngestionPressure pressure, IngestionPressure.Signal signal) {
+        this.pressure = pressure;
+        this.signal = signal;
+    }
+
+    /**
+     * Override from health check to compare the last reading of the signal with its limit
+     * @return whether the signal is under its limit, with how fast ingestion is going
+     */
+    @Override
+    protected Result check() {
+        Long reading = pressure.getReadings().get(signal);
+        long limit = pressure.getLimit(signal);
+        if (reading == null) {
+            return Result.unhealthy("%s has not been read, ingestion is %s", signal, pressure.getLevel());
+        }
+        if (reading >= limit) {
+            return Result.unhealthy("%s is %d, over its limit of %d, ingestion is %s", signal, reading, limit, pressure.getLevel());
+        }
+        return Result.healthy("%s is %d of %d, ingestion is %s", signal, reading, limit, pressure.getLevel());
+    }
+}
@@ -1,19 +1,31 @@
 package com.andy.nasa.service;
 
+import com.andy.nasa.configuration.configs.PressureConfig;
 import com.andy.nasa.event.DatabaseHandler;
+import com.andy.nasa.event.IngestionStamps;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
 import com.rabbitmq.client.*;
 import io.dropwizard.lifecycle.Managed;
 
 import java.io.IOException;
+import java.util.Map;
 
 
 /**
  * This class subscribes to rabbit and consumes the messages
- * that has Nasa entries and then write to the ES DB
+ * that has Nasa entries and then write to the ES DB. A message is only
+ * acknowledged once the bulk request its entries are in has been answered,
+ * so how many messages rabbit hands over before any are acknowledged bounds
+ * how much ingestion takes on, and is lowered or the consumer paused under pressure
  * Created by awaldman on 5/10/17.
  */
 public class ServiceRabbitIngestion implements Managed {
 
+    // the queue the entries are published to
+    static final String QUEUE_NAME = "nasa-queue";
+
     //Used to write to the DB on consuming a message
     private final DatabaseHandler databaseHandler;
 
@@ -23,33 +35,141 @@ public class ServiceRabbitIngestion implements Managed {
     //channel of rabbit used to consume
     private Channel channel;
 
+    // header a publisher can stamp a message with, in milliseconds since the epoch
+    static final String PUBLISHED_HEADER = "published_millis";
+
+    // how fast messages are delivered, how long each takes to write and how many fail
+    private final Meter deliveries;
+    private final Timer processing;
+    private final Meter failures;
+
+    // how many messages are handed over before any are acknowledged, normally and while slowed down
+    private final int prefetch;
+    private final int slowPrefetch;
+
+    /**
+     * This is a consumer which is prepared for consuming a message
+     */
+    private final Consumer consumer;
+
+    // how fast ingestion is going, only changed while holding the ingestion
+    private IngestionPressure.Level level = IngestionPressure.Level.PAUSED;
+
+    // the tag of the consumer while subscribed, null while paused
+    private String consumerTag = null;
+
     /**
      * This constructs the class that ingests messages
      * from rabbit
      * @param databaseHandler connection both needed to be able to connect to ES and write to
+     * @param metrics where the metrics of the deliveries are registered
+     * @param pressureConfig how many messages are handed over before any are acknowledged
      */
-    public ServiceRabbitIngestion(DatabaseHandler databaseHandler, Connection connection) throws IOException {
+    public ServiceRabbitIngestion(DatabaseHandler databaseHandler,
+                                  Connection connection,
+                                  MetricRegistry metrics,
+                                  PressureConfig pressureConfig) throws IOException {
         this.databaseHandler = databaseHandler;
         this.connection = connection;
+        this.deliveries = metrics.meter("rabbit.deliveries");
+        this.processing = metrics.timer("rabbit.processing");
+        this.failures = metrics.meter("rabbit.failures");
+        this.prefetch = pressureConfig.getPrefetch();
+        this.slowPrefetch = pressureConfig.getSlowPrefetch();
         channel  = connection.createChannel();
+        consumer = new DefaultConsumer(channel) {
+            // overriding the consuming of a message from rabbit
+            @Override
+            public void handleDelivery(String consumerTag, Envelope envelope,
+                                       AMQP.BasicProperties properties, byte[] body) throws IOException {
+                deliveries.mark();
+                long deliveryTag = envelope.getDeliveryTag();
+                IngestionStamps stamps = new IngestionStamps(
+                        published(properties),
+                        System.currentTimeMillis(),
+                        () -> acknowledge(deliveryTag)
+                );
+                try (Timer.Context ignored = processing.time()) {
+                    // write the entry to the db
+                    databaseHandler.writeToDB(new String(body, "UTF-8"), stamps);
+                } catch(Exception e) {
+                    failures.mark();
+                    e.printStackTrace();
+                    // a message that cannot be written never will be, so it is not delivered again
+                    getChannel().basicReject(deliveryTag, false);
+                }
+            }
+        };
     }
 
     /**
-     * This is a consumer which is prepared for consuming a message
+     * This method reads when a message was published, from the published millis header
+     * when the publisher set it or else the timestamp of the message, which is in seconds
+     * @param properties the properties of the message
+     * @return long milliseconds since the epoch, 0 when the message was not stamped
      */
-    private Consumer consumer = new DefaultConsumer(channel) {
-        // overriding the consuming of a message from rabbit
-        @Override
-        public void handleDelivery(String consumerTag, Envelope envelope,
-                                   AMQP.BasicProperties properties, byte[] body) throws IOException {
-            try {
-                // write the entry to the db
-                databaseHandler.writeToDB(new String(body, "UTF-8"));
-            } catch(Exception e) {
-                e.printStackTrace();
-            }
+    static long published(AMQP.BasicProperties properties) {
+        Map<String, Object> headers = properties.getHeaders();
+        if (headers != null && headers.get(PUBLISHED_HEADER) instanceof Number) {
+            return ((Number) headers.get(PUBLISHED_HEADER)).longValue();
+        }
+        return properties.getTimestamp() == null ? 0 : properties.getTimestamp().getTime();
+    }
+
+    /**
+     * This method acknowledges a message once its entries are written
+     * @param deliveryTag the tag rabbit delivered the message with
+     */
+    private void acknowledge(long deliveryTag) {
+        try {
+            channel.basicAck(deliveryTag, false);
+        } catch (IOException e) {
+            // the channel closed, rabbit delivers the message again
+            e.printStackTrace();
         }
-    };
+    }
+
+    /**
+     * Changes how fast messages are consumed, the consumer is subscribed again with the prefetch
+     * of the level since a prefetch only applies to consumers subscribed after it is set, or is left
+     * unsubscribed while paused. Messages already handed over are still acknowledged as they are written
+     * @param next how fast ingestion should go
+     * @throws IOException talking to rabbit
+     */
+    public synchronized void throttle(IngestionPressure.Level next) throws IOException {
+        if (next == level) {
+            return;
+        }
+        if (consumerTag != null) {
+            channel.basicCancel(consumerTag);
+            consumerTag = null;
+        }
+        if (next != IngestionPressure.Level.PAUSED) {
+            int messages = next == IngestionPressure.Level.SLOW ? slowPrefetch : prefetch;
+            // a full prefetch is flushed at once rather than waiting for more messages that cannot come
+            databaseHandler.setMaxBufferedMessages(messages);
+            channel.basicQos(messages);
+            consumerTag = channel.basicConsume(QUEUE_NAME, false, consumer);
+        }
+        level = next;
+    }
+
+    /**
+     * gets how fast messages are being consumed
+     * @return level
+     */
+    public synchronized IngestionPressure.Level getLevel() {
+        return level;
+    }
+
+    /**
+     * gets how many messages are waiting in the queue to be delivered
+     * @return the messages ready in the queue
+     * @throws IOException talking to rabbit
+     */
+    public long getQueueDepth() throws IOException {
+        return channel.messageCount(QUEUE_NAME);
+    }
 
     /**
      * This is the method invoked whilst the application
@@ -58,8 +178,7 @@ public class ServiceRabbitIngestion implements Managed {
      */
     @Override
     public void start() throws Exception {
-        String queueName = "nasa-queue";
-        channel.basicConsume(queueName, true, consumer);
+        throttle(IngestionPressure.Level.NORMAL);
     }
 
     /**
@@ -71,4 +190,4 @@ public class ServiceRabbitIngestion implements Managed {
     public void stop() throws Exception {
         connection.close();
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,46 @@
+package com.andy.nasa.aggregate;
+
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.assertEquals;
+
+/**
+ * Tests the estimates of the hyper log log sketch and that merged sketches count both
+ */
+public class HyperLogLogTest {
+
+    @Test
+    public void testEstimate() {
+        HyperLogLog hyperLogLog = new HyperLogLog(14);
+        for (int i = 0; i < 100000; i++) {
+            // every value twice, which should not change the estimate
+            hyperLogLog.add("client" + i);
+            hyperLogLog.add("client" + i);
+        }
+        assertEquals(hyperLogLog.estimate(), 100000, 100000 * 3 * hyperLogLog.getStandardError());
+    }
+
+    @Test
+    public void testSmallCounts() {
+        HyperLogLog hyperLogLog = new HyperLogLog(14);
+        assertEquals(hyperLogLog.estimate(), 0);
+        for (int i = 0; i < 10; i++) {
+            hyperLogLog.add("client" + i);
+        }
+        assertEquals(hyperLogLog.estimate(), 10);
+    }
+
+    @Test
+    public void testMergeAndBytes() {
+        HyperLogLog first = new HyperLogLog(12);
+        HyperLogLog second = new HyperLogLog(12);
+        for (int i = 0; i < 20000; i++) {
+            first.add("client" + i);
+            second.add("client" + (i + 10000));
+        }
+        HyperLogLog merged = first.copy();
+        merged.merge(second);
+        assertEquals(merged.estimate(), 30000, 30000 * 3 * merged.getStandardError());
+        assertEquals(HyperLogLog.fromBytes(merged.toBytes()), merged);
+    }
+}
@@ -0,0 +1,100 @@
+package com.andy.nasa.aggregate;
+
+import com.andy.nasa.elasticsearch.WireFormat;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.io.ByteStreams;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.http.HttpHost;
+import org.elasticsearch.client.RestClient;
+import org.testng.annotations.Test;
+import parser.EntryParser;
+
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * Tests that the rollups of a flush are added by a script in ES rather than read and written
+ * back, and that they stop being ready when they could not be written
+ */
+public class RollupsTest {
+
+    // two requests in the same hour
+    private static final String ENTRIES = "a.com - - [01/Jun/1995:00:00:01 -0600] \"GET /~b/x.gif\" 200 100\n"
+            + "b.com - - [01/Jun/1995:00:00:02 -0600] \"GET /~a/x.gif\" 404 20";
+
+    @Test
+    public void testScriptedUpdates() throws Exception {
+        List<String> requests = new CopyOnWriteArrayList<>();
+        HttpServer server = server(requests, new AtomicBoolean(false));
+        try (RestClient restClient = RestClient.builder(new HttpHost("localhost", server.getAddress().getPort())).build()) {
+            Rollups rollups = new Rollups(restClient, WireFormat.JSON);
+            assertTrue(rollups.open());
+            rollups.flushed(EntryParser.parse(ENTRIES));
+            assertTrue(rollups.isReady());
+
+            // only the bulk request, nothing is read back first
+            assertFalse(requests.stream().anyMatch(request -> request.contains("_mget")));
+            String bulk = requests.stream().filter(request -> request.startsWith("POST /nasa-rollup/_bulk")).findFirst().get();
+            String[] lines = bulk.substring(bulk.indexOf('\n') + 1).split("\n");
+            ObjectMapper objectMapper = new ObjectMapper();
+            JsonNode update = objectMapper.readTree(lines[0]).path("update");
+            assertEquals(update.path("_type").asText(), Rollups.HOUR_TYPE);
+            JsonNode script = objectMapper.readTree(lines[1]);
+            assertEquals(script.path("script").path("lang").asText(), "painless");
+            assertEquals(script.path("script").path("params").path("counts").path("requests").asLong(), 2);
+            assertEquals(script.path("script").path("params").path("counts").path("payloadSum").asLong(), 120);
+            assertFalse(script.path("script").path("params").path("counts").has("hour"));
+            assertEquals(script.path("upsert").path("requests").asLong(), 2);
+            assertEquals(script.path("upsert").path("status4xx").asLong(), 1);
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    @Test
+    public void testFailedWrite() throws Exception {
+        List<String> requests = new CopyOnWriteArrayList<>();
+        HttpServer server = server(requests, new AtomicBoolean(true));
+        try (RestClient restClient = RestClient.builder(new HttpHost("localhost", server.getAddress().getPort())).build()) {
+            Rollups rollups = new Rollups(restClient, WireFormat.JSON);
+            assertTrue(rollups.open());
+            rollups.flushed(EntryParser.parse(ENTRIES));
+
+            // ranges go back to the entries, and the rollups are built again on the next start
+            assertFalse(rollups.isReady());
+            assertTrue(requests.contains("DELETE /nasa-rollup/meta/built\n"));
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    /**
+     * This method starts a server standing in for ES, recording each request
+     * @param requests each request as its method, path and a new line then its body
+     * @param errors whether bulk requests answer that some items failed
+     * @return HttpServer the server
+     * @throws Exception starting it
+     */
+    private static HttpServer server(List<String> requests, AtomicBoolean errors) throws Exception {
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", exchange -> {
+            requests.add(exchange.getRequestMethod() + " " + exchange.getRequestURI().getPath() + "\n"
+                    + new String(ByteStreams.toByteArray(exchange.getRequestBody())));
+            byte[] body = exchange.getRequestURI().getPath().endsWith("_bulk")
+                    ? ("{\"errors\":" + errors.get() + "}").getBytes()
+                    : "{}".getBytes();
+            exchange.sendResponseHeaders(200, body.length);
+            exchange.getResponseBody().write(body);
+            exchange.close();
+        });
+        server.start();
+        return server;
+    }
+}
@@ -0,0 +1,53 @@
+package com.andy.nasa.aggregate;
+
+import org.testng.annotations.Test;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * Tests the counts of the space saving sketch stay within their error bounds
+ */
+public class SpaceSavingTest {
+
+    @Test
+    public void testExactUnderCapacity() {
+        SpaceSaving spaceSaving = new SpaceSaving(10);
+        spaceSaving.add("b", 2);
+        spaceSaving.add("a", 2);
+        spaceSaving.add("c", 5);
+        List<SpaceSaving.Counter> top = spaceSaving.top(3);
+        assertEquals(top.get(0).getItem(), "c");
+        // ties are ordered by item like ES
+        assertEquals(top.get(1).getItem(), "a");
+        assertEquals(top.get(2).getItem(), "b");
+        assertEquals(top.get(0).getCount(), 5);
+        assertEquals(top.get(0).getError(), 0);
+    }
+
+    @Test
+    public void testBoundsOverCapacity() {
+        Random random = new Random(42);
+        Map<String, Long> actual = new HashMap<>();
+        SpaceSaving first = new SpaceSaving(20);
+        SpaceSaving second = new SpaceSaving(20);
+        for (int i = 0; i < 10000; i++) {
+            // a skewed spread of items, a few of them very common
+            String item = "item" + (int) Math.floor(Math.pow(random.nextDouble(), 3) * 200);
+            actual.merge(item, 1L, Long::sum);
+            (i % 2 == 0 ? first : second).add(item, 1);
+        }
+        SpaceSaving merged = first.merge(second);
+        for (SpaceSaving.Counter counter : merged.top(20)) {
+            long count = actual.get(counter.getItem());
+            assertTrue(counter.getCount() >= count);
+            assertTrue(counter.getCount() - counter.getError() <= count);
+        }
+        assertEquals(merged.top(1).get(0).getItem(), "item0");
+    }
+}
@@ -0,0 +1,60 @@
+package com.andy.nasa.aggregate;
+
+import com.andy.nasa.elasticsearch.WireFormat;
+import com.andy.nasa.event.DatabaseHandler;
+import com.codahale.metrics.MetricRegistry;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.http.HttpHost;
+import org.elasticsearch.client.RestClient;
+import org.testng.annotations.Test;
+import parser.EntryParser;
+
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * Tests that the sketches read back from disk are only used once they were given every entry in the index
+ */
+public class UniqueClientsTest {
+
+    @Test
+    public void testVerify() throws Exception {
+        Path directory = Files.createTempDirectory("clients");
+        new UniqueClients(directory).flushed(EntryParser.parse(
+                "a.com - - [01/Jun/1995:00:00:01 -0600] \"GET /~b/x.gif\" 200 100\n"
+                        + "b.com - - [01/Jun/1995:00:00:02 -0600] \"GET /~a/x.gif\" 404 0"));
+
+        // stands in for ES, counting however many entries it is told to
+        AtomicLong indexed = new AtomicLong(2);
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", exchange -> {
+            byte[] body = ("{\"count\":" + indexed.get() + "}").getBytes();
+            exchange.sendResponseHeaders(200, body.length);
+            exchange.getResponseBody().write(body);
+            exchange.close();
+        });
+        server.start();
+        try (RestClient restClient = RestClient.builder(new HttpHost("localhost", server.getAddress().getPort())).build()) {
+            DatabaseHandler databaseHandler = new DatabaseHandler(restClient, WireFormat.JSON, new MetricRegistry());
+            UniqueClients reopened = new UniqueClients(directory);
+            assertFalse(reopened.isReady());
+            assertTrue(reopened.verify(restClient, databaseHandler, WireFormat.JSON));
+            assertTrue(reopened.isReady());
+            assertEquals(reopened.estimate(null, null), 2);
+
+            // entries indexed while the sketches were not kept up, like by the MapReduce import
+            indexed.set(5);
+            assertFalse(reopened.verify(restClient, databaseHandler, WireFormat.JSON));
+            assertFalse(reopened.isReady());
+            databaseHandler.close();
+        } finally {
+            server.stop(0);
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package com.andy.nasa.cache;
+
+import org.testng.annotations.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.fail;
+
+/**
+ * Tests that results are only reused in their generation but kept as stale results after it
+ */
+public class ResultCacheTest {
+
+    @Test
+    public void testStaleAfterNewGeneration() throws Exception {
+        AtomicLong generation = new AtomicLong();
+        ResultCache resultCache = new ResultCache(100, 60, 60, generation::get, new SingleFlight());
+        assertEquals(resultCache.get("endpoint", () -> CompletableFuture.completedFuture("first"), 1).get(), "first");
+        assertEquals(resultCache.get("endpoint", () -> CompletableFuture.completedFuture("other"), 1).get(), "first");
+
+        generation.incrementAndGet();
+        CompletableFuture<String> failing = new CompletableFuture<>();
+        failing.completeExceptionally(new IllegalStateException("down"));
+        try {
+            resultCache.get("endpoint", () -> failing, 1).get();
+            fail("the query failed");
+        } catch (ExecutionException e) {
+            // the last result is still there to answer with
+            assertEquals(resultCache.getStale("endpoint", 1), "first");
+        }
+        assertNull(resultCache.getStale("endpoint", 2));
+        assertEquals(resultCache.get("endpoint", () -> CompletableFuture.completedFuture("second"), 1).get(), "second");
+        assertEquals(resultCache.getStale("endpoint", 1), "second");
+    }
+
+    @Test
+    public void testNoStaleResults() throws Exception {
+        ResultCache resultCache = new ResultCache(100, 60, new AtomicLong()::get, new SingleFlight());
+        assertEquals(resultCache.get("endpoint", () -> CompletableFuture.completedFuture("first")).get(), "first");
+        assertNull(resultCache.getStale("endpoint"));
+    }
+}
@@ -0,0 +1,38 @@
+package com.andy.nasa.cache;
+
+import org.testng.annotations.Test;
+
+import java.util.concurrent.CompletableFuture;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertSame;
+
+/**
+ * Tests that identical requests running together share one request
+ */
+public class SingleFlightTest {
+
+    @Test
+    public void testCoalescesWhileRunning() throws Exception {
+        SingleFlight singleFlight = new SingleFlight();
+        CompletableFuture<String> request = new CompletableFuture<>();
+        CompletableFuture<String> first = singleFlight.execute("key", () -> request);
+        CompletableFuture<String> second = singleFlight.execute("key", () -> CompletableFuture.completedFuture("other"));
+        assertSame(first, second);
+        assertEquals(singleFlight.getInFlight(), 1);
+        request.complete("result");
+        assertEquals(second.get(), "result");
+        assertEquals(singleFlight.getExecuted(), 1);
+        assertEquals(singleFlight.getCoalesced(), 1);
+        assertEquals(singleFlight.getInFlight(), 0);
+    }
+
+    @Test
+    public void testNewRequestAfterCompletion() throws Exception {
+        SingleFlight singleFlight = new SingleFlight();
+        assertEquals(singleFlight.execute("key", () -> CompletableFuture.completedFuture("a")).get(), "a");
+        assertEquals(singleFlight.execute("key", () -> CompletableFuture.completedFuture("b")).get(), "b");
+        assertEquals(singleFlight.getExecuted(), 2);
+        assertEquals(singleFlight.getCoalesced(), 0);
+    }
+}
@@ -0,0 +1,210 @@
+package com.andy.nasa.columnar;
+
+import com.andy.nasa.elasticsearch.WireFormat;
+import com.andy.nasa.event.DatabaseHandler;
+import com.codahale.metrics.MetricRegistry;
+import com.sun.net.httpserver.HttpServer;
+import model.DBEntry;
+import model.ImmutableDBEntry;
+import org.apache.http.HttpHost;
+import org.elasticsearch.client.RestClient;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.testng.annotations.Test;
+import parser.EntryParser;
+
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * Tests the scans of the columns against entries whose answers are known
+ */
+public class ColumnStoreTest {
+
+    @Test
+    public void testScans() {
+        ColumnStore columnStore = new ColumnStore();
+        columnStore.flushed(EntryParser.parse("a.com - - [01/Jun/1995:00:00:01 -0600] \"GET /~b/x.gif\" 200 100"));
+        columnStore.flushed(EntryParser.parse("b.com - - [01/Jun/1995:00:00:02 -0600] \"GET /~a/x.gif\" 404 0"));
+        columnStore.flushed(EntryParser.parse("a.com - - [01/Jul/1995:00:00:03 -0600] \"POST /~a/y.html\" 500 300"));
+
+        long[] totals = columnStore.totals(null, null);
+        assertEquals(totals, new long[] {3, 2, 400});
+
+        // ties are ordered by term like ES
+        List<Map.Entry<String, Long>> users = columnStore.ranking(ColumnStore.Column.USER, false, null, null);
+        assertEquals(users.get(0).getKey(), "a");
+        assertEquals((long) users.get(0).getValue(), 2L);
+        assertEquals(users.get(1).getKey(), "b");
+        List<Map.Entry<String, Long>> bytes = columnStore.ranking(ColumnStore.Column.USER, true, null, null);
+        assertEquals(bytes.get(0).getKey(), "a");
+        assertEquals((long) bytes.get(0).getValue(), 300L);
+
+        assertEquals(columnStore.count(ColumnStore.Column.EXTENSION, "gif", null, null), 2);
+        assertEquals(columnStore.count(ColumnStore.Column.EXTENSION, "png", null, null), 0);
+        assertEquals(columnStore.distinct(ColumnStore.Column.CLIENT, null, null), 2);
+        assertEquals(columnStore.payloadSizes(null, null, null, null), new int[] {0, 100, 300});
+
+        TreeMap<Long, long[]> months = columnStore.months(null, null);
+        assertEquals(months.size(), 2);
+        assertEquals(months.firstEntry().getValue(), new long[] {2, 1});
+
+        // only the requests of July
+        long july = months.lastKey();
+        assertEquals(columnStore.totals(july, null), new long[] {1, 1, 300});
+        assertEquals(columnStore.distinct(ColumnStore.Column.CLIENT, july, null), 1);
+    }
+
+    @Test
+    public void testSegments() throws Exception {
+        Path directory = Files.createTempDirectory("columns");
+        ColumnStore columnStore = new ColumnStore(directory);
+        assertFalse(columnStore.isReady());
+        List<DBEntry> written = new ArrayList<>();
+        // enough entries to fill a segment and start another
+        for (int i = 0; i < 40000; i++) {
+            List<DBEntry> entries = EntryParser.parse("host" + (i % 300) + ".com - - [01/Jun/1995:00:00:01 -0600] \"GET /~user"
+                    + (i % 70) + "/page" + (i % 11) + ".html\" " + (i % 50 == 0 ? 404 : 200) + " " + i);
+            written.addAll(entries);
+            if (written.size() % 1000 == 0) {
+                columnStore.flushed(written.subList(written.size() - 1000, written.size()));
+            }
+        }
+
+        // the columns read back from the segments are the columns written
+        ColumnStore reopened = new ColumnStore(directory);
+        assertTrue(reopened.isReady());
+        assertEquals(reopened.getRows(), 40000);
+        assertEquals(reopened.totals(null, null), columnStore.totals(null, null));
+        assertEquals(reopened.ranking(ColumnStore.Column.USER, true, null, null),
+                columnStore.ranking(ColumnStore.Column.USER, true, null, null));
+        assertEquals(reopened.distinct(ColumnStore.Column.CLIENT, null, null), 300);
+        int row = 0;
+        for (DBEntry entry : reopened.entries()) {
+            DBEntry expected = written.get(row++);
+            assertEquals(entry.resourceAccessed(), expected.resourceAccessed());
+            assertEquals(entry.client(), expected.client());
+            assertEquals(entry.payloadSize(), expected.payloadSize());
+            assertEquals(entry.datetime().getMillis(), expected.datetime().getMillis());
+        }
+
+        // only the full segment is written whole, the rows after the flush that filled it are in a log
+        assertTrue(Files.exists(directory.resolve("0000000000.seg")));
+        assertFalse(Files.exists(directory.resolve("0000033000.seg")));
+        assertTrue(Files.exists(directory.resolve("0000033000.log")));
+
+        // entries appended after a restart carry on from the log
+        reopened.flushed(written.subList(0, 10));
+        assertEquals(new ColumnStore(directory).getRows(), 40010);
+
+        // a block torn by a crash is dropped, and cut off by the next append
+        Files.write(directory.resolve("0000033000.log"), new byte[] {0, 0, 0, 100, 1, 2, 3, 4, 7}, StandardOpenOption.APPEND);
+        ColumnStore torn = new ColumnStore(directory);
+        assertEquals(torn.getRows(), 40010);
+        torn.flushed(written.subList(10, 20));
+        ColumnStore recovered = new ColumnStore(directory);
+        assertEquals(recovered.getRows(), 40020);
+        assertEquals(recovered.totals(null, null), torn.totals(null, null));
+    }
+
+    @Test
+    public void testBitmapCounts() {
+        Random random = new Random(7);
+        ColumnStore columnStore = new ColumnStore();
+        List<DBEntry> written = new ArrayList<>();
+        long start = new DateTime("1995-06-20T00:00:00Z").getMillis();
+        for (int i = 0; i < 5000; i++) {
+            // spread over parts of three months, a few entries without a time
+            DateTime datetime = i % 100 == 0 ? null : new DateTime(start + (long) (random.nextDouble() * 45 * 86400000L), DateTimeZone.UTC);
+            written.add(ImmutableDBEntry.of(null, random.nextBoolean() ? 200 : 400 + random.nextInt(200),
+                    random.nextInt(10) == 0 ? "POST" : "GET", random.nextInt(5000), "/x",
+                    random.nextInt(4) == 0 ? null : "user" + random.nextInt(20), datetime,
+                    "ext" + random.nextInt(5), "client" + random.nextInt(50)));
+        }
+        columnStore.flushed(written);
+
+        List<Long[]> ranges = Arrays.asList(
+                new Long[] {null, null},
+                new Long[] {new DateTime("1995-07-01T00:00:00Z").getMillis(), new DateTime("1995-08-01T00:00:00Z").getMillis() - 1},
+                new Long[] {start + 86400000L * 3, start + 86400000L * 30},
+                new Long[] {null, start + 86400000L * 5}
+        );
+        for (Long[] range : ranges) {
+            for (String user : Arrays.asList(null, "user3", "nobody")) {
+                Map<ColumnStore.Column, String> terms = new EnumMap<>(ColumnStore.Column.class);
+                if (user != null) {
+                    terms.put(ColumnStore.Column.USER, user);
+                }
+                terms.put(ColumnStore.Column.METHOD, "GET");
+                long expected = written.stream()
+                        .filter(entry -> user == null || user.equals(entry.username()))
+                        .filter(entry -> entry.restfulAPI().equals("GET"))
+                        .filter(entry -> entry.responseCode() >= 400 && entry.responseCode() <= 599)
+                        .filter(entry -> range[0] == null && range[1] == null || entry.datetime() != null
+                                && (range[0] == null || entry.datetime().getMillis() >= range[0])
+                                && (range[1] == null || entry.datetime().getMillis() <= range[1]))
+                        .count();
+                assertEquals(columnStore.count(terms, 400, 599, range[0], range[1]), expected);
+            }
+            long extension = written.stream()
+                    .filter(entry -> entry.fileExtension().equals("ext2"))
+                    .filter(entry -> range[0] == null && range[1] == null || entry.datetime() != null
+                            && (range[0] == null || entry.datetime().getMillis() >= range[0])
+                            && (range[1] == null || entry.datetime().getMillis() <= range[1]))
+                    .count();
+            assertEquals(columnStore.count(ColumnStore.Column.EXTENSION, "ext2", range[0], range[1]), extension);
+        }
+    }
+
+    /**
+     * This test makes sure columns read back from their segments are only ready while
+     * the index holds as many entries as they do, so entries indexed elsewhere are read
+     * @throws Exception IO exception
+     */
+    @Test
+    public void testVerify() throws Exception {
+        Path directory = Files.createTempDirectory("columns");
+        new ColumnStore(directory).flushed(EntryParser.parse(
+                "a.com - - [01/Jun/1995:00:00:01 -0600] \"GET /~b/x.gif\" 200 100\n"
+                        + "b.com - - [01/Jun/1995:00:00:02 -0600] \"GET /~a/x.gif\" 404 0"));
+
+        // stands in for ES, counting however many entries it is told to
+        AtomicLong indexed = new AtomicLong(2);
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", exchange -> {
+            byte[] body = ("{\"count\":" + indexed.get() + "}").getBytes();
+            exchange.sendResponseHeaders(200, body.length);
+            exchange.getResponseBody().write(body);
+            exchange.close();
+        });
+        server.start();
+        try (RestClient restClient = RestClient.builder(new HttpHost("localhost", server.getAddress().getPort())).build()) {
+            DatabaseHandler databaseHandler = new DatabaseHandler(restClient, WireFormat.JSON, new MetricRegistry());
+            ColumnStore reopened = new ColumnStore(directory);
+            assertTrue(reopened.verify(restClient, databaseHandler, WireFormat.JSON));
+            assertTrue(reopened.isReady());
+
+            // entries indexed by another process
+            indexed.set(5);
+            assertFalse(reopened.verify(restClient, databaseHandler, WireFormat.JSON));
+            assertFalse(reopened.isReady());
+            databaseHandler.close();
+        } finally {
+            server.stop(0);
+        }
+    }
+}
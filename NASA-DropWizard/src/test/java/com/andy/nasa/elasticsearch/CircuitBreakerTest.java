@@ -0,0 +1,63 @@
+package com.andy.nasa.elasticsearch;
+
+import org.testng.annotations.Test;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * Tests that the circuit breaker opens on failures in a row and lets one request try again once it has been open long enough
+ */
+public class CircuitBreakerTest {
+
+    @Test
+    public void testOpensAfterFailuresInARow() {
+        CircuitBreaker circuitBreaker = new CircuitBreaker(3, 1000, new AtomicLong()::get);
+        circuitBreaker.onFailure();
+        circuitBreaker.onFailure();
+        // a success in between starts the count again
+        circuitBreaker.onSuccess();
+        circuitBreaker.onFailure();
+        circuitBreaker.onFailure();
+        assertTrue(circuitBreaker.allowRequest());
+        circuitBreaker.onFailure();
+        assertEquals(circuitBreaker.getState(), CircuitBreaker.State.OPEN);
+        assertFalse(circuitBreaker.allowRequest());
+        assertEquals(circuitBreaker.getOpened(), 1);
+    }
+
+    @Test
+    public void testTriesAgainOnceOpenLongEnough() {
+        AtomicLong now = new AtomicLong();
+        CircuitBreaker circuitBreaker = new CircuitBreaker(1, 1000, now::get);
+        circuitBreaker.onFailure();
+        now.set(999);
+        assertFalse(circuitBreaker.allowRequest());
+        now.set(1000);
+        // only one request tries again
+        assertTrue(circuitBreaker.allowRequest());
+        assertFalse(circuitBreaker.allowRequest());
+        assertEquals(circuitBreaker.getState(), CircuitBreaker.State.HALF_OPEN);
+        // the request trying again failing opens the breaker for as long again
+        circuitBreaker.onFailure();
+        now.set(1999);
+        assertFalse(circuitBreaker.allowRequest());
+        now.set(2000);
+        assertTrue(circuitBreaker.allowRequest());
+        circuitBreaker.onSuccess();
+        assertEquals(circuitBreaker.getState(), CircuitBreaker.State.CLOSED);
+        assertTrue(circuitBreaker.allowRequest());
+        assertEquals(circuitBreaker.getOpened(), 2);
+    }
+
+    @Test
+    public void testTrip() {
+        CircuitBreaker circuitBreaker = new CircuitBreaker(5, 1000, new AtomicLong()::get);
+        circuitBreaker.trip();
+        assertFalse(circuitBreaker.allowRequest());
+        assertEquals(circuitBreaker.getState(), CircuitBreaker.State.OPEN);
+    }
+}
@@ -0,0 +1,154 @@
+package com.andy.nasa.elasticsearch;
+
+import com.andy.nasa.configuration.configs.ResilienceConfig;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.http.HttpHost;
+import org.apache.http.entity.ContentType;
+import org.elasticsearch.client.Response;
+import org.elasticsearch.client.RestClient;
+import org.testng.annotations.Test;
+
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * Tests that duplicates are sent to a different node than the request, and that the
+ * requests that fail or time out count towards how long to wait before sending them
+ */
+public class HedgedRequestsTest {
+
+    @Test
+    public void testHedgeGoesToOtherNode() throws Exception {
+        AtomicLong slowMillis = new AtomicLong(0);
+        HttpServer fast = server(new AtomicLong(0));
+        HttpServer slow = server(slowMillis);
+        List<RestClient> nodes = clients(fast, slow);
+        try {
+            HedgedRequests hedgedRequests = hedgedRequests(nodes, "{\"requestTimeoutMillis\": 5000}");
+            for (int i = 0; i < HedgedRequests.MIN_SAMPLES; i++) {
+                search(hedgedRequests).get(5, TimeUnit.SECONDS);
+            }
+            assertTrue(hedgedRequests.getHedgeDelayMillis() >= 0);
+
+            // every other request is sent to the slow node, its duplicate answers from the other one
+            slowMillis.set(2000);
+            for (int i = 0; i < 4; i++) {
+                long start = System.nanoTime();
+                Response response = search(hedgedRequests).get(5, TimeUnit.SECONDS);
+                assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 1000);
+                assertEquals(response.getHost().getPort(), fast.getAddress().getPort());
+            }
+            // the requests sent to the slow node were duplicated, a fast one may have been too
+            assertTrue(hedgedRequests.getHedged() >= 2);
+        } finally {
+            close(nodes, fast, slow);
+        }
+    }
+
+    @Test
+    public void testTimeoutsRecorded() throws Exception {
+        HttpServer fast = server(new AtomicLong(0));
+        HttpServer slow = server(new AtomicLong(1000));
+        List<RestClient> nodes = clients(fast, slow);
+        try {
+            HedgedRequests hedgedRequests = hedgedRequests(nodes, "{\"requestTimeoutMillis\": 300, \"failureThreshold\": 100}");
+            for (int i = 0; i < HedgedRequests.MIN_SAMPLES; i++) {
+                search(hedgedRequests).handle((response, error) -> response).get(5, TimeUnit.SECONDS);
+            }
+            // half of the requests timed out, so the delay is near the timeout rather than the fast node
+            assertTrue(hedgedRequests.getHedgeDelayMillis() >= 250);
+        } finally {
+            close(nodes, fast, slow);
+        }
+    }
+
+    /**
+     * This method creates hedged requests to nodes
+     * @param nodes the rest client of each node
+     * @param resilienceConfig the config as json
+     * @return HedgedRequests the requests
+     * @throws Exception reading the config
+     */
+    private static HedgedRequests hedgedRequests(List<RestClient> nodes, String resilienceConfig) throws Exception {
+        ResilienceConfig config = new ObjectMapper().readValue(resilienceConfig, ResilienceConfig.class);
+        return new HedgedRequests(
+                nodes,
+                new CircuitBreaker(config.getFailureThreshold(), config.getOpenMillis()),
+                config,
+                Executors.newSingleThreadScheduledExecutor()
+        );
+    }
+
+    /**
+     * This method sends a search
+     * @param hedgedRequests the requests
+     * @return Response the response once it arrives
+     */
+    private static CompletableFuture<Response> search(HedgedRequests hedgedRequests) {
+        return hedgedRequests.performRequest("GET", "/nasa/log/_search", Collections.emptyMap(),
+                "{}".getBytes(), ContentType.APPLICATION_JSON);
+    }
+
+    /**
+     * This method starts a server standing in for a node of ES
+     * @param delayMillis how long it takes to answer
+     * @return HttpServer the node
+     * @throws Exception starting it
+     */
+    private static HttpServer server(AtomicLong delayMillis) throws Exception {
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        // each request is answered on its own thread so a slow one does not hold up the next
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.createContext("/", exchange -> {
+            try {
+                Thread.sleep(delayMillis.get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            byte[] body = "{}".getBytes();
+            exchange.sendResponseHeaders(200, body.length);
+            exchange.getResponseBody().write(body);
+            exchange.close();
+        });
+        server.start();
+        return server;
+    }
+
+    /**
+     * This method creates a rest client for each node
+     * @param servers the nodes
+     * @return List<RestClient> the clients in the same order
+     */
+    private static List<RestClient> clients(HttpServer... servers) {
+        RestClient[] clients = new RestClient[servers.length];
+        for (int i = 0; i < servers.length; i++) {
+            clients[i] = RestClient.builder(new HttpHost("localhost", servers[i].getAddress().getPort())).build();
+        }
+        return Arrays.asList(clients);
+    }
+
+    /**
+     * This method closes the clients and stops the nodes
+     * @param clients the clients
+     * @param servers the nodes
+     * @throws Exception closing a client
+     */
+    private static void close(List<RestClient> clients, HttpServer... servers) throws Exception {
+        for (RestClient client : clients) {
+            client.close();
+        }
+        for (HttpServer server : servers) {
+            server.stop(0);
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package com.andy.nasa.event;
+
+import com.andy.nasa.elasticsearch.WireFormat;
+import com.codahale.metrics.MetricRegistry;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.http.HttpHost;
+import org.elasticsearch.client.RestClient;
+import org.testng.annotations.Test;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * Tests that cached results are told about a flush when it is written and again once it can be searched,
+ * and that the listeners are told about it without holding up the writers
+ */
+public class DatabaseHandlerTest {
+
+    @Test
+    public void testGenerationAfterRefresh() throws Exception {
+        HttpServer server = server();
+        try (RestClient restClient = RestClient.builder(new HttpHost("localhost", server.getAddress().getPort())).build()) {
+            DatabaseHandler databaseHandler = new DatabaseHandler(restClient, WireFormat.JSON, new MetricRegistry(), 200);
+            databaseHandler.writeToDB("202.32.92.47 - - [01/Jun/1995:00:00:59 -0600] \"GET /~scottp/publish.html\" 200 271");
+
+            // written by the next scheduled flush, but not yet refreshed
+            Thread.sleep(500);
+            assertEquals(databaseHandler.getGeneration(), 1);
+            Thread.sleep(DatabaseHandler.REFRESH_MILLIS);
+            assertEquals(databaseHandler.getGeneration(), 2);
+            databaseHandler.close();
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    @Test
+    public void testSlowListener() throws Exception {
+        HttpServer server = server();
+        try (RestClient restClient = RestClient.builder(new HttpHost("localhost", server.getAddress().getPort())).build()) {
+            DatabaseHandler databaseHandler = new DatabaseHandler(restClient, WireFormat.JSON, new MetricRegistry(), 60000);
+            // every message is flushed as soon as it is written
+            databaseHandler.setMaxBufferedMessages(1);
+            AtomicInteger heard = new AtomicInteger();
+            databaseHandler.addFlushListener(entries -> {
+                try {
+                    Thread.sleep(2000);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                heard.addAndGet(entries.size());
+            });
+
+            // each write is flushed while the listener is still taking in the one before
+            for (String line : new String[] {
+                    "202.32.92.47 - - [01/Jun/1995:00:00:59 -0600] \"GET /~scottp/publish.html\" 200 271",
+                    "202.32.92.47 - - [01/Jun/1995:00:01:00 -0600] \"GET /~scottp/index.html\" 200 100"
+            }) {
+                long start = System.nanoTime();
+                databaseHandler.writeToDB(line);
+                assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 1000);
+            }
+            assertEquals(databaseHandler.getGeneration(), 2);
+
+            // between flushes is after the listener has heard about every flush before it
+            assertEquals((int) databaseHandler.betweenFlushes(heard::get), 2);
+            databaseHandler.close();
+            assertEquals(heard.get(), 2);
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    /**
+     * This method starts a server standing in for ES, every bulk item created
+     * @return HttpServer the server
+     * @throws Exception starting it
+     */
+    private static HttpServer server() throws Exception {
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", exchange -> {
+            byte[] body = "{\"items\":[{\"index\":{\"status\":201}}]}".getBytes();
+            exchange.sendResponseHeaders(200, body.length);
+            exchange.getResponseBody().write(body);
+            exchange.close();
+        });
+        server.start();
+        return server;
+    }
+}
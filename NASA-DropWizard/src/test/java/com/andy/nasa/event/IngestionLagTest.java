@@ -0,0 +1,54 @@
+package com.andy.nasa.event;
+
+import com.codahale.metrics.MetricRegistry;
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.testng.Assert.assertEquals;
+
+/**
+ * Tests that the time between each stage of ingestion is measured once a message is acknowledged
+ */
+public class IngestionLagTest {
+
+    @Test
+    public void testStages() {
+        MetricRegistry metrics = new MetricRegistry();
+        AtomicLong now = new AtomicLong(1000);
+        IngestionLag ingestionLag = new IngestionLag(metrics, now::get);
+
+        IngestionStamps published = new IngestionStamps(100, 150);
+        published.setParsed(160);
+        published.setBuffered(180);
+        // a message that was not stamped by its publisher starts at its delivery
+        IngestionStamps unstamped = new IngestionStamps(0, 500);
+        unstamped.setParsed(510);
+        unstamped.setBuffered(530);
+        ingestionLag.delivered(published);
+        ingestionLag.delivered(unstamped);
+        assertEquals(ingestionLag.getConsumerLag(), 50);
+        ingestionLag.acknowledged(Arrays.asList(published, unstamped), 900);
+
+        assertEquals(metrics.histogram("ingest.lag.publish-to-deliver").getSnapshot().getValues(), new long[] {50});
+        assertEquals(metrics.histogram("ingest.lag.deliver-to-parse").getSnapshot().getValues(), new long[] {10, 10});
+        assertEquals(metrics.histogram("ingest.lag.parse-to-buffer").getSnapshot().getValues(), new long[] {20, 20});
+        assertEquals(metrics.histogram("ingest.lag.buffer-to-ack").getSnapshot().getValues(), new long[] {470, 820});
+        assertEquals(metrics.histogram("ingest.lag.end-to-end").getSnapshot().getValues(), new long[] {500, 900});
+
+        now.set(2000);
+        assertEquals(metrics.getGauges().get("ingest.lag.newest-indexed").getValue(), 1100L);
+        // an older entry written later leaves the newest as it was
+        ingestionLag.acknowledged(Arrays.asList(), 100);
+        assertEquals(ingestionLag.getIndexedLag(), 1100);
+    }
+
+    @Test
+    public void testNothingIndexed() {
+        MetricRegistry metrics = new MetricRegistry();
+        IngestionLag ingestionLag = new IngestionLag(metrics);
+        assertEquals(ingestionLag.getIndexedLag(), 0);
+        assertEquals(metrics.getGauges().get("ingest.lag.consumer").getValue(), 0L);
+    }
+}
@@ -0,0 +1,79 @@
+package com.andy.nasa.load;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.concurrent.Executors;
+
+/**
+ * Test class for the load driver
+ */
+public class LoadDriverTest {
+
+    /**
+     * This test makes sure a mix is read with its weights and unknown API's are refused
+     */
+    @Test
+    public void testParseMix() {
+        Map<String, Integer> mix = LoadDriver.parseMix("top-n-users=3, requests-user,dashboard=0,top-n-users=1");
+        Assert.assertEquals(mix.size(), 2);
+        Assert.assertEquals(mix.get("top-n-users"), Integer.valueOf(4));
+        Assert.assertEquals(mix.get("requests-user"), Integer.valueOf(1));
+        Assert.assertEquals(LoadDriver.parseMix(LoadDriver.DEFAULT_MIX).keySet(), LoadDriver.ENDPOINTS.keySet());
+        Assert.assertThrows(IllegalArgumentException.class, () -> LoadDriver.parseMix("top-ten-users=1"));
+        Assert.assertThrows(IllegalArgumentException.class, () -> LoadDriver.parseMix("dashboard=0"));
+    }
+
+    /**
+     * This test makes sure calls keep being sent while the server is slow to answer and
+     * the time they wait for it counts, and that failed calls are counted as failed
+     * @throws Exception IO exception
+     */
+    @Test
+    public void testOpenLoop() throws Exception {
+        // answers one call at a time, each taking 100ms, and fails the error rate
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.setExecutor(Executors.newSingleThreadExecutor());
+        server.createContext("/", exchange -> {
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            byte[] body = "{}".getBytes();
+            exchange.sendResponseHeaders(exchange.getRequestURI().getPath().startsWith("/error") ? 500 : 200, body.length);
+            exchange.getResponseBody().write(body);
+            exchange.close();
+        });
+        server.start();
+        try (CloseableHttpAsyncClient client = HttpAsyncClients.custom().setMaxConnTotal(1).setMaxConnPerRoute(1).build()) {
+            client.start();
+            LoadDriver loadDriver = new LoadDriver(
+                    client,
+                    "http://localhost:" + server.getAddress().getPort() + "/",
+                    LoadDriver.parseMix("average-payload-size=1,error-rate=1"),
+                    20,
+                    1
+            );
+            // 10 calls meant for the first half second take a second to answer
+            loadDriver.run(0, 500, 10000);
+            JsonNode report = loadDriver.report();
+            Assert.assertEquals(report.path("unanswered").asLong(), 0);
+            Assert.assertEquals(report.path("all").path("calls").asLong(), 10);
+            JsonNode failing = report.path("endpoints").path("error-rate");
+            Assert.assertEquals(failing.path("errors").asLong(), failing.path("calls").asLong());
+            Assert.assertEquals(report.path("endpoints").path("average-payload-size").path("errors").asLong(), 0, report.toString());
+            Assert.assertTrue(report.path("all").path("calls").asLong() > failing.path("calls").asLong());
+            // the last call waited behind the others, far longer than the 100ms it took to answer
+            Assert.assertTrue(report.path("endpoints").path("average-payload-size").path("maxMillis").asDouble() > 300);
+        } finally {
+            server.stop(0);
+        }
+    }
+}
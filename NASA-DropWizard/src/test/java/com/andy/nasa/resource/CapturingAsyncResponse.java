@@ -0,0 +1,108 @@
+package com.andy.nasa.resource;
+
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.TimeoutHandler;
+import javax.ws.rs.core.Response;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Stands in for the AsyncResponse Jersey would suspend so the asynchronous
+ * API's can be called directly from the tests and their result waited on
+ */
+class CapturingAsyncResponse implements AsyncResponse {
+
+    // completed with whatever the API resumes with
+    private final CompletableFuture<Object> result = new CompletableFuture<>();
+
+    /**
+     * Calls the API and waits for the value it resumes with
+     * @param endpoint the API to call
+     * @param <T> type of the value
+     * @return T the value, or the entity when a full response was resumed
+     * @throws Exception what the API failed with
+     */
+    @SuppressWarnings("unchecked")
+    static <T> T await(Consumer<AsyncResponse> endpoint) throws Exception {
+        CapturingAsyncResponse asyncResponse = new CapturingAsyncResponse();
+        endpoint.accept(asyncResponse);
+        Object value = asyncResponse.result.get(30, TimeUnit.SECONDS);
+        if (value instanceof Response) {
+            return (T) ((Response) value).getEntity();
+        }
+        return (T) value;
+    }
+
+    @Override
+    public boolean resume(Object response) {
+        return result.complete(response);
+    }
+
+    @Override
+    public boolean resume(Throwable response) {
+        return result.completeExceptionally(response);
+    }
+
+    @Override
+    public boolean cancel() {
+        return result.cancel(false);
+    }
+
+    @Override
+    public boolean cancel(int retryAfter) {
+        return cancel();
+    }
+
+    @Override
+    public boolean cancel(Date retryAfter) {
+        return cancel();
+    }
+
+    @Override
+    public boolean isSuspended() {
+        return !result.isDone();
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return result.isCancelled();
+    }
+
+    @Override
+    public boolean isDone() {
+        return result.isDone();
+    }
+
+    @Override
+    public boolean setTimeout(long time, TimeUnit unit) {
+        return true;
+    }
+
+    @Override
+    public void setTimeoutHandler(TimeoutHandler handler) { }
+
+    @Override
+    public Collection<Class<?>> register(Class<?> callback) {
+        return Collections.emptyList();
+    }
+
+    @Override
+    public Map<Class<?>, Collection<Class<?>>> register(Class<?> callback, Class<?>... callbacks) {
+        return Collections.emptyMap();
+    }
+
+    @Override
+    public Collection<Class<?>> register(Object callback) {
+        return Collections.emptyList();
+    }
+
+    @Override
+    public Map<Class<?>, Collection<Class<?>>> register(Object callback, Object... callbacks) {
+        return Collections.emptyMap();
+    }
+}
@@ -0,0 +1,408 @@
+package com.andy.nasa.resource;
+
+import com.andy.nasa.aggregate.MaterializedAggregates;
+import com.andy.nasa.aggregate.Rollups;
+import com.andy.nasa.aggregate.UniqueClients;
+import com.andy.nasa.cache.ResultCache;
+import com.andy.nasa.cache.SingleFlight;
+import com.andy.nasa.configuration.NasaConfig;
+import com.andy.nasa.configuration.configs.ElasticSearchConfig;
+import com.andy.nasa.configuration.configs.PressureConfig;
+import com.andy.nasa.configuration.configs.TimeoutConfig;
+import com.andy.nasa.elasticsearch.WireFormat;
+import com.andy.nasa.event.DatabaseHandler;
+import com.andy.nasa.load.SyntheticLog;
+import com.andy.nasa.service.LocalBroker;
+import com.andy.nasa.service.ServiceRabbitIngestion;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Snapshot;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fasterxml.jackson.dataformat.yaml.YAMLFactory;
+import io.dropwizard.jackson.Jackson;
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+import org.apache.http.HttpHost;
+import org.apache.http.nio.entity.NStringEntity;
+import org.elasticsearch.client.RestClient;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import javax.ws.rs.container.AsyncResponse;
+import java.io.File;
+import java.io.FileInputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import static com.andy.nasa.resource.CapturingAsyncResponse.await;
+
+/**
+ * Macro benchmark of ingestion against the elastic search of config.yml, pushing synthetic log
+ * lines straight through the database handler and then through the rabbit ingestion with a local
+ * broker standing in for rabbit, a hundred lines to a message and then one line to a message, while
+ * the API's are queried the whole time. The results are written as json and compared with a baseline,
+ * failing when ingestion got slower than it allows.
+ * Only runs in the benchmark profile, mvn test -Pbenchmark, and is tuned with system properties:
+ * benchmark.lines, benchmark.singleLines, benchmark.queryThreads, benchmark.output, benchmark.baseline,
+ * benchmark.tolerance and benchmark.record to write the results as the new baseline
+ */
+@Test(groups = IngestBenchmark.GROUP)
+public class IngestBenchmark {
+
+    // the group the benchmark runs in, excluded from the normal build
+    static final String GROUP = "benchmark";
+
+    // lines in each message, rabbit messages carry many entries each
+    private static final int LINES_PER_MESSAGE = 100;
+
+    private final ObjectMapper yamlMapper = Jackson.newObjectMapper(new YAMLFactory());
+    private final ObjectMapper objectMapper = Jackson.newObjectMapper();
+    private RestClient restClient;
+
+    // how many lines each run pushes through and how many threads query while it does
+    private final int lines = Integer.getInteger("benchmark.lines", 1000000);
+    private final int queryThreads = Integer.getInteger("benchmark.queryThreads", 2);
+
+    // how many lines are sent a line to a message, fewer as each message is acknowledged on its own
+    private final int singleLines = Integer.getInteger("benchmark.singleLines", lines / 10);
+
+    // where the results are written and the baseline they are compared with
+    private final File output = new File(System.getProperty("benchmark.output", "target/benchmark/ingest.json"));
+    private final File baseline = new File(System.getProperty("benchmark.baseline", "benchmark-baseline.json"));
+
+    // the share of the baseline throughput a run may lose before it fails
+    private final double tolerance = Double.parseDouble(System.getProperty("benchmark.tolerance", "0.15"));
+
+    /**
+     * Creates the index the entries are written to
+     * @throws Exception IO exception
+     */
+    @BeforeClass(groups = GROUP)
+    public void setUpIndex() throws Exception {
+        NasaConfig nasaConfig = yamlMapper.readValue(getClass().getResourceAsStream("/config.yml"), NasaConfig.class);
+        ElasticSearchConfig elasticSearchConfig = nasaConfig.getElasticSearchConfig();
+        restClient = RestClient
+                .builder(new HttpHost(elasticSearchConfig.getHost(), elasticSearchConfig.getPort(), "http"))
+                .build();
+        JsonNode settings = objectMapper.readTree(new FileInputStream("elastic-settings.json"));
+        restClient.performRequest(
+                "PUT",
+                "nasa",
+                Collections.emptyMap(),
+                new NStringEntity(objectMapper.writeValueAsString(settings))
+        );
+    }
+
+    /**
+     * Removes the indexes written to
+     */
+    @AfterClass(groups = GROUP, alwaysRun = true)
+    public void tearDownIndex() {
+        try {
+            restClient.performRequest("DELETE", "/nasa");
+            restClient.performRequest("DELETE", Rollups.INDEX);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Runs the benchmark, writes its results and compares them with the baseline
+     * @throws Exception language exception
+     */
+    @Test
+    public void benchmarkIngestion() throws Exception {
+        ObjectNode results = objectMapper.createObjectNode();
+        results.put("lines", lines);
+        results.put("singleLines", singleLines);
+        results.put("queryThreads", queryThreads);
+        results.put("processors", Runtime.getRuntime().availableProcessors());
+        results.set("direct", run(0, lines, databaseHandler -> {
+            for (long first = 0; first < lines; first += LINES_PER_MESSAGE) {
+                databaseHandler.writeToDB(message(first, lines));
+            }
+        }));
+        results.set("rabbit", run(lines, lines, databaseHandler -> {
+            LocalBroker broker = new LocalBroker();
+            ServiceRabbitIngestion ingestion = new ServiceRabbitIngestion(
+                    databaseHandler,
+                    broker.getConnection(),
+                    new MetricRegistry(),
+                    PressureConfig.defaults()
+            );
+            ingestion.start();
+            for (long first = lines; first < 2L * lines; first += LINES_PER_MESSAGE) {
+                broker.publish(message(first, 2L * lines).getBytes(StandardCharsets.UTF_8));
+            }
+            Assert.assertTrue(broker.awaitSettled(10, TimeUnit.MINUTES), "messages were not acknowledged");
+            Assert.assertEquals(broker.getRejected(), 0);
+            ingestion.stop();
+        }));
+        // one line in each message, as the entry API's producers send them, acknowledged far more often
+        long singleFirst = 2L * lines;
+        results.set("rabbit-single", run(singleFirst, singleLines, databaseHandler -> {
+            LocalBroker broker = new LocalBroker();
+            ServiceRabbitIngestion ingestion = new ServiceRabbitIngestion(
+                    databaseHandler,
+                    broker.getConnection(),
+                    new MetricRegistry(),
+                    PressureConfig.defaults()
+            );
+            ingestion.start();
+            for (long line = singleFirst; line < singleFirst + singleLines; line++) {
+                broker.publish(SyntheticLog.lines(line, line + 1).getBytes(StandardCharsets.UTF_8));
+            }
+            Assert.assertTrue(broker.awaitSettled(10, TimeUnit.MINUTES), "messages were not acknowledged");
+            Assert.assertEquals(broker.getRejected(), 0);
+            ingestion.stop();
+        }));
+
+        output.getAbsoluteFile().getParentFile().mkdirs();
+        objectMapper.writerWithDefaultPrettyPrinter().writeValue(output, results);
+        System.out.println(objectMapper.writerWithDefaultPrettyPrinter().writeValueAsString(results));
+
+        if (Boolean.getBoolean("benchmark.record")) {
+            objectMapper.writerWithDefaultPrettyPrinter().writeValue(baseline, results);
+        } else if (baseline.exists()) {
+            JsonNode expected = objectMapper.readTree(baseline);
+            for (String path : new String[] {"direct", "rabbit", "rabbit-single"}) {
+                double floor = expected.path(path).path("docsPerSecond").asDouble() * (1 - tolerance);
+                double actual = results.path(path).path("docsPerSecond").asDouble();
+                Assert.assertTrue(
+                        actual >= floor,
+                        String.format("%s ingestion regressed to %.0f docs/s, the baseline allows no less than %.0f", path, actual, floor)
+                );
+            }
+        } else {
+            System.out.println("No benchmark baseline at " + baseline + ", record one with -Dbenchmark.record=true");
+        }
+    }
+
+    /**
+     * This method runs one path of ingestion with the API's being queried until every entry is written
+     * @param first the number of the first line, so each run writes entries of its own
+     * @param expected how many entries the run writes
+     * @param ingest pushes the lines through ingestion
+     * @return ObjectNode the results of the run
+     * @throws Exception anything ingestion throws
+     */
+    private ObjectNode run(long first, long expected, Ingest ingest) throws Exception {
+        MetricRegistry metrics = new MetricRegistry();
+        DatabaseHandler databaseHandler = new DatabaseHandler(restClient, WireFormat.JSON, metrics);
+        // nothing is cached so every call is answered by elastic search while it is being written to
+        NasaResource nasaResource = new NasaResource(
+                new ElasticSearchBackend(restClient, WireFormat.JSON, new Rollups(restClient, WireFormat.JSON)),
+                databaseHandler,
+                new ResultCache(0, 30, databaseHandler::getGeneration, new SingleFlight()),
+                new MaterializedAggregates(),
+                new UniqueClients(),
+                TimeoutConfig.of(30000)
+        );
+        QueryMix queryMix = new QueryMix(nasaResource, SyntheticLog.user(first));
+        long collections = collections();
+        long collectionMillis = collectionMillis();
+        ManagementFactory.getMemoryPoolMXBeans().forEach(MemoryPoolMXBean::resetPeakUsage);
+
+        long start = System.nanoTime();
+        queryMix.start(queryThreads);
+        ingest.accept(databaseHandler);
+        // the direct path does not wait for its entries to be written, the scheduled flush writes the last of them
+        long deadline = System.nanoTime() + TimeUnit.MINUTES.toNanos(10);
+        while (metrics.meter("ingest.documents").getCount() < expected && System.nanoTime() < deadline) {
+            Thread.sleep(50);
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        queryMix.stop();
+
+        long documents = metrics.meter("ingest.documents").getCount();
+        Assert.assertEquals(documents, expected, "entries were not written");
+        ObjectNode result = objectMapper.createObjectNode();
+        result.put("first", first);
+        result.put("seconds", seconds);
+        result.put("docsPerSecond", documents / seconds);
+        result.put("bulkFailures", metrics.meter("ingest.bulk.failures").getCount());
+
+        Snapshot flushes = metrics.timer("ingest.flush").getSnapshot();
+        ObjectNode flush = result.putObject("flushMillis");
+        flush.put("count", metrics.timer("ingest.flush").getCount());
+        flush.put("p50", flushes.getMedian() / 1e6);
+        flush.put("p99", flushes.get99thPercentile() / 1e6);
+        flush.put("max", flushes.getMax() / 1e6);
+
+        result.set("queries", queryMix.results());
+
+        ObjectNode memory = result.putObject("memory");
+        memory.put("gcCollections", collections() - collections);
+        memory.put("gcMillis", collectionMillis() - collectionMillis);
+        memory.put("heapPeakBytes", heapPeak());
+        memory.put("heapMaxBytes", ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getMax());
+        return result;
+    }
+
+    /**
+     * This method makes a message of synthetic log lines
+     * @param first the number of the first line of the message
+     * @param end the number after the last line of the run, the last message can be short
+     * @return String the lines of the message
+     */
+    private static String message(long first, long end) {
+        return SyntheticLog.lines(first, Math.min(end, first + LINES_PER_MESSAGE));
+    }
+
+    /**
+     * This method counts the collections of every garbage collector so far
+     * @return long the collections
+     */
+    private static long collections() {
+        long collections = 0;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            collections += Math.max(0, collector.getCollectionCount());
+        }
+        return collections;
+    }
+
+    /**
+     * This method adds up the time every garbage collector has taken so far
+     * @return long the milliseconds
+     */
+    private static long collectionMillis() {
+        long millis = 0;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            millis += Math.max(0, collector.getCollectionTime());
+        }
+        return millis;
+    }
+
+    /**
+     * This method adds up the most each heap pool held since the peaks were reset
+     * @return long the bytes
+     */
+    private static long heapPeak() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.getPeakUsage() != null) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        return peak;
+    }
+
+    /**
+     * Pushes the lines of a run through ingestion
+     */
+    private interface Ingest {
+
+        /**
+         * Pushes the lines through ingestion
+         * @param databaseHandler writes the entries
+         * @throws Exception anything ingestion throws
+         */
+        void accept(DatabaseHandler databaseHandler) throws Exception;
+    }
+
+    /**
+     * Queries the API's over and over on a few threads, timing each call
+     */
+    private class QueryMix {
+
+        // each API queried, how long its calls took in microseconds, how many failed and why the last did
+        private final Map<String, Consumer<AsyncResponse>> queries = new LinkedHashMap<>();
+        private final Map<String, Histogram> latencies = new LinkedHashMap<>();
+        private final Map<String, AtomicLong> errors = new LinkedHashMap<>();
+        private final Map<String, String> lastErrors = new ConcurrentHashMap<>();
+
+        private final AtomicBoolean running = new AtomicBoolean();
+        private ExecutorService executor;
+
+        /**
+         * Creates the mix of queries
+         * @param nasaResource the API's queried
+         * @param user the user asked about
+         */
+        QueryMix(NasaResource nasaResource, String user) {
+            queries.put("top-n-users", asyncResponse -> nasaResource.topNUsers(10, new TimeRange(), false, null, asyncResponse));
+            queries.put("average-payload-size", asyncResponse -> nasaResource.averagePayloadSize(new TimeRange(), asyncResponse));
+            queries.put("users-data", asyncResponse -> nasaResource.getUsersMostData(new TimeRange(), false, null, 1000, asyncResponse));
+            queries.put("clients-unique", asyncResponse -> nasaResource.getUniqueClients(new TimeRange(), false, asyncResponse));
+            queries.put("error-rate-month", asyncResponse -> nasaResource.errorRatePerMonth(new TimeRange(), asyncResponse));
+            queries.put("extensions-popular", asyncResponse -> nasaResource.getPopularExtensions(new TimeRange(), false, null, 1000, asyncResponse));
+            queries.put("requests-user", asyncResponse -> nasaResource.getRequestsUser(user, new TimeRange(), asyncResponse));
+            for (String name : queries.keySet()) {
+                latencies.put(name, new ConcurrentHistogram(3));
+                errors.put(name, new AtomicLong());
+            }
+        }
+
+        /**
+         * Starts querying, each thread going round every API in turn
+         * @param threads how many threads query
+         */
+        void start(int threads) {
+            running.set(true);
+            executor = Executors.newFixedThreadPool(Math.max(1, threads));
+            for (int i = 0; i < threads; i++) {
+                executor.submit(() -> {
+                    while (running.get()) {
+                        for (Map.Entry<String, Consumer<AsyncResponse>> query : queries.entrySet()) {
+                            long start = System.nanoTime();
+                            try {
+                                await(query.getValue());
+                                latencies.get(query.getKey()).recordValue(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+                            } catch (Exception e) {
+                                errors.get(query.getKey()).incrementAndGet();
+                                lastErrors.put(query.getKey(), String.valueOf(e));
+                            }
+                        }
+                    }
+                });
+            }
+        }
+
+        /**
+         * Stops querying once the calls in flight are answered
+         * @throws InterruptedException interrupted waiting
+         */
+        void stop() throws InterruptedException {
+            running.set(false);
+            executor.shutdown();
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+        }
+
+        /**
+         * gets how many calls each API answered and failed and how long they took
+         * @return ObjectNode the results of each API
+         */
+        ObjectNode results() {
+            ObjectNode results = objectMapper.createObjectNode();
+            for (String name : queries.keySet()) {
+                Histogram histogram = latencies.get(name);
+                ObjectNode result = results.putObject(name);
+                result.put("count", histogram.getTotalCount());
+                result.put("errors", errors.get(name).get());
+                result.put("p50Millis", histogram.getValueAtPercentile(50) / 1000.0);
+                result.put("p99Millis", histogram.getValueAtPercentile(99) / 1000.0);
+                result.put("maxMillis", histogram.getMaxValue() / 1000.0);
+                if (lastErrors.containsKey(name)) {
+                    result.put("lastError", lastErrors.get(name));
+                }
+            }
+            return results;
+        }
+    }
+}
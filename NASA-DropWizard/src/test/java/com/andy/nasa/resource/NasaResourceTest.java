@@ -1,20 +1,32 @@
 package com.andy.nasa.resource;
 
+import com.andy.nasa.aggregate.MaterializedAggregates;
+import com.andy.nasa.aggregate.Rollups;
+import com.andy.nasa.aggregate.UniqueClients;
+import com.andy.nasa.cache.ResultCache;
+import com.andy.nasa.cache.SingleFlight;
+import com.andy.nasa.columnar.ColumnStore;
 import com.andy.nasa.configuration.NasaConfig;
+import com.andy.nasa.configuration.configs.TimeoutConfig;
 import com.andy.nasa.configuration.configs.ElasticSearchConfig;
+import com.andy.nasa.elasticsearch.HedgedRequests;
+import com.andy.nasa.elasticsearch.WireFormat;
 import com.andy.nasa.event.DatabaseHandler;
+import com.codahale.metrics.MetricRegistry;
 
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.fasterxml.jackson.dataformat.yaml.YAMLFactory;
 import io.dropwizard.jackson.Jackson;
+import io.dropwizard.jersey.params.DateTimeParam;
 import model.DBEntry;
 import org.apache.http.HttpHost;
 import org.apache.http.entity.ContentType;
 import org.apache.http.nio.entity.NStringEntity;
 import org.elasticsearch.client.Response;
 import org.elasticsearch.client.RestClient;
+import org.joda.time.DateTime;
 import org.testng.Assert;
 import org.testng.annotations.AfterSuite;
 import org.testng.annotations.BeforeClass;
@@ -22,11 +34,22 @@ import org.testng.annotations.BeforeSuite;
 import org.testng.annotations.Test;
 import parser.EntryParser;
 
+import javax.ws.rs.BadRequestException;
+import javax.ws.rs.ServiceUnavailableException;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.core.StreamingOutput;
 import java.io.*;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Consumer;
+import java.util.function.Function;
 
+import static com.andy.nasa.resource.CapturingAsyncResponse.await;
 import static com.zackehh.jackson.Jive.newJsonEntry;
 import static com.zackehh.jackson.Jive.newObjectNode;
 
@@ -138,6 +161,10 @@ public class NasaResourceTest {
                     "DELETE",
                     "/nasa"
             );
+            restClient.performRequest(
+                    "DELETE",
+                    Rollups.INDEX
+            );
         } catch (Exception e) {
             e.printStackTrace();
         }
@@ -197,7 +224,7 @@ public class NasaResourceTest {
         actualTopFive.add("scottp");
         actualTopFive.add("macpherc");
         actualTopFive.add("dougallg");
-        List<String> topFiverUsers = nasaResource.topFiveUsers();
+        List<String> topFiverUsers = await(asyncResponse -> nasaResource.topFiveUsers(new TimeRange(), false, asyncResponse));
         Assert.assertEquals(topFiverUsers, actualTopFive);
     }
 
@@ -213,7 +240,7 @@ public class NasaResourceTest {
         actualTopN.add("lowey");
         actualTopN.add("macphed");
         actualTopN.add("scottp");
-        List<String> topNusers = nasaResource.topNUsers(3);
+        List<String> topNusers = await(asyncResponse -> nasaResource.topNUsers(3, new TimeRange(), false, null, asyncResponse));
         Assert.assertEquals(topNusers.size(), 3);
         Assert.assertEquals(topNusers, actualTopN);
     }
@@ -226,10 +253,41 @@ public class NasaResourceTest {
     @Test
     public void testAveragePayloadSize() throws Exception {
         double actualAveragePayload = 9114.067;
-        double averagePayload = nasaResource.averagePayloadSize();
+        double averagePayload = await(asyncResponse -> nasaResource.averagePayloadSize(new TimeRange(), asyncResponse));
         Assert.assertEquals(averagePayload, actualAveragePayload);
     }
 
+    /**
+     * This test makes sure the time the backend takes and the size of what ES sends
+     * back are measured for an API, only when it is asked rather than the cache
+     * @throws Exception language exception
+     */
+    @Test
+    public void testMetrics() throws Exception {
+        DatabaseHandler databaseHandler = new DatabaseHandler(restClient);
+        MetricRegistry metrics = new MetricRegistry();
+        NasaResource measuredResource = new NasaResource(
+                new ElasticSearchBackend(
+                        new HedgedRequests(restClient),
+                        WireFormat.JSON,
+                        new Rollups(restClient, WireFormat.JSON),
+                        metrics
+                ),
+                databaseHandler,
+                new ResultCache(1000, 30, databaseHandler::getGeneration, new SingleFlight()),
+                new MaterializedAggregates(),
+                new UniqueClients(),
+                TimeoutConfig.of(30000),
+                metrics
+        );
+        for (int i = 0; i < 2; i++) {
+            Assert.assertEquals((double) await(asyncResponse -> measuredResource.averagePayloadSize(new TimeRange(), asyncResponse)), 9114.067);
+        }
+        Assert.assertEquals(metrics.timer("api.average-payload-size.backend").getCount(), 1);
+        Assert.assertEquals(metrics.histogram("es.response-bytes").getCount(), 1);
+        Assert.assertTrue(metrics.histogram("es.response-bytes").getSnapshot().getMax() > 0);
+    }
+
     /**
      * This method will test to return the users who
      * have requested the most data
@@ -244,7 +302,7 @@ public class NasaResourceTest {
                 newJsonEntry("scottp", 1024647),
                 newJsonEntry("reevesm", 732713)
         );
-        ObjectNode userMostData = nasaResource.getUsersMostData();
+        ObjectNode userMostData = await(asyncResponse -> nasaResource.getUsersMostData(new TimeRange(), false, null, 1000, asyncResponse));
         System.out.println(userMostData);
         Assert.assertEquals(userMostData, actualUserMostData);
     }
@@ -257,10 +315,60 @@ public class NasaResourceTest {
     @Test
     public void testGetUniqueClients() throws Exception {
         Integer actualUniqueClients = 539;
-        Integer uniqueClients = nasaResource.getUniqueClients();
+        Integer uniqueClients = await(asyncResponse -> nasaResource.getUniqueClients(new TimeRange(), false, asyncResponse));
         Assert.assertEquals(uniqueClients, actualUniqueClients);
     }
 
+    /**
+     * This test gets the unique clients of a range of time from ES
+     * and from the sketches rebuilt from the index
+     * @throws Exception language exception
+     */
+    @Test
+    public void testGetUniqueClientsBetween() throws Exception {
+        DateTime from = new DateTime("1995-06-01T00:00:00Z");
+        DateTime to = new DateTime("1995-06-30T00:00:00Z");
+        Integer uniqueClients = await(asyncResponse -> nasaResource.getUniqueClients(TimeRange.of(from, to), true, asyncResponse));
+        Assert.assertEquals(uniqueClients, Integer.valueOf(539));
+        Integer none = await(asyncResponse -> nasaResource.getUniqueClients(TimeRange.of(to, null), true, asyncResponse));
+        Assert.assertEquals(none, Integer.valueOf(0));
+
+        UniqueClients sketches = new UniqueClients();
+        sketches.rebuild(restClient, new DatabaseHandler(restClient), WireFormat.JSON);
+        Assert.assertTrue(sketches.isReady());
+        // the estimate should be well inside three standard errors
+        Assert.assertEquals(sketches.estimate(null, null), 539, 539 * 3 * sketches.getStandardError());
+        Assert.assertEquals(sketches.estimate(from, to), 539, 539 * 3 * sketches.getStandardError());
+        Assert.assertEquals(sketches.estimate(to.plusDays(1), null), 0);
+    }
+
+    /**
+     * This test asks for a range no request is in, whose buckets are left out of the
+     * response by filter_path, and makes sure each API answers with none
+     * @throws Exception language exception
+     */
+    @Test
+    public void testEmptyRange() throws Exception {
+        TimeRange none = TimeRange.of(new DateTime("1996-01-01T00:00:00Z"), null);
+        List<String> topUsers = await(asyncResponse -> nasaResource.topNUsers(3, none, true, null, asyncResponse));
+        Assert.assertTrue(topUsers.isEmpty());
+        ObjectNode usersMostData = await(asyncResponse -> nasaResource.getUsersMostData(none, true, null, 1000, asyncResponse));
+        Assert.assertEquals(usersMostData.size(), 0);
+        ObjectNode requestsPerMonth = await(asyncResponse -> nasaResource.requestsPerMonth(none, asyncResponse));
+        Assert.assertEquals(requestsPerMonth.size(), 0);
+        ObjectNode errorRatePerMonth = await(asyncResponse -> nasaResource.errorRatePerMonth(none, asyncResponse));
+        Assert.assertEquals(errorRatePerMonth.size(), 0);
+        ObjectNode popularExtensions = await(asyncResponse -> nasaResource.getPopularExtensions(none, true, null, 1000, asyncResponse));
+        Assert.assertEquals(popularExtensions.size(), 0);
+        ObjectNode apiCalls = await(asyncResponse -> nasaResource.getApiCalls(none, null, 1000, asyncResponse));
+        Assert.assertEquals(apiCalls.size(), 0);
+        ObjectNode requestUser = await(asyncResponse -> nasaResource.getRequestsUser("scottp", none, asyncResponse));
+        Assert.assertEquals(requestUser.size(), 0);
+        // the dashboard reads its results out of one multi search response
+        ObjectNode dashboard = await(asyncResponse -> nasaResource.dashboard(Collections.singletonList("api/call"), none, asyncResponse));
+        Assert.assertEquals(dashboard.path("api/call").size(), 0);
+    }
+
     /**
      * This method will test the amount of docs requested per month
      * @throws Exception language exception
@@ -270,7 +378,7 @@ public class NasaResourceTest {
         ObjectNode actualRequestPerMonth = newObjectNode(
                 newJsonEntry("801964800000", 3000)
         );
-        ObjectNode requestsPerMonth = nasaResource.requestsPerMonth();
+        ObjectNode requestsPerMonth = await(asyncResponse -> nasaResource.requestsPerMonth(new TimeRange(), asyncResponse));
         System.out.println(requestsPerMonth);
         Assert.assertEquals(requestsPerMonth, actualRequestPerMonth);
     }
@@ -282,7 +390,7 @@ public class NasaResourceTest {
     @Test
     public void testErrorRate() throws Exception {
         double actualErrorRate = 0.4333333333333333;
-        double errorRate = nasaResource.errorRate();
+        double errorRate = await(asyncResponse -> nasaResource.errorRate(new TimeRange(), asyncResponse));
         Assert.assertEquals(errorRate, actualErrorRate);
 
     }
@@ -296,7 +404,7 @@ public class NasaResourceTest {
         ObjectNode actualErrorPerMonth = newObjectNode(
                 newJsonEntry("801964800000", 0.4333333333333333)
         );
-        ObjectNode errorRatePerMonth = nasaResource.errorRatePerMonth();
+        ObjectNode errorRatePerMonth = await(asyncResponse -> nasaResource.errorRatePerMonth(new TimeRange(), asyncResponse));
         Assert.assertEquals(errorRatePerMonth, actualErrorPerMonth);
     }
 
@@ -314,7 +422,7 @@ public class NasaResourceTest {
                 newJsonEntry("GIF", 25),
                 newJsonEntry("htm", 21)
         );
-        ObjectNode getPopularExtensions = nasaResource.getPopularExtensions();
+        ObjectNode getPopularExtensions = await(asyncResponse -> nasaResource.getPopularExtensions(new TimeRange(), false, null, 1000, asyncResponse));
         Assert.assertEquals(getPopularExtensions, actualPopularExtensions);
     }
 
@@ -325,7 +433,7 @@ public class NasaResourceTest {
     @Test
     public void testGetNumberExtensionRequests() throws Exception {
         Integer actualExtensionRequests = 1170;
-        Integer numberExtensionRequests = nasaResource.getNumberExtensionRequest("html");
+        Integer numberExtensionRequests = await(asyncResponse -> nasaResource.getNumberExtensionRequest("html", new TimeRange(), asyncResponse));
         Assert.assertEquals(numberExtensionRequests, actualExtensionRequests);
     }
 
@@ -341,7 +449,7 @@ public class NasaResourceTest {
                 newJsonEntry("head", 1),
                 newJsonEntry("post", 1)
         );
-        ObjectNode apiCalls = nasaResource.getApiCalls();
+        ObjectNode apiCalls = await(asyncResponse -> nasaResource.getApiCalls(new TimeRange(), null, 1000, asyncResponse));
         Assert.assertEquals(apiCalls, actualApiCalls);
     }
 
@@ -354,7 +462,384 @@ public class NasaResourceTest {
         ObjectNode actualRequestUser = newObjectNode(
                 newJsonEntry("scottp", 214)
         );
-        ObjectNode requestUser = nasaResource.getRequestsUser("scottp");
+        ObjectNode requestUser = await(asyncResponse -> nasaResource.getRequestsUser("scottp", new TimeRange(), asyncResponse));
         Assert.assertEquals(requestUser, actualRequestUser);
     }
+
+    /**
+     * This test will get several API's at once from the dashboard
+     * and make sure they match the results of the API's on their own
+     * @throws Exception language exception
+     */
+    @Test
+    public void testDashboard() throws Exception {
+        ObjectNode actualDashboard = newObjectNode(
+                newJsonEntry("error/rate", 0.4333333333333333),
+                newJsonEntry("api/call", newObjectNode(
+                        newJsonEntry("GET", 2998),
+                        newJsonEntry("HEAD", 1),
+                        newJsonEntry("POST", 1)
+                ))
+        );
+        ObjectNode dashboard = await(asyncResponse -> nasaResource.dashboard(
+                Arrays.asList("error/rate", "api/call"),
+                new TimeRange(),
+                asyncResponse
+        ));
+        Assert.assertEquals(dashboard, actualDashboard);
+    }
+
+    /**
+     * This test will rebuild the in memory aggregates from what is indexed
+     * and make sure the API's answered from them match the API's answered by ES
+     * @throws Exception language exception
+     */
+    @Test
+    public void testMaterializedAggregates() throws Exception {
+        DatabaseHandler databaseHandler = new DatabaseHandler(restClient);
+        MaterializedAggregates aggregates = new MaterializedAggregates();
+        databaseHandler.addFlushListener(aggregates);
+        NasaResource aggregateResource = new NasaResource(
+                new ElasticSearchBackend(restClient, WireFormat.JSON, new Rollups(restClient, WireFormat.JSON)),
+                databaseHandler,
+                new ResultCache(1000, 30, databaseHandler::getGeneration, new SingleFlight()),
+                aggregates,
+                new UniqueClients(),
+                TimeoutConfig.of(30000)
+        );
+        Assert.assertFalse(aggregates.isReady());
+        // no requests have no average or error rate, the same as ES answers
+        Assert.assertEquals(aggregates.averagePayloadSize(), 0.0);
+        Assert.assertEquals(aggregates.errorRate(), 0.0);
+        aggregates.rebuild(restClient, databaseHandler, WireFormat.JSON);
+        Assert.assertTrue(aggregates.isReady());
+
+        Assert.assertEquals((double) await(asyncResponse -> aggregateResource.averagePayloadSize(new TimeRange(), asyncResponse)), 9114.067);
+        Assert.assertEquals((double) await(asyncResponse -> aggregateResource.errorRate(new TimeRange(), asyncResponse)), 0.4333333333333333);
+        Assert.assertEquals(
+                await(asyncResponse -> aggregateResource.errorRatePerMonth(new TimeRange(), asyncResponse)),
+                newObjectNode(newJsonEntry("801964800000", 0.4333333333333333))
+        );
+        Assert.assertEquals(
+                await(asyncResponse -> aggregateResource.requestsPerMonth(new TimeRange(), asyncResponse)),
+                newObjectNode(newJsonEntry("801964800000", 3000))
+        );
+        Assert.assertEquals(
+                await(asyncResponse -> aggregateResource.getPopularExtensions(new TimeRange(), false, null, 1000, asyncResponse)).toString(),
+                await(asyncResponse -> nasaResource.getPopularExtensions(new TimeRange(), false, null, 1000, asyncResponse)).toString()
+        );
+        Assert.assertEquals(
+                await(asyncResponse -> aggregateResource.getApiCalls(new TimeRange(), null, 1000, asyncResponse)).toString(),
+                await(asyncResponse -> nasaResource.getApiCalls(new TimeRange(), null, 1000, asyncResponse)).toString()
+        );
+        Assert.assertEquals(
+                await(asyncResponse -> aggregateResource.getUsersMostData(new TimeRange(), false, null, 1000, asyncResponse)).toString(),
+                await(asyncResponse -> nasaResource.getUsersMostData(new TimeRange(), false, null, 1000, asyncResponse)).toString()
+        );
+        List<String> topNUsers = await(asyncResponse -> aggregateResource.topNUsers(3, new TimeRange(), false, null, asyncResponse));
+        Assert.assertEquals(topNUsers, Arrays.asList("lowey", "macphed", "scottp"));
+        List<String> topFiveUsers = await(asyncResponse -> aggregateResource.topFiveUsers(new TimeRange(), false, asyncResponse));
+        List<String> exactTopFiveUsers = await(asyncResponse -> aggregateResource.topFiveUsers(new TimeRange(), true, asyncResponse));
+        Assert.assertEquals(topFiveUsers, exactTopFiveUsers);
+        Assert.assertEquals(
+                await(asyncResponse -> aggregateResource.getRequestsUser("scottp", new TimeRange(), asyncResponse)),
+                newObjectNode(newJsonEntry("scottp", 214))
+        );
+    }
+
+    /**
+     * Test the payload size distribution from the histograms against the one from ES
+     * @throws Exception IO exception
+     */
+    @Test
+    public void testGetPayloadSizeDistribution() throws Exception {
+        DatabaseHandler databaseHandler = new DatabaseHandler(restClient);
+        MaterializedAggregates aggregates = new MaterializedAggregates();
+        databaseHandler.addFlushListener(aggregates);
+        NasaResource aggregateResource = new NasaResource(
+                new ElasticSearchBackend(restClient, WireFormat.JSON, new Rollups(restClient, WireFormat.JSON)),
+                databaseHandler,
+                new ResultCache(1000, 30, databaseHandler::getGeneration, new SingleFlight()),
+                aggregates,
+                new UniqueClients(),
+                TimeoutConfig.of(30000)
+        );
+        aggregates.rebuild(restClient, databaseHandler, WireFormat.JSON);
+
+        List<Double> percents = Arrays.asList(50.0, 99.0);
+        DateTimeParam month = new DateTimeParam("1995-06-15");
+        for (String extension : Arrays.asList(null, "gif")) {
+            ObjectNode estimated = await(asyncResponse -> aggregateResource.getPayloadSizeDistribution(
+                    percents, null, extension, extension == null ? month : null, new TimeRange(), false, asyncResponse
+            ));
+            ObjectNode exact = await(asyncResponse -> aggregateResource.getPayloadSizeDistribution(
+                    percents, null, extension, extension == null ? month : null, new TimeRange(), true, asyncResponse
+            ));
+            // the ranges of the histogram are powers of two, which the histograms keep exactly
+            Assert.assertEquals(estimated.path("count"), exact.path("count"));
+            Assert.assertEquals(estimated.path("histogram"), exact.path("histogram"));
+            Assert.assertEquals(estimated.path("min").asDouble(), exact.path("min").asDouble(), exact.path("min").asDouble() * 0.01);
+            Assert.assertEquals(estimated.path("max").asDouble(), exact.path("max").asDouble(), exact.path("max").asDouble() * 0.01);
+            Assert.assertEquals(estimated.path("percentiles").size(), 2);
+        }
+
+        ObjectNode everything = await(asyncResponse -> aggregateResource.getPayloadSizeDistribution(
+                Collections.emptyList(), null, null, null, new TimeRange(), false, asyncResponse
+        ));
+        Assert.assertEquals(everything.path("count").asInt(), 3000);
+        Assert.assertEquals(everything.path("percentiles").size(), 4);
+
+        ObjectNode user = await(asyncResponse -> aggregateResource.getPayloadSizeDistribution(
+                percents, "scottp", null, null, new TimeRange(), false, asyncResponse
+        ));
+        Assert.assertEquals(user.path("count").asInt(), 214);
+
+        try {
+            await(asyncResponse -> aggregateResource.getPayloadSizeDistribution(
+                    percents, "scottp", "gif", null, new TimeRange(), false, asyncResponse
+            ));
+            Assert.fail("only one of user, extension and month can be given");
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof BadRequestException);
+        }
+    }
+
+    /**
+     * This test will build the hourly rollups from what is indexed and make sure the
+     * API's answered from them for a range of whole hours match the API's answered by ES
+     * @throws Exception language exception
+     */
+    @Test
+    public void testRollups() throws Exception {
+        DatabaseHandler databaseHandler = new DatabaseHandler(restClient);
+        Rollups rollups = new Rollups(restClient, WireFormat.JSON);
+        databaseHandler.addFlushListener(rollups);
+        NasaResource rollupResource = new NasaResource(
+                new ElasticSearchBackend(restClient, WireFormat.JSON, rollups),
+                databaseHandler,
+                new ResultCache(1000, 30, databaseHandler::getGeneration, new SingleFlight()),
+                new MaterializedAggregates(),
+                new UniqueClients(),
+                TimeoutConfig.of(30000)
+        );
+        Assert.assertFalse(rollups.isReady());
+        rollups.rebuild(databaseHandler);
+        Assert.assertTrue(rollups.isReady());
+
+        // from the start of an hour to the last millisecond of a later one
+        TimeRange hours = TimeRange.of(new DateTime("1995-06-01T10:00:00Z"), new DateTime("1995-06-01T15:00:00Z").minusMillis(1));
+        Assert.assertTrue(hours.isAligned(Rollups.GRANULARITY_MILLIS));
+        // part way through an hour, which only ES can answer
+        TimeRange partHours = TimeRange.of(new DateTime("1995-06-01T10:30:00Z"), null);
+        Assert.assertFalse(partHours.isAligned(Rollups.GRANULARITY_MILLIS));
+        // whole hours that no request is in
+        TimeRange noHours = TimeRange.of(new DateTime("1996-01-01T00:00:00Z"), new DateTime("1996-01-01T05:00:00Z").minusMillis(1));
+        Assert.assertEquals((double) await(asyncResponse -> rollupResource.averagePayloadSize(noHours, asyncResponse)), 0.0);
+        Assert.assertEquals((double) await(asyncResponse -> rollupResource.errorRate(noHours, asyncResponse)), 0.0);
+
+        for (TimeRange range : Arrays.asList(hours, partHours, noHours)) {
+            Assert.assertEquals(
+                    (double) await(asyncResponse -> rollupResource.averagePayloadSize(range, asyncResponse)),
+                    (double) await(asyncResponse -> nasaResource.averagePayloadSize(range, asyncResponse)),
+                    0.001
+            );
+            Assert.assertEquals(
+                    (double) await(asyncResponse -> rollupResource.errorRate(range, asyncResponse)),
+                    (double) await(asyncResponse -> nasaResource.errorRate(range, asyncResponse)),
+                    0.000001
+            );
+            Assert.assertEquals(
+                    (JsonNode) await(asyncResponse -> rollupResource.errorRatePerMonth(range, asyncResponse)),
+                    (JsonNode) await(asyncResponse -> nasaResource.errorRatePerMonth(range, asyncResponse))
+            );
+            Assert.assertEquals(
+                    (JsonNode) await(asyncResponse -> rollupResource.requestsPerMonth(range, asyncResponse)),
+                    (JsonNode) await(asyncResponse -> nasaResource.requestsPerMonth(range, asyncResponse))
+            );
+            Assert.assertEquals(
+                    (JsonNode) await(asyncResponse -> rollupResource.getPopularExtensions(range, true, null, 1000, asyncResponse)),
+                    (JsonNode) await(asyncResponse -> nasaResource.getPopularExtensions(range, true, null, 1000, asyncResponse))
+            );
+            Assert.assertEquals(
+                    (int) await(asyncResponse -> rollupResource.getNumberExtensionRequest("html", range, asyncResponse)),
+                    (int) await(asyncResponse -> nasaResource.getNumberExtensionRequest("html", range, asyncResponse))
+            );
+        }
+        // the requests of the range are fewer than all of them
+        Assert.assertTrue((int) await(asyncResponse -> rollupResource.getNumberExtensionRequest("html", hours, asyncResponse))
+                < (int) await(asyncResponse -> rollupResource.getNumberExtensionRequest("html", new TimeRange(), asyncResponse)));
+    }
+
+    /**
+     * This test will fill the columns from what is indexed and make sure every API
+     * answered by scanning them gives the same answer as ES, for everything and for a range
+     * @throws Exception language exception
+     */
+    @Test
+    public void testColumnarBackend() throws Exception {
+        DatabaseHandler databaseHandler = new DatabaseHandler(restClient);
+        ColumnStore columnStore = new ColumnStore();
+        databaseHandler.addFlushListener(columnStore);
+        NasaResource columnarResource = new NasaResource(
+                new ColumnarBackend(columnStore),
+                databaseHandler,
+                new ResultCache(1000, 30, databaseHandler::getGeneration, new SingleFlight()),
+                new MaterializedAggregates(),
+                new UniqueClients(),
+                TimeoutConfig.of(30000)
+        );
+        try {
+            await(asyncResponse -> columnarResource.averagePayloadSize(new TimeRange(), asyncResponse));
+            Assert.fail("the columns are not loaded yet");
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof ServiceUnavailableException);
+        }
+        columnStore.rebuild(restClient, databaseHandler, WireFormat.JSON);
+        Assert.assertTrue(columnStore.isReady());
+
+        TimeRange partHours = TimeRange.of(new DateTime("1995-06-01T10:30:00Z"), new DateTime("1995-06-01T15:00:00Z"));
+        for (TimeRange range : Arrays.asList(new TimeRange(), partHours)) {
+            List<Function<NasaResource, Consumer<AsyncResponse>>> endpoints = Arrays.asList(
+                    resource -> asyncResponse -> resource.topNUsers(5, range, true, null, asyncResponse),
+                    resource -> asyncResponse -> resource.averagePayloadSize(range, asyncResponse),
+                    resource -> asyncResponse -> resource.getUsersMostData(range, true, null, 1000, asyncResponse),
+                    resource -> asyncResponse -> resource.getUniqueClients(range, true, asyncResponse),
+                    resource -> asyncResponse -> resource.requestsPerMonth(range, asyncResponse),
+                    resource -> asyncResponse -> resource.errorRate(range, asyncResponse),
+                    resource -> asyncResponse -> resource.errorRatePerMonth(range, asyncResponse),
+                    resource -> asyncResponse -> resource.getPopularExtensions(range, true, null, 1000, asyncResponse),
+                    resource -> asyncResponse -> resource.getNumberExtensionRequest("html", range, asyncResponse),
+                    resource -> asyncResponse -> resource.getApiCalls(range, null, 1000, asyncResponse),
+                    resource -> asyncResponse -> resource.getRequestsUser("scottp", range, asyncResponse),
+                    resource -> asyncResponse -> resource.dashboard(QueryBackend.DASHBOARD_METRICS, range, asyncResponse)
+            );
+            for (Function<NasaResource, Consumer<AsyncResponse>> endpoint : endpoints) {
+                Assert.assertEquals(
+                        String.valueOf((Object) await(endpoint.apply(columnarResource))),
+                        String.valueOf((Object) await(endpoint.apply(nasaResource)))
+                );
+            }
+            // ES estimates its percentiles, everything else about the distribution is exact
+            ObjectNode exact = await(asyncResponse -> columnarResource.getPayloadSizeDistribution(
+                    Arrays.asList(50.0, 99.0), null, "gif", null, range, true, asyncResponse
+            ));
+            ObjectNode estimated = await(asyncResponse -> nasaResource.getPayloadSizeDistribution(
+                    Arrays.asList(50.0, 99.0), null, "gif", null, range, true, asyncResponse
+            ));
+            for (String field : Arrays.asList("count", "min", "max", "mean", "histogram")) {
+                Assert.assertEquals(exact.path(field).toString(), estimated.path(field).toString());
+            }
+        }
+
+        // every page of users together holds every user once, with the same requests as the pages of ES
+        Assert.assertEquals(pageThrough(columnarResource), pageThrough(nasaResource));
+        Assert.assertEquals((long) pageThrough(columnarResource).get("scottp"), 214L);
+
+        // the aggregates read back from the columns match the aggregates read back from the index
+        MaterializedAggregates fromColumns = new MaterializedAggregates();
+        MaterializedAggregates fromIndex = new MaterializedAggregates();
+        databaseHandler.addFlushListener(fromColumns);
+        databaseHandler.addFlushListener(fromIndex);
+        fromColumns.rebuild(columnStore, databaseHandler);
+        fromIndex.rebuild(restClient, databaseHandler, WireFormat.JSON);
+        Assert.assertEquals(fromColumns.averagePayloadSize(), fromIndex.averagePayloadSize());
+        Assert.assertEquals(fromColumns.errorRatePerMonth().toString(), fromIndex.errorRatePerMonth().toString());
+    }
+
+    /**
+     * This method pages through every user and their requests
+     * @param resource the resource paged through
+     * @return Map<String, Long> each user and their requests
+     * @throws Exception what the API failed with
+     */
+    private Map<String, Long> pageThrough(NasaResource resource) throws Exception {
+        Map<String, Long> users = new HashMap<>();
+        String cursor = "";
+        while (cursor != null) {
+            String current = cursor;
+            JsonNode page = readPage(await(asyncResponse -> resource.topNUsers(10, new TimeRange(), false, current, asyncResponse)));
+            page.path("buckets").fields().forEachRemaining(user ->
+                    Assert.assertNull(users.put(user.getKey(), user.getValue().asLong()))
+            );
+            cursor = page.path("cursor").isNull() ? null : page.path("cursor").asText();
+        }
+        return users;
+    }
+
+    /**
+     * Test paging through every user and api call with cursors
+     * @throws Exception IO exception
+     */
+    @Test
+    public void testPaging() throws Exception {
+        Map<String, Long> users = new HashMap<>();
+        String cursor = "";
+        int pages = 0;
+        while (cursor != null) {
+            String current = cursor;
+            JsonNode page = readPage(await(asyncResponse -> nasaResource.topNUsers(10, new TimeRange(), false, current, asyncResponse)));
+            Assert.assertFalse(page.path("truncated").asBoolean());
+            page.path("buckets").fields().forEachRemaining(user ->
+                    Assert.assertNull(users.put(user.getKey(), user.getValue().asLong()))
+            );
+            cursor = page.path("cursor").isNull() ? null : page.path("cursor").asText();
+            pages++;
+        }
+        Assert.assertTrue(pages > 1);
+        Assert.assertEquals((long) users.get("scottp"), 214L);
+
+        // partitions of one term overflow all the time, they are split rather than truncated
+        cursor = "";
+        Map<String, Long> single = new HashMap<>();
+        while (cursor != null) {
+            String current = cursor;
+            JsonNode page = readPage(await(asyncResponse -> nasaResource.topNUsers(1, new TimeRange(), false, current, asyncResponse)));
+            Assert.assertFalse(page.path("truncated").asBoolean());
+            page.path("buckets").fields().forEachRemaining(user ->
+                    Assert.assertNull(single.put(user.getKey(), user.getValue().asLong()))
+            );
+            cursor = page.path("cursor").isNull() ? null : page.path("cursor").asText();
+        }
+        Assert.assertEquals(single, users);
+
+        JsonNode apiCalls = readPage(await(asyncResponse -> nasaResource.getApiCalls(new TimeRange(), "", 1000, asyncResponse)));
+        Assert.assertTrue(apiCalls.path("cursor").isNull());
+        long requests = 0;
+        for (JsonNode count : apiCalls.path("buckets")) {
+            requests += count.asLong();
+        }
+        Assert.assertEquals(requests, 3000L);
+
+        try {
+            await(asyncResponse -> nasaResource.getApiCalls(new TimeRange(), "not a cursor", 1000, asyncResponse));
+            Assert.fail("the cursor is not one the API gave");
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof BadRequestException);
+        }
+        try {
+            await(asyncResponse -> nasaResource.topNUsers(NasaResource.MAX_TERMS + 1, new TimeRange(), true, null, asyncResponse));
+            Assert.fail("too many users without a cursor");
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof BadRequestException);
+        }
+        try {
+            TimeRange inverted = TimeRange.of(new DateTime(1996, 1, 1, 0, 0), new DateTime(1995, 1, 1, 0, 0));
+            await(asyncResponse -> nasaResource.topNUsers(10, inverted, true, null, asyncResponse));
+            Assert.fail("the range starts after it ends");
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof BadRequestException);
+        }
+    }
+
+    /**
+     * This method writes out a streamed page
+     * @param page the page
+     * @return JsonNode the page that was written
+     * @throws IOException writing the page
+     */
+    private JsonNode readPage(StreamingOutput page) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        page.write(out);
+        return objectMapper.readTree(out.toByteArray());
+    }
 }
@@ -0,0 +1,86 @@
+package com.andy.nasa.resource;
+
+import com.andy.nasa.elasticsearch.WireFormat;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.IntNode;
+import com.fasterxml.jackson.databind.node.TextNode;
+import org.joda.time.DateTime;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import static com.zackehh.jackson.Jive.newJsonEntry;
+import static com.zackehh.jackson.Jive.newObjectNode;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+
+/**
+ * Tests that filling in a template gives the same body as building and encoding the query
+ */
+public class QueryTemplateTest {
+
+    @DataProvider
+    public Object[][] formats() {
+        return new Object[][] {{WireFormat.JSON}, {WireFormat.SMILE}};
+    }
+
+    @Test(dataProvider = "formats")
+    public void testFill(WireFormat wireFormat) throws Exception {
+        ObjectMapper objectMapper = wireFormat.getObjectMapper();
+        QueryTemplate queryTemplate = new QueryTemplate(
+                objectMapper,
+                body(TextNode.valueOf(QueryTemplate.param("user")), TextNode.valueOf(QueryTemplate.param("nUsers"))),
+                "nUsers", "user"
+        );
+        byte[] filled = queryTemplate.fill(3, "andy");
+        assertEquals(objectMapper.readTree(filled), body(TextNode.valueOf("andy"), IntNode.valueOf(3)));
+        assertEquals(filled, objectMapper.writeValueAsBytes(body(TextNode.valueOf("andy"), IntNode.valueOf(3))));
+    }
+
+    @Test(dataProvider = "formats")
+    public void testNoParams(WireFormat wireFormat) throws Exception {
+        ObjectMapper objectMapper = wireFormat.getObjectMapper();
+        QueryTemplate queryTemplate = new QueryTemplate(objectMapper, body(TextNode.valueOf("andy"), IntNode.valueOf(3)));
+        assertEquals(queryTemplate.fill(), objectMapper.writeValueAsBytes(body(TextNode.valueOf("andy"), IntNode.valueOf(3))));
+    }
+
+    @Test(dataProvider = "formats")
+    public void testOpenBound(WireFormat wireFormat) throws Exception {
+        ObjectMapper objectMapper = wireFormat.getObjectMapper();
+        RangedTemplate rangedTemplate = new RangedTemplate(
+                objectMapper,
+                body(TextNode.valueOf("andy"), TextNode.valueOf(QueryTemplate.param("nUsers"))),
+                "timestamp",
+                "nUsers"
+        );
+        JsonNode from = objectMapper.readTree(rangedTemplate.fill(TimeRange.of(new DateTime(1995, 7, 1, 0, 0), null), 3));
+        JsonNode bounds = from.path("query").path("bool").path("filter").path(0).path("range").path("timestamp");
+        assertEquals(bounds.path("gte").asLong(), new DateTime(1995, 7, 1, 0, 0).getMillis());
+        assertFalse(bounds.has("lte"));
+        assertEquals(from.path("aggs").path("users").path("terms").path("size").asInt(), 3);
+
+        JsonNode to = objectMapper.readTree(rangedTemplate.fill(TimeRange.of(null, new DateTime(1995, 7, 1, 0, 0)), 3));
+        bounds = to.path("query").path("bool").path("filter").path(0).path("range").path("timestamp");
+        assertEquals(bounds.path("lte").asLong(), new DateTime(1995, 7, 1, 0, 0).getMillis());
+        assertFalse(bounds.has("gte"));
+
+        assertEquals(objectMapper.readTree(rangedTemplate.fill(new TimeRange(), 3)), body(TextNode.valueOf("andy"), IntNode.valueOf(3)));
+    }
+
+    private static JsonNode body(JsonNode user, JsonNode nUsers) {
+        return newObjectNode(
+                newJsonEntry("size", 0),
+                newJsonEntry("query", newObjectNode(
+                        newJsonEntry("term", newObjectNode(newJsonEntry("username", user)))
+                )),
+                newJsonEntry("aggs", newObjectNode(
+                        newJsonEntry("users", newObjectNode(
+                                newJsonEntry("terms", newObjectNode(
+                                        newJsonEntry("field", "username"),
+                                        newJsonEntry("size", nUsers)
+                                ))
+                        ))
+                ))
+        );
+    }
+}
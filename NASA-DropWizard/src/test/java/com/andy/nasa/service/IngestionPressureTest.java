@@ -0,0 +1,111 @@
+package com.andy.nasa.service;
+
+import com.andy.nasa.configuration.configs.PressureConfig;
+import com.andy.nasa.elasticsearch.WireFormat;
+import com.andy.nasa.event.DatabaseHandler;
+import com.andy.nasa.service.IngestionPressure.Level;
+import com.andy.nasa.service.IngestionPressure.Signal;
+import com.codahale.metrics.MetricRegistry;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.http.HttpHost;
+import org.elasticsearch.client.RestClient;
+import org.testng.annotations.Test;
+
+import java.net.InetSocketAddress;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.testng.Assert.assertEquals;
+
+/**
+ * Tests that ingestion slows down as pressure rises and only speeds up once it is well under what slowed it down
+ */
+public class IngestionPressureTest {
+
+    @Test
+    public void testRatio() {
+        Map<Signal, Long> limits = new EnumMap<>(Signal.class);
+        limits.put(Signal.BULK_QUEUE, 100L);
+        limits.put(Signal.BUFFERED_DOCUMENTS, 1000L);
+        limits.put(Signal.QUEUE_DEPTH, 10L);
+        Map<Signal, Long> readings = new EnumMap<>(Signal.class);
+        readings.put(Signal.BULK_QUEUE, 20L);
+        readings.put(Signal.BUFFERED_DOCUMENTS, 600L);
+        // a deep rabbit queue is only reported
+        readings.put(Signal.QUEUE_DEPTH, 1000L);
+        assertEquals(IngestionPressure.ratio(readings, limits), 0.6);
+    }
+
+    @Test
+    public void testLevels() {
+        assertEquals(IngestionPressure.next(Level.NORMAL, 0.4, 0.5), Level.NORMAL);
+        assertEquals(IngestionPressure.next(Level.NORMAL, 0.5, 0.5), Level.SLOW);
+        assertEquals(IngestionPressure.next(Level.NORMAL, 1.2, 0.5), Level.PAUSED);
+        // under the limit but not well under it stays paused
+        assertEquals(IngestionPressure.next(Level.PAUSED, 0.9, 0.5), Level.PAUSED);
+        assertEquals(IngestionPressure.next(Level.PAUSED, 0.7, 0.5), Level.SLOW);
+        assertEquals(IngestionPressure.next(Level.PAUSED, 0.1, 0.5), Level.NORMAL);
+        assertEquals(IngestionPressure.next(Level.SLOW, 0.45, 0.5), Level.SLOW);
+        assertEquals(IngestionPressure.next(Level.SLOW, 0.39, 0.5), Level.NORMAL);
+    }
+
+    /**
+     * This test makes sure ingestion paused by one slow flush starts again once the buffer
+     * it emptied stays empty, as nothing is delivered while paused to flush and read again
+     * @throws Exception IO exception
+     */
+    @Test
+    public void testPausedRecoversWithEmptyBuffer() throws Exception {
+        // stands in for ES, each bulk request taking 300ms
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", exchange -> {
+            byte[] body = "{}".getBytes();
+            if (exchange.getRequestURI().getPath().endsWith("_bulk")) {
+                try {
+                    Thread.sleep(300);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                body = "{\"items\":[{\"index\":{\"status\":201}}]}".getBytes();
+            }
+            exchange.sendResponseHeaders(200, body.length);
+            exchange.getResponseBody().write(body);
+            exchange.close();
+        });
+        server.start();
+        try (RestClient restClient = RestClient.builder(new HttpHost("localhost", server.getAddress().getPort())).build()) {
+            DatabaseHandler databaseHandler = new DatabaseHandler(restClient, WireFormat.JSON, new MetricRegistry(), 1000);
+            PressureConfig pressureConfig = new ObjectMapper().readValue("{\"maxFlushMillis\": 100}", PressureConfig.class);
+            LocalBroker broker = new LocalBroker();
+            ServiceRabbitIngestion ingestion = new ServiceRabbitIngestion(
+                    databaseHandler,
+                    broker.getConnection(),
+                    new MetricRegistry(),
+                    pressureConfig
+            );
+            IngestionPressure pressure = new IngestionPressure(
+                    restClient,
+                    databaseHandler,
+                    ingestion,
+                    pressureConfig,
+                    new MetricRegistry()
+            );
+            ingestion.start();
+            broker.publish("202.32.92.47 - - [01/Jun/1995:00:00:59 -0600] \"GET /~scottp/publish.html\" 200 271".getBytes());
+            assertEquals(broker.awaitSettled(5, TimeUnit.SECONDS), true);
+            pressure.poll();
+            assertEquals(ingestion.getLevel(), Level.PAUSED);
+
+            // the next scheduled flush has nothing to write
+            Thread.sleep(1200);
+            assertEquals(databaseHandler.getBufferedDocuments(), 0);
+            pressure.poll();
+            assertEquals(ingestion.getLevel(), Level.NORMAL);
+            databaseHandler.close();
+        } finally {
+            server.stop(0);
+        }
+    }
+}
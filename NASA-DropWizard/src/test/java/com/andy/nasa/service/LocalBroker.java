@@ -0,0 +1,201 @@
+package com.andy.nasa.service;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.Consumer;
+import com.rabbitmq.client.Envelope;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stands in for a rabbit broker with one queue so ingestion can be driven without one running.
+ * Messages are delivered on the thread publishing them, as rabbit delivers the messages of a
+ * channel one at a time, and publishing waits while as many messages as the prefetch allows
+ * have been delivered and not acknowledged
+ */
+public class LocalBroker {
+
+    // the connection and channel handed to the ingestion
+    private final Connection connection;
+    private final Channel channel;
+
+    // the subscribed consumer, null while none is
+    private Consumer consumer = null;
+
+    // how many messages may be unacknowledged, 0 for no limit
+    private int prefetch = 0;
+
+    // the tag of the last delivery, and the deliveries not yet acknowledged, acknowledged and rejected
+    private long deliveryTag = 0;
+    private int unacknowledged = 0;
+    private long acknowledged = 0;
+    private long rejected = 0;
+
+    /**
+     * Creates the broker with nothing subscribed
+     */
+    public LocalBroker() {
+        this.channel = (Channel) Proxy.newProxyInstance(
+                Channel.class.getClassLoader(),
+                new Class<?>[] {Channel.class},
+                (proxy, method, args) -> channel(method, args)
+        );
+        this.connection = (Connection) Proxy.newProxyInstance(
+                Connection.class.getClassLoader(),
+                new Class<?>[] {Connection.class},
+                (proxy, method, args) -> method.getName().equals("createChannel") ? channel : standIn(method, proxy, args)
+        );
+    }
+
+    /**
+     * gets the connection to hand to the ingestion
+     * @return connection
+     */
+    public Connection getConnection() {
+        return connection;
+    }
+
+    /**
+     * Publishes a message stamped with when it was published and delivers it to the consumer,
+     * waiting for a consumer to subscribe and for the prefetch to allow another delivery
+     * @param body the body of the message
+     * @throws Exception interrupted waiting, or what the consumer throws
+     */
+    public void publish(byte[] body) throws Exception {
+        Consumer deliverTo;
+        long tag;
+        synchronized (this) {
+            while (consumer == null || (prefetch > 0 && unacknowledged >= prefetch)) {
+                wait();
+            }
+            deliverTo = consumer;
+            tag = ++deliveryTag;
+            unacknowledged++;
+        }
+        AMQP.BasicProperties properties = new AMQP.BasicProperties.Builder()
+                .headers(Collections.singletonMap(ServiceRabbitIngestion.PUBLISHED_HEADER, System.currentTimeMillis()))
+                .build();
+        deliverTo.handleDelivery(
+                "local",
+                new Envelope(tag, false, "", ServiceRabbitIngestion.QUEUE_NAME),
+                properties,
+                body
+        );
+    }
+
+    /**
+     * Waits until every message published so far has been acknowledged or rejected
+     * @param timeout how long to wait
+     * @param unit the unit of the timeout
+     * @return whether they all were before the timeout
+     * @throws InterruptedException interrupted waiting
+     */
+    public synchronized boolean awaitSettled(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (unacknowledged > 0) {
+            long left = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (left <= 0) {
+                return false;
+            }
+            wait(left);
+        }
+        return true;
+    }
+
+    /**
+     * gets how many messages have been acknowledged
+     * @return acknowledged
+     */
+    public synchronized long getAcknowledged() {
+        return acknowledged;
+    }
+
+    /**
+     * gets how many messages have been rejected
+     * @return rejected
+     */
+    public synchronized long getRejected() {
+        return rejected;
+    }
+
+    /**
+     * This method answers the calls made on the channel, those the ingestion makes
+     * change the broker and the rest are answered with nothing
+     * @param method the method called
+     * @param args the arguments it was called with
+     * @return Object what the method returns
+     */
+    private synchronized Object channel(Method method, Object[] args) {
+        switch (method.getName()) {
+            case "basicQos":
+                // the prefetch count is the only int argument but for the overload taking a prefetch size first
+                prefetch = (Integer) args[args.length == 3 ? 1 : 0];
+                notifyAll();
+                return null;
+            case "basicConsume":
+                consumer = (Consumer) args[args.length - 1];
+                notifyAll();
+                return "local";
+            case "basicCancel":
+                consumer = null;
+                return null;
+            case "basicAck":
+                acknowledged++;
+                settled();
+                return null;
+            case "basicReject":
+            case "basicNack":
+                rejected++;
+                settled();
+                return null;
+            case "messageCount":
+                // messages are delivered as they are published so none are ever waiting
+                return 0L;
+            case "isOpen":
+                return true;
+            default:
+                return standIn(method, channel, args);
+        }
+    }
+
+    /**
+     * This method counts a delivery as settled and wakes anything waiting on the prefetch
+     */
+    private void settled() {
+        unacknowledged--;
+        notifyAll();
+    }
+
+    /**
+     * This method answers a call the broker does not need to act on
+     * @param method the method called
+     * @param proxy the proxy it was called on
+     * @param args the arguments it was called with
+     * @return Object the zero value of what the method returns
+     */
+    private static Object standIn(Method method, Object proxy, Object[] args) {
+        switch (method.getName()) {
+            case "toString":
+                return "LocalBroker";
+            case "hashCode":
+                return System.identityHashCode(proxy);
+            case "equals":
+                return proxy == args[0];
+        }
+        Class<?> type = method.getReturnType();
+        if (type == boolean.class) {
+            return false;
+        }
+        if (type == int.class) {
+            return 0;
+        }
+        if (type == long.class) {
+            return 0L;
+        }
+        return null;
+    }
+}
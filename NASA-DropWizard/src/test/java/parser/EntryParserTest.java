@@ -1,5 +1,7 @@
 package parser;
 
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Timer;
 import model.DBEntry;
 import org.joda.time.DateTime;
 import org.joda.time.DateTimeZone;
@@ -57,6 +59,59 @@ public class EntryParserTest {
         Assert.assertEquals(dbEntryAll.size(), 5);
     }
 
+    /**
+     * This tests that every line parsed is counted and the ones that
+     * do not match are counted as rejected
+     */
+    @Test
+    public void testMetrics() {
+        Meter lines = (Meter) EntryParser.getMetrics().getMetrics().get("lines");
+        Meter rejected = (Meter) EntryParser.getMetrics().getMetrics().get("rejected");
+        Timer parse = (Timer) EntryParser.getMetrics().getMetrics().get("parse");
+        long linesBefore = lines.getCount();
+        long rejectedBefore = rejected.getCount();
+        long parseBefore = parse.getCount();
+        EntryParser.parse(String.join("\n", entries));
+        Assert.assertEquals(lines.getCount() - linesBefore, 6);
+        Assert.assertEquals(rejected.getCount() - rejectedBefore, 1);
+        Assert.assertEquals(parse.getCount() - parseBefore, 1);
+    }
+
+    /**
+     * This tests that parsing a single line gives the same entry as parsing it
+     * with the others, and nothing for a line that is empty or does not match
+     */
+    @Test
+    public void testParseLine() {
+        List<DBEntry> dbEntryAll = EntryParser.parse(String.join("\n", entries));
+        for (int i = 0; i < 5; i++) {
+            Assert.assertEquals(EntryParser.parseLine(entries.get(i)), dbEntryAll.get(i));
+        }
+        Assert.assertEquals(EntryParser.parseLine(" " + entries.get(0) + "\r"), dbEntryAll.get(0));
+        Assert.assertNull(EntryParser.parseLine(entries.get(5)));
+        Assert.assertNull(EntryParser.parseLine("  "));
+    }
+
+    /**
+     * This tests that a single line is counted the same way as lines parsed together,
+     * and that an empty line is not counted as a line
+     */
+    @Test
+    public void testParseLineMetrics() {
+        Meter lines = (Meter) EntryParser.getMetrics().getMetrics().get("lines");
+        Meter rejected = (Meter) EntryParser.getMetrics().getMetrics().get("rejected");
+        Timer parse = (Timer) EntryParser.getMetrics().getMetrics().get("parse");
+        long linesBefore = lines.getCount();
+        long rejectedBefore = rejected.getCount();
+        long parseBefore = parse.getCount();
+        EntryParser.parseLine(entries.get(0));
+        EntryParser.parseLine(entries.get(5));
+        EntryParser.parseLine("");
+        Assert.assertEquals(lines.getCount() - linesBefore, 2);
+        Assert.assertEquals(rejected.getCount() - rejectedBefore, 1);
+        Assert.assertEquals(parse.getCount() - parseBefore, 3);
+    }
+
     /**
      * This is a test to make sure that a non matching entry, is
      * left and is not added to the database (i.e skipped over)
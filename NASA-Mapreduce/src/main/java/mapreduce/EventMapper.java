@@ -1,28 +1,51 @@
 package mapreduce;
 
+import com.fasterxml.jackson.core.JsonGenerator;
 import io.dropwizard.jackson.Jackson;
 import model.DBEntry;
-import org.elasticsearch.hadoop.util.BytesArray;
 import parser.EntryParser;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import org.apache.hadoop.io.*;
 import org.apache.hadoop.mapreduce.Mapper;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.util.List;
 
 /**
  * This class is the mapper class for hadoop which will map a key value pair
- * ready to be inserted into ES when the map job is run
+ * ready to be inserted into ES when the map job is run.
+ * A mapper is called once for each line of the input, so the output text, the bytes
+ * the json is written into and the json generator are made once and reused for every line
  * Created by awaldman on 6/5/17.
  */
 class EventMapper extends Mapper<LongWritable, Text, NullWritable, Text> {
 
     private final ObjectMapper mapper = Jackson.newObjectMapper();
 
+    // the json of the entry of each line is written here, then copied into the output
+    private final Bytes bytes = new Bytes();
+    private final Text output = new Text();
+    private JsonGenerator generator;
+
     EventMapper() {
     }
 
+    /**
+     * Makes the json generator of this mapper
+     * @param context the context of the task
+     * @throws IOException making the generator
+     */
+    @Override
+    protected void setup(Mapper<LongWritable,
+                                 Text,
+                                 NullWritable,
+                                 Text>.Context context)
+            throws IOException {
+        generator = mapper.getFactory().createGenerator(bytes);
+        // each entry is its own document, nothing is written between them
+        generator.setRootValueSeparator(null);
+    }
+
     protected void map(LongWritable key,
                        Text value,
                        Mapper<LongWritable,
@@ -32,12 +55,44 @@ class EventMapper extends Mapper<LongWritable, Text, NullWritable, Text> {
             throws IOException, InterruptedException {
 
         // from the line of input parse out an entry
-        List<DBEntry> dbEntry = EntryParser.parse(value.toString());
+        DBEntry entry = EntryParser.parseLine(value.toString());
+        if (entry == null) {
+            context.getCounter(EventMapper.class.getSimpleName(), "skipped").increment(1);
+            return;
+        }
+
+        // ready the entry for es insertion, the same json as writeValueAsString
+        bytes.reset();
+        mapper.writeValue(generator, entry);
+        output.set(bytes.buffer(), 0, bytes.size());
+        context.write(NullWritable.get(), output);
+    }
+
+    /**
+     * Closes the json generator of this mapper
+     * @param context the context of the task
+     * @throws IOException closing the generator
+     */
+    @Override
+    protected void cleanup(Mapper<LongWritable,
+                                   Text,
+                                   NullWritable,
+                                   Text>.Context context)
+            throws IOException {
+        generator.close();
+    }
+
+    /**
+     * The bytes written to, giving the array they are in rather than a copy of it
+     */
+    private static final class Bytes extends ByteArrayOutputStream {
 
-        // iterates once getting entry and readying it for es insertion
-        for (DBEntry entry: dbEntry) {
-            String output = mapper.writeValueAsString(entry);
-            context.write(NullWritable.get(), new Text(output));
+        /**
+         * gets the array the bytes are in, only the first size of them are written
+         * @return buf
+         */
+        byte[] buffer() {
+            return buf;
         }
     }
 }
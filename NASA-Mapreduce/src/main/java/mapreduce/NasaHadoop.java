@@ -2,31 +2,45 @@ package mapreduce;
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.conf.Configured;
-import org.apache.hadoop.fs.Path;
-import org.apache.hadoop.io.BytesWritable;
 import org.apache.hadoop.io.NullWritable;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.lib.input.CombineTextInputFormat;
 import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
-import org.apache.hadoop.mapreduce.lib.input.TextInputFormat;
 import org.apache.hadoop.util.Tool;
 import org.apache.hadoop.util.ToolRunner;
 import org.elasticsearch.hadoop.mr.EsOutputFormat;
 
+import java.io.IOException;
+
 import static org.apache.hadoop.mapreduce.MRJobConfig.MAP_SPECULATIVE;
 import static org.apache.hadoop.mapreduce.MRJobConfig.REDUCE_SPECULATIVE;
+import static org.elasticsearch.hadoop.cfg.ConfigurationOptions.ES_BATCH_SIZE_BYTES;
+import static org.elasticsearch.hadoop.cfg.ConfigurationOptions.ES_BATCH_SIZE_ENTRIES;
+import static org.elasticsearch.hadoop.cfg.ConfigurationOptions.ES_BATCH_WRITE_REFRESH;
 import static org.elasticsearch.hadoop.cfg.ConfigurationOptions.ES_INPUT_JSON;
 import static org.elasticsearch.hadoop.cfg.ConfigurationOptions.ES_MAPPING_ID;
+import static org.elasticsearch.hadoop.cfg.ConfigurationOptions.ES_NODES;
+import static org.elasticsearch.hadoop.cfg.ConfigurationOptions.ES_PORT;
 import static org.elasticsearch.hadoop.cfg.ConfigurationOptions.ES_RESOURCE_WRITE;
 
 
 /**
  * Used to take in nasa data to then me mapped and placed into elastic search
- * in the same format as the API would do it or the database handler
+ * in the same format as the API would do it or the database handler.
+ * The input files or globs are the arguments, everything else is set with -D or -conf and
+ * only falls back to the defaults here when not set, e.g.
+ * hadoop jar NASA-Mapreduce.jar mapreduce.NasaHadoop -D es.nodes=es1,es2 -D es.resource.write=nasa/log logs/1995
  * Created by awaldman on 5/31/17.
  */
 public class NasaHadoop extends Configured implements Tool {
 
+    // the input used when no arguments are given, comma separated files, directories or globs
+    public static final String INPUT = "nasa.input";
+
+    // the most bytes of input given to one map task, small files are put together up to this
+    public static final long DEFAULT_SPLIT_SIZE = 128L * 1024 * 1024;
+
     public static void main(String[] args) throws Exception {
         System.exit(ToolRunner.run(new NasaHadoop(), args));
     }
@@ -34,10 +48,8 @@ public class NasaHadoop extends Configured implements Tool {
     @Override
     public int run(String[] strings) throws Exception {
         Configuration conf = this.getConf();
-        conf.set("es.nodes", "localhost");
-        conf.set("es.port", "9200");
-        conf.set(ES_RESOURCE_WRITE, "nasa/log");
-        conf.set(ES_INPUT_JSON, "true");
+        setDefaults(conf);
+        conf.setIfUnset(ES_RESOURCE_WRITE, "nasa/log");
         conf.set(ES_MAPPING_ID, "entryID");
 
         Job job = Job.getInstance(conf, getClass().getName());
@@ -45,15 +57,63 @@ public class NasaHadoop extends Configured implements Tool {
 
         // configure the input and output types, and the class types
         job.setMapperClass(EventMapper.class);
-        job.setInputFormatClass(TextInputFormat.class); //default
+        if (!addInput(job, strings)) {
+            return 2;
+        }
         job.setOutputKeyClass(NullWritable.class );
         job.setOutputValueClass(Text.class);
         job.setOutputFormatClass(EsOutputFormat.class);
         job.setNumReduceTasks(0);
 
-        FileInputFormat.addInputPath(job, new Path("usask_access_log_3000"));
-
         // return the job status as a status code
         return job.waitForCompletion(true)?0:1;
     }
+
+    /**
+     * This method sets what the jobs writing to elastic search have in common, the options that
+     * can be given are only set when they were not
+     * @param conf the configuration of the job
+     */
+    static void setDefaults(Configuration conf) {
+        conf.setIfUnset(ES_NODES, "localhost");
+        conf.setIfUnset(ES_PORT, "9200");
+        conf.set(ES_INPUT_JSON, "true");
+        // bigger bulks than the es hadoop defaults, and no refresh after each as nothing reads until the job is done
+        conf.setIfUnset(ES_BATCH_SIZE_ENTRIES, "5000");
+        conf.setIfUnset(ES_BATCH_SIZE_BYTES, "5mb");
+        conf.setIfUnset(ES_BATCH_WRITE_REFRESH, "false");
+        // a task run twice would write its documents twice
+        conf.setBoolean(MAP_SPECULATIVE, false);
+        conf.setBoolean(REDUCE_SPECULATIVE, false);
+    }
+
+    /**
+     * This method adds the input of a job, the arguments or if there are none the input of the config.
+     * Rotated logs are many small files, so rather than a map task each they are put together
+     * into splits of up to mapreduce.input.fileinputformat.split.maxsize bytes. A file that is
+     * compressed, gzip, cannot be split so is read whole by one task, its size in the split
+     * being its compressed size. Directories are read with everything under them
+     * @param job the job
+     * @param inputs files, directories or globs
+     * @return boolean false when there is no input
+     * @throws IOException adding the input
+     */
+    static boolean addInput(Job job, String[] inputs) throws IOException {
+        String input = inputs.length > 0
+                ? String.join(",", inputs)
+                : job.getConfiguration().get(INPUT, "usask_access_log_3000");
+        if (input.trim().isEmpty()) {
+            System.err.println("Usage: " + job.getJobName() + " [generic options] <input file, directory or glob>...");
+            ToolRunner.printGenericCommandUsage(System.err);
+            return false;
+        }
+        job.setInputFormatClass(CombineTextInputFormat.class);
+        FileInputFormat.addInputPaths(job, input);
+        FileInputFormat.setInputDirRecursive(job, true);
+        // without a most size one combined split would take the whole input
+        if (job.getConfiguration().getLong(FileInputFormat.SPLIT_MAXSIZE, 0) <= 0) {
+            FileInputFormat.setMaxInputSplitSize(job, DEFAULT_SPLIT_SIZE);
+        }
+        return true;
+    }
 }
@@ -0,0 +1,106 @@
+package mapreduce;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import io.dropwizard.jackson.Jackson;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.util.Tool;
+import org.apache.hadoop.util.ToolRunner;
+import org.apache.http.HttpHost;
+import org.apache.http.entity.ContentType;
+import org.apache.http.nio.entity.NStringEntity;
+import org.elasticsearch.client.RestClient;
+import org.elasticsearch.hadoop.mr.EsOutputFormat;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.elasticsearch.hadoop.cfg.ConfigurationOptions.ES_MAPPING_ID;
+import static org.elasticsearch.hadoop.cfg.ConfigurationOptions.ES_NODES;
+import static org.elasticsearch.hadoop.cfg.ConfigurationOptions.ES_PORT;
+import static org.elasticsearch.hadoop.cfg.ConfigurationOptions.ES_RESOURCE_WRITE;
+
+/**
+ * Used to sum up nasa data in batch into a few summary documents in elastic search, see
+ * {@link SummaryReducer}, so reports over whole archives read a document for each user, month,
+ * extension or method rather than aggregating every entry. The input and options are given the
+ * same way as to {@link NasaHadoop}, the index of the summaries is set with nasa.summary.index, e.g.
+ * hadoop jar NASA-Mapreduce.jar mapreduce.NasaSummary -D es.nodes=es1,es2 -D mapreduce.job.reduces=4 logs/1995
+ */
+public class NasaSummary extends Configured implements Tool {
+
+    // the index the summaries are written to
+    public static final String INDEX = "nasa.summary.index";
+
+    public static void main(String[] args) throws Exception {
+        System.exit(ToolRunner.run(new NasaSummary(), args));
+    }
+
+    @Override
+    public int run(String[] strings) throws Exception {
+        Configuration conf = this.getConf();
+        NasaHadoop.setDefaults(conf);
+        String index = conf.get(INDEX, "nasa-summary");
+        // each summary is typed by its kind, with an id of what it counts
+        conf.set(ES_RESOURCE_WRITE, index + "/{kind}");
+        conf.set(ES_MAPPING_ID, "id");
+
+        Job job = Job.getInstance(conf, getClass().getName());
+        job.setJarByClass(getClass());
+
+        // configure the input and output types, and the class types
+        if (!NasaHadoop.addInput(job, strings)) {
+            return 2;
+        }
+        job.setMapperClass(SummaryMapper.class);
+        job.setCombinerClass(SummaryCombiner.class);
+        job.setReducerClass(SummaryReducer.class);
+        job.setMapOutputKeyClass(Text.class);
+        job.setMapOutputValueClass(SummaryCounts.class);
+        job.setOutputKeyClass(NullWritable.class);
+        job.setOutputValueClass(Text.class);
+        job.setOutputFormatClass(EsOutputFormat.class);
+
+        if (!job.waitForCompletion(true)) {
+            return 1;
+        }
+        long clients = job.getCounters().findCounter(SummaryReducer.COUNTER_GROUP, SummaryReducer.CLIENTS).getValue();
+        writeClients(conf, index, clients);
+        return 0;
+    }
+
+    /**
+     * This method adds the unique clients to the total summary, they are only known once
+     * every reducer has counted its own
+     * @param conf the configuration of the job, with the elastic search nodes
+     * @param index the index of the summaries
+     * @param clients the number of unique clients
+     * @throws IOException talking to ES
+     */
+    private static void writeClients(Configuration conf, String index, long clients) throws IOException {
+        int port = conf.getInt(ES_PORT, 9200);
+        List<HttpHost> hosts = new ArrayList<>();
+        for (String node : conf.getTrimmedStrings(ES_NODES)) {
+            String[] hostAndPort = node.split(":", 2);
+            hosts.add(new HttpHost(hostAndPort[0], hostAndPort.length == 2 ? Integer.parseInt(hostAndPort[1]) : port, "http"));
+        }
+        ObjectMapper mapper = Jackson.newObjectMapper();
+        ObjectNode update = mapper.createObjectNode();
+        update.putObject("doc").put(SummaryReducer.CLIENTS, clients);
+        update.put("doc_as_upsert", true);
+        try (RestClient restClient = RestClient.builder(hosts.toArray(new HttpHost[hosts.size()])).build()) {
+            restClient.performRequest(
+                    "POST",
+                    "/" + index + "/" + SummaryMapper.TOTAL + "/all/_update",
+                    Collections.emptyMap(),
+                    new NStringEntity(mapper.writeValueAsString(update), ContentType.APPLICATION_JSON)
+            );
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package mapreduce;
+
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Reducer;
+
+import java.io.IOException;
+
+/**
+ * This class is the combiner of the summary job, it sums the counts of each key on the map
+ * side so only one count of each key leaves each map task. Almost every line is counted under
+ * a key many lines share, so the shuffle is a little more than the number of distinct keys
+ */
+class SummaryCombiner extends Reducer<Text, SummaryCounts, Text, SummaryCounts> {
+
+    private final SummaryCounts sum = new SummaryCounts();
+
+    protected void reduce(Text key,
+                          Iterable<SummaryCounts> values,
+                          Reducer<Text,
+                                  SummaryCounts,
+                                  Text,
+                                  SummaryCounts>.Context context)
+            throws IOException, InterruptedException {
+        sum.set(0, 0, 0);
+        for (SummaryCounts counts : values) {
+            sum.add(counts);
+        }
+        context.write(key, sum);
+    }
+}
@@ -0,0 +1,88 @@
+package mapreduce;
+
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * This class is the value of the summary job, the requests of one key with their bytes and
+ * how many of them failed. Counts are summed into each other so a count of one entry and a
+ * count of many are the same thing, which is what lets the combiner sum them before the shuffle
+ */
+class SummaryCounts implements Writable {
+
+    // number of requests
+    private long requests;
+
+    // sum of the payload sizes of the requests
+    private long bytes;
+
+    // number of the requests answered with a 4xx or 5xx
+    private long errors;
+
+    /**
+     * This method sets the counts
+     * @param requests number of requests
+     * @param bytes sum of their payload sizes
+     * @param errors number of them that failed
+     * @return SummaryCounts these counts
+     */
+    SummaryCounts set(long requests, long bytes, long errors) {
+        this.requests = requests;
+        this.bytes = bytes;
+        this.errors = errors;
+        return this;
+    }
+
+    /**
+     * This method adds other counts to these
+     * @param other the counts added
+     */
+    void add(SummaryCounts other) {
+        requests += other.requests;
+        bytes += other.bytes;
+        errors += other.errors;
+    }
+
+    /**
+     * gets the number of requests
+     * @return requests
+     */
+    long getRequests() {
+        return requests;
+    }
+
+    /**
+     * gets the sum of the payload sizes
+     * @return bytes
+     */
+    long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * gets the number of requests that failed
+     * @return errors
+     */
+    long getErrors() {
+        return errors;
+    }
+
+    @Override
+    public void write(DataOutput out) throws IOException {
+        // most counts are small, so they are written in as few bytes as they fit in
+        WritableUtils.writeVLong(out, requests);
+        WritableUtils.writeVLong(out, bytes);
+        WritableUtils.writeVLong(out, errors);
+    }
+
+    @Override
+    public void readFields(DataInput in) throws IOException {
+        requests = WritableUtils.readVLong(in);
+        bytes = WritableUtils.readVLong(in);
+        errors = WritableUtils.readVLong(in);
+    }
+}
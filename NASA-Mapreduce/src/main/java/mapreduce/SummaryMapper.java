@@ -0,0 +1,92 @@
+package mapreduce;
+
+import model.DBEntry;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import parser.EntryParser;
+
+import java.io.IOException;
+
+/**
+ * This class is the mapper of the summary job, for each line it counts the request once under
+ * every key it is summed by, see {@link SummaryReducer} for the keys. The key and counts written
+ * are reused for every line, hadoop copies them as they are written
+ */
+class SummaryMapper extends Mapper<LongWritable, Text, Text, SummaryCounts> {
+
+    // the kinds of summary, the first part of each key
+    static final String TOTAL = "total";
+    static final String USER = "user";
+    static final String MONTH = "month";
+    static final String EXTENSION = "extension";
+    static final String METHOD = "method";
+    static final String CLIENT = "client";
+
+    // separates the kind of a key from what is counted, nothing parsed out of a line has one
+    static final char SEPARATOR = '\t';
+
+    private final Text key = new Text();
+    private final SummaryCounts counts = new SummaryCounts();
+
+    protected void map(LongWritable offset,
+                       Text value,
+                       Mapper<LongWritable,
+                               Text,
+                               Text,
+                               SummaryCounts>.Context context)
+            throws IOException, InterruptedException {
+
+        // from the line of input parse out an entry
+        DBEntry entry = EntryParser.parseLine(value.toString());
+        if (entry == null) {
+            context.getCounter(SummaryMapper.class.getSimpleName(), "skipped").increment(1);
+            return;
+        }
+
+        boolean error = entry.responseCode() >= 400 && entry.responseCode() <= 599;
+        counts.set(1, entry.payloadSize(), error ? 1 : 0);
+        write(context, TOTAL, "all");
+        if (entry.username() != null) {
+            write(context, USER, entry.username());
+        }
+        if (entry.datetime() != null) {
+            write(context, MONTH, String.valueOf(monthOf(entry.datetime())));
+        }
+        if (entry.fileExtension() != null) {
+            write(context, EXTENSION, entry.fileExtension());
+        }
+        write(context, METHOD, entry.restfulAPI());
+        write(context, CLIENT, entry.client());
+    }
+
+    /**
+     * This method writes the counts of the line under one key
+     * @param context the context of the task
+     * @param kind the kind of summary
+     * @param name what is counted
+     * @throws IOException writing
+     * @throws InterruptedException writing
+     */
+    private void write(Mapper<LongWritable,
+                               Text,
+                               Text,
+                               SummaryCounts>.Context context,
+                       String kind,
+                       String name)
+            throws IOException, InterruptedException {
+        key.set(kind + SEPARATOR + name);
+        context.write(key, counts);
+    }
+
+    /**
+     * This method gets the start of the month of a time, the same months the API's use
+     * @param datetime the time
+     * @return long the start of its month in epoch millis
+     */
+    private static long monthOf(DateTime datetime) {
+        return datetime.withZone(DateTimeZone.UTC).withDayOfMonth(1).withTimeAtStartOfDay().getMillis();
+    }
+}
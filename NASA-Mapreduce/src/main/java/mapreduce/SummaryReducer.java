@@ -0,0 +1,62 @@
+package mapreduce;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import io.dropwizard.jackson.Jackson;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Reducer;
+
+import java.io.IOException;
+
+/**
+ * This class is the reducer of the summary job, it sums the counts of each key and writes them
+ * as one summary document, typed by the kind of the key and with what is counted as its id:
+ * total/all, user/{username}, month/{start of the month in epoch millis}, extension/{extension}
+ * and method/{http method}, each holding its requests, bytes and errors. Clients are not written,
+ * each one is counted once in a job counter which is written as the clients of total/all
+ */
+class SummaryReducer extends Reducer<Text, SummaryCounts, NullWritable, Text> {
+
+    // the counter of the unique clients
+    static final String COUNTER_GROUP = SummaryReducer.class.getSimpleName();
+    static final String CLIENTS = "clients";
+
+    private final ObjectMapper mapper = Jackson.newObjectMapper();
+    private final SummaryCounts sum = new SummaryCounts();
+    private final Text output = new Text();
+
+    protected void reduce(Text key,
+                          Iterable<SummaryCounts> values,
+                          Reducer<Text,
+                                  SummaryCounts,
+                                  NullWritable,
+                                  Text>.Context context)
+            throws IOException, InterruptedException {
+        String[] kindAndName = key.toString().split(String.valueOf(SummaryMapper.SEPARATOR), 2);
+        String kind = kindAndName[0];
+        if (kind.equals(SummaryMapper.CLIENT)) {
+            context.getCounter(COUNTER_GROUP, CLIENTS).increment(1);
+            return;
+        }
+
+        sum.set(0, 0, 0);
+        for (SummaryCounts counts : values) {
+            sum.add(counts);
+        }
+
+        ObjectNode summary = mapper.createObjectNode();
+        summary.put("kind", kind);
+        summary.put("id", kindAndName[1]);
+        if (kind.equals(SummaryMapper.MONTH)) {
+            summary.put(kind, Long.parseLong(kindAndName[1]));
+        } else if (!kind.equals(SummaryMapper.TOTAL)) {
+            summary.put(kind, kindAndName[1]);
+        }
+        summary.put("requests", sum.getRequests());
+        summary.put("bytes", sum.getBytes());
+        summary.put("errors", sum.getErrors());
+        output.set(mapper.writeValueAsBytes(summary));
+        context.write(NullWritable.get(), output);
+    }
+}
@@ -1,6 +1,11 @@
 package parser;
 
-import com.google.common.base.Splitter;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.MetricSet;
+import com.codahale.metrics.RatioGauge;
+import com.codahale.metrics.Timer;
+import com.google.common.base.CharMatcher;
 import model.DBEntry;
 import model.ImmutableDBEntry;
 import org.joda.time.DateTime;
@@ -12,6 +17,7 @@ import javax.annotation.Nullable;
 import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.MatchResult;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -27,6 +33,31 @@ public class EntryParser {
     private static final DateTimeFormatter dateTime = DateTimeFormat.forPattern("dd/MMM/yyyy:HH:mm:ss Z");
     private static final Pattern fileEWithUser = Pattern.compile("^\\/~(.*)\\/(.*)\\.(.*)$");
     private static final Pattern fileEWithoutUser = Pattern.compile("^\\/(.*)\\.(.*) (.*)$");
+    private static final CharMatcher whitespace = CharMatcher.whitespace();
+    private static final char[] hexDigits = "0123456789abcdef".toCharArray();
+
+    // the matcher of each pattern and the digest for this thread, reset for each line rather than made again
+    private static final ThreadLocal<Matcher> lineMatcher = ThreadLocal.withInitial(() -> p.matcher(""));
+    private static final ThreadLocal<Matcher> usernameMatcher = ThreadLocal.withInitial(() -> usernameP.matcher(""));
+    private static final ThreadLocal<Matcher> withUserMatcher = ThreadLocal.withInitial(() -> fileEWithUser.matcher(""));
+    private static final ThreadLocal<Matcher> withoutUserMatcher = ThreadLocal.withInitial(() -> fileEWithoutUser.matcher(""));
+    private static final ThreadLocal<MessageDigest> md5 = ThreadLocal.withInitial(EntryParser::newMd5);
+
+    // how fast lines are parsed and rejected and how long each parse takes, see getMetrics
+    private static final MetricRegistry metrics = new MetricRegistry();
+    private static final Meter lines = metrics.meter("lines");
+    private static final Meter rejected = metrics.meter("rejected");
+    private static final Timer parseTime = metrics.timer("parse");
+
+    static {
+        // the share of the lines of the last minute that did not match
+        metrics.register("reject-ratio", new RatioGauge() {
+            @Override
+            protected Ratio getRatio() {
+                return Ratio.of(rejected.getOneMinuteRate(), lines.getOneMinuteRate());
+            }
+        });
+    }
 
     /**
      * Due to the data being sent as bytes (due to serialisation) changing it to a string
@@ -35,44 +66,91 @@ public class EntryParser {
      * @return DBEntry
      */
     public static List<DBEntry> parse(String entryString) {
+        long start = System.nanoTime();
         List<DBEntry> dbEntries = new ArrayList<>();
-        List<String> entries = Splitter
-            .on("\n")
-            .trimResults()
-            .omitEmptyStrings()
-            .splitToList(entryString);
-        for (String entry : entries) {
-            MatchResult matchResult = patternMatching(entry);
-            if (matchResult == null) {
-                System.out.print("Null match " + "   " + entry);
+        int count = 0;
+        // each line is taken in place rather than split into a list first
+        for (int from = 0; from <= entryString.length(); ) {
+            int end = entryString.indexOf('\n', from);
+            if (end < 0) {
+                end = entryString.length();
+            }
+            String entry = whitespace.trimFrom(entryString.substring(from, end));
+            from = end + 1;
+            if (entry.isEmpty()) {
                 continue;
             }
-            String entryID = createHashEntryValue(entry);
-            String client = matchResult.group(1);
-            String username = getUsername(matchResult);
-            DateTime timeAndZone = makeDateTime(matchResult);
-            String fileExtension = getFileExtension(matchResult);
-            String restApiCall = matchResult.group(3);
-            Integer responseCode = Integer.parseInt(matchResult.group(5));
-            Integer payloadSize = getPayloadSize(matchResult.group(6));
-            String resource = getResource(matchResult);
-            dbEntries.add(ImmutableDBEntry
-                .builder()
-                    .entryID(entryID)
-                    .client(client)
-                    .username(username)
-                    .datetime(timeAndZone)
-                    .fileExtension(fileExtension)
-                    .restfulAPI(restApiCall)
-                    .responseCode(responseCode)
-                    .payloadSize(payloadSize)
-                    .resourceAccessed(resource)
-                .build()
-            );
+            count++;
+            DBEntry dbEntry = entry(entry);
+            if (dbEntry != null) {
+                dbEntries.add(dbEntry);
+            }
         }
+        lines.mark(count);
+        parseTime.update(System.nanoTime() - start, TimeUnit.NANOSECONDS);
         return dbEntries;
     }
 
+    /**
+     * Parses a single line, the same as parse does each line of what it is given but
+     * without splitting or making any lists, for callers that already have one line at a time
+     * @param line the line, without a new line in it
+     * @return DBEntry | null when the line is empty or does not match
+     */
+    @Nullable
+    public static DBEntry parseLine(String line) {
+        long start = System.nanoTime();
+        String entry = whitespace.trimFrom(line);
+        DBEntry dbEntry = null;
+        if (!entry.isEmpty()) {
+            lines.mark();
+            dbEntry = entry(entry);
+        }
+        parseTime.update(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        return dbEntry;
+    }
+
+    /**
+     * This method makes the entry of one trimmed line, the matchers of this thread are
+     * reset onto the line rather than made again for each line
+     * @param entry the line
+     * @return DBEntry | null when the line does not match
+     */
+    @Nullable
+    private static DBEntry entry(String entry) {
+        Matcher matchResult = lineMatcher.get().reset(entry);
+        if (!matchResult.matches()) {
+            rejected.mark();
+            System.out.print("Null match " + "   " + entry);
+            return null;
+        }
+        String request = matchResult.group(4);
+        // the username and the resource after it come from the same match
+        Matcher withUsername = usernameMatcher.get().reset(request);
+        boolean hasUsername = withUsername.matches();
+        return ImmutableDBEntry
+            .builder()
+                .entryID(createHashEntryValue(entry))
+                .client(matchResult.group(1))
+                .username(hasUsername ? withUsername.group(1) : null)
+                .datetime(makeDateTime(matchResult.group(2)))
+                .fileExtension(getFileExtension(request))
+                .restfulAPI(matchResult.group(3))
+                .responseCode(Integer.parseInt(matchResult.group(5)))
+                .payloadSize(getPayloadSize(matchResult.group(6)))
+                .resourceAccessed(hasUsername ? withUsername.group(2) : getResource(request))
+            .build();
+    }
+
+    /**
+     * Returns the metrics of the parser, the rate lines are parsed and rejected at,
+     * the share of them rejected and how long each call to parse takes
+     * @return MetricSet the metrics
+     */
+    public static MetricSet getMetrics() {
+        return metrics;
+    }
+
     /**
      * This method creates a MD5 hash from the entry string to enter into the db
      * this is to make sure there is no duplicate data
@@ -82,19 +160,30 @@ public class EntryParser {
      */
     @Nullable
     private static String createHashEntryValue(String singleEntry) {
+        MessageDigest md = md5.get();
+        if (md == null) {
+            return null;
+        }
+        // perform the hash calculation by digesting and return array of bytes
+        byte[] byteData = md.digest(singleEntry.getBytes());
+        // two hex digits for each byte, the same as %02x
+        char[] hex = new char[byteData.length * 2];
+        for (int i = 0; i < byteData.length; i++) {
+            hex[i * 2] = hexDigits[(byteData[i] >> 4) & 0xf];
+            hex[i * 2 + 1] = hexDigits[byteData[i] & 0xf];
+        }
+        return new String(hex);
+    }
+
+    /**
+     * This method makes the digest of this thread, a digest holds state while it hashes
+     * @return MessageDigest | null when MD5 is not there
+     */
+    @Nullable
+    private static MessageDigest newMd5() {
         try {
             // message digests are one way hash function
-            MessageDigest md = MessageDigest.getInstance("MD5");
-            // updates the digest with set of bytes
-            md.update(singleEntry.getBytes());
-            // perform the hash calculation by digesting and return array of bytes
-            byte[] byteData = md.digest();
-            StringBuilder stringBuilder = new StringBuilder(byteData.length);
-            for (byte aByteData : byteData) {
-                // %02x means number of digits is less than 2 pad to the left and x means hex value
-                stringBuilder.append(String.format("%02x", aByteData));
-            }
-            return stringBuilder.toString();
+            return MessageDigest.getInstance("MD5");
         } catch (Exception e) {
             e.printStackTrace();
         }
@@ -104,18 +193,18 @@ public class EntryParser {
     /**
      * This class will find the file extension of the resource access
      * If there is not one then it will also return that there is not one
-     * @param fileExtension give the matched entry
+     * @param request give the requested resource of the matched entry
      * @return fileExtension | null
      */
     @Nullable
-    private static String getFileExtension(MatchResult fileExtension) {
+    private static String getFileExtension(String request) {
         //1 with username
-        Matcher withUser = fileEWithUser.matcher(fileExtension.group(4));
+        Matcher withUser = withUserMatcher.get().reset(request);
         if (withUser.matches()) {
             return withUser.group(3);
         }
         //3 without username  /images/logo.gif HTTP/1.0
-        Matcher withoutUser = fileEWithoutUser.matcher(fileExtension.group(4));
+        Matcher withoutUser = withoutUserMatcher.get().reset(request);
         if (withoutUser.matches()) {
             return withoutUser.group(2);
         }
@@ -144,25 +233,36 @@ public class EntryParser {
     }
 
     /**
-     * This method will return the resource location
-     * @param groupFour give the matched entry
+     * This method will return the resource location of a request without a username,
+     * what is before the first whitespace when something follows it, the same as the
+     * first of request.split("\\s+") when that splits into more than one
+     * @param request give the requested resource of the matched entry
      * @return resource | /
      */
-    private static String getResource(MatchResult groupFour){
-        Matcher m = usernameP.matcher(groupFour.group(4));
-        if (m.matches()) {
-            return m.group(2);
+    private static String getResource(String request){
+        int space = 0;
+        while (space < request.length() && !isWhitespace(request.charAt(space))) {
+            space++;
         }
-
-        String[] resource = groupFour.group(4).split("\\s+");
-        if (resource.length > 1) {
-            return resource[0];
+        for (int i = space; i < request.length(); i++) {
+            if (!isWhitespace(request.charAt(i))) {
+                return request.substring(0, space);
+            }
         }
 
         // default for root resource
         return "/";
     }
 
+    /**
+     * This method checks a character is whitespace the way \\s matches it
+     * @param c the character
+     * @return boolean true for whitespace
+     */
+    private static boolean isWhitespace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+    }
+
     /**
      * This method will return the resource location
      * using string manipulation
@@ -192,20 +292,6 @@ public class EntryParser {
         return "/";
     }
 
-    /**
-     * This method will return the user name if it exists
-     * @param groupFour give the matched entry
-     * @return username | null
-     */
-    @Nullable
-    private static String getUsername(MatchResult groupFour) {
-        Matcher m = usernameP.matcher(groupFour.group(4));
-        if (m.matches()) {
-            return m.group(1);
-        }
-        return null;
-    }
-
     /**
      * This method will return the user name if it exists
      * this one however uses string manipulation
@@ -241,31 +327,16 @@ public class EntryParser {
     /**
      * This method will get the date and return the data in a nice format
      * including changing it to central timezone
-     * @param dateTimeZone give the matched entry
+     * @param dateTimeZone give the matched date of the entry
      * @return DateTime | null
      */
     @Nullable
-    private static DateTime makeDateTime(MatchResult dateTimeZone) {
+    private static DateTime makeDateTime(String dateTimeZone) {
         try {
-            return dateTime.parseDateTime(dateTimeZone.group(2)).withZone(DateTimeZone.UTC);
+            return dateTime.parseDateTime(dateTimeZone).withZone(DateTimeZone.UTC);
         } catch (IllegalArgumentException e) {
             e.printStackTrace();
         }
         return null;
     }
-
-    /**
-     * This method returns if the entry matches the data pattern needed to be entered into the DB
-     * @param entry give the entry to match and be parsed
-     * @return MatchResult | null
-     */
-    @Nullable
-    private static MatchResult patternMatching(String entry) {
-        Matcher m = p.matcher(entry);
-        boolean b = m.matches();
-        if (b) {
-            return m;
-        }
-        return null;
-    }
-}
\ No newline at end of file
+}